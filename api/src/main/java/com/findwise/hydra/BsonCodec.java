@@ -0,0 +1,345 @@
+package com.findwise.hydra;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * Encodes and decodes maps as BSON documents (see bsonspec.org), the binary
+ * format that documents can be sent in between stages and core instead of
+ * Json. Only the types that documents are made of are used: documents,
+ * arrays, strings, 32 and 64 bit integers, doubles, booleans, dates and null.
+ * <p/>
+ * Unlike in Json, values keep their types: whole doubles are not turned into
+ * integers, and strings that look like dates are not turned into dates. Any
+ * other object is encoded as what it reads back as from Json, so that IDs
+ * look the same in both formats.
+ */
+final class BsonCodec {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte DOCUMENT = 0x03;
+	private static final byte ARRAY = 0x04;
+	private static final byte BOOLEAN = 0x08;
+	private static final byte DATE = 0x09;
+	private static final byte NULL = 0x0A;
+	private static final byte INT32 = 0x10;
+	private static final byte INT64 = 0x12;
+
+	private static final int MIN_DOCUMENT_LENGTH = 5;
+
+	private BsonCodec() {
+	}
+
+	static byte[] encode(Map<?, ?> map) {
+		Output out = new Output();
+		writeDocument(out, map);
+		return out.toByteArray();
+	}
+
+	private static void writeDocument(Output out, Map<?, ?> map) {
+		int start = out.size();
+		out.writeInt(0);
+		for (Map.Entry<?, ?> e : map.entrySet()) {
+			writeElement(out, String.valueOf(e.getKey()), e.getValue());
+		}
+		out.write(0);
+		out.setInt(start, out.size() - start);
+	}
+
+	private static void writeArray(Output out, Collection<?> values) {
+		int start = out.size();
+		out.writeInt(0);
+		int i = 0;
+		for (Object o : values) {
+			writeElement(out, Integer.toString(i++), o);
+		}
+		out.write(0);
+		out.setInt(start, out.size() - start);
+	}
+
+	private static void writeElement(Output out, String name, Object o) {
+		if (o == null) {
+			out.writeHeader(NULL, name);
+		} else if (o instanceof String) {
+			out.writeHeader(STRING, name);
+			out.writeString((String) o);
+		} else if (o instanceof Map) {
+			out.writeHeader(DOCUMENT, name);
+			writeDocument(out, (Map<?, ?>) o);
+		} else if (o instanceof Collection) {
+			out.writeHeader(ARRAY, name);
+			writeArray(out, (Collection<?>) o);
+		} else if (o instanceof Integer || o instanceof Short || o instanceof Byte) {
+			out.writeHeader(INT32, name);
+			out.writeInt(((Number) o).intValue());
+		} else if (o instanceof Long) {
+			out.writeHeader(INT64, name);
+			out.writeLong((Long) o);
+		} else if (o instanceof Double) {
+			out.writeHeader(DOUBLE, name);
+			out.writeLong(Double.doubleToRawLongBits((Double) o));
+		} else if (o instanceof Float) {
+			// Through its string, so that 0.1f is read back as 0.1, as from Json
+			writeElement(out, name, Double.valueOf(o.toString()));
+		} else if (o instanceof BigDecimal || o instanceof BigInteger) {
+			writeElement(out, name, JsonStreams.toNumber(o.toString()));
+		} else if (o instanceof Boolean) {
+			out.writeHeader(BOOLEAN, name);
+			out.write((Boolean) o ? 1 : 0);
+		} else if (o.getClass() == Date.class) {
+			out.writeHeader(DATE, name);
+			out.writeLong(((Date) o).getTime());
+		} else if (o instanceof Enum) {
+			writeElement(out, name, ((Enum<?>) o).name());
+		} else if (o instanceof Character) {
+			writeElement(out, name, o.toString());
+		} else if (o.getClass().isArray()) {
+			List<Object> list = new ArrayList<Object>();
+			for (int i = 0, length = Array.getLength(o); i < length; i++) {
+				list.add(Array.get(o, i));
+			}
+			writeElement(out, name, list);
+		} else {
+			writeElement(out, name, throughJson(o));
+		}
+	}
+
+	private static Object throughJson(Object o) {
+		try {
+			return SerializationUtils.toObject(SerializationUtils.toJson(o));
+		} catch (JsonException e) {
+			// Json written by SerializationUtils is always readable
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static Map<String, Object> decode(byte[] bson) throws JsonException {
+		Input in = new Input(bson);
+		Map<String, Object> map = readDocument(in);
+		if (in.position != bson.length) {
+			throw malformed("BSON document was not fully consumed.");
+		}
+		return map;
+	}
+
+	/**
+	 * @return the length of the document starting with the given bytes
+	 */
+	static int getLength(byte[] start) throws JsonException {
+		int length = new Input(start).readInt();
+		if (length < MIN_DOCUMENT_LENGTH) {
+			throw malformed("BSON document of invalid length " + length);
+		}
+		return length;
+	}
+
+	private static Map<String, Object> readDocument(Input in) throws JsonException {
+		int end = in.readEnd();
+		Map<String, Object> map = new HashMap<String, Object>();
+		byte type;
+		while ((type = in.readByte()) != 0) {
+			String name = in.readCString();
+			map.put(name, readValue(in, type));
+		}
+		in.checkEnd(end);
+		return map;
+	}
+
+	private static List<Object> readArray(Input in) throws JsonException {
+		int end = in.readEnd();
+		List<Object> list = new ArrayList<Object>();
+		byte type;
+		while ((type = in.readByte()) != 0) {
+			in.readCString();
+			list.add(readValue(in, type));
+		}
+		in.checkEnd(end);
+		return list;
+	}
+
+	private static Object readValue(Input in, byte type) throws JsonException {
+		switch (type) {
+		case NULL:
+			return null;
+		case STRING:
+			return in.readString();
+		case DOCUMENT:
+			return readDocument(in);
+		case ARRAY:
+			return readArray(in);
+		case INT32:
+			return in.readInt();
+		case INT64:
+			return in.readLong();
+		case DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+		case BOOLEAN:
+			return in.readByte() != 0;
+		case DATE:
+			return new Date(in.readLong());
+		default:
+			throw malformed("Unsupported BSON type " + type);
+		}
+	}
+
+	private static JsonException malformed(String message) {
+		return new JsonException(new JsonParseException(message));
+	}
+
+	/**
+	 * A growable little endian buffer, in which the length of a document can
+	 * be filled in once the document is written
+	 */
+	private static final class Output {
+		private byte[] buffer = new byte[256];
+		private int count = 0;
+
+		int size() {
+			return count;
+		}
+
+		private void ensure(int length) {
+			if (count + length > buffer.length) {
+				byte[] larger = new byte[Math.max(buffer.length * 2, count + length)];
+				System.arraycopy(buffer, 0, larger, 0, count);
+				buffer = larger;
+			}
+		}
+
+		void write(int b) {
+			ensure(1);
+			buffer[count++] = (byte) b;
+		}
+
+		void write(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, count, bytes.length);
+			count += bytes.length;
+		}
+
+		void writeInt(int v) {
+			ensure(4);
+			setInt(count, v);
+			count += 4;
+		}
+
+		void setInt(int position, int v) {
+			buffer[position] = (byte) v;
+			buffer[position + 1] = (byte) (v >>> 8);
+			buffer[position + 2] = (byte) (v >>> 16);
+			buffer[position + 3] = (byte) (v >>> 24);
+		}
+
+		void writeLong(long v) {
+			writeInt((int) v);
+			writeInt((int) (v >>> 32));
+		}
+
+		void writeHeader(byte type, String name) {
+			write(type);
+			if (name.indexOf('\0') >= 0) {
+				throw new IllegalArgumentException("Field names in BSON can not contain a null character: " + name);
+			}
+			write(name.getBytes(UTF8));
+			write(0);
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(UTF8);
+			writeInt(bytes.length + 1);
+			write(bytes);
+			write(0);
+		}
+
+		byte[] toByteArray() {
+			byte[] bytes = new byte[count];
+			System.arraycopy(buffer, 0, bytes, 0, count);
+			return bytes;
+		}
+	}
+
+	private static final class Input {
+		private final byte[] buffer;
+		private int position = 0;
+
+		Input(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		private void require(int length) throws JsonException {
+			if (length < 0 || position + length > buffer.length) {
+				throw malformed("BSON document is truncated.");
+			}
+		}
+
+		byte readByte() throws JsonException {
+			require(1);
+			return buffer[position++];
+		}
+
+		int readInt() throws JsonException {
+			require(4);
+			int v = (buffer[position] & 0xff) | (buffer[position + 1] & 0xff) << 8
+					| (buffer[position + 2] & 0xff) << 16 | (buffer[position + 3] & 0xff) << 24;
+			position += 4;
+			return v;
+		}
+
+		long readLong() throws JsonException {
+			long low = readInt() & 0xffffffffL;
+			return low | ((long) readInt()) << 32;
+		}
+
+		/**
+		 * Reads the length of a document or array
+		 *
+		 * @return the position where it ends
+		 */
+		int readEnd() throws JsonException {
+			int start = position;
+			int length = readInt();
+			if (length < MIN_DOCUMENT_LENGTH) {
+				throw malformed("BSON document of invalid length " + length);
+			}
+			require(length - 4);
+			return start + length;
+		}
+
+		void checkEnd(int end) throws JsonException {
+			if (position != end) {
+				throw malformed("BSON document does not end where its length says.");
+			}
+		}
+
+		String readCString() throws JsonException {
+			int start = position;
+			while (readByte() != 0) {
+				// Up to and including the terminating null
+			}
+			return new String(buffer, start, position - start - 1, UTF8);
+		}
+
+		String readString() throws JsonException {
+			int length = readInt();
+			require(length);
+			if (length < 1 || buffer[position + length - 1] != 0) {
+				throw malformed("BSON string is not null terminated.");
+			}
+			String s = new String(buffer, position, length - 1, UTF8);
+			position += length;
+			return s;
+		}
+	}
+}
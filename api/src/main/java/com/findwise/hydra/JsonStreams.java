@@ -0,0 +1,261 @@
+package com.findwise.hydra;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes and reads the JSON of {@link SerializationUtils} directly to and from
+ * a stream, without building a Gson tree in between. The JSON is the same as
+ * that of Gson: maps, collections, arrays, dates, numbers, booleans, strings
+ * and enums are written here, and any other object is left to Gson.
+ */
+final class JsonStreams {
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> legacyDateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+		}
+	};
+
+	private JsonStreams() {
+	}
+
+	static String formatDate(Date date) {
+		return dateFormat.get().format(date);
+	}
+
+	/**
+	 * @return the date in the string, in either the current or the legacy
+	 * format, or null if it is not a date
+	 */
+	static Date parseDate(String s) {
+		if (!mightBeDate(s)) {
+			return null;
+		}
+		Date date = dateFormat.get().parse(s, new ParsePosition(0));
+		if (date == null) {
+			date = legacyDateFormat.get().parse(s, new ParsePosition(0));
+		}
+		return date;
+	}
+
+	/**
+	 * Rules out most strings that are not dates without parsing them. A date
+	 * starts with its year, after any spaces, and has a T and colons in it.
+	 */
+	private static boolean mightBeDate(String s) {
+		int i = 0;
+		while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t')) {
+			i++;
+		}
+		if (i == s.length()) {
+			return false;
+		}
+		char first = s.charAt(i);
+		return ((first >= '0' && first <= '9') || first == '-') && s.indexOf('T', i) > 0 && s.indexOf(':', i) > 0;
+	}
+
+	static void write(JsonWriter out, Object o, Gson fallback) throws IOException {
+		if (o == null) {
+			out.nullValue();
+		} else if (o instanceof String) {
+			out.value((String) o);
+		} else if (o instanceof LazyJsonMap) {
+			((LazyJsonMap) o).write(out, fallback);
+		} else if (o instanceof Map) {
+			out.beginObject();
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+				out.name(String.valueOf(e.getKey()));
+				write(out, e.getValue(), fallback);
+			}
+			out.endObject();
+		} else if (o instanceof Collection) {
+			out.beginArray();
+			for (Object element : (Collection<?>) o) {
+				write(out, element, fallback);
+			}
+			out.endArray();
+		} else if (isNumber(o)) {
+			out.value((Number) o);
+		} else if (o instanceof Boolean) {
+			out.value((Boolean) o);
+		} else if (o.getClass() == Date.class) {
+			out.value(formatDate((Date) o));
+		} else if (o instanceof Enum) {
+			out.value(((Enum<?>) o).name());
+		} else if (o instanceof Character) {
+			out.value(o.toString());
+		} else if (o.getClass().isArray()) {
+			out.beginArray();
+			for (int i = 0, length = Array.getLength(o); i < length; i++) {
+				write(out, Array.get(o, i), fallback);
+			}
+			out.endArray();
+		} else {
+			fallback.toJson(o, o.getClass(), out);
+		}
+	}
+
+	private static boolean isNumber(Object o) {
+		Class<?> c = o.getClass();
+		return c == Integer.class || c == Long.class || c == Double.class || c == Float.class
+				|| c == Short.class || c == Byte.class || c == BigDecimal.class || c == BigInteger.class;
+	}
+
+	/**
+	 * Reads a value as maps, lists, dates, strings, booleans and the smallest
+	 * of integer, long and double that holds each number.
+	 */
+	static Object read(JsonReader in) throws IOException {
+		switch (in.peek()) {
+		case BEGIN_OBJECT:
+			HashMap<String, Object> map = new HashMap<String, Object>();
+			in.beginObject();
+			while (in.hasNext()) {
+				map.put(in.nextName(), read(in));
+			}
+			in.endObject();
+			return map;
+		case BEGIN_ARRAY:
+			List<Object> list = new ArrayList<Object>();
+			in.beginArray();
+			while (in.hasNext()) {
+				list.add(read(in));
+			}
+			in.endArray();
+			return list;
+		case STRING:
+			String s = in.nextString();
+			Date date = parseDate(s);
+			return date != null ? date : s;
+		case NUMBER:
+			return toNumber(in.nextString());
+		case BOOLEAN:
+			return in.nextBoolean();
+		case NULL:
+			in.nextNull();
+			return null;
+		default:
+			throw new IOException("Unexpected " + in.peek() + " in JSON");
+		}
+	}
+
+	/**
+	 * Copies a value from the reader to the writer token for token, without
+	 * reading it into objects. Numbers keep their digits, but not
+	 * necessarily their notation.
+	 */
+	static void copy(JsonReader in, JsonWriter out) throws IOException {
+		switch (in.peek()) {
+		case BEGIN_OBJECT:
+			in.beginObject();
+			out.beginObject();
+			while (in.hasNext()) {
+				out.name(in.nextName());
+				copy(in, out);
+			}
+			in.endObject();
+			out.endObject();
+			break;
+		case BEGIN_ARRAY:
+			in.beginArray();
+			out.beginArray();
+			while (in.hasNext()) {
+				copy(in, out);
+			}
+			in.endArray();
+			out.endArray();
+			break;
+		case STRING:
+			out.value(in.nextString());
+			break;
+		case NUMBER:
+			out.value(new BigDecimal(in.nextString()));
+			break;
+		case BOOLEAN:
+			out.value(in.nextBoolean());
+			break;
+		case NULL:
+			in.nextNull();
+			out.nullValue();
+			break;
+		default:
+			throw new IOException("Unexpected " + in.peek() + " in JSON");
+		}
+	}
+
+	static Object toNumber(String s) {
+		if (isPlainInteger(s)) {
+			// Most numbers are small integers, which are parsed without a BigDecimal
+			long l = Long.parseLong(s);
+			if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+				return (int) l;
+			}
+			return l;
+		}
+		BigDecimal bigDec = new BigDecimal(s);
+		try {
+			bigDec.toBigIntegerExact();
+			try {
+				return bigDec.intValueExact();
+			} catch (ArithmeticException e) {
+				return bigDec.longValue();
+			}
+		} catch (ArithmeticException e) {
+			return bigDec.doubleValue();
+		}
+	}
+
+	private static boolean isPlainInteger(String s) {
+		int start = s.startsWith("-") ? 1 : 0;
+		if (s.length() == start || s.length() - start > 18) {
+			return false;
+		}
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether there is no value at all to read, as Gson reads nothing
+	 * as null
+	 */
+	static boolean isEmpty(JsonReader in) throws IOException {
+		try {
+			return isEnd(in);
+		} catch (EOFException e) {
+			return true;
+		}
+	}
+
+	static boolean isEnd(JsonReader in) throws IOException {
+		return in.peek() == JsonToken.END_DOCUMENT;
+	}
+}
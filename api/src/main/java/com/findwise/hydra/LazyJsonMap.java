@@ -0,0 +1,456 @@
+package com.findwise.hydra;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A map read from a Json object, whose values are only read when they are
+ * first asked for. Until then, a value is only the position of its Json in the
+ * object, and is written back by copying that Json token for token, without
+ * reading it into objects. A stage that uses a few of the fields of a document
+ * thereby only pays for reading those.
+ * <p/>
+ * The Json is checked to be well formed when the map is created, so reading a
+ * value later does not fail. Values are read as
+ * {@link SerializationUtils#toObject(String)} reads them.
+ */
+public final class LazyJsonMap extends AbstractMap<String, Object> {
+	private final HashMap<String, Object> values;
+
+	private LazyJsonMap(HashMap<String, Object> values) {
+		this.values = values;
+	}
+
+	/**
+	 * @throws JsonException if the Json is not a single, well formed object
+	 */
+	static LazyJsonMap parse(String json) throws JsonException {
+		Scanner scanner = new Scanner(json, 0);
+		scanner.skipWhitespace();
+		LazyJsonMap map = scanner.readObject();
+		scanner.skipWhitespace();
+		if (!scanner.isEnd()) {
+			throw scanner.malformed("JSON document was not fully consumed.");
+		}
+		return map;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = values.get(key);
+		if (value instanceof Raw) {
+			value = ((Raw) value).read();
+			values.put((String) key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return whether the key has no value, or null, without reading it
+	 */
+	public boolean isNull(String key) {
+		Object value = values.get(key);
+		return value == null || (value instanceof Raw && ((Raw) value).isNull());
+	}
+
+	/**
+	 * @return whether the value of the key has been read, or was put rather
+	 * than read
+	 */
+	public boolean isRead(String key) {
+		return !(values.get(key) instanceof Raw);
+	}
+
+	/**
+	 * @return the value of the key as a map that is itself read lazily, or
+	 * null if the value is not a map
+	 */
+	public LazyJsonMap getLazily(String key) {
+		Object value = values.get(key);
+		if (value instanceof Raw && ((Raw) value).isObject()) {
+			LazyJsonMap map = ((Raw) value).readLazily();
+			values.put(key, map);
+			return map;
+		}
+		return value instanceof LazyJsonMap ? (LazyJsonMap) value : null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return read(values.put(key, value));
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return read(values.remove(key));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return values.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return values.size();
+	}
+
+	@Override
+	public void clear() {
+		values.clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return values.keySet();
+	}
+
+	/**
+	 * Reads all values that have not been read yet
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			if (e.getValue() instanceof Raw) {
+				e.setValue(((Raw) e.getValue()).read());
+			}
+		}
+		return values.entrySet();
+	}
+
+	/**
+	 * @return a copy of the map, sharing the Json of the values that have not
+	 * been read, and with copies of those that have, see
+	 * {@link SerializationUtils#copy(Object)}
+	 */
+	public LazyJsonMap copy() {
+		HashMap<String, Object> copy = new HashMap<String, Object>(values.size() * 4 / 3 + 1);
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			Object value = e.getValue();
+			copy.put(e.getKey(), value instanceof Raw ? value : SerializationUtils.copy(value));
+		}
+		return new LazyJsonMap(copy);
+	}
+
+	/**
+	 * Writes the values that have not been read as the Json they were read
+	 * from
+	 */
+	void write(JsonWriter out, Gson fallback) throws IOException {
+		out.beginObject();
+		for (Map.Entry<String, Object> e : values.entrySet()) {
+			out.name(e.getKey());
+			if (e.getValue() instanceof Raw) {
+				JsonStreams.copy(((Raw) e.getValue()).reader(), out);
+			} else {
+				JsonStreams.write(out, e.getValue(), fallback);
+			}
+		}
+		out.endObject();
+	}
+
+	private static Object read(Object value) {
+		return value instanceof Raw ? ((Raw) value).read() : value;
+	}
+
+	/**
+	 * The position of a value that has not been read in the Json of its map
+	 */
+	private static final class Raw {
+		private final String json;
+		private final int start;
+		private final int end;
+
+		Raw(String json, int start, int end) {
+			this.json = json;
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean isNull() {
+			return end - start == 4 && json.startsWith("null", start);
+		}
+
+		boolean isObject() {
+			return json.charAt(start) == '{';
+		}
+
+		Object read() {
+			try {
+				return SerializationUtils.toObject(toString());
+			} catch (JsonException e) {
+				// The Json was checked when the map was created
+				throw new IllegalStateException(e);
+			}
+		}
+
+		LazyJsonMap readLazily() {
+			try {
+				return new Scanner(json, start).readObject();
+			} catch (JsonException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		JsonReader reader() {
+			JsonReader in = new JsonReader(new StringReader(toString()));
+			// Lets a value that is not an object or array be read on its own
+			in.setLenient(true);
+			return in;
+		}
+
+		@Override
+		public String toString() {
+			return json.substring(start, end);
+		}
+	}
+
+	/**
+	 * Finds where the values of an object start and end, checking that the
+	 * Json is well formed on the way
+	 */
+	private static final class Scanner {
+		private final String json;
+		private int position;
+
+		Scanner(String json, int position) {
+			this.json = json;
+			this.position = position;
+		}
+
+		boolean isEnd() {
+			return position == json.length();
+		}
+
+		LazyJsonMap readObject() throws JsonException {
+			HashMap<String, Object> values = new HashMap<String, Object>();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				position++;
+				return new LazyJsonMap(values);
+			}
+			while (true) {
+				skipWhitespace();
+				String name = readString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				int start = position;
+				skipValue();
+				values.put(name, new Raw(json, start, position));
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect('}');
+					return new LazyJsonMap(values);
+				}
+			}
+		}
+
+		void skipWhitespace() {
+			while (position < json.length()) {
+				char c = json.charAt(position);
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+					return;
+				}
+				position++;
+			}
+		}
+
+		private char peek() throws JsonException {
+			if (isEnd()) {
+				throw malformed("JSON document is truncated.");
+			}
+			return json.charAt(position);
+		}
+
+		private void expect(char c) throws JsonException {
+			if (peek() != c) {
+				throw malformed("Expected '" + c + "'");
+			}
+			position++;
+		}
+
+		private void skipValue() throws JsonException {
+			char c = peek();
+			switch (c) {
+			case '{':
+				skipContainer('{', '}', true);
+				break;
+			case '[':
+				skipContainer('[', ']', false);
+				break;
+			case '"':
+				skipString();
+				break;
+			case 't':
+				skipLiteral("true");
+				break;
+			case 'f':
+				skipLiteral("false");
+				break;
+			case 'n':
+				skipLiteral("null");
+				break;
+			default:
+				skipNumber();
+			}
+		}
+
+		private void skipContainer(char open, char close, boolean named) throws JsonException {
+			expect(open);
+			skipWhitespace();
+			if (peek() == close) {
+				position++;
+				return;
+			}
+			while (true) {
+				skipWhitespace();
+				if (named) {
+					skipString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+				}
+				skipValue();
+				skipWhitespace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect(close);
+					return;
+				}
+			}
+		}
+
+		private String readString() throws JsonException {
+			int start = position + 1;
+			skipString();
+			String s = json.substring(start, position - 1);
+			return s.indexOf('\\') < 0 ? s : unescape(s);
+		}
+
+		/**
+		 * @param s the characters of a string that {@link #skipString()} has
+		 * found to be well formed
+		 */
+		private static String unescape(String s) {
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				c = s.charAt(++i);
+				switch (c) {
+				case 'u':
+					sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+					i += 4;
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				default:
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+
+		private void skipString() throws JsonException {
+			expect('"');
+			while (true) {
+				char c = peek();
+				position++;
+				if (c == '"') {
+					return;
+				} else if (c == '\\') {
+					char escaped = peek();
+					position++;
+					if (escaped == 'u') {
+						for (int i = 0; i < 4; i++) {
+							if (Character.digit(peek(), 16) < 0) {
+								throw malformed("Invalid escape in string");
+							}
+							position++;
+						}
+					} else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+						throw malformed("Invalid escape in string");
+					}
+				} else if (c < 0x20) {
+					throw malformed("Unescaped control character in string");
+				}
+			}
+		}
+
+		private void skipLiteral(String literal) throws JsonException {
+			if (!json.startsWith(literal, position)) {
+				throw malformed("Unexpected character");
+			}
+			position += literal.length();
+		}
+
+		private void skipNumber() throws JsonException {
+			if (peek() == '-') {
+				position++;
+			}
+			if (peek() == '0') {
+				position++;
+			} else {
+				skipDigits();
+			}
+			if (position < json.length() && json.charAt(position) == '.') {
+				position++;
+				skipDigits();
+			}
+			if (position < json.length() && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+				position++;
+				if (peek() == '+' || peek() == '-') {
+					position++;
+				}
+				skipDigits();
+			}
+		}
+
+		private void skipDigits() throws JsonException {
+			if (!isDigit(peek())) {
+				throw malformed("Unexpected character");
+			}
+			while (position < json.length() && isDigit(json.charAt(position))) {
+				position++;
+			}
+		}
+
+		private static boolean isDigit(char c) {
+			return c >= '0' && c <= '9';
+		}
+
+		JsonException malformed(String message) {
+			return new JsonException(new JsonParseException(message + " at position " + position));
+		}
+	}
+}
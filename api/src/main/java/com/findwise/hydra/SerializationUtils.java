@@ -3,50 +3,42 @@ package com.findwise.hydra;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Type;
-import java.math.BigDecimal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
-import java.util.List;
-import java.util.Map;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
-import org.slf4j.LoggerFactory;
-import org.slf4j.Logger;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Convenience methods for handling serialization and deserialization of 
- * objects to and from Json, using Gson. 
+ * objects to and from Json, using Gson. Json is streamed without building a 
+ * Gson tree, see {@link JsonStreams}, and can be written to and read from a 
+ * stream as well as a string.
  * @author joel.westberg
  *
  */
 public final class SerializationUtils {
 	private static Logger logger = LoggerFactory.getLogger(SerializationUtils.class);
-    private static Logger internalLogger = LoggerFactory.getLogger("internal");
 
-    private static SimpleDateFormat getDateFormat() {
-		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-	}
-
-	private static SimpleDateFormat getLegacyDateFormat() {
-		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-	}
-	
 	private static Gson gson = getGson();
 	
 	private static Gson getGson() {
@@ -71,7 +63,7 @@ public final class SerializationUtils {
 					@Override
 					public JsonElement serialize(Date src, Type typeOfSrc,
 							JsonSerializationContext context) {
-						return src == null ? null : new JsonPrimitive(getDateFormat().format(src));
+						return src == null ? null : new JsonPrimitive(JsonStreams.formatDate(src));
 					}
 				});
 		gsonBuilder.registerTypeAdapter(DocumentID.class,
@@ -100,30 +92,105 @@ public final class SerializationUtils {
 	 * Should the Json message not be a map, it will be wrapped in a map, corresponding to
 	 * the JSON: <code>{ "" : &lt;original_json&gt; }</code>
 	 */
-	@SuppressWarnings("unchecked")
 	public static Map<String, Object> fromJson(String json) throws JsonException {
-		try {
-			Object o = toObject(json);
-			if(o instanceof Map) {
-				return (Map<String, Object>) o;
+		return fromJson(new StringReader(json));
+	}
+
+	/**
+	 * Same as {@link #fromJson(String)}, reading the Json from a stream rather
+	 * than from a string held in memory. The reader is not closed.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> fromJson(Reader json) throws JsonException {
+		Object o = toObject(json);
+		if(o instanceof Map) {
+			return (Map<String, Object>) o;
+		}
+		else {
+			HashMap<String, Object> x = new HashMap<String, Object>();
+			x.put("", o);
+			return x;
+		}
+	}
+	
+	/**
+	 * Reads a Json object without reading its values, which are read when they
+	 * are first asked for, see {@link LazyJsonMap}. Unlike
+	 * {@link #fromJson(String)}, the Json must be strictly well formed.
+	 */
+	public static LazyJsonMap fromJsonLazily(String json) throws JsonException {
+		return LazyJsonMap.parse(json);
+	}
+
+	/**
+	 * Copies a value as read from Json, so that changes to either the value
+	 * or the copy do not show in the other. Maps and collections are copied,
+	 * strings, numbers, booleans and enums are not, since they can not be
+	 * changed, and any other object is copied through Json.
+	 */
+	public static Object copy(Object o) {
+		if (o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Enum) {
+			return o;
+		} else if (o instanceof LazyJsonMap) {
+			return ((LazyJsonMap) o).copy();
+		} else if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			HashMap<String, Object> copy = new HashMap<String, Object>(map.size() * 4 / 3 + 1);
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				copy.put(String.valueOf(e.getKey()), copy(e.getValue()));
 			}
-			else {
-				HashMap<String, Object> x = new HashMap<String, Object>();
-				x.put("", o);
-				return x;
+			return copy;
+		} else if (o instanceof Collection) {
+			Collection<?> collection = (Collection<?>) o;
+			ArrayList<Object> copy = new ArrayList<Object>(collection.size());
+			for (Object element : collection) {
+				copy.add(copy(element));
 			}
+			return copy;
+		} else if (o.getClass() == Date.class) {
+			return new Date(((Date) o).getTime());
 		}
-		catch(JsonParseException e) {
-			throw new JsonException(e);
+		try {
+			return toObject(toJson(o));
+		} catch (JsonException e) {
+			// Json written by toJson is always readable
+			throw new IllegalStateException(e);
 		}
 	}
 	
 	public static Object toObject(String json) throws JsonException {
-		GsonBuilder gsonBuilder = new GsonBuilder();
-		gsonBuilder.serializeNulls();
-		gsonBuilder.registerTypeAdapter(Object.class, new NaturalGsonDeserializer());
-		Gson gson = gsonBuilder.create();
-		return gson.fromJson(json, Object.class);
+		return toObject(new StringReader(json));
+	}
+
+	/**
+	 * Reads any Json value, as maps, lists, dates, strings, booleans and
+	 * numbers. The reader is not closed.
+	 */
+	public static Object toObject(Reader json) throws JsonException {
+		JsonReader reader = new JsonReader(json);
+		// As lenient as Gson is when parsing
+		reader.setLenient(true);
+		try {
+			if(JsonStreams.isEmpty(reader)) {
+				return null;
+			}
+			Object o = JsonStreams.read(reader);
+			if(!JsonStreams.isEnd(reader)) {
+				throw new JsonException(new JsonParseException("JSON document was not fully consumed."));
+			}
+			return o;
+		}
+		catch(IOException e) {
+			// Malformed or truncated Json
+			throw new JsonException(new JsonParseException(e));
+		}
+		catch(IllegalStateException e) {
+			// Thrown by the reader when the Json is not well-formed
+			throw new JsonException(new JsonParseException(e));
+		}
+		catch(NumberFormatException e) {
+			throw new JsonException(new JsonParseException(e));
+		}
 	}
 	
 	/**
@@ -133,104 +200,106 @@ public final class SerializationUtils {
 	 */
 	public static String toJson(Object o) {
 		while(true) {
+			StringWriter sw = new StringWriter();
 			try {
-				return gson.toJson(o);
+				toJson(o, sw);
+				return sw.toString();
 			} catch(ConcurrentModificationException e) {
 				logger.warn("A ConcurrentModificationException was caught during serialization. Trying again!");
+			} catch (IOException e) {
+				// A StringWriter does not throw
+				throw new IllegalStateException(e);
 			}
 		}
 	}
-	
+
 	/**
-	 * Method for verifying what class the passed Object will get if serialized and then deserialized via this class.
+	 * Serializes any object to Json, writing it straight to the given writer.
+	 * The writer is flushed, but not closed.
 	 */
-	public static Class<?> getResultingClass(Object o) {
-		return getResultingClass(toJson(o));
+	public static void toJson(Object o, Writer writer) throws IOException {
+		JsonWriter out = newJsonWriter(writer);
+		toJson(o, out);
+		out.flush();
 	}
-	
+
 	/**
-	 * Functionally the same as calling SerializationUtils.toObject(<pre>json</pre>).getClass()
+	 * Serializes any object to Json as the next value of the given writer,
+	 * for building Json of several values without putting them in a map first.
 	 */
-	public static Class<?> getResultingClass(String json) {
-		try {
-			return toObject(json).getClass();
-		} catch (JsonException e) {
-			return null;
-		}
+	public static void toJson(Object o, JsonWriter out) throws IOException {
+		JsonStreams.write(out, o, gson);
+	}
+
+	/**
+	 * @return a writer producing the same Json as {@link #toJson(Object)}
+	 */
+	public static JsonWriter newJsonWriter(Writer writer) {
+		JsonWriter out = new JsonWriter(writer);
+		// Escapes the same characters as Gson does by default
+		out.setHtmlSafe(true);
+		out.setLenient(true);
+		return out;
 	}
 	
 	/**
-	 * Private class needed to induce Gson to serialize standard "String" : Object relations in JSON string to DBObjects.
-	 * In a more general case, DBObject could be a HashMap instead (see the equivalent parsing in hydra-api Document class)
+	 * Serializes a map to BSON, the binary format documents can be sent to
+	 * and from core in instead of Json. See {@link BsonCodec} for how values
+	 * are encoded.
 	 */
-	private static class NaturalGsonDeserializer implements JsonDeserializer<Object> {
-		
-		public Object deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+	public static byte[] toBson(Map<String, ?> map) {
+		while(true) {
 			try {
-				if (json.isJsonNull()) {
-					return null;
-				} else if (json.isJsonPrimitive()) {
-					return handlePrimitive(json.getAsJsonPrimitive());
-				} else if (json.isJsonArray()) {
-					return handleArray(json.getAsJsonArray(), context);
-				} else {
-					return handleObject(json.getAsJsonObject(), context);
-				}
-			} catch (Exception e) {
-				internalLogger.error("An exception was caught during deserialization", e);
-				return null;
+				return BsonCodec.encode(map);
+			} catch(ConcurrentModificationException e) {
+				logger.warn("A ConcurrentModificationException was caught during serialization. Trying again!");
 			}
 		}
+	}
 
-		private Object handlePrimitive(JsonPrimitive json) {
-			if (json.isBoolean()) {
-				return json.getAsBoolean();
-			} else if (json.isString()) {
-				try {
-					return getDateFormat().parse(json.getAsString());
-				} catch(ParseException e) {
-					try {
-						return getLegacyDateFormat().parse(json.getAsString());
-					} catch (ParseException e2) {
-						return json.getAsString();
-					}
-				}
-			} else {
-				BigDecimal bigDec = json.getAsBigDecimal();
-				
-				try {
-					bigDec.toBigIntegerExact();
-					
-					try {
-						return bigDec.intValueExact();
-					} catch (ArithmeticException e) {
-						return bigDec.longValue();
-					}
-				} 
-				catch (ArithmeticException e) {
-				}
-				return bigDec.doubleValue();
-			}
-		}
+	public static Map<String, Object> fromBson(byte[] bson) throws JsonException {
+		return BsonCodec.decode(bson);
+	}
 
-		private Object handleArray(JsonArray json, JsonDeserializationContext context) {
-			List<Object> array = new ArrayList<Object>();
-			for (int i = 0; i < json.size(); i++) {
-				array.add(context.deserialize(json.get(i), Object.class));
-			}
-			return array;
-		}
+	/**
+	 * Reads a BSON document from a stream. Only the bytes of the document are
+	 * read, and the stream is not closed. A stream ending before the document
+	 * does is malformed, like truncated Json.
+	 */
+	public static Map<String, Object> fromBson(InputStream in) throws IOException, JsonException {
+		byte[] length = new byte[4];
+		readFully(in, length, 0);
+		byte[] bson = new byte[BsonCodec.getLength(length)];
+		System.arraycopy(length, 0, bson, 0, length.length);
+		readFully(in, bson, length.length);
+		return BsonCodec.decode(bson);
+	}
 
-		private Object handleObject(JsonObject json, JsonDeserializationContext context) {
-			try {
-				HashMap<String, Object> map = new HashMap<String, Object>();
-				for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
-					map.put(entry.getKey(), context.deserialize(entry.getValue(), Object.class));
-				}
-				return map;
-			} catch(Exception e) {
-				return null;
+	private static void readFully(InputStream in, byte[] bytes, int offset) throws IOException, JsonException {
+		while(offset < bytes.length) {
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if(read < 0) {
+				throw new JsonException(new JsonParseException("BSON document ended after " + offset + " of " + bytes.length + " bytes"));
 			}
+			offset += read;
+		}
+	}
+	
+	/**
+	 * Method for verifying what class the passed Object will get if serialized and then deserialized via this class.
+	 */
+	public static Class<?> getResultingClass(Object o) {
+		return getResultingClass(toJson(o));
+	}
+	
+	/**
+	 * Functionally the same as calling SerializationUtils.toObject(<pre>json</pre>).getClass()
+	 */
+	public static Class<?> getResultingClass(String json) {
+		try {
+			return toObject(json).getClass();
+		} catch (JsonException e) {
+			return null;
 		}
 	}
 }
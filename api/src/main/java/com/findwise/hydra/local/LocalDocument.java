@@ -1,8 +1,13 @@
 package com.findwise.hydra.local;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -11,6 +16,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +25,7 @@ import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.DocumentFileRepository;
 import com.findwise.hydra.DocumentID;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.LazyJsonMap;
 import com.findwise.hydra.SerializationUtils;
 import com.findwise.tools.Comparator;
 
@@ -27,6 +34,12 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class LocalDocument implements Document<Local> {
     private static Logger internalLogger = LoggerFactory.getLogger("internal");
 
+	/**
+	 * How many times reading the document is tried while another thread
+	 * changes it
+	 */
+	private static final int MAX_ATTEMPTS = 10;
+
 	private Map<String, Object> documentMap;
 	private Set<String> touchedContent;
 
@@ -49,24 +62,56 @@ public class LocalDocument implements Document<Local> {
 		touchedAction = false;
 	}
 	
+	/**
+	 * Reads the document from Json. Content fields are only read when they
+	 * are first asked for, and fields that are never asked for are written
+	 * back as the Json they were read from.
+	 */
 	public LocalDocument(String json) throws JsonException {
 		this();
-		fromJson(json);
+		fromLazyJson(json);
 
 		// The touched-sets will have been updated by fromJson, 
 		// let's clean that up in this case
 		markSynced();
 	}
 
+	/**
+	 * Reads the document from a stream of Json, such as the body of a
+	 * response, as it arrives. Unlike {@link #LocalDocument(String)}, all
+	 * fields are read, since reading them lazily would mean keeping the Json
+	 * in memory. The reader is not closed.
+	 */
+	public LocalDocument(Reader json) throws JsonException {
+		this();
+		fromJson(json);
+		markSynced();
+	}
+
+	/**
+	 * Reads the document from a stream of BSON, see
+	 * {@link SerializationUtils#toBson(Map)}. The stream is not closed.
+	 */
+	public LocalDocument(InputStream bson) throws IOException, JsonException {
+		this();
+		fromMap(SerializationUtils.fromBson(bson));
+		markSynced();
+	}
+
+	/**
+	 * Copies the document. Content fields that have not been read are shared
+	 * with the original as the Json they were read from, rather than copied.
+	 */
+	@SuppressWarnings("unchecked")
 	public LocalDocument(LocalDocument doc) {
 		this();
-		try {
-			fromJson(doc.toJson());
-		} catch (JsonException e) {
-			// I don't want to expose that we are reusing the json stuff for copying
-			// Also, this should *never* happen since doc.toJson() should hopefully
-			// always return valid json.
-			throw new RuntimeException(e);
+		for(int attempt = 1; ; attempt++) {
+			try {
+				documentMap = (Map<String, Object>) SerializationUtils.copy(doc.documentMap);
+				break;
+			} catch(ConcurrentModificationException e) {
+				retryAfter(e, attempt, "copying");
+			}
 		}
 		touchedContent = new HashSet<String>(doc.touchedContent);
 		touchedMetadata = new HashSet<String>(doc.touchedMetadata);
@@ -104,7 +149,11 @@ public class LocalDocument implements Document<Local> {
 
 	@Override
 	public boolean hasContentField(String fieldName) {
-		return getContentMap().containsKey(fieldName) && getContentMap().get(fieldName) != null;
+		Map<String, Object> content = getContentMap();
+		if(content instanceof LazyJsonMap) {
+			return !((LazyJsonMap) content).isNull(fieldName);
+		}
+		return content.containsKey(fieldName) && content.get(fieldName) != null;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -365,35 +414,68 @@ public class LocalDocument implements Document<Local> {
 		touchedMetadata.add(ERROR_METADATA_KEY);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public final void fromJson(String json) throws JsonException {
+		fromJson(new StringReader(json));
+	}
+
+	public final void fromJson(Reader json) throws JsonException {
 		try {
-			Map<String, Object> m = SerializationUtils.fromJson(json);
-			if(m.containsKey(ID_KEY)) {
-				documentMap.put(ID_KEY, m.get(ID_KEY));
-			}
-			if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
-				documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
-			}
-			if(m.containsKey(METADATA_KEY)) {
-				Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
-				for(Map.Entry<String, Object> e : metadata.entrySet()) {
-					putMetadataField(e.getKey(), metadata.get(e.getKey()));
-				}
-			}
-			if(m.containsKey(CONTENTS_KEY)) {
-				Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
-				for(Map.Entry<String, Object> e : content.entrySet()) {
-					putContentField(e.getKey(), content.get(e.getKey()));
-				}
-			}
+			fromMap(SerializationUtils.fromJson(json));
 		} 
 		catch(JsonParseException e) {
 			internalLogger.error("Caught JsonParseException, throwing JsonException");
 			throw new JsonException(e);
 		}
 	}
+
+	/**
+	 * Reads the content fields lazily, see {@link LazyJsonMap}, falling back
+	 * to reading all of the document for Json that is not strictly well
+	 * formed
+	 */
+	private void fromLazyJson(String json) throws JsonException {
+		LazyJsonMap m;
+		try {
+			m = SerializationUtils.fromJsonLazily(json);
+		} catch(JsonException e) {
+			fromJson(json);
+			return;
+		}
+		LazyJsonMap content = m.getLazily(CONTENTS_KEY);
+		if(content != null) {
+			m.remove(CONTENTS_KEY);
+			for(String key : new ArrayList<String>(content.keySet())) {
+				if(key.contains(".")) {
+					content.put(removePeriodFromKey(key), content.remove(key));
+				}
+			}
+			documentMap.put(CONTENTS_KEY, content);
+		}
+		fromMap(m);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void fromMap(Map<String, Object> m) {
+		if(m.containsKey(ID_KEY)) {
+			documentMap.put(ID_KEY, m.get(ID_KEY));
+		}
+		if(m.containsKey(ACTION_KEY) && m.get(ACTION_KEY)!=null) {
+			documentMap.put(ACTION_KEY, Action.valueOf((String)m.get(ACTION_KEY)));
+		}
+		if(m.containsKey(METADATA_KEY)) {
+			Map<String, Object> metadata = (Map<String, Object>) m.get(METADATA_KEY);
+			for(Map.Entry<String, Object> e : metadata.entrySet()) {
+				putMetadataField(e.getKey(), metadata.get(e.getKey()));
+			}
+		}
+		if(m.containsKey(CONTENTS_KEY)) {
+			Map<String, Object> content = (Map<String, Object>) m.get(CONTENTS_KEY);
+			for(Map.Entry<String, Object> e : content.entrySet()) {
+				putContentField(e.getKey(), content.get(e.getKey()));
+			}
+		}
+	}
 	
 	private String removePeriodFromKey(String key) {
 		if(key.contains(".")) {
@@ -424,6 +506,10 @@ public class LocalDocument implements Document<Local> {
 	public String toJson() {
 		return SerializationUtils.toJson(documentMap);
 	}
+
+	public byte[] toBson() {
+		return SerializationUtils.toBson(documentMap);
+	}
 	
 	protected Map<String, Object> getDocumentMap() {
 		return documentMap;
@@ -512,30 +598,91 @@ public class LocalDocument implements Document<Local> {
 	 * @return json map with id, contents, metadata and action
 	 */
 	private String fieldsToJson(Iterable<String> contentFields, Iterable<String> metadataFields) {
-		HashMap<String, Object> map = new HashMap<String, Object>();
-		if(getID() != null) {
-			map.put(ID_KEY, getID().getID());
-		} else {
-			map.put(ID_KEY, null);
+		for(int attempt = 1; ; attempt++) {
+			StringWriter sw = new StringWriter();
+			try {
+				writeFields(SerializationUtils.newJsonWriter(sw), contentFields, metadataFields);
+				return sw.toString();
+			} catch(ConcurrentModificationException e) {
+				retryAfter(e, attempt, "serialization");
+			} catch(IOException e) {
+				// A StringWriter does not throw
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #modifiedFieldsToJson()}, in BSON
+	 */
+	public byte[] modifiedFieldsToBson() {
+		for(int attempt = 1; ; attempt++) {
+			try {
+				Map<String, Object> fields = new HashMap<String, Object>();
+				fields.put(ID_KEY, getID() != null ? getID().getID() : null);
+				fields.put(CONTENTS_KEY, subMap(touchedContent, getContentMap()));
+				fields.put(METADATA_KEY, subMap(touchedMetadata, getMetadataMap()));
+				if(touchedAction) {
+					fields.put(ACTION_KEY, getAction());
+				}
+				return SerializationUtils.toBson(fields);
+			} catch(ConcurrentModificationException e) {
+				retryAfter(e, attempt, "serialization");
+			}
 		}
+	}
+
+	/**
+	 * Another thread changing the document while it is read is retried a few
+	 * times, after which the exception is thrown rather than retrying for as
+	 * long as the other thread keeps changing it
+	 */
+	private static void retryAfter(ConcurrentModificationException e, int attempt, String during) {
+		if(attempt >= MAX_ATTEMPTS) {
+			internalLogger.error("A ConcurrentModificationException was caught during " + during + " " + attempt + " times. Giving up!");
+			throw e;
+		}
+		internalLogger.warn("A ConcurrentModificationException was caught during " + during + ". Trying again!");
+	}
+
+	private static Map<String, Object> subMap(Iterable<String> keys, Map<String, Object> map) {
+		Map<String, Object> subMap = new HashMap<String, Object>();
+		for(String key : keys) {
+			subMap.put(key, map.get(key));
+		}
+		return subMap;
+	}
+
+	/**
+	 * Writes the fields straight to the writer, rather than copying them to a
+	 * map to serialize first
+	 */
+	private void writeFields(JsonWriter out, Iterable<String> contentFields, Iterable<String> metadataFields) throws IOException {
+		out.beginObject();
+		out.name(ID_KEY);
+		SerializationUtils.toJson(getID() != null ? getID().getID() : null, out);
 		if(contentFields!=null) {
-			HashMap<String, Object> cmap = new HashMap<String, Object>();
+			out.name(CONTENTS_KEY).beginObject();
 			for(String s : contentFields) {
-				cmap.put(s, getContentField(s));
+				out.name(s);
+				SerializationUtils.toJson(getContentField(s), out);
 			}
-			map.put(CONTENTS_KEY, cmap);
+			out.endObject();
 		}
 		if(metadataFields!=null) {
-			HashMap<String, Object> mmap = new HashMap<String, Object>();
+			out.name(METADATA_KEY).beginObject();
 			for(String s : metadataFields) {
-				mmap.put(s, getMetadataField(s));
+				out.name(s);
+				SerializationUtils.toJson(getMetadataField(s), out);
 			}
-			map.put(METADATA_KEY, mmap);
+			out.endObject();
 		}
 		if(touchedAction) {
-			map.put(ACTION_KEY, getAction());
+			out.name(ACTION_KEY);
+			SerializationUtils.toJson(getAction(), out);
 		}
-		return SerializationUtils.toJson(map);
+		out.endObject();
+		out.flush();
 	}
 	
 	public Map<String, Object> toMap() {
@@ -3,16 +3,27 @@ package com.findwise.hydra.local;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,7 +37,11 @@ import com.findwise.hydra.stage.AbstractProcessStage;
 import com.findwise.hydra.stage.AbstractProcessStageMapper;
 import com.findwise.hydra.stage.InitFailedException;
 import com.findwise.hydra.stage.RequiredArgumentMissingException;
+import com.findwise.hydra.stage.StageThreads;
+import com.findwise.tools.CoreConnection;
+import com.findwise.tools.HttpCompression;
 import com.findwise.tools.HttpConnection;
+import com.findwise.tools.SharedMemoryConnection;
 
 public class RemotePipeline implements DocumentFileRepository {
 	private static final Logger internalLogger = LoggerFactory.getLogger("internal");
@@ -34,6 +49,7 @@ public class RemotePipeline implements DocumentFileRepository {
 
 	public static final String GET_DOCUMENT_URL = "getDocument";
 	public static final String WRITE_DOCUMENT_URL = "writeDocument";
+	public static final String INSERT_DOCUMENTS_URL = "insertDocuments";
 	public static final String RELEASE_DOCUMENT_URL = "releaseDocument";
 	public static final String PROCESSED_DOCUMENT_URL = "processedDocument";
 	public static final String PENDING_DOCUMENT_URL = "pendingDocument";
@@ -47,17 +63,67 @@ public class RemotePipeline implements DocumentFileRepository {
 	public static final String PARTIAL_PARAM = "partial";
 	public static final String DOCID_PARAM = "docid";
 	public static final String FILENAME_PARAM = "filename";
+	public static final String CHAIN_PARAM = "chain";
+	public static final String INSTANCE_PARAM = "instance";
+	public static final String SETTLE_PARAM = "settle";
 
 	public static final int DEFAULT_PORT = 12001;
 	public static final String DEFAULT_HOST = "localhost";
 	public static final int DEFAULT_LOG_PORT = 12002;
+	/**
+	 * Number of connections to core used when stage workers run on virtual
+	 * threads, where far more documents are processed concurrently.
+	 */
+	public static final int VIRTUAL_THREADS_MAX_CONNECTIONS = 200;
+
+	/**
+	 * Status returned by core when it does not admit new documents at the
+	 * moment, along with a Retry-After header telling when to try again.
+	 */
+	public static final int TOO_MANY_REQUESTS = 429;
+	public static final String RETRY_AFTER_HEADER = "Retry-After";
+	/**
+	 * Line answered by core for a document of a bulk insert that could not be
+	 * inserted. Inserted documents are answered with their ID.
+	 */
+	public static final String INSERT_FAILED = "null";
+	/**
+	 * Times a document that core does not admit is sent again before the
+	 * insert is given up on
+	 */
+	public static final int MAX_ADMISSION_RETRIES = 10;
+	private static final long MIN_ADMISSION_BACKOFF = 100;
+	private static final long MAX_ADMISSION_BACKOFF = 30000;
+	/**
+	 * Documents sent to core in each request by insert(List)
+	 */
+	public static final int INSERT_BATCH_SIZE = 1000;
+
+	/**
+	 * System property choosing the format documents are sent to and from core
+	 * in: {@link #JSON_WIRE_FORMAT}, the default, or {@link #BSON_WIRE_FORMAT}.
+	 * Set by core for stage groups configured with a wire format.
+	 */
+	public static final String WIRE_FORMAT_PROPERTY = "hydra.wire.format";
+	public static final String JSON_WIRE_FORMAT = "json";
+	public static final String BSON_WIRE_FORMAT = "bson";
+	public static final String BSON_CONTENT_TYPE = "application/bson";
+	/**
+	 * System property holding the index of the instance of the stage group
+	 * that this JVM runs, set by core when it runs the group as several
+	 * instances. Sent with each request, see {@link #INSTANCE_PARAM}, so that
+	 * core can tell which instance is working on which documents.
+	 */
+	public static final String INSTANCE_PROPERTY = "hydra.instance";
+	private static final ContentType TEXT_CONTENT_TYPE = ContentType.create("text/plain", "UTF-8");
 
 	private final boolean performanceLogging;
 
-	private final HttpConnection core;
+	private final CoreConnection core;
 
 	private final String getUrl;
 	private final String writeUrl;
+	private final String insertUrl;
 	private final String processedUrl;
 	private final String failedUrl;
 	private final String pendingUrl;
@@ -67,6 +133,16 @@ public class RemotePipeline implements DocumentFileRepository {
 
 	private final String stageName;
 
+	private ClassLoader stageClassLoader;
+
+	private volatile boolean bson;
+	/**
+	 * Whether core has answered in BSON, and so reads it too. Documents are
+	 * only sent in BSON from then on, so that a core that does not know BSON
+	 * keeps getting Json.
+	 */
+	private volatile boolean coreReadsBson = false;
+
 	/**
 	 * Calls RemotePipeline(String, int, String) with default values for
 	 * hostName (RemotePipeline.DEFAULT_HOST) and port (RemotePipeline.DEFAULT_PORT).
@@ -82,18 +158,57 @@ public class RemotePipeline implements DocumentFileRepository {
 	}
 
 	public RemotePipeline(String hostName, int port, String stageName, boolean performanceLogging) {
+		this(SharedMemoryConnection.fromSystemProperty(createHttpConnection(hostName, port, performanceLogging)), stageName, performanceLogging);
+	}
+
+	/**
+	 * Talks to core through the given connection, rather than the one chosen
+	 * from the system properties of this JVM.
+	 */
+	public RemotePipeline(CoreConnection core, String stageName, boolean performanceLogging) {
 		this.stageName = stageName;
-		getUrl = "/" + GET_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		writeUrl = "/" + WRITE_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		processedUrl = "/" + PROCESSED_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		failedUrl = "/" + FAILED_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		pendingUrl = "/" + PENDING_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		discardedUrl = "/" + DISCARDED_DOCUMENT_URL + "?" + STAGE_PARAM + "=" + stageName;
-		propertyUrl = "/" + GET_PROPERTIES_URL + "?" + STAGE_PARAM + "=" + stageName;
-		fileUrl = "/" + FILE_URL + "?" + STAGE_PARAM + "=" + stageName;
-
-		core = new HttpConnection(hostName, port);
+		String instance = System.getProperty(INSTANCE_PROPERTY);
+		String params = STAGE_PARAM + "=" + stageName + (instance == null ? "" : "&" + INSTANCE_PARAM + "=" + instance);
+		getUrl = "/" + GET_DOCUMENT_URL + "?" + params;
+		writeUrl = "/" + WRITE_DOCUMENT_URL + "?" + params;
+		insertUrl = "/" + INSERT_DOCUMENTS_URL + "?" + params;
+		processedUrl = "/" + PROCESSED_DOCUMENT_URL + "?" + params;
+		failedUrl = "/" + FAILED_DOCUMENT_URL + "?" + params;
+		pendingUrl = "/" + PENDING_DOCUMENT_URL + "?" + params;
+		discardedUrl = "/" + DISCARDED_DOCUMENT_URL + "?" + params;
+		propertyUrl = "/" + GET_PROPERTIES_URL + "?" + params;
+		fileUrl = "/" + FILE_URL + "?" + params;
+
+		this.core = core;
 		this.performanceLogging = performanceLogging;
+		bson = BSON_WIRE_FORMAT.equals(System.getProperty(WIRE_FORMAT_PROPERTY));
+	}
+
+	/**
+	 * Sends and receives documents in BSON rather than in Json, where core
+	 * supports it. Defaults to the system property {@link #WIRE_FORMAT_PROPERTY}.
+	 */
+	public void setBsonWireFormat(boolean bson) {
+		this.bson = bson;
+	}
+
+	public boolean isBsonWireFormat() {
+		return bson;
+	}
+
+	private static HttpConnection createHttpConnection(String hostName, int port, boolean performanceLogging) {
+		HttpConnection connection;
+		if (StageThreads.isVirtual()) {
+			connection = new HttpConnection(hostName, port, VIRTUAL_THREADS_MAX_CONNECTIONS);
+		} else {
+			connection = new HttpConnection(hostName, port);
+		}
+		HttpCompression compression = HttpCompression.fromSystemProperties();
+		if (compression != null) {
+			compression.setPerformanceLogging(performanceLogging);
+			connection.setCompression(compression);
+		}
+		return connection;
 	}
 
 	/**
@@ -105,15 +220,15 @@ public class RemotePipeline implements DocumentFileRepository {
 	public LocalDocument getDocument(LocalQuery query) throws IOException {
 		HttpResponse response;
 		long start = System.currentTimeMillis();
-		response = core.post(getUrl, query.toJson());
+		response = core.post(getUrl, new StringEntity(query.toJson(), TEXT_CONTENT_TYPE), bson ? BSON_CONTENT_TYPE : null);
 
 		long startSerialize = System.currentTimeMillis();
 		long startJson = 0L;
 		LocalDocument ld = null;
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-			String s = EntityUtils.toString(response.getEntity());
+			// Parsed as it is read, so no time is spent reading the entity to a string first
 			startJson = System.currentTimeMillis();
-			ld = buildDocument(s);
+			ld = buildDocument(response.getEntity());
 			internalLogger.debug("Received document with ID " + ld.getID());
 		} else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_FOUND) {
 			internalLogger.debug("No document found matching query");
@@ -129,18 +244,57 @@ public class RemotePipeline implements DocumentFileRepository {
 		return ld;
 	}
 
-	private LocalDocument buildDocument(String s) throws IOException {
+	private LocalDocument buildDocument(HttpEntity entity) throws IOException {
 		LocalDocument ld;
-		try {
-			ld = new LocalDocument(s);
-		} catch (JsonException e) {
-			// TODO: Why IOException here?
-			throw new IOException(e);
+		if (isBson(entity)) {
+			coreReadsBson = true;
+			InputStream in = entity.getContent();
+			try {
+				ld = new LocalDocument(in);
+			} catch (JsonException e) {
+				throw new IOException(e);
+			} finally {
+				in.close();
+			}
+		} else {
+			Reader reader = getReader(entity);
+			try {
+				ld = new LocalDocument(reader);
+			} catch (JsonException e) {
+				// TODO: Why IOException here?
+				throw new IOException(e);
+			} finally {
+				reader.close();
+			}
 		}
 		ld.setDocumentFileRepository(this);
 		return ld;
 	}
 
+	private static boolean isBson(HttpEntity entity) {
+		return entity.getContentType() != null && entity.getContentType().getValue().startsWith(BSON_CONTENT_TYPE);
+	}
+
+	/**
+	 * @return the document, or only its modified fields, in BSON if core is
+	 * known to read it, and in Json otherwise
+	 */
+	private HttpEntity toEntity(LocalDocument d, boolean modifiedOnly) {
+		if (bson && coreReadsBson) {
+			return new ByteArrayEntity(modifiedOnly ? d.modifiedFieldsToBson() : d.toBson(), ContentType.create(BSON_CONTENT_TYPE));
+		}
+		return new StringEntity(modifiedOnly ? d.modifiedFieldsToJson() : d.toJson(), TEXT_CONTENT_TYPE);
+	}
+
+	/**
+	 * @return a reader of the entity, decoding it the way
+	 * {@link EntityUtils#toString(HttpEntity)} does
+	 */
+	private static Reader getReader(HttpEntity entity) throws IOException {
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		return new InputStreamReader(entity.getContent(), charset != null ? charset : HTTP.DEF_CONTENT_CHARSET);
+	}
+
 	private static void logUnexpected(HttpResponse response) throws IOException {
 		internalLogger.error("Node gave an unexpected response: " + response.getStatusLine());
 		internalLogger.error("Message: " + EntityUtils.toString(response.getEntity()));
@@ -148,9 +302,12 @@ public class RemotePipeline implements DocumentFileRepository {
 
 	/**
 	 * Writes an entire document to the pipeline. Use is discouraged, try using save(..) whenever possible.
+	 * <p/>
+	 * A new document that core does not admit, as the pipeline is behind, is
+	 * sent again after a backoff, up to {@link #MAX_ADMISSION_RETRIES} times.
 	 */
 	public boolean saveFull(LocalDocument d) throws IOException, JsonException {
-		boolean res = save(d, false);
+		boolean res = save(d, false, null, true);
 		if (res) {
 			d.markSynced();
 		}
@@ -161,28 +318,48 @@ public class RemotePipeline implements DocumentFileRepository {
 	 * Writes all outstanding updates to the document since it was initialized.
 	 */
 	public boolean save(LocalDocument d) throws IOException, JsonException {
-		boolean res = save(d, true);
+		return save(d, (List<String>) null);
+	}
+
+	/**
+	 * Writes all outstanding updates to the document, on behalf of this stage
+	 * and the chained stages, which have processed the document after this
+	 * stage within the same JVM. The document is tagged as fetched and touched
+	 * by all of them.
+	 */
+	public boolean save(LocalDocument d, List<String> chainedStages) throws IOException, JsonException {
+		return save(d, chainedStages, true);
+	}
+
+	/**
+	 * Like {@link #save(LocalDocument, List)}, but lets a later stage of the
+	 * chain report the document instead.
+	 *
+	 * @param settle false if another stage of the group reports the document
+	 * to core once done with it, which core then keeps counting as in flight
+	 */
+	public boolean save(LocalDocument d, List<String> chainedStages, boolean settle) throws IOException, JsonException {
+		boolean res = save(d, true, chainedStages, settle);
 		if (res) {
 			d.markSynced();
 		}
 		return res;
 	}
 
-	private boolean save(LocalDocument d, boolean partialUpdate) throws IOException, JsonException {
+	private boolean save(LocalDocument d, boolean partialUpdate, List<String> chainedStages, boolean settle) throws IOException, JsonException {
 		boolean hasId = d.getID() != null;
-		String s;
 		long start = System.currentTimeMillis();
-		if (partialUpdate) {
-			s = d.modifiedFieldsToJson();
-		} else {
-			s = d.toJson();
-		}
+		HttpEntity entity = toEntity(d, partialUpdate);
 		long startPost = System.currentTimeMillis();
-		HttpResponse response = core.post(getWriteUrl(partialUpdate), s);
+		HttpResponse response = postAdmitted(getWriteUrl(partialUpdate, chainedStages, settle), entity);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			if (!hasId) {
-				LocalDocument updated = new LocalDocument(EntityUtils.toString(response.getEntity()));
-				d.putAll(updated);
+				Reader reader = getReader(response.getEntity());
+				try {
+					d.putAll(new LocalDocument(reader));
+				} finally {
+					reader.close();
+				}
 			} else {
 				EntityUtils.consume(response.getEntity());
 			}
@@ -212,7 +389,7 @@ public class RemotePipeline implements DocumentFileRepository {
 	}
 
 	public boolean markFailed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(failedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = core.post(failedUrl, toEntity(d, true), null);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -230,7 +407,7 @@ public class RemotePipeline implements DocumentFileRepository {
 	}
 
 	public boolean markProcessed(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(processedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = core.post(processedUrl, toEntity(d, true), null);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -243,7 +420,7 @@ public class RemotePipeline implements DocumentFileRepository {
 	}
 
 	public boolean markDiscarded(LocalDocument d) throws IOException {
-		HttpResponse response = core.post(discardedUrl, d.modifiedFieldsToJson());
+		HttpResponse response = core.post(discardedUrl, toEntity(d, true), null);
 		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
 			EntityUtils.consume(response.getEntity());
 
@@ -255,23 +432,141 @@ public class RemotePipeline implements DocumentFileRepository {
 		return false;
 	}
 
-	private String getWriteUrl(boolean partialUpdate) {
+	/**
+	 * Inserts new documents in as few requests to core as possible, see
+	 * {@link #INSERT_BATCH_SIZE}. Like {@link #saveFull(LocalDocument)}, each
+	 * inserted document is given its ID, and requests that core does not
+	 * admit are sent again after a backoff.
+	 *
+	 * @return whether each document was inserted, in the order given. Documents
+	 * that already have an ID are never inserted.
+	 */
+	public List<Boolean> insert(List<LocalDocument> documents) throws IOException, JsonException {
+		List<Boolean> results = new ArrayList<Boolean>(documents.size());
+		for (int start = 0; start < documents.size(); start += INSERT_BATCH_SIZE) {
+			results.addAll(insertBatch(documents.subList(start, Math.min(documents.size(), start + INSERT_BATCH_SIZE))));
+		}
+		return results;
+	}
+
+	private List<Boolean> insertBatch(List<LocalDocument> batch) throws IOException, JsonException {
+		long start = System.currentTimeMillis();
+		// One document per line, as documents serialize to JSON without line breaks
+		StringBuilder body = new StringBuilder();
+		for (LocalDocument d : batch) {
+			body.append(d.toJson()).append('\n');
+		}
+		long startPost = System.currentTimeMillis();
+		HttpResponse response = postAdmitted(insertUrl, new StringEntity(body.toString(), TEXT_CONTENT_TYPE));
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			logUnexpected(response);
+			return Collections.nCopies(batch.size(), false);
+		}
+		String[] lines = EntityUtils.toString(response.getEntity()).split("\n");
+		if (lines.length != batch.size()) {
+			throw new IOException("Core answered for " + lines.length + " documents, but " + batch.size() + " were sent");
+		}
+		List<Boolean> results = new ArrayList<Boolean>(batch.size());
+		for (int i = 0; i < lines.length; i++) {
+			if (INSERT_FAILED.equals(lines[i].trim())) {
+				results.add(false);
+			} else {
+				LocalDocument d = batch.get(i);
+				d.setID(new LocalDocumentID(SerializationUtils.toObject(lines[i])));
+				d.markSynced();
+				results.add(true);
+			}
+		}
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=bulk_insert stage_name=%s documents=%d start=%d serialize=%d post=%d end=%d total=%d", stageName, batch.size(), start, startPost - start, end - startPost, end, end - start));
+		}
+		return results;
+	}
+
+	/**
+	 * Posts to core, sending the request again for as long as core does not
+	 * admit new documents, up to {@link #MAX_ADMISSION_RETRIES} times.
+	 */
+	private HttpResponse postAdmitted(String url, HttpEntity content) throws IOException {
+		HttpResponse response = core.post(url, content, null);
+		for (int retry = 0; response.getStatusLine().getStatusCode() == TOO_MANY_REQUESTS && retry < MAX_ADMISSION_RETRIES; retry++) {
+			EntityUtils.consume(response.getEntity());
+			awaitAdmission(response, retry);
+			response = core.post(url, content, null);
+		}
+		return response;
+	}
+
+	/**
+	 * Waits before sending a document that core did not admit again: for as
+	 * long as core asked, but at least for an exponential backoff, with some
+	 * jitter so that producers held back together do not all retry at once.
+	 */
+	private void awaitAdmission(HttpResponse response, int retry) throws InterruptedIOException {
+		long delay = Math.min(MAX_ADMISSION_BACKOFF, MIN_ADMISSION_BACKOFF << retry);
+		Header retryAfter = response.getFirstHeader(RETRY_AFTER_HEADER);
+		if (retryAfter != null) {
+			try {
+				delay = Math.max(delay, Long.parseLong(retryAfter.getValue().trim()) * 1000);
+			} catch (NumberFormatException e) {
+				logger.debug("Ignoring Retry-After header that is not in seconds: " + retryAfter.getValue());
+			}
+		}
+		delay += (long) (Math.random() * delay / 10);
+		logger.debug("Core did not admit the document, retrying in " + delay + "ms");
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to be admitted by core");
+		}
+	}
+
+	private String getWriteUrl(boolean partialUpdate, List<String> chainedStages, boolean settle) throws UnsupportedEncodingException {
 		String s = writeUrl;
 		s += "&" + NORELEASE_PARAM + "=0";
+		if (!settle) {
+			s += "&" + SETTLE_PARAM + "=0";
+		}
 		if (partialUpdate) {
 			s += "&" + PARTIAL_PARAM + "=1";
 		} else {
 			s += "&" + PARTIAL_PARAM + "=0";
 		}
+		if (chainedStages != null && !chainedStages.isEmpty()) {
+			StringBuilder chain = new StringBuilder();
+			for (String stage : chainedStages) {
+				if (chain.length() > 0) {
+					chain.append(',');
+				}
+				chain.append(stage);
+			}
+			s += "&" + CHAIN_PARAM + "=" + URLEncoder.encode(chain.toString(), "UTF-8");
+		}
 		return s;
 	}
 
 	public AbstractProcessStage getStageInstance() throws IOException, IllegalAccessException, InitFailedException, InstantiationException, JsonException, RequiredArgumentMissingException, ClassNotFoundException {
-		String jsonString = getStagePropertiesJsonString();
+		String jsonString = getStageProperties();
+		if (stageClassLoader != null) {
+			return AbstractProcessStageMapper.fromJsonString(jsonString, stageClassLoader);
+		}
 		return AbstractProcessStageMapper.fromJsonString(jsonString);
 	}
 
-	private String getStagePropertiesJsonString() throws IOException {
+	/**
+	 * Sets the class loader that the class of the stage is loaded with, for
+	 * stages whose libraries are not on the classpath of this JVM.
+	 */
+	public void setStageClassLoader(ClassLoader stageClassLoader) {
+		this.stageClassLoader = stageClassLoader;
+	}
+
+	/**
+	 * Gets the current properties of the stage from core, as a JSON object.
+	 */
+	public String getStageProperties() throws IOException {
 		HttpResponse response = core.get(propertyUrl);
 
 		String jsonString;
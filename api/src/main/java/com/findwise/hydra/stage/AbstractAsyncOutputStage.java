@@ -0,0 +1,95 @@
+package com.findwise.hydra.stage;
+
+import java.io.IOException;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Asynchronous counterpart to {@link AbstractOutputStage}. Documents whose
+ * output future completes successfully are marked as processed rather than
+ * saved.
+ * <p/>
+ * If a spool file is set, documents are instead marked as processed once they
+ * are queued in an {@link OutputSpool}, from which up to
+ * {@link #getMaxInFlight()} at a time are output.
+ */
+public abstract class AbstractAsyncOutputStage extends AbstractAsyncProcessStage {
+	@Parameter(description = StageSpool.FILE_DESCRIPTION)
+	private String spoolFile;
+
+	@Parameter(description = StageSpool.RETRY_INTERVAL_DESCRIPTION)
+	private long spoolRetryInterval = StageSpool.DEFAULT_RETRY_INTERVAL;
+
+	private final StageSpool spool = new StageSpool() {
+		@Override
+		protected ListenableFuture<?> send(LocalDocument document) {
+			return outputAsync(document);
+		}
+
+		@Override
+		protected boolean shouldRetry(Throwable failure) {
+			return AbstractAsyncOutputStage.this.shouldRetry(failure);
+		}
+	};
+
+	@Override
+	public ListenableFuture<?> processAsync(LocalDocument document) {
+		if (spoolFile == null) {
+			return outputAsync(document);
+		}
+		try {
+			getSpool().add(document);
+			return Futures.immediateFuture(null);
+		} catch (IOException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
+
+	public abstract ListenableFuture<?> outputAsync(LocalDocument document);
+
+	/**
+	 * @return whether a document that could not be output from the spool
+	 * should be tried again, rather than dropped. By default, all failures are
+	 * retried.
+	 */
+	protected boolean shouldRetry(Throwable failure) {
+		return true;
+	}
+
+	/**
+	 * Opens the spool, if one is set, so that documents left in it when the
+	 * stage last stopped are output without waiting for new ones
+	 */
+	@Override
+	public void start() throws InitFailedException {
+		spool.start(spoolFile, spoolRetryInterval, getMaxInFlight(), getProcessingTimeout());
+	}
+
+	/**
+	 * Closes the spool, if one is open. Documents left in it are output when
+	 * the stage is started again.
+	 */
+	@Override
+	public void stop() {
+		spool.stop();
+	}
+
+	/**
+	 * @return the spool documents are queued in, opened and started by
+	 * {@link #start()} or on first use, or null if the stage does not spool
+	 * documents
+	 */
+	public OutputSpool getSpool() throws IOException {
+		return spool.get(spoolFile, spoolRetryInterval, getMaxInFlight(), getProcessingTimeout());
+	}
+
+	public String getSpoolFile() {
+		return spoolFile;
+	}
+
+	public void setSpoolFile(String spoolFile) {
+		this.spoolFile = spoolFile;
+	}
+}
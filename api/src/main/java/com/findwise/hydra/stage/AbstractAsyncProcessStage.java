@@ -0,0 +1,57 @@
+package com.findwise.hydra.stage;
+
+import java.util.concurrent.ExecutionException;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A process stage that does not block a thread while waiting on IO. Instead of
+ * processing the document in {@link #process(LocalDocument)}, the stage returns
+ * a future from {@link #processAsync(LocalDocument)} that completes once the
+ * document has been processed.
+ * <p/>
+ * Stages of this type are run by an {@link AsyncStageService}, which keeps up to
+ * {@link #getMaxInFlight()} documents in flight at the same time. When the
+ * future completes successfully the document is saved to core, and if it fails
+ * the document is marked as failed with the cause of the failure.
+ */
+public abstract class AbstractAsyncProcessStage extends AbstractProcessStage {
+	@Parameter(description = "The maximum number of documents this stage will process concurrently within a single JVM. Default: 100")
+	private int maxInFlight = 100;
+
+	/**
+	 * Starts processing of the document. The returned future must complete
+	 * (successfully or exceptionally) once the stage is done with the document.
+	 * Any changes to the document must be made before the future completes.
+	 * <p/>
+	 * If the future is cancelled, e.g. because the processing timeout was
+	 * exceeded, the stage should abandon any work it has in progress for the
+	 * document.
+	 */
+	public abstract ListenableFuture<?> processAsync(LocalDocument document);
+
+	/**
+	 * Blocking fallback, for when the stage is run by a regular
+	 * {@link ProcessStageRunner}.
+	 */
+	@Override
+	public void process(LocalDocument document) throws Exception {
+		try {
+			processAsync(document).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+}
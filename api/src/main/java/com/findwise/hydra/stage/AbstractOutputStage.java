@@ -1,12 +1,101 @@
 package com.findwise.hydra.stage;
 
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
 import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public abstract class AbstractOutputStage extends AbstractProcessStage {
+	@Parameter(description = StageSpool.FILE_DESCRIPTION)
+	private String spoolFile;
+
+	@Parameter(description = StageSpool.RETRY_INTERVAL_DESCRIPTION)
+	private long spoolRetryInterval = StageSpool.DEFAULT_RETRY_INTERVAL;
+
+	/**
+	 * Outputs documents from the spool, so that an output that hangs past the
+	 * processing timeout is abandoned rather than holding up the spool. A
+	 * thread left hanging does not keep the next output from starting.
+	 */
+	private final ListeningExecutorService spoolOutput = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("spool-output-%d").build()));
+
+	private final StageSpool spool = new StageSpool() {
+		@Override
+		protected ListenableFuture<?> send(final LocalDocument document) {
+			return spoolOutput.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					output(document);
+					return null;
+				}
+			});
+		}
+
+		@Override
+		protected boolean shouldRetry(Throwable failure) {
+			return AbstractOutputStage.this.shouldRetry(failure);
+		}
+	};
+
 	public void process(LocalDocument document) throws Exception {
-		output(document);
+		if (spoolFile != null) {
+			getSpool().add(document);
+		} else {
+			output(document);
+		}
 	}
 
 	// For backwards compatibility, we keep this method.
 	public abstract void output(LocalDocument document) throws Exception;
+
+	/**
+	 * @return whether a document that could not be output from the spool
+	 * should be tried again, rather than dropped. By default, all failures are
+	 * retried.
+	 */
+	protected boolean shouldRetry(Throwable failure) {
+		return true;
+	}
+
+	/**
+	 * Opens the spool, if one is set, so that documents left in it when the
+	 * stage last stopped are output without waiting for new ones
+	 */
+	@Override
+	public void start() throws InitFailedException {
+		// One document at a time, as they would be output without a spool
+		spool.start(spoolFile, spoolRetryInterval, 1, getProcessingTimeout());
+	}
+
+	/**
+	 * Closes the spool, if one is open. Documents left in it are output when
+	 * the stage is started again.
+	 */
+	@Override
+	public void stop() {
+		spool.stop();
+	}
+
+	/**
+	 * @return the spool documents are queued in, opened and started by
+	 * {@link #start()} or on first use, or null if the stage does not spool
+	 * documents
+	 */
+	public OutputSpool getSpool() throws IOException {
+		return spool.get(spoolFile, spoolRetryInterval, 1, getProcessingTimeout());
+	}
+
+	public String getSpoolFile() {
+		return spoolFile;
+	}
+
+	public void setSpoolFile(String spoolFile) {
+		this.spoolFile = spoolFile;
+	}
 }
@@ -18,6 +18,19 @@ public abstract class AbstractProcessStage {
 	public abstract void process(LocalDocument document) throws Exception;
 	public void init() throws RequiredArgumentMissingException, InitFailedException {}
 
+	/**
+	 * Called before the stage starts processing documents, after
+	 * {@link #init()}, and again after init() when the stage is reconfigured.
+	 */
+	public void start() throws InitFailedException {}
+
+	/**
+	 * Called once the stage has stopped processing documents, to release what
+	 * {@link #init()} and {@link #start()} set up, and before init() when the
+	 * stage is reconfigured.
+	 */
+	public void stop() {}
+
 	public int getNumberOfThreads() {
 		return numberOfThreads;
 	}
@@ -2,6 +2,7 @@ package com.findwise.hydra.stage;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -18,13 +19,27 @@ public class AbstractProcessStageMapper {
 
 	public static final String ARG_NAME_STAGE_CLASS = "stageClass";
 
+	/**
+	 * Properties that decide how a stage is set up rather than how it
+	 * processes documents, so that changing them requires a restart of the stage.
+	 */
+	public static final List<String> RESTART_PROPERTIES = Arrays.asList(ARG_NAME_STAGE_CLASS, "numberOfThreads", "query");
+
 	public static AbstractProcessStage fromJsonString(String json) throws JsonException, ClassNotFoundException, InstantiationException, IllegalAccessException, InitFailedException, RequiredArgumentMissingException {
+		return fromJsonString(json, AbstractProcessStageMapper.class.getClassLoader());
+	}
+
+	/**
+	 * Instantiates the stage class with the given class loader, such as the
+	 * {@link GroupClassLoader} of the group the stage belongs to.
+	 */
+	public static AbstractProcessStage fromJsonString(String json, ClassLoader classLoader) throws JsonException, ClassNotFoundException, InstantiationException, IllegalAccessException, InitFailedException, RequiredArgumentMissingException {
 		Map<String, Object> properties = SerializationUtils.fromJson(json);
-		return fromMap(properties);
+		return fromMap(properties, classLoader);
 	}
 
     @SuppressWarnings("unchecked")
-	private static AbstractProcessStage fromMap(Map<String, Object> properties) throws RequiredArgumentMissingException, ClassNotFoundException, IllegalAccessException, InstantiationException, InitFailedException {
+	private static AbstractProcessStage fromMap(Map<String, Object> properties, ClassLoader classLoader) throws RequiredArgumentMissingException, ClassNotFoundException, IllegalAccessException, InstantiationException, InitFailedException {
 		String stageClass;
 		if (properties.containsKey(ARG_NAME_STAGE_CLASS)) {
 			stageClass = (String) properties.get(ARG_NAME_STAGE_CLASS);
@@ -33,7 +48,7 @@ public class AbstractProcessStageMapper {
 		}
 
 		Class<? extends AbstractProcessStage> actualClass = (Class<? extends AbstractProcessStage>) Class
-				.forName(stageClass);
+				.forName(stageClass, true, classLoader);
 		AbstractProcessStage stage = actualClass.newInstance();
 		setParameters(stage, properties);
 		stage.init();
@@ -41,6 +56,36 @@ public class AbstractProcessStageMapper {
 		return stage;
 	}
 
+	/**
+	 * Applies new properties to a running stage and initializes it again. Only
+	 * properties that {@link #canReconfigure} accepts can be applied this way.
+	 */
+	public static void reconfigure(AbstractProcessStage stage, Map<String, Object> properties) throws IllegalAccessException, RequiredArgumentMissingException, InitFailedException {
+		setParameters(stage, properties);
+		stage.init();
+	}
+
+	/**
+	 * Whether a stage running with the old properties can be given the new ones
+	 * through {@link #reconfigure}, rather than being restarted. That is not the
+	 * case if any of the {@link #RESTART_PROPERTIES} changed, or if a property
+	 * was removed, as the parameter would keep its current value rather than
+	 * getting its default.
+	 */
+	public static boolean canReconfigure(Map<String, Object> oldProperties, Map<String, Object> newProperties) {
+		if (!newProperties.keySet().containsAll(oldProperties.keySet())) {
+			return false;
+		}
+		for (String property : RESTART_PROPERTIES) {
+			Object oldValue = oldProperties.get(property);
+			Object newValue = newProperties.get(property);
+			if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Injects the parameters found in the map to any fields annotated with @Stage, whose names matches
 	 * the keys in this map.
@@ -0,0 +1,194 @@
+package com.findwise.hydra.stage;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Runs an {@link AbstractAsyncProcessStage}. A single thread fetches documents
+ * from core for as long as fewer than {@link AbstractAsyncProcessStage#getMaxInFlight()}
+ * documents are in flight. Completed documents are saved (or marked as
+ * processed, for output stages) by a pool of
+ * {@link AbstractProcessStage#getNumberOfThreads()} threads.
+ * <p/>
+ * If a document is not completed within the processing timeout of the stage,
+ * the future is cancelled and the document is failed with a
+ * {@link TimeoutException}. Unlike the blocking {@link StageService}, no thread
+ * is held by the timed out document, so the service keeps running.
+ */
+public class AsyncStageService extends StageService {
+	private static Logger logger = LoggerFactory.getLogger(AsyncStageService.class);
+
+	private final AbstractAsyncProcessStage stage;
+	private final ProcessStageRunner stageRunner;
+	private final int maxInFlight;
+	private final Semaphore permits;
+	private final ExecutorService completionExecutor;
+	private final ScheduledExecutorService timeoutExecutor;
+	private final AtomicReference<Exception> completionFailure = new AtomicReference<Exception>();
+
+	private long terminationTimeout = TimeUnit.SECONDS.toMillis(2);
+
+	public AsyncStageService(String stageName, ProcessStageRunner stageRunner, AbstractAsyncProcessStage stage, RemotePipeline remotePipeline) {
+		super(stageName, stageRunner, stage.getQuery(), remotePipeline);
+		this.stage = stage;
+		this.stageRunner = stageRunner;
+		maxInFlight = Math.max(1, stage.getMaxInFlight());
+		permits = new Semaphore(maxInFlight);
+		completionExecutor = Executors.newFixedThreadPool(Math.max(1, stage.getNumberOfThreads()));
+		timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+		// Documents taking longer than the processing timeout are timed out anyway
+		final long quiesceTimeout = stage.getProcessingTimeout() > 0 ? stage.getProcessingTimeout() : terminationTimeout;
+		// Only the fetching thread reconfigures, so holding all permits means nothing is in flight
+		stageRunner.setQuiescer(new ProcessStageRunner.Quiescer() {
+			@Override
+			public boolean quiesce() throws InterruptedException {
+				return permits.tryAcquire(maxInFlight, quiesceTimeout, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public void resume() {
+				permits.release(maxInFlight);
+			}
+		});
+	}
+
+	public int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	@Override
+	public void run() throws Exception {
+		while (isRunning()) {
+			rethrowCompletionFailure();
+			reconfigureIfChanged();
+			if (!permits.tryAcquire(holdInterval, TimeUnit.MILLISECONDS)) {
+				continue;
+			}
+			LocalDocument doc;
+			try {
+				doc = fetch();
+			} catch (Exception e) {
+				permits.release();
+				throw e;
+			}
+			if (doc == null) {
+				permits.release();
+				Thread.sleep(holdInterval);
+			} else {
+				submit(doc);
+			}
+		}
+	}
+
+	void submit(final LocalDocument doc) {
+		logger.debug("Got new doc '{}' to process.", doc.getID());
+		final AtomicBoolean completed = new AtomicBoolean(false);
+		ListenableFuture<?> processing;
+		try {
+			processing = stage.processAsync(doc);
+		} catch (RuntimeException e) {
+			processing = Futures.immediateFailedFuture(e);
+		}
+		final ListenableFuture<?> future = processing;
+
+		final ScheduledFuture<?> timeout;
+		if (stage.getProcessingTimeout() > 0) {
+			timeout = timeoutExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (completed.compareAndSet(false, true)) {
+						future.cancel(true);
+						completionExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								complete(doc, new TimeoutException("Processing of document exceeded " + stage.getProcessingTimeout() + "ms"));
+							}
+						});
+					}
+				}
+			}, stage.getProcessingTimeout(), TimeUnit.MILLISECONDS);
+		} else {
+			timeout = null;
+		}
+
+		Futures.addCallback(future, new FutureCallback<Object>() {
+			@Override
+			public void onSuccess(Object result) {
+				if (completed.compareAndSet(false, true)) {
+					cancel(timeout);
+					complete(doc, null);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (completed.compareAndSet(false, true)) {
+					cancel(timeout);
+					complete(doc, t);
+				}
+			}
+		}, completionExecutor);
+	}
+
+	private void cancel(ScheduledFuture<?> timeout) {
+		if (timeout != null) {
+			timeout.cancel(false);
+		}
+	}
+
+	private void complete(LocalDocument doc, Throwable failure) {
+		try {
+			if (failure == null) {
+				logger.trace("Processing finished of doc '{}'", doc.getID());
+				stageRunner.onSuccess(doc);
+			} else if (failure instanceof Exception) {
+				stageRunner.onException(doc, (Exception) failure);
+			} else {
+				stageRunner.onException(doc, new ExecutionException(failure));
+			}
+		} catch (Exception e) {
+			logger.error("Unable to report completion of doc '" + doc.getID() + "' to core", e);
+			completionFailure.compareAndSet(null, e);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void rethrowCompletionFailure() throws Exception {
+		Exception e = completionFailure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	@Override
+	protected void shutDown() throws Exception {
+		try {
+			if (!permits.tryAcquire(maxInFlight, terminationTimeout, TimeUnit.MILLISECONDS)) {
+				logger.error("Processing still in progress, stage is abandoning {} documents", getInFlight());
+			}
+		} catch (InterruptedException e) {
+			logger.error("Interrupted during shutdown");
+		}
+		timeoutExecutor.shutdownNow();
+		completionExecutor.shutdown();
+		super.shutDown();
+	}
+}
@@ -0,0 +1,161 @@
+package com.findwise.hydra.stage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.Document;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+
+/**
+ * Runs an ordered chain of stages on the same in-memory document. Documents
+ * are fetched with the query of the first stage in the chain. Each following
+ * stage processes the document if its query matches, treating the stages that
+ * have already processed it in the chain as having touched it. The chain ends
+ * at the first stage whose query does not match.
+ * <p/>
+ * Core is only contacted at the end of the chain, where the document is saved
+ * on behalf of all the stages that processed it. Should a stage fail or discard
+ * the document, it is reported by that stage as usual. An output stage may only
+ * be the last stage in a chain.
+ */
+public class FusedStageService extends StageService {
+	private static Logger logger = LoggerFactory.getLogger(FusedStageService.class);
+
+	private final List<ProcessStageRunner> chain;
+
+	public FusedStageService(List<ProcessStageRunner> chain) {
+		super(chain.get(0).getStageName(), chain.get(0), chain.get(0).getStage().getQuery(), chain.get(0).getRemotePipeline());
+		this.chain = chain;
+	}
+
+	@Override
+	protected String serviceName() {
+		StringBuilder name = new StringBuilder();
+		for (ProcessStageRunner runner : chain) {
+			if (name.length() > 0) {
+				name.append('+');
+			}
+			name.append(runner.getStageName());
+		}
+		return name.toString();
+	}
+
+	@Override
+	protected void startUp() throws Exception {
+		for (ProcessStageRunner runner : chain) {
+			runner.startProcessing();
+		}
+	}
+
+	@Override
+	protected void shutDown() throws Exception {
+		for (ProcessStageRunner runner : chain) {
+			runner.shutdownProcessing();
+		}
+	}
+
+	@Override
+	protected void reconfigureIfChanged() throws Exception {
+		for (ProcessStageRunner runner : chain) {
+			runner.reconfigureIfChanged();
+		}
+	}
+
+	@Override
+	protected void process(LocalDocument doc) throws Exception {
+		logger.debug("Got new doc '{}' to process in chain {}", doc.getID(), serviceName());
+		ProcessStageRunner entry = chain.get(0);
+		ProcessStageRunner last = entry;
+		Set<String> processedBy = new HashSet<String>();
+		List<String> chained = new ArrayList<String>();
+
+		for (ProcessStageRunner runner : chain) {
+			if (runner != entry && !matches(runner.getStage().getQuery(), doc, processedBy)) {
+				break;
+			}
+			if (!runner.process(doc)) {
+				return;
+			}
+			last = runner;
+			processedBy.add(runner.getStageName());
+			if (runner != entry) {
+				chained.add(runner.getStageName());
+			}
+			if (doc.isDiscarded()) {
+				runner.onSuccess(doc);
+				return;
+			}
+		}
+
+		if (last.isOutputStage()) {
+			chained.remove(last.getStageName());
+			// The output stage reports the document, so core counts it as done only once
+			if (last == entry || save(entry, doc, chained, false)) {
+				last.onSuccess(doc);
+			}
+		} else {
+			save(entry, doc, chained, true);
+		}
+	}
+
+	private boolean save(ProcessStageRunner entry, LocalDocument doc, List<String> chained, boolean settle) throws Exception {
+		if (entry.getRemotePipeline().save(doc, chained, settle)) {
+			return true;
+		}
+		IOException e = new IOException("Unable to save changes to core");
+		if (!entry.onException(doc, e)) {
+			logger.error("Unable to persist an error to the database for doc '" + doc.getID() + "'", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluates the query against a document held in memory.
+	 *
+	 * @param processedBy stages that have processed the document without
+	 * having reported it to core yet
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean matches(LocalQuery query, LocalDocument doc, Set<String> processedBy) {
+		if (query.getAction() != null && query.getAction() != doc.getAction()) {
+			return false;
+		}
+
+		Object touched = doc.getMetadataMap().get(Document.TOUCHED_METADATA_TAG);
+		for (Map.Entry<String, Boolean> e : query.getTouched().entrySet()) {
+			boolean isTouched = processedBy.contains(e.getKey())
+					|| (touched instanceof Map && ((Map<String, Object>) touched).containsKey(e.getKey()));
+			if (isTouched != e.getValue()) {
+				return false;
+			}
+		}
+
+		for (Map.Entry<String, Boolean> e : query.getExists().entrySet()) {
+			if (doc.hasContentField(e.getKey()) != e.getValue()) {
+				return false;
+			}
+		}
+
+		for (Map.Entry<String, Object> e : query.getEquals().entrySet()) {
+			if (!doc.hasContentField(e.getKey()) || !doc.getContentField(e.getKey()).equals(e.getValue())) {
+				return false;
+			}
+		}
+
+		for (Map.Entry<String, Object> e : query.getNotEquals().entrySet()) {
+			if (doc.hasContentField(e.getKey()) && doc.getContentField(e.getKey()).equals(e.getValue())) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,109 @@
+package com.findwise.hydra.stage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the libraries of a stage group, isolated from those of other groups
+ * running in the same JVM. Classes are looked up in the libraries of the group
+ * before the parent class loader, so that a group may bring its own versions
+ * of third party libraries.
+ * <p/>
+ * The exceptions are the JDK, logging and the Hydra API (including the Guava
+ * types used by it), which are looked up in the parent first. Stages then share
+ * these classes with the JVM hosting them, even though stage libraries usually
+ * bundle a copy of the API.
+ */
+public class GroupClassLoader extends URLClassLoader {
+	private static final Logger logger = LoggerFactory.getLogger(GroupClassLoader.class);
+
+	private static final String[] PARENT_FIRST_PREFIXES = {
+			"java.",
+			"javax.",
+			"sun.",
+			"org.slf4j.",
+			"ch.qos.logback.",
+			"com.findwise.hydra.",
+			"com.findwise.tools.",
+			"com.google.common."
+	};
+
+	public GroupClassLoader(URL[] urls, ClassLoader parent) {
+		super(urls, parent);
+	}
+
+	public static GroupClassLoader fromFiles(List<File> files, ClassLoader parent) throws MalformedURLException {
+		URL[] urls = new URL[files.size()];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = files.get(i).toURI().toURL();
+		}
+		return new GroupClassLoader(urls, parent);
+	}
+
+	@Override
+	protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		Class<?> c = findLoadedClass(name);
+		if (c == null) {
+			if (isParentFirst(name)) {
+				try {
+					c = getParent().loadClass(name);
+				} catch (ClassNotFoundException e) {
+					c = findClass(name);
+				}
+			} else {
+				try {
+					c = findClass(name);
+				} catch (ClassNotFoundException e) {
+					c = getParent().loadClass(name);
+				}
+			}
+		}
+		if (resolve) {
+			resolveClass(c);
+		}
+		return c;
+	}
+
+	@Override
+	public URL getResource(String name) {
+		URL url = null;
+		if (!isParentFirst(name.replace('/', '.'))) {
+			url = findResource(name);
+		}
+		if (url == null) {
+			url = super.getResource(name);
+		}
+		return url;
+	}
+
+	private static boolean isParentFirst(String name) {
+		for (String prefix : PARENT_FIRST_PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Releases the open library files, where supported by the JVM.
+	 */
+	public void release() {
+		Object self = this;
+		if (self instanceof Closeable) {
+			try {
+				((Closeable) self).close();
+			} catch (IOException e) {
+				logger.warn("Unable to close the libraries of a stage group", e);
+			}
+		}
+	}
+}
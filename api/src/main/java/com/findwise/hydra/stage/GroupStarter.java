@@ -3,7 +3,14 @@ package com.findwise.hydra.stage;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.findwise.hydra.Logging;
 import com.google.common.util.concurrent.ServiceManager;
@@ -13,6 +20,7 @@ import org.apache.http.util.EntityUtils;
 
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.tools.HttpConnection;
 
 import org.slf4j.Logger;
@@ -27,7 +35,10 @@ import org.slf4j.LoggerFactory;
 public class GroupStarter {
     public static final Logger logger = LoggerFactory.getLogger(GroupStarter.class);
 	public static final String GET_STAGES_URL = "getStages";
+	public static final String GET_GROUP_PROPERTIES_URL = "getGroupProperties";
 	public static final String GROUP_PARAM = "group";
+	public static final String FUSED_CHAIN_KEY = "fused_chain";
+	public static final String PARALLEL_INIT_KEY = "parallel_init";
 	
 	public static void main(String[] args) throws UnknownHostException {
 		StageCommandLineArguments cmdLineArgs = null;
@@ -51,9 +62,13 @@ public class GroupStarter {
 			System.exit(1);
 		}
 
+		if (StageThreads.isVirtual()) {
+			logger.info("Stage workers in group " + groupName + " will run on virtual threads");
+		}
+
 		final ServiceManager manager;
 		try {
-			manager = getServiceManager(groupName, host, port, performanceLogging);
+			manager = createServiceManager(groupName, host, port, performanceLogging, null);
 		} catch (Exception e) {
 			logger.error("Failed to get stage service manager. Shutting down.", e);
 			System.exit(1);
@@ -67,15 +82,114 @@ public class GroupStarter {
 		}
 	}
 
-	private static ServiceManager getServiceManager(String groupName, String host, int port, boolean performanceLogging) throws Exception {
+	/**
+	 * Creates the services running all stages of a group.
+	 *
+	 * @param classLoader the class loader that the stages are loaded with, or
+	 * null if they are on the classpath of this JVM
+	 */
+	public static ServiceManager createServiceManager(final String groupName, final String host, final int port, final boolean performanceLogging, final ClassLoader classLoader) throws Exception {
+		Map<String, Object> properties = getGroupProperties(host, port, groupName);
+		final List<String> fusedChain = getFusedChain(properties);
+		List<Callable<List<StageService>>> creators = new ArrayList<Callable<List<StageService>>>();
+		if (!fusedChain.isEmpty()) {
+			logger.info("Running stages " + fusedChain + " as a fused chain");
+			creators.add(new Callable<List<StageService>>() {
+				@Override
+				public List<StageService> call() throws Exception {
+					List<RemotePipeline> chain = new ArrayList<RemotePipeline>();
+					for (String stageName : fusedChain) {
+						chain.add(newPipeline(stageName, host, port, performanceLogging, classLoader));
+					}
+					return StageServiceFactory.createFusedStageServices(chain);
+				}
+			});
+		}
+		for (final String stageName : getStages(host, port, groupName)) {
+			if (fusedChain.contains(stageName)) {
+				continue;
+			}
+			creators.add(new Callable<List<StageService>>() {
+				@Override
+				public List<StageService> call() throws Exception {
+					return StageServiceFactory.createStageServices(newPipeline(stageName, host, port, performanceLogging, classLoader), null);
+				}
+			});
+		}
+
 		List<StageService> stageServices = new ArrayList<StageService>();
-		for (String stageName : getStages(host, port, groupName)) {
-			List<StageService> stageServicesForStage = StageServiceFactory.createStageServices(stageName, host, port, performanceLogging, null);
-			stageServices.addAll(stageServicesForStage);
+		if (Boolean.TRUE.equals(properties.get(PARALLEL_INIT_KEY)) && creators.size() > 1) {
+			logger.info("Initializing " + creators.size() + " stages of group " + groupName + " in parallel");
+			for (List<StageService> services : createInParallel(creators)) {
+				stageServices.addAll(services);
+			}
+		} else {
+			for (Callable<List<StageService>> creator : creators) {
+				stageServices.addAll(creator.call());
+			}
 		}
 		return new ServiceManager(stageServices);
 	}
 
+	/**
+	 * Runs the creators, and so the init() of their stages, concurrently. If
+	 * any of them fails, the first failure is thrown once all have finished.
+	 */
+	private static List<List<StageService>> createInParallel(List<Callable<List<StageService>>> creators) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(creators.size());
+		try {
+			List<Future<List<StageService>>> futures = executor.invokeAll(creators);
+			List<List<StageService>> results = new ArrayList<List<StageService>>();
+			for (Future<List<StageService>> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static RemotePipeline newPipeline(String stageName, String host, int port, boolean performanceLogging, ClassLoader classLoader) {
+		RemotePipeline pipeline = new RemotePipeline(host, port, stageName, performanceLogging);
+		pipeline.setStageClassLoader(classLoader);
+		return pipeline;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> getFusedChain(Map<String, Object> properties) {
+		Object chain = properties.get(FUSED_CHAIN_KEY);
+		if (chain instanceof List) {
+			return (List<String>) chain;
+		}
+		return new ArrayList<String>();
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> getGroupProperties(String host, int port, String group) throws IOException {
+		HttpConnection connection = new HttpConnection(host, port);
+		HttpResponse response = connection.get("/"+GET_GROUP_PROPERTIES_URL+"?"+GROUP_PARAM+"="+group);
+
+		if(response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			logger.error("Unable to get the properties of the group");
+			EntityUtils.consume(response.getEntity());
+			return new HashMap<String, Object>();
+		}
+
+		try {
+			return (Map<String, Object>) SerializationUtils.toObject(EntityUtils.toString(response.getEntity()));
+		} catch (JsonException e) {
+			logger.error("Unable to deserialize the properties of the group", e);
+			return new HashMap<String, Object>();
+		}
+	}
+
     @SuppressWarnings("unchecked")
 	public static List<String> getStages(String host, int port, String group) throws IOException {
 		HttpConnection connection = new HttpConnection(host, port);
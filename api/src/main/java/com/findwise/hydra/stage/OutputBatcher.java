@@ -0,0 +1,182 @@
+package com.findwise.hydra.stage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects the items an {@link AbstractAsyncOutputStage} sends to its target
+ * into batches. A batch is sent once it holds enough items or bytes, or its
+ * first item has waited long enough. Up to a number of batches are sent at the
+ * same time.
+ * <p/>
+ * Each item added gets a future that completes once the batch it was sent in
+ * has been acknowledged, which is what the stage returns for its document. If
+ * a batch fails, and {@link #shouldBisect(Exception)} says the failure may be
+ * caused by some of its items, it is split in halves that are sent on their
+ * own, down to single items, so that only the items that cannot be sent fail.
+ */
+public abstract class OutputBatcher<T> {
+	private static final Logger logger = LoggerFactory.getLogger(OutputBatcher.class);
+
+	private final int maxItems;
+	private final long maxBytes;
+	private final long flushInterval;
+
+	private final ExecutorService sender;
+	private final ScheduledExecutorService timer;
+
+	private List<Item<T>> pending = new ArrayList<Item<T>>();
+	private long pendingBytes = 0;
+	private ScheduledFuture<?> scheduledFlush;
+
+	/**
+	 * @param maxItems the number of items at which a batch is sent
+	 * @param maxBytes the estimated size, in bytes, at which a batch is sent,
+	 * or 0 for no limit
+	 * @param flushInterval the longest time, in milliseconds, an item waits
+	 * for its batch to fill up, or 0 to wait until it does
+	 * @param maxInFlight the number of batches that may be sent at the same
+	 * time
+	 */
+	public OutputBatcher(int maxItems, long maxBytes, long flushInterval, int maxInFlight) {
+		this.maxItems = Math.max(1, maxItems);
+		this.maxBytes = maxBytes;
+		this.flushInterval = flushInterval;
+		sender = Executors.newFixedThreadPool(Math.max(1, maxInFlight),
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batch-sender-%d").build());
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batch-timer-%d").build());
+	}
+
+	/**
+	 * Sends the items, in order, in a single request
+	 *
+	 * @throws Exception if the target did not acknowledge the items
+	 */
+	protected abstract void send(List<T> items) throws Exception;
+
+	/**
+	 * @return whether a failure to send a batch may be caused by some of the
+	 * items in it, rather than by the target being unavailable. Only then is
+	 * the batch split to find those items.
+	 */
+	protected boolean shouldBisect(Exception e) {
+		return true;
+	}
+
+	/**
+	 * @param bytes the estimated size of the item
+	 * @return a future that completes once the item has been sent, or fails
+	 * with the cause if it could not be
+	 */
+	public synchronized ListenableFuture<?> add(T item, long bytes) {
+		SettableFuture<Object> future = SettableFuture.create();
+		pending.add(new Item<T>(item, future));
+		pendingBytes += bytes;
+
+		if (pending.size() >= maxItems || (maxBytes > 0 && pendingBytes >= maxBytes)) {
+			flush();
+		} else if (pending.size() == 1 && flushInterval > 0) {
+			scheduledFlush = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, flushInterval, TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+
+	/**
+	 * Sends the items added so far, however few
+	 */
+	public synchronized void flush() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+		final List<Item<T>> batch = pending;
+		pending = new ArrayList<Item<T>>();
+		pendingBytes = 0;
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				sendBatch(batch);
+			}
+		});
+	}
+
+	private void sendBatch(List<Item<T>> batch) {
+		List<T> items = new ArrayList<T>(batch.size());
+		for (Item<T> item : batch) {
+			items.add(item.item);
+		}
+		try {
+			send(items);
+		} catch (Exception e) {
+			if (batch.size() > 1 && shouldBisect(e)) {
+				logger.debug("Batch of " + batch.size() + " items failed, sending it in halves: " + e.getMessage());
+				sendBatch(batch.subList(0, batch.size() / 2));
+				sendBatch(batch.subList(batch.size() / 2, batch.size()));
+			} else {
+				for (Item<T> item : batch) {
+					item.future.setException(e);
+				}
+			}
+			return;
+		} catch (Error e) {
+			for (Item<T> item : batch) {
+				item.future.setException(e);
+			}
+			throw e;
+		}
+		for (Item<T> item : batch) {
+			item.future.set(null);
+		}
+	}
+
+	/**
+	 * @return the number of items added but not yet sent
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Sends what has been added and waits for it to be sent
+	 */
+	public void close(long timeout, TimeUnit unit) throws InterruptedException {
+		flush();
+		sender.shutdown();
+		timer.shutdownNow();
+		if (!sender.awaitTermination(timeout, unit)) {
+			logger.warn("Batches still being sent after " + unit.toMillis(timeout) + "ms, abandoning them");
+			sender.shutdownNow();
+		}
+	}
+
+	private static final class Item<T> {
+		private final T item;
+		private final SettableFuture<Object> future;
+
+		Item(T item, SettableFuture<Object> future) {
+			this.item = item;
+			this.future = future;
+		}
+	}
+}
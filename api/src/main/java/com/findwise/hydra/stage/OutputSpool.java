@@ -0,0 +1,692 @@
+package com.findwise.hydra.stage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A queue on local disk for the documents of an output stage, so that the
+ * stage can acknowledge documents to core as soon as they are queued, rather
+ * than once the target has them. A thread replays the queue to the target in
+ * order, so a slow or unavailable target no longer holds up the pipeline.
+ * <p/>
+ * Documents the target fails to take are retried, with a backoff that doubles
+ * with each consecutive failure. After a number of consecutive failures the
+ * target is considered down: the circuit opens, and a single document at a
+ * time is tried until one goes through. Failures {@link #shouldRetry(Throwable)}
+ * rejects, such as a document the target will never accept, are logged and
+ * the document dropped instead, so it does not block the queue.
+ * <p/>
+ * Documents are delivered at least once. One that was sent but not known to be
+ * taken when the stage went down is sent again when it starts.
+ * <p/>
+ * If the file can not be read, the replay thread tries again with the same
+ * backoff. Should the thread die anyway, documents are no longer queued, so
+ * that the stage stops acknowledging documents it would never deliver.
+ * <p/>
+ * The queue is a single append-only file of checksummed records, next to
+ * which the position up to which documents have been delivered is kept. The
+ * file is emptied whenever the queue is, and compacted if a long backlog is
+ * being worked through.
+ */
+public abstract class OutputSpool {
+	private static final Logger logger = LoggerFactory.getLogger(OutputSpool.class);
+
+	public enum State {
+		/**
+		 * Documents are delivered as they come
+		 */
+		CLOSED,
+		/**
+		 * The target is considered down, and only tried once in a while
+		 */
+		OPEN
+	}
+
+	/**
+	 * The number of delivered bytes at the start of the file above which the
+	 * file is compacted, if they also make up most of it
+	 */
+	static final long MIN_COMPACTION_SIZE = 64 * 1024 * 1024;
+
+	private static final int HEADER_SIZE = 4 + 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final File positionFile;
+
+	private int syncInterval = 0;
+	private int window = 100;
+	private long sendTimeout = 0;
+	private long retryInterval = 1000;
+	private long maxRetryInterval = 60000;
+	private int failureThreshold = 5;
+
+	private FileChannel channel;
+	private FileLock lock;
+	private RandomAccessFile position;
+
+	/**
+	 * The size of the file, and the position up to which documents have been
+	 * delivered
+	 */
+	private long size;
+	private volatile long delivered;
+	private long appended;
+	private volatile long synced;
+	private volatile long lastSync;
+	private final Object syncLock = new Object();
+
+	private volatile int depth;
+	private volatile long oldest;
+
+	private volatile State state = State.CLOSED;
+	private volatile int failures = 0;
+
+	private Thread replayer;
+	private volatile boolean running;
+	/**
+	 * Set if the replay thread ended without being closed
+	 */
+	private volatile boolean replayDied;
+
+	public OutputSpool(File file) throws IOException {
+		this.file = file;
+		this.positionFile = new File(file.getPath() + ".pos");
+		open();
+	}
+
+	/**
+	 * Sends the document to the target
+	 *
+	 * @return a future that completes once the target has the document, or
+	 * fails if it could not take it
+	 */
+	protected abstract ListenableFuture<?> send(LocalDocument document);
+
+	/**
+	 * @return whether a document that failed to be sent should be sent again,
+	 * rather than dropped. By default, all failures are retried.
+	 */
+	protected boolean shouldRetry(Throwable failure) {
+		return true;
+	}
+
+	private void open() throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Another spool in this JVM holds it, which the lock does not tell apart from this one
+			channel.close();
+			throw new IOException("Spool " + file + " is in use by another stage in this JVM", e);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (lock == null) {
+			channel.close();
+			throw new IOException("Spool " + file + " is in use by another process");
+		}
+		try {
+			position = new RandomAccessFile(positionFile, "rw");
+			load();
+		} catch (IOException e) {
+			if (position != null) {
+				position.close();
+			}
+			lock.release();
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the delivered position and counts the documents queued after it
+	 */
+	private void load() throws IOException {
+		size = channel.size();
+		delivered = position.length() >= 8 ? position.readLong() : 0;
+		if (delivered > size || delivered < 0) {
+			// Emptied after the position was last written
+			delivered = 0;
+		}
+
+		if (delivered > 0 && read(delivered, size, false) == null) {
+			logger.warn("Spool " + file + " has no record at the delivered position " + delivered + ", delivering it from the start");
+			delivered = 0;
+		}
+
+		depth = 0;
+		long end = delivered;
+		Record record;
+		while ((record = read(end, size, false)) != null) {
+			if (depth == 0) {
+				oldest = record.timestamp;
+			}
+			depth++;
+			end = record.end;
+		}
+		if (end < size) {
+			logger.warn("Spool " + file + " ends with a partial or corrupt record at " + end + ", truncating it");
+			channel.truncate(end);
+			size = end;
+		}
+		channel.position(size);
+		if (depth > 0) {
+			logger.info("Spool " + file + " holds " + depth + " documents not yet delivered");
+		}
+	}
+
+	/**
+	 * Starts delivering the queued documents
+	 */
+	public synchronized void start() {
+		if (replayer != null) {
+			return;
+		}
+		running = true;
+		replayer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replay();
+				} finally {
+					if (running) {
+						replayDied = true;
+						logger.error("Delivery from spool " + file + " has stopped, no more documents are queued");
+					}
+				}
+			}
+		}, "output-spool-" + file.getName());
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	/**
+	 * Queues the document, and returns once it is on disk (or, with a sync
+	 * interval, once it has been written)
+	 */
+	public void add(LocalDocument document) throws IOException {
+		if (replayDied) {
+			throw new IOException("Spool " + file + " is no longer delivering documents");
+		}
+		byte[] json = document.toJson().getBytes(UTF8);
+		long end;
+		synchronized (this) {
+			ByteBuffer payload = ByteBuffer.allocate(8 + json.length);
+			long now = System.currentTimeMillis();
+			payload.putLong(now).put(json);
+			CRC32 crc = new CRC32();
+			crc.update(payload.array());
+
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.capacity());
+			buffer.putInt(payload.capacity()).putInt((int) crc.getValue()).put(payload.array());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			size += buffer.capacity();
+			appended += buffer.capacity();
+			end = appended;
+			if (depth == 0) {
+				oldest = now;
+			}
+			depth++;
+			notifyAll();
+		}
+		sync(end);
+	}
+
+	/**
+	 * Forces the file to disk up to the position, unless it already has been,
+	 * or the sync interval allows waiting. Callers waiting for the same fsync
+	 * share it.
+	 */
+	private void sync(long end) throws IOException {
+		if (synced >= end) {
+			return;
+		}
+		if (syncInterval > 0 && System.currentTimeMillis() - lastSync < syncInterval) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (synced >= end) {
+				return;
+			}
+			long target;
+			synchronized (this) {
+				target = appended;
+			}
+			channel.force(false);
+			synced = target;
+			lastSync = System.currentTimeMillis();
+		}
+	}
+
+	private void replay() {
+		int readFailures = 0;
+		while (running) {
+			try {
+				try {
+					List<Record> records = next(state == State.OPEN ? 1 : window);
+					readFailures = 0;
+					if (records.isEmpty()) {
+						continue;
+					}
+					Throwable failure = deliver(records);
+					if (failure == null) {
+						succeeded();
+					} else {
+						failed(failure);
+					}
+				} catch (IOException e) {
+					readFailures++;
+					long delay = getRetryDelay(readFailures);
+					logger.error("Unable to read spool " + file + ", trying again in " + delay + "ms", e);
+					Thread.sleep(delay);
+					reopenIfClosed();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				logger.error("Unable to reopen spool " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Opens the file again if a failed compaction left it closed
+	 */
+	private void reopenIfClosed() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (!channel.isOpen() && running) {
+					position.close();
+					open();
+					synced = appended;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return up to max of the documents not yet delivered, waiting a while
+	 * for one if there are none
+	 */
+	private List<Record> next(int max) throws IOException, InterruptedException {
+		long end;
+		long limit;
+		synchronized (this) {
+			if (delivered == size) {
+				if (size > 0) {
+					empty();
+				}
+				wait(1000);
+			}
+			end = delivered;
+			limit = size;
+		}
+		List<Record> records = new ArrayList<Record>();
+		Record record;
+		while (records.size() < max && (record = read(end, limit, true)) != null) {
+			records.add(record);
+			end = record.end;
+		}
+		return records;
+	}
+
+	/**
+	 * Sends the documents, and moves the delivered position past those the
+	 * target took, up to the first that should be retried
+	 *
+	 * @return the failure of the first document that should be retried, or
+	 * null if all were delivered
+	 */
+	private Throwable deliver(List<Record> records) throws IOException, InterruptedException {
+		List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>(records.size());
+		for (Record record : records) {
+			try {
+				futures.add(send(record.document));
+			} catch (RuntimeException e) {
+				futures.add(Futures.immediateFailedFuture(e));
+			}
+		}
+		try {
+			for (int i = 0; i < records.size(); i++) {
+				Record record = records.get(i);
+				Throwable failure = await(futures.get(i));
+				if (failure != null) {
+					if (shouldRetry(failure)) {
+						return failure;
+					}
+					logger.error("Dropping document " + record.document.getID() + " the target will not take", failure);
+				}
+				delivered(record);
+			}
+			return null;
+		} finally {
+			savePosition();
+		}
+	}
+
+	private Throwable await(ListenableFuture<?> future) throws InterruptedException {
+		try {
+			if (sendTimeout > 0) {
+				future.get(sendTimeout, TimeUnit.MILLISECONDS);
+			} else {
+				future.get();
+			}
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			return e;
+		} catch (CancellationException e) {
+			return e;
+		}
+	}
+
+	private synchronized void delivered(Record record) throws IOException {
+		delivered = record.end;
+		depth--;
+		if (delivered + HEADER_SIZE + 8 <= size) {
+			ByteBuffer timestamp = ByteBuffer.allocate(8);
+			readFully(timestamp, delivered + HEADER_SIZE);
+			oldest = timestamp.getLong(0);
+		}
+	}
+
+	/**
+	 * Records the delivered position. It is not forced to disk, so after a
+	 * crash some documents may be sent again.
+	 */
+	private synchronized void savePosition() throws IOException {
+		position.seek(0);
+		position.writeLong(delivered);
+	}
+
+	private void succeeded() throws IOException {
+		if (state == State.OPEN) {
+			logger.info("Target of spool " + file + " is back, delivering " + depth + " queued documents");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		compactIfNeeded();
+	}
+
+	private void failed(Throwable failure) throws InterruptedException {
+		failures++;
+		if (state == State.CLOSED && failures >= failureThreshold) {
+			state = State.OPEN;
+			logger.warn("Target of spool " + file + " failed " + failures + " times in a row, queueing documents until it is back. Queued: " + depth, failure);
+		} else if (state == State.OPEN) {
+			logger.warn("Target of spool " + file + " is still failing: " + failure.getMessage() + ". Queued: " + depth + ", oldest " + getAge() + "ms");
+		} else {
+			logger.debug("Target of spool " + file + " failed: " + failure.getMessage());
+		}
+		Thread.sleep(getRetryDelay());
+	}
+
+	/**
+	 * @return the delay before the next attempt, doubled for each failure in a
+	 * row, up to the longest retry interval
+	 */
+	long getRetryDelay() {
+		return getRetryDelay(failures);
+	}
+
+	private long getRetryDelay(int failures) {
+		if (failures == 0) {
+			return 0;
+		}
+		int doublings = Math.min(failures - 1, 30);
+		return Math.min(maxRetryInterval, retryInterval << doublings);
+	}
+
+	/**
+	 * Truncates the file once all documents in it have been delivered. Must
+	 * be called holding the lock.
+	 */
+	private void empty() throws IOException {
+		channel.truncate(0);
+		channel.position(0);
+		size = 0;
+		delivered = 0;
+		position.seek(0);
+		position.writeLong(0);
+		// Documents queued from now on must not be taken as delivered after a crash
+		position.getFD().sync();
+	}
+
+	/**
+	 * Rewrites the file without the delivered documents, if they take up most
+	 * of it
+	 */
+	private void compactIfNeeded() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (delivered >= MIN_COMPACTION_SIZE && delivered >= size / 2) {
+					compact();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Must be called holding both the sync lock and the lock, so the file is
+	 * not forced to disk or appended to meanwhile
+	 */
+	private void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel copy = new RandomAccessFile(temp, "rw").getChannel();
+		try {
+			copy.truncate(0);
+			long remaining = size - delivered;
+			long copied = 0;
+			while (copied < remaining) {
+				copied += channel.transferTo(delivered + copied, remaining - copied, copy);
+			}
+			copy.force(true);
+		} finally {
+			copy.close();
+		}
+		// A crash from here on sends the queued documents again, rather than losing them
+		position.seek(0);
+		position.writeLong(0);
+		position.getFD().sync();
+
+		long before = size;
+		lock.release();
+		channel.close();
+		if (!temp.renameTo(file)) {
+			if (!file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Unable to replace " + file + " with " + temp);
+			}
+		}
+		position.close();
+		open();
+		synced = appended;
+		logger.debug("Compacted spool " + file + " from " + before + " to " + size + " bytes");
+	}
+
+	/**
+	 * @param limit the size of the file to read within
+	 * @param parse whether to read the document, rather than just check the
+	 * record
+	 * @return the record at the position, or null if there is no complete,
+	 * valid record there
+	 */
+	private Record read(long at, long limit, boolean parse) throws IOException {
+		if (at + HEADER_SIZE > limit) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, at);
+		int length = header.getInt(0);
+		int checksum = header.getInt(4);
+		if (length < 8 || at + HEADER_SIZE + length > limit) {
+			return null;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(payload, at + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array());
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		if (!parse) {
+			return new Record(payload.getLong(0), null, at + HEADER_SIZE + length);
+		}
+		try {
+			LocalDocument document = new LocalDocument(new String(payload.array(), 8, length - 8, UTF8));
+			return new Record(payload.getLong(0), document, at + HEADER_SIZE + length);
+		} catch (JsonException e) {
+			logger.error("Unable to read document at " + at + " in spool " + file, e);
+			return null;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, at + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of spool " + file);
+			}
+		}
+	}
+
+	/**
+	 * Stops delivering documents, leaving those not yet delivered to be
+	 * delivered once the spool is opened again
+	 */
+	public void close() throws IOException, InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			t = replayer;
+			replayer = null;
+		}
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+		synchronized (syncLock) {
+			synchronized (this) {
+				// Left closed if it could not be reopened after a compaction
+				if (channel.isOpen()) {
+					channel.force(false);
+					lock.release();
+					channel.close();
+				}
+				position.close();
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of documents queued but not yet delivered
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return how long, in milliseconds, the oldest document not yet delivered
+	 * has been queued, or 0 if there is none
+	 */
+	public long getAge() {
+		return depth == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+	}
+
+	/**
+	 * @return the size, in bytes, of the spool file
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @param syncInterval how often, in milliseconds, queued documents are
+	 * forced to disk, or 0 to force each before it is acknowledged. Default: 0
+	 */
+	public void setSyncInterval(int syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * @param window the number of documents sent before waiting for the target
+	 * to take them. Default: 100
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * @param sendTimeout how long, in milliseconds, to wait for the target to
+	 * take a document before sending it again, or 0 to wait for as long as it
+	 * takes. Default: 0
+	 */
+	public void setSendTimeout(long sendTimeout) {
+		this.sendTimeout = sendTimeout;
+	}
+
+	/**
+	 * @param retryInterval the delay, in milliseconds, after the first failure
+	 * in a row. Default: 1000
+	 * @param maxRetryInterval the longest delay, in milliseconds, between
+	 * attempts. Default: 60000
+	 */
+	public void setRetryInterval(long retryInterval, long maxRetryInterval) {
+		this.retryInterval = Math.max(1, retryInterval);
+		this.maxRetryInterval = Math.max(this.retryInterval, maxRetryInterval);
+	}
+
+	/**
+	 * @param failureThreshold the number of failures in a row after which the
+	 * target is considered down. Default: 5
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+	}
+
+	private static final class Record {
+		private final long timestamp;
+		private final LocalDocument document;
+		private final long end;
+
+		Record(long timestamp, LocalDocument document, long end) {
+			this.timestamp = timestamp;
+			this.document = document;
+			this.end = end;
+		}
+	}
+}
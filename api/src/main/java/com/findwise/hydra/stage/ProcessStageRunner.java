@@ -1,18 +1,23 @@
 package com.findwise.hydra.stage;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 
@@ -25,24 +30,56 @@ public class ProcessStageRunner {
 
 	private long terminationTimeout = TimeUnit.SECONDS.toMillis(2);
 
+	/**
+	 * How often the properties of the stage are checked for changes
+	 */
+	public static final long RECONFIGURATION_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	private final AtomicLong nextConfigurationCheck = new AtomicLong(0);
+	private volatile Map<String, Object> appliedProperties;
+	// Held for reading while processing, so that the stage is never reconfigured mid-document
+	private final ReadWriteLock configurationLock = new ReentrantReadWriteLock();
+	private volatile Quiescer quiescer;
+
 	public ProcessStageRunner(String stageName, AbstractProcessStage stage, RemotePipeline remotePipeline) {
 		this.stageName = stageName;
 		this.stage = stage;
 		this.remotePipeline = remotePipeline;
+		executor = StageThreads.newExecutor(stageName);
 	}
 
 	// We use this for timeout functionality, but this class is now called by several threads so we need a thread pool.
-	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ExecutorService executor;
+
+	// The services running the stage. The stage is stopped once the last of them stops.
+	private final AtomicInteger services = new AtomicInteger(0);
 
 	protected void performProcessing(LocalDocument doc) throws Exception {
 		logger.debug("Got new doc '{}' to process.", doc.getID());
+		if (process(doc)) {
+			onSuccess(doc);
+		}
+	}
+
+	/**
+	 * Runs the stage on the document, without reporting a successful result to
+	 * core. Failures are reported.
+	 *
+	 * @return true if the document was processed successfully
+	 */
+	boolean process(LocalDocument doc) throws Exception {
 		try {
 			logger.trace("Waiting for processing of doc '{}'", doc.getID());
-			processWithTimeout(doc);
+			configurationLock.readLock().lock();
+			try {
+				processWithTimeout(doc);
+			} finally {
+				configurationLock.readLock().unlock();
+			}
 			logger.trace("Processing finished of doc '{}'", doc.getID());
 		} catch (ExecutionException e) {
 			onException(doc, unwrapExecutionException(e));
-			return;
+			return false;
 		} catch (TimeoutException e) {
 			// Extreme solution here. If the stage thread did not finish in a timely manner,
 			// we restart the whole process. Canceling the future doesn't really help, since
@@ -53,9 +90,104 @@ public class ProcessStageRunner {
 		} catch (InterruptedException e) {
 			logger.info("Processing was interrupted");
 			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the properties of the stage have changed in core and, if
+	 * they can be applied without a restart, stops the stage, applies them and
+	 * initializes and starts the stage again, once no document is being
+	 * processed. Changes that need a restart are left for core, which restarts
+	 * the group.
+	 * <p/>
+	 * Called by every thread of the stage, but only checks with core once per
+	 * {@link #RECONFIGURATION_INTERVAL}. The first check records the properties
+	 * that the stage was started with.
+	 *
+	 * @throws Exception if the new properties could not be applied, leaving the
+	 * stage in an unknown state
+	 */
+	void reconfigureIfChanged() throws Exception {
+		long now = System.currentTimeMillis();
+		long next = nextConfigurationCheck.get();
+		if (now < next || !nextConfigurationCheck.compareAndSet(next, now + RECONFIGURATION_INTERVAL)) {
 			return;
 		}
-		onSuccess(doc);
+		applyChangedProperties();
+	}
+
+	void applyChangedProperties() throws Exception {
+		Map<String, Object> properties;
+		try {
+			properties = SerializationUtils.fromJson(remotePipeline.getStageProperties());
+		} catch (IOException e) {
+			logger.warn("Unable to check the properties of stage " + stageName + " for changes: " + e.getMessage());
+			return;
+		} catch (JsonException e) {
+			logger.warn("Unable to read the properties of stage " + stageName + ": " + e.getMessage());
+			return;
+		} catch (RuntimeException e) {
+			// The stage has been removed, core will stop it
+			logger.debug("Unable to check the properties of stage " + stageName + " for changes", e);
+			return;
+		}
+		if (appliedProperties == null || properties.equals(appliedProperties)) {
+			appliedProperties = properties;
+			return;
+		}
+		if (!AbstractProcessStageMapper.canReconfigure(appliedProperties, properties)) {
+			logger.info("Properties of stage " + stageName + " changed in a way that requires a restart");
+			appliedProperties = properties;
+			return;
+		}
+		Quiescer q = quiescer;
+		if (q != null && !q.quiesce()) {
+			logger.info("Documents of stage " + stageName + " still in flight, postponing its reconfiguration");
+			return;
+		}
+		configurationLock.writeLock().lock();
+		try {
+			logger.info("Reconfiguring stage " + stageName);
+			boolean started = services.get() > 0;
+			if (started) {
+				stage.stop();
+			}
+			AbstractProcessStageMapper.reconfigure(stage, properties);
+			if (started) {
+				stage.start();
+			}
+			appliedProperties = properties;
+		} finally {
+			configurationLock.writeLock().unlock();
+			if (q != null) {
+				q.resume();
+			}
+		}
+	}
+
+	/**
+	 * Sets what keeps documents processed outside of {@link #process}, by an
+	 * asynchronous stage, from being in flight while the stage is reconfigured
+	 */
+	void setQuiescer(Quiescer quiescer) {
+		this.quiescer = quiescer;
+	}
+
+	/**
+	 * Waits for the documents a service has in flight before the stage is
+	 * reconfigured, and keeps it from starting new ones until it is done.
+	 */
+	interface Quiescer {
+		/**
+		 * @return false if documents were still in flight after a while, in
+		 * which case the reconfiguration is tried again later and
+		 * {@link #resume()} is not called
+		 */
+		boolean quiesce() throws InterruptedException;
+
+		void resume();
 	}
 
 	private Exception unwrapExecutionException(ExecutionException e) {
@@ -67,12 +199,12 @@ public class ProcessStageRunner {
 		}
 	}
 
-	private void onSuccess(LocalDocument doc) throws IOException, JsonException {
+	void onSuccess(LocalDocument doc) throws IOException, JsonException {
 		if(doc.isDiscarded()) {
 			remotePipeline.markDiscarded(doc);
 		} else {
 			// Do not persist if output stage. TODO: Rethink this...
-			if(stage instanceof AbstractOutputStage) {
+			if(isOutputStage()) {
 				remotePipeline.markProcessed(doc);
 			} else {
 				persist(doc);
@@ -80,6 +212,22 @@ public class ProcessStageRunner {
 		}
 	}
 
+	boolean isOutputStage() {
+		return stage instanceof AbstractOutputStage || stage instanceof AbstractAsyncOutputStage;
+	}
+
+	String getStageName() {
+		return stageName;
+	}
+
+	AbstractProcessStage getStage() {
+		return stage;
+	}
+
+	RemotePipeline getRemotePipeline() {
+		return remotePipeline;
+	}
+
 	private void processWithTimeout(LocalDocument doc) throws InterruptedException, ExecutionException, TimeoutException {
 		Future<Object> future = executor.submit(new ProcessCallable(doc, stage));
 		if (stage.getProcessingTimeout() > 0) {
@@ -99,7 +247,30 @@ public class ProcessStageRunner {
 		}
 	}
 
+	/**
+	 * Called by each service running the stage as it starts. The first of
+	 * them starts the stage, see {@link AbstractProcessStage#start()}.
+	 */
+	public synchronized void startProcessing() throws InitFailedException {
+		if (services.getAndIncrement() == 0) {
+			try {
+				stage.start();
+			} catch (InitFailedException e) {
+				services.decrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Called by each service running the stage as it stops. Once the last of
+	 * them has stopped, the stage is stopped, see
+	 * {@link AbstractProcessStage#stop()}.
+	 */
 	public void shutdownProcessing() {
+		if (services.decrementAndGet() > 0) {
+			return;
+		}
 		try {
 			executor.shutdown();
 			if (!executor.awaitTermination(terminationTimeout, TimeUnit.MILLISECONDS)) {
@@ -108,6 +279,11 @@ public class ProcessStageRunner {
 		} catch (InterruptedException e) {
 			logger.error("Interrupted during shutdown");
 		}
+		try {
+			stage.stop();
+		} catch (RuntimeException e) {
+			logger.error("Unable to stop stage " + stageName, e);
+		}
 	}
 
 	protected boolean onException(LocalDocument doc, Exception e) throws IOException, JsonException {
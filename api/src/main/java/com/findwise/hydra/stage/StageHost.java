@@ -0,0 +1,218 @@
+package com.findwise.hydra.stage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.Logging;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ServiceManager;
+
+/**
+ * Runs several stage groups in a single JVM, each with its libraries loaded by
+ * a {@link GroupClassLoader} of its own. Groups are started and stopped by core
+ * through commands on standard input, one per line:
+ * <pre>
+ * start &lt;group&gt; &lt;library files, separated by the path separator&gt;
+ * stop &lt;group&gt;
+ * </pre>
+ * The host reports back on standard output, with lines starting with
+ * {@link #EVENT_PREFIX}, once a group has stopped, either on request or because
+ * one of its stages failed. A failing group is stopped without affecting the
+ * other groups in the host. The host exits once standard input is closed.
+ * <p/>
+ * Takes the same arguments as {@link GroupStarter}, with the name of the host
+ * in place of the name of the group.
+ */
+public class StageHost {
+	private static final Logger logger = LoggerFactory.getLogger(StageHost.class);
+
+	public static final String START_COMMAND = "start";
+	public static final String STOP_COMMAND = "stop";
+
+	public static final String EVENT_PREFIX = "#hydra-host ";
+	public static final String STOPPED_EVENT = "stopped";
+	public static final String FAILED_EVENT = "failed";
+
+	private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	private final String host;
+	private final int port;
+	private final boolean performanceLogging;
+	private final PrintStream events;
+
+	private final Map<String, HostedGroup> groups = new HashMap<String, HostedGroup>();
+
+	public StageHost(String host, int port, boolean performanceLogging, PrintStream events) {
+		this.host = host;
+		this.port = port;
+		this.performanceLogging = performanceLogging;
+		this.events = events;
+	}
+
+	public static void main(String[] args) {
+		StageCommandLineArguments cmdLineArgs = null;
+		try {
+			cmdLineArgs = StageCommandLineArguments.parse(args);
+		} catch (Exception e) {
+			logger.error("Error parsing arguments", e);
+			System.exit(1);
+		}
+
+		try {
+			Logging.setup(cmdLineArgs.getHost(), cmdLineArgs.getLogPort());
+		} catch (Exception e) {
+			logger.error("Unable to connect to remote logging host on " + cmdLineArgs.getHost() + ":" + cmdLineArgs.getLogPort(), e);
+			System.exit(1);
+		}
+
+		StageHost stageHost = new StageHost(cmdLineArgs.getHost(), cmdLineArgs.getPort(), cmdLineArgs.isPerformanceLogging(), System.out);
+		try {
+			stageHost.run(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+		} catch (IOException e) {
+			logger.error("Lost contact with core", e);
+		}
+		stageHost.stopAll();
+		System.exit(0);
+	}
+
+	/**
+	 * Handles commands until the reader is closed.
+	 */
+	public void run(BufferedReader commands) throws IOException {
+		String line;
+		while ((line = commands.readLine()) != null) {
+			handle(line);
+		}
+	}
+
+	void handle(String command) {
+		String[] parts = command.split(" ", 3);
+		if (parts.length == 3 && START_COMMAND.equals(parts[0])) {
+			start(parts[1], toFiles(parts[2]));
+		} else if (parts.length == 2 && STOP_COMMAND.equals(parts[0])) {
+			stop(parts[1]);
+		} else {
+			logger.error("Unknown command: " + command);
+		}
+	}
+
+	private static List<File> toFiles(String paths) {
+		List<File> files = new ArrayList<File>();
+		for (String path : paths.split(File.pathSeparator)) {
+			if (!path.isEmpty()) {
+				files.add(new File(path));
+			}
+		}
+		return files;
+	}
+
+	public synchronized void start(final String group, List<File> files) {
+		if (groups.containsKey(group)) {
+			logger.error("Stage group " + group + " is already running in this host");
+			return;
+		}
+		logger.info("Starting stage group " + group);
+
+		GroupClassLoader classLoader = null;
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		try {
+			classLoader = GroupClassLoader.fromFiles(files, StageHost.class.getClassLoader());
+			// Threads started by the stages inherit this as their context class loader
+			Thread.currentThread().setContextClassLoader(classLoader);
+			final HostedGroup hosted = new HostedGroup(classLoader, GroupStarter.createServiceManager(group, host, port, performanceLogging, classLoader));
+			hosted.manager.addListener(new ServiceManager.Listener() {
+				public void healthy() {}
+				public void stopped() {
+					groupStopped(group, hosted);
+				}
+				public void failure(Service service) {
+					logger.error("Failure in " + service.toString() + ". Stopping stage group " + group + ".", service.failureCause());
+					hosted.failed = true;
+					hosted.manager.stopAsync();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			groups.put(group, hosted);
+			hosted.manager.startAsync();
+		} catch (Exception e) {
+			logger.error("Unable to start stage group " + group, e);
+			if (classLoader != null) {
+				classLoader.release();
+			}
+			groups.remove(group);
+			event(FAILED_EVENT, group);
+		} finally {
+			Thread.currentThread().setContextClassLoader(previous);
+		}
+	}
+
+	public synchronized void stop(String group) {
+		HostedGroup hosted = groups.get(group);
+		if (hosted == null) {
+			// Nothing to stop, but core still waits for the group to stop
+			event(STOPPED_EVENT, group);
+			return;
+		}
+		logger.info("Stopping stage group " + group);
+		hosted.manager.stopAsync();
+	}
+
+	/**
+	 * Stops all groups, giving each of them a few seconds to do so.
+	 */
+	public void stopAll() {
+		List<HostedGroup> running;
+		synchronized (this) {
+			running = new ArrayList<HostedGroup>(groups.values());
+		}
+		for (HostedGroup hosted : running) {
+			try {
+				hosted.manager.stopAsync().awaitStopped(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				logger.error("Stage group did not stop within " + STOP_TIMEOUT + "ms");
+			}
+		}
+	}
+
+	private synchronized void groupStopped(String group, HostedGroup hosted) {
+		if (groups.get(group) == hosted) {
+			groups.remove(group);
+		}
+		hosted.classLoader.release();
+		event(hosted.failed ? FAILED_EVENT : STOPPED_EVENT, group);
+	}
+
+	public synchronized boolean isRunning(String group) {
+		return groups.containsKey(group);
+	}
+
+	private void event(String event, String group) {
+		synchronized (events) {
+			events.println(EVENT_PREFIX + event + " " + group);
+			events.flush();
+		}
+	}
+
+	private static class HostedGroup {
+		private final GroupClassLoader classLoader;
+		private final ServiceManager manager;
+		private volatile boolean failed = false;
+
+		public HostedGroup(GroupClassLoader classLoader, ServiceManager manager) {
+			this.classLoader = classLoader;
+			this.manager = manager;
+		}
+	}
+}
@@ -10,7 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 
 public class StageService extends AbstractExecutionThreadService {
 	private static Logger logger = LoggerFactory.getLogger(StageService.class);
@@ -21,7 +21,7 @@ public class StageService extends AbstractExecutionThreadService {
 	private final RemotePipeline remotePipeline;
 
 	public static final int DEFAULT_HOLD_INTERVAL = 2000;
-	private long holdInterval = DEFAULT_HOLD_INTERVAL;
+	protected long holdInterval = DEFAULT_HOLD_INTERVAL;
 
 	public StageService(String stageName, ProcessStageRunner stageRunner, LocalQuery query, RemotePipeline remotePipeline) {
 		this.stageName = stageName;
@@ -35,6 +35,16 @@ public class StageService extends AbstractExecutionThreadService {
 		return stageName;
 	}
 
+	@Override
+	protected Executor executor() {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				StageThreads.newThread(serviceName(), command).start();
+			}
+		};
+	}
+
 	/**
 	 * Fetches a document to be processed from the RemotePipeline
 	 *
@@ -51,15 +61,33 @@ public class StageService extends AbstractExecutionThreadService {
 	@Override
 	public void run() throws Exception {
 		while (isRunning()) {
+			reconfigureIfChanged();
 			LocalDocument doc = fetch();
 			if (doc == null) {
 				Thread.sleep(holdInterval);
 			} else {
-				stageRunner.performProcessing(doc);
+				process(doc);
 			}
 		}
 	}
 
+	protected void process(LocalDocument doc) throws Exception {
+		stageRunner.performProcessing(doc);
+	}
+
+	/**
+	 * Applies changes to the properties of the stage, see
+	 * {@link ProcessStageRunner#reconfigureIfChanged()}.
+	 */
+	protected void reconfigureIfChanged() throws Exception {
+		stageRunner.reconfigureIfChanged();
+	}
+
+	@Override
+	protected void startUp() throws Exception {
+		stageRunner.startProcessing();
+	}
+
 	@Override
 	protected void shutDown() throws Exception {
 		stageRunner.shutdownProcessing();
@@ -12,13 +12,65 @@ import java.util.List;
 
 public class StageServiceFactory {
 	public static List<StageService> createStageServices(String stageName, String hostName, int port, boolean usePerformanceLogging, AbstractProcessStage overrideStage) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
-		RemotePipeline remotePipeline = new RemotePipeline(hostName, port, stageName, usePerformanceLogging);
+		return createStageServices(new RemotePipeline(hostName, port, stageName, usePerformanceLogging), overrideStage);
+	}
+
+	/**
+	 * Creates the services running a stage against the given pipeline, which may
+	 * be a connection to a core in another JVM or a pipeline embedded in core.
+	 */
+	public static List<StageService> createStageServices(RemotePipeline remotePipeline, AbstractProcessStage overrideStage) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
+		String stageName = remotePipeline.getStageName();
 		AbstractProcessStage stage = (overrideStage != null) ? overrideStage : remotePipeline.getStageInstance();
 		ProcessStageRunner stageRunner = new ProcessStageRunner(stageName, stage, remotePipeline);
 		List<StageService> stageServices = new ArrayList<StageService>();
+		if(stage instanceof AbstractAsyncProcessStage) {
+			stageServices.add(new AsyncStageService(stageName, stageRunner, (AbstractAsyncProcessStage) stage, remotePipeline));
+			return stageServices;
+		}
 		for(int i = 0; i < stage.getNumberOfThreads(); i++) {
 			stageServices.add(new StageService(stageName, stageRunner, stage.getQuery(), remotePipeline));
 		}
 		return stageServices;
 	}
+
+	/**
+	 * Creates services running the given stages as a fused chain, see
+	 * {@link FusedStageService}. As many services as the number of threads of the
+	 * first stage in the chain are created.
+	 */
+	public static List<StageService> createFusedStageServices(List<String> chain, String hostName, int port, boolean usePerformanceLogging) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
+		List<RemotePipeline> pipelines = new ArrayList<RemotePipeline>();
+		for(String stageName : chain) {
+			pipelines.add(new RemotePipeline(hostName, port, stageName, usePerformanceLogging));
+		}
+		return createFusedStageServices(pipelines);
+	}
+
+	/**
+	 * Creates services running the stages of the given pipelines as a fused chain
+	 */
+	public static List<StageService> createFusedStageServices(List<? extends RemotePipeline> chain) throws IOException, InitFailedException, RequiredArgumentMissingException, ClassNotFoundException, InstantiationException, JsonException, IllegalAccessException {
+		if(chain.size() < 2) {
+			throw new InitFailedException("A fused chain needs at least two stages, got " + chain.size());
+		}
+		List<ProcessStageRunner> runners = new ArrayList<ProcessStageRunner>();
+		for(RemotePipeline remotePipeline : chain) {
+			String stageName = remotePipeline.getStageName();
+			AbstractProcessStage stage = remotePipeline.getStageInstance();
+			if(stage instanceof AbstractAsyncProcessStage) {
+				throw new InitFailedException("Stage " + stageName + " is asynchronous and can not be part of a fused chain");
+			}
+			ProcessStageRunner runner = new ProcessStageRunner(stageName, stage, remotePipeline);
+			if(!runners.isEmpty() && runners.get(runners.size() - 1).isOutputStage()) {
+				throw new InitFailedException("Output stage " + runners.get(runners.size() - 1).getStageName() + " must be the last stage of a fused chain");
+			}
+			runners.add(runner);
+		}
+		List<StageService> stageServices = new ArrayList<StageService>();
+		for(int i = 0; i < runners.get(0).getStage().getNumberOfThreads(); i++) {
+			stageServices.add(new FusedStageService(runners));
+		}
+		return stageServices;
+	}
 }
@@ -0,0 +1,107 @@
+package com.findwise.hydra.stage;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The {@link OutputSpool} of an output stage, opened when the stage starts or
+ * on first use, and closed when it stops. Used by both
+ * {@link AbstractOutputStage} and {@link AbstractAsyncOutputStage}, which
+ * declare the parameters with the descriptions here.
+ * <p/>
+ * When the stage runs as one of several instances of its group, each instance
+ * spools to a file of its own, named after the configured one.
+ */
+abstract class StageSpool {
+	private static final Logger logger = LoggerFactory.getLogger(StageSpool.class);
+
+	static final String FILE_DESCRIPTION = "If set, documents are queued in this file and acknowledged at once, and output from it in the background, retrying them while the target is unavailable. Default: not set";
+	static final String RETRY_INTERVAL_DESCRIPTION = "The longest time, in milliseconds, between attempts to output queued documents while the target is unavailable. Default: 60000";
+	static final long DEFAULT_RETRY_INTERVAL = 60000;
+
+	private OutputSpool spool;
+
+	/**
+	 * Outputs a document from the spool
+	 */
+	protected abstract ListenableFuture<?> send(LocalDocument document);
+
+	/**
+	 * @see OutputSpool#shouldRetry(Throwable)
+	 */
+	protected abstract boolean shouldRetry(Throwable failure);
+
+	/**
+	 * Opens the spool, if a file is set, so that documents left in it when the
+	 * stage last stopped are output without waiting for new ones
+	 */
+	void start(String file, long retryInterval, int window, long sendTimeout) throws InitFailedException {
+		try {
+			get(file, retryInterval, window, sendTimeout);
+		} catch (IOException e) {
+			throw new InitFailedException("Unable to open spool file " + getFile(file), e);
+		}
+	}
+
+	/**
+	 * Closes the spool, if one is open. Documents left in it are output when
+	 * it is opened again.
+	 */
+	synchronized void stop() {
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				logger.error("Unable to close spool file " + spool.getFile(), e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			spool = null;
+		}
+	}
+
+	/**
+	 * @return the open spool, opening and starting it if it is not, or null if
+	 * no file is set
+	 */
+	synchronized OutputSpool get(String file, long retryInterval, int window, long sendTimeout) throws IOException {
+		if (spool == null && file != null) {
+			OutputSpool opened = new OutputSpool(getFile(file)) {
+				@Override
+				protected ListenableFuture<?> send(LocalDocument document) {
+					return StageSpool.this.send(document);
+				}
+
+				@Override
+				protected boolean shouldRetry(Throwable failure) {
+					return StageSpool.this.shouldRetry(failure);
+				}
+			};
+			opened.setWindow(window);
+			opened.setSendTimeout(Math.max(0, sendTimeout));
+			opened.setRetryInterval(Math.min(1000, retryInterval), retryInterval);
+			opened.start();
+			spool = opened;
+		}
+		return spool;
+	}
+
+	/**
+	 * @return the file, with the index of the instance appended if the stage
+	 * runs as one of several instances
+	 */
+	static File getFile(String file) {
+		String instance = System.getProperty(RemotePipeline.INSTANCE_PROPERTY);
+		if (instance == null) {
+			return new File(file);
+		}
+		return new File(file + "." + instance);
+	}
+}
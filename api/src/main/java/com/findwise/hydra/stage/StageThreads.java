@@ -0,0 +1,82 @@
+package com.findwise.hydra.stage;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads that stage workers run on. When the system property
+ * {@link #VIRTUAL_THREADS_PROPERTY} is set to <code>true</code> (see the
+ * <code>virtual_threads</code> property of a stage group) and the running JVM
+ * supports it, stage workers run on virtual threads instead of platform threads.
+ * <p/>
+ * Virtual threads are looked up reflectively, so that the API can still be
+ * built for, and run on, older JVMs.
+ */
+public final class StageThreads {
+	private static final Logger logger = LoggerFactory.getLogger(StageThreads.class);
+
+	public static final String VIRTUAL_THREADS_PROPERTY = "hydra.stage.virtualThreads";
+
+	private static final boolean virtual = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && supportsVirtualThreads();
+
+	private StageThreads() {
+	}
+
+	/**
+	 * @return true if stage workers in this JVM run on virtual threads
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	public static Thread newThread(String name, Runnable runnable) {
+		Thread thread = threadFactory(name).newThread(runnable);
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * @return an executor that runs each task on a new virtual thread if
+	 * virtual threads are enabled, or a cached thread pool otherwise.
+	 */
+	public static ExecutorService newExecutor(String name) {
+		if (virtual) {
+			try {
+				Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				return (ExecutorService) m.invoke(null, threadFactory(name));
+			} catch (Exception e) {
+				logger.error("Unable to create virtual thread executor, falling back to platform threads", e);
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	private static ThreadFactory threadFactory(String name) {
+		if (virtual) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+				return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			} catch (Exception e) {
+				logger.error("Unable to create virtual thread factory, falling back to platform threads", e);
+			}
+		}
+		return Executors.defaultThreadFactory();
+	}
+
+	private static boolean supportsVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			logger.warn("Virtual threads were requested, but are not supported by this JVM (" + System.getProperty("java.version") + "). Using platform threads.");
+			return false;
+		}
+	}
+}
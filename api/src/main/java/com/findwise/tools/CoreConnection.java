@@ -0,0 +1,27 @@
+package com.findwise.tools;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+/**
+ * A connection to the REST interface of core, over HTTP or over a local
+ * transport such as {@link SharedMemoryConnection}.
+ */
+public interface CoreConnection {
+
+	HttpResponse get(String url) throws IOException;
+
+	HttpResponse post(String url, String content) throws IOException;
+
+	/**
+	 * Posts an entity of any content type, such as a document in BSON.
+	 *
+	 * @param accept the content type to ask core to answer in, or null for
+	 * the default. Core answers in the default where it can not.
+	 */
+	HttpResponse post(String url, HttpEntity content, String accept) throws IOException;
+
+	HttpResponse delete(String url) throws IOException;
+}
@@ -0,0 +1,243 @@
+package com.findwise.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpMessage;
+import org.apache.http.entity.ByteArrayEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gzip compression of the bodies of requests and responses between stages
+ * and core. Bodies smaller than a threshold are not worth compressing, and
+ * are sent as they are.
+ * <p/>
+ * Compression is negotiated: a stage asks core for compressed responses with
+ * an Accept-Encoding header, and core tells that it reads compressed request
+ * bodies by answering with an Accept-Encoding header of its own. A stage does
+ * not compress request bodies before it has been told so.
+ * <p/>
+ * Keeps count of how much has been compressed, and how long it took.
+ */
+public class HttpCompression {
+	private static final Logger logger = LoggerFactory.getLogger(HttpCompression.class);
+
+	public static final String GZIP = "gzip";
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	/**
+	 * Settings for compression: none, gzip at the default level, or gzip at
+	 * the fastest level, for hosts where CPU rather than bandwidth is scarce
+	 */
+	public static final String NONE = "none";
+	public static final String DEFAULT = "gzip";
+	public static final String FAST = "fast";
+
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	/**
+	 * System properties choosing the compression of a stage JVM, set by core
+	 * for stage groups configured with a compression
+	 */
+	public static final String COMPRESSION_PROPERTY = "hydra.http.compression";
+	public static final String THRESHOLD_PROPERTY = "hydra.http.compression.threshold";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final int level;
+	private final int threshold;
+	private boolean performanceLogging = false;
+
+	private final AtomicLong compressedBodies = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	private final AtomicLong decompressedBodies = new AtomicLong();
+	private final AtomicLong decompressionNanos = new AtomicLong();
+
+	/**
+	 * @param level the level of the deflater, from {@link Deflater#BEST_SPEED}
+	 * to {@link Deflater#BEST_COMPRESSION}
+	 * @param threshold the size, in bytes, below which bodies are not compressed
+	 */
+	public HttpCompression(int level, int threshold) {
+		this.level = level;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the compression for a setting, or null for {@link #NONE}
+	 */
+	public static HttpCompression forSetting(String setting, int threshold) {
+		if (setting == null || NONE.equals(setting)) {
+			return null;
+		}
+		if (FAST.equals(setting)) {
+			return new HttpCompression(Deflater.BEST_SPEED, threshold);
+		}
+		if (!DEFAULT.equals(setting)) {
+			logger.warn("Unknown compression '" + setting + "', using " + DEFAULT);
+		}
+		return new HttpCompression(Deflater.DEFAULT_COMPRESSION, threshold);
+	}
+
+	/**
+	 * @return the compression chosen by the system properties of this JVM, or
+	 * null if none is
+	 */
+	public static HttpCompression fromSystemProperties() {
+		return forSetting(System.getProperty(COMPRESSION_PROPERTY), Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+	}
+
+	public void setPerformanceLogging(boolean performanceLogging) {
+		this.performanceLogging = performanceLogging;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return whether the message has a header of the given name listing gzip
+	 */
+	public static boolean listsGzip(HttpMessage message, String header) {
+		for (Header h : message.getHeaders(header)) {
+			if (h.getValue().toLowerCase().contains(GZIP)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static boolean isGzipped(HttpEntity entity) {
+		return entity.getContentEncoding() != null && GZIP.equalsIgnoreCase(entity.getContentEncoding().getValue().trim());
+	}
+
+	/**
+	 * @return whether the entity is large enough to compress, and not already
+	 * encoded
+	 */
+	public boolean shouldCompress(HttpEntity entity) {
+		return entity != null && entity.getContentEncoding() == null && entity.getContentLength() >= threshold;
+	}
+
+	public byte[] compress(byte[] data) {
+		long start = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+		try {
+			GZIPOutputStream out = new GZIPOutputStream(bytes, BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			};
+			out.write(data);
+			out.close();
+		} catch (IOException e) {
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		byte[] compressed = bytes.toByteArray();
+		long nanos = System.nanoTime() - start;
+		compressedBodies.incrementAndGet();
+		uncompressedBytes.addAndGet(data.length);
+		compressedBytes.addAndGet(compressed.length);
+		compressionNanos.addAndGet(nanos);
+		if (performanceLogging) {
+			logger.info(String.format("type=performance event=compress bytes=%d compressed=%d ratio=%.2f time=%.3f", data.length, compressed.length, ratio(data.length, compressed.length), nanos / 1e6));
+		}
+		return compressed;
+	}
+
+	/**
+	 * Reads and decompresses a gzipped stream, closing it
+	 */
+	public byte[] decompress(InputStream in) throws IOException {
+		long start = System.nanoTime();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InputStream gzip = new GZIPInputStream(in, BUFFER_SIZE);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (int read; (read = gzip.read(buffer)) >= 0;) {
+				bytes.write(buffer, 0, read);
+			}
+		} finally {
+			gzip.close();
+		}
+		long nanos = System.nanoTime() - start;
+		decompressedBodies.incrementAndGet();
+		decompressionNanos.addAndGet(nanos);
+		if (performanceLogging) {
+			logger.info(String.format("type=performance event=decompress bytes=%d time=%.3f", bytes.size(), nanos / 1e6));
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the entity compressed, with the content type of the original
+	 */
+	public HttpEntity compress(HttpEntity entity) throws IOException {
+		ByteArrayEntity compressed = new ByteArrayEntity(compress(toByteArray(entity)));
+		compressed.setContentType(entity.getContentType());
+		compressed.setContentEncoding(GZIP);
+		return compressed;
+	}
+
+	/**
+	 * @return the gzipped entity decompressed, with the content type of the
+	 * original
+	 */
+	public HttpEntity decompress(HttpEntity entity) throws IOException {
+		ByteArrayEntity decompressed = new ByteArrayEntity(decompress(entity.getContent()));
+		decompressed.setContentType(entity.getContentType());
+		return decompressed;
+	}
+
+	private static byte[] toByteArray(HttpEntity entity) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(entity.getContentLength(), BUFFER_SIZE));
+		entity.writeTo(bytes);
+		return bytes.toByteArray();
+	}
+
+	private static double ratio(long uncompressed, long compressed) {
+		return compressed > 0 ? (double) uncompressed / compressed : 0;
+	}
+
+	public long getCompressedBodies() {
+		return compressedBodies.get();
+	}
+
+	/**
+	 * @return the size of all bodies compressed, divided by their compressed
+	 * size
+	 */
+	public double getCompressionRatio() {
+		return ratio(uncompressedBytes.get(), compressedBytes.get());
+	}
+
+	public long getCompressionMillis() {
+		return compressionNanos.get() / 1000000;
+	}
+
+	public long getDecompressedBodies() {
+		return decompressedBodies.get();
+	}
+
+	public long getDecompressionMillis() {
+		return decompressionNanos.get() / 1000000;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("compressed %d bodies from %d to %d bytes (ratio %.2f) in %d ms, decompressed %d bodies in %d ms",
+				getCompressedBodies(), uncompressedBytes.get(), compressedBytes.get(), getCompressionRatio(), getCompressionMillis(),
+				getDecompressedBodies(), getDecompressionMillis());
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -22,18 +23,42 @@ import org.apache.http.params.SyncBasicHttpParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HttpConnection {
+public class HttpConnection implements CoreConnection {
     private static Logger internalLogger = LoggerFactory.getLogger("internal");
 
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
     private HttpParams params;
 	private HttpHost host;
 	private DefaultHttpClient client;
+	private HttpCompression compression;
+	/**
+	 * Whether core has told that it reads compressed request bodies
+	 */
+	private volatile boolean coreReadsGzip = false;
 	
 	public HttpConnection(String hostName, int port) {
+		this(hostName, port, DEFAULT_MAX_CONNECTIONS, false);
+	}
+
+	/**
+	 * @param maxConnections the number of pooled connections to the host. Threads
+	 * making requests while all connections are in use will wait for one to be
+	 * released.
+	 */
+	public HttpConnection(String hostName, int port, int maxConnections) {
+		this(hostName, port, maxConnections, true);
+	}
+
+	private HttpConnection(String hostName, int port, int maxConnections, boolean allToHost) {
 		host = new HttpHost(hostName, port);
 		
         PoolingClientConnectionManager cm = new PoolingClientConnectionManager();
-        cm.setMaxTotal(10);
+        cm.setMaxTotal(maxConnections);
+        if (allToHost) {
+            // All requests go to the same host, so don't limit them further per route
+            cm.setDefaultMaxPerRoute(maxConnections);
+        }
 		params = new SyncBasicHttpParams();
 		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
 		HttpProtocolParams.setContentCharset(params, "UTF-8");
@@ -43,6 +68,19 @@ public class HttpConnection {
         client = new DefaultHttpClient(cm, params);
 	}
 	
+	/**
+	 * Asks core for compressed responses, and compresses request bodies once
+	 * core has told that it reads them, see {@link HttpCompression}. Null,
+	 * the default, for no compression.
+	 */
+	public void setCompression(HttpCompression compression) {
+		this.compression = compression;
+	}
+
+	public HttpCompression getCompression() {
+		return compression;
+	}
+
 	public HttpResponse get(String url) throws IOException {
 		return request(new HttpGet(url));
 	}
@@ -59,9 +97,19 @@ public class HttpConnection {
 	}
 	
 	private HttpResponse post(String url, HttpEntity entity) throws IOException {
+		return post(url, entity, null);
+	}
+	
+	public HttpResponse post(String url, HttpEntity entity, String accept) throws IOException {
 		HttpPost request = new HttpPost(url);
 		
+		if(compression != null && coreReadsGzip && compression.shouldCompress(entity)) {
+			entity = compression.compress(entity);
+		}
 		request.setEntity(entity);
+		if(accept != null) {
+			request.setHeader(HttpHeaders.ACCEPT, accept);
+		}
 
 		return request(request);
 	}
@@ -71,6 +119,18 @@ public class HttpConnection {
 	}
 
 	private HttpResponse request(HttpRequest request) throws IOException {
-		return client.execute(host, request);
+		if(compression == null) {
+			return client.execute(host, request);
+		}
+		request.setHeader(HttpHeaders.ACCEPT_ENCODING, HttpCompression.GZIP);
+		HttpResponse response = client.execute(host, request);
+		if(!coreReadsGzip && HttpCompression.listsGzip(response, HttpCompression.ACCEPT_ENCODING)) {
+			coreReadsGzip = true;
+		}
+		HttpEntity entity = response.getEntity();
+		if(entity != null && HttpCompression.isGzipped(entity)) {
+			response.setEntity(compression.decompress(entity));
+		}
+		return response;
 	}
 }
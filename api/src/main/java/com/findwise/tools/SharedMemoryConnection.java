@@ -0,0 +1,259 @@
+package com.findwise.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Talks to core through a {@link SharedMemoryRing}, instead of over TCP, when
+ * running on the same host. Requests too large to fit in a slot are sent over
+ * HTTP instead, as are all requests should the ring not be usable.
+ * <p/>
+ * Each request occupies a slot of its own. Threads making requests while all
+ * slots are in use wait for one to be released, and send the request over HTTP
+ * if none is within {@link #DEFAULT_SLOT_WAIT}. A slot whose request timed out
+ * is reused once core has answered, or given up on, the request.
+ */
+public class SharedMemoryConnection implements CoreConnection {
+	private static final Logger internalLogger = LoggerFactory.getLogger("internal");
+
+	public static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+	public static final long DEFAULT_SLOT_WAIT = TimeUnit.SECONDS.toMillis(1);
+
+	private static final String REQUEST_CONTENT_TYPE = "text/plain; charset=UTF-8";
+
+	private final SharedMemoryRing ring;
+	private final CoreConnection fallback;
+	private final BlockingQueue<Integer> freeSlots;
+	private final Map<Integer, Abandoned> abandoned = new ConcurrentHashMap<Integer, Abandoned>();
+	private final AtomicLong sequence = new AtomicLong();
+	private long timeout = DEFAULT_TIMEOUT;
+	private long slotWait = DEFAULT_SLOT_WAIT;
+
+	public SharedMemoryConnection(SharedMemoryRing ring, CoreConnection fallback) {
+		this.ring = ring;
+		this.fallback = fallback;
+		freeSlots = new LinkedBlockingQueue<Integer>();
+		for (int i = 0; i < ring.getSlots(); i++) {
+			freeSlots.add(i);
+		}
+	}
+
+	/**
+	 * @return a connection through the ring named by the system property
+	 * {@link SharedMemoryRing#FILE_PROPERTY}, or the fallback connection if the
+	 * property is not set or the ring can not be opened.
+	 */
+	public static CoreConnection fromSystemProperty(CoreConnection fallback) {
+		String path = System.getProperty(SharedMemoryRing.FILE_PROPERTY);
+		if (path == null) {
+			return fallback;
+		}
+		try {
+			return new SharedMemoryConnection(SharedMemoryRing.open(new File(path)), fallback);
+		} catch (IOException e) {
+			internalLogger.error("Unable to open shared memory ring " + path + ", talking to core over HTTP", e);
+			return fallback;
+		}
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void setSlotWait(long slotWait) {
+		this.slotWait = slotWait;
+	}
+
+	@Override
+	public HttpResponse get(String url) throws IOException {
+		byte[] frame = SharedMemoryRing.encodeRequest("GET", url, null, null);
+		if (frame.length > ring.getCapacity()) {
+			return fallback.get(url);
+		}
+		HttpResponse response = request(frame);
+		return response != null ? response : fallback.get(url);
+	}
+
+	@Override
+	public HttpResponse post(String url, String content) throws IOException {
+		byte[] frame = SharedMemoryRing.encodeRequest("POST", url, REQUEST_CONTENT_TYPE, content.getBytes("UTF-8"));
+		if (frame.length > ring.getCapacity()) {
+			internalLogger.debug("Request of " + frame.length + " bytes does not fit in a slot, posting over HTTP");
+			return fallback.post(url, content);
+		}
+		HttpResponse response = request(frame);
+		return response != null ? response : fallback.post(url, content);
+	}
+
+	/**
+	 * The Accept header is not carried by the ring, so core always answers in
+	 * the default content type here.
+	 */
+	@Override
+	public HttpResponse post(String url, HttpEntity content, String accept) throws IOException {
+		String contentType = content.getContentType() != null ? content.getContentType().getValue() : REQUEST_CONTENT_TYPE;
+		byte[] body = EntityUtils.toByteArray(content);
+		byte[] frame = SharedMemoryRing.encodeRequest("POST", url, contentType, body);
+		if (frame.length > ring.getCapacity()) {
+			internalLogger.debug("Request of " + frame.length + " bytes does not fit in a slot, posting over HTTP");
+			return fallback.post(url, content, accept);
+		}
+		HttpResponse response = request(frame);
+		if (response != null) {
+			return response;
+		}
+		// The entity may not be repeatable, and has already been read
+		ByteArrayEntity copy = new ByteArrayEntity(body);
+		copy.setContentType(contentType);
+		return fallback.post(url, copy, accept);
+	}
+
+	@Override
+	public HttpResponse delete(String url) throws IOException {
+		byte[] frame = SharedMemoryRing.encodeRequest("DELETE", url, null, null);
+		if (frame.length > ring.getCapacity()) {
+			return fallback.delete(url);
+		}
+		HttpResponse response = request(frame);
+		return response != null ? response : fallback.delete(url);
+	}
+
+	/**
+	 * @return the response, or null if no slot was free in time, in which case
+	 * the request should be sent over HTTP instead
+	 */
+	private HttpResponse request(byte[] frame) throws IOException {
+		Integer slot;
+		try {
+			slot = acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a free slot");
+		}
+		if (slot == null) {
+			internalLogger.debug("No slot free within " + slotWait + "ms, sending request over HTTP");
+			return null;
+		}
+		long seq = sequence.incrementAndGet();
+		boolean release = false;
+		try {
+			ring.write(slot, seq, frame, 0, frame.length);
+			ring.setState(slot, SharedMemoryRing.REQUEST);
+
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			while (true) {
+				int state = await(slot, seq);
+				response.write(ring.read(slot));
+				if (state == SharedMemoryRing.RESPONSE) {
+					break;
+				}
+				ring.setState(slot, SharedMemoryRing.PROCESSING);
+			}
+			ring.setState(slot, SharedMemoryRing.FREE);
+			release = true;
+
+			SharedMemoryRing.Frame f = SharedMemoryRing.Frame.decodeResponse(response.toByteArray());
+			BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, f.getStatus(), null);
+			ByteArrayEntity entity = new ByteArrayEntity(f.getBody());
+			entity.setContentType(f.getContentType());
+			httpResponse.setEntity(entity);
+			return httpResponse;
+		} finally {
+			if (release) {
+				freeSlots.add(slot);
+			} else {
+				abandoned.put(slot, new Abandoned(seq, ring.getGeneration()));
+			}
+		}
+	}
+
+	private Integer acquire() throws InterruptedException {
+		Integer slot = freeSlots.poll();
+		if (slot != null) {
+			return slot;
+		}
+		reclaim();
+		return freeSlots.poll(slotWait, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Frees the abandoned slots that core is done with: those it has written the
+	 * full response to, those it has freed after giving up on the client, and
+	 * all of them should the ring have been reset since.
+	 */
+	private void reclaim() {
+		Iterator<Map.Entry<Integer, Abandoned>> it = abandoned.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Abandoned> entry = it.next();
+			int slot = entry.getKey();
+			Abandoned a = entry.getValue();
+			int state = ring.getState(slot);
+			boolean done = state == SharedMemoryRing.FREE
+					|| (state == SharedMemoryRing.RESPONSE && ring.getSequence(slot) == a.sequence)
+					|| ring.getGeneration() != a.generation;
+			// Only one thread gets to remove the entry, and hence reuse the slot
+			if (done && abandoned.remove(slot, a)) {
+				ring.setState(slot, SharedMemoryRing.FREE);
+				freeSlots.add(slot);
+				internalLogger.debug("Reclaimed slot " + slot);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a response, or part of one, to the request in the slot. Like a
+	 * blocking HTTP request, this is not interrupted, since a slot must not be
+	 * reused until core has answered. A slot whose request times out is left
+	 * for {@link #reclaim()}.
+	 */
+	private int await(int slot, long seq) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		SharedMemoryRing.Backoff backoff = new SharedMemoryRing.Backoff();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				int state = ring.getState(slot);
+				if ((state == SharedMemoryRing.RESPONSE || state == SharedMemoryRing.RESPONSE_PART) && ring.getSequence(slot) == seq) {
+					return state;
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("No response from core within " + timeout + "ms, abandoning slot " + slot);
+				}
+				// Parking returns immediately while the interrupt flag is set
+				interrupted |= Thread.interrupted();
+				backoff.idle();
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class Abandoned {
+		private final long sequence;
+		private final int generation;
+
+		public Abandoned(long sequence, int generation) {
+			this.sequence = sequence;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.findwise.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A memory mapped file shared by core and the JVM running a stage group on
+ * the same host, divided into a ring of fixed size slots. Each slot carries one
+ * request at a time, from the stage JVM to core, and then its response back.
+ * <p/>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes:
+ * <pre>
+ * int magic, int version, int slots, int slot size, int generation
+ * </pre>
+ * Each slot starts with an int state, a long sequence number set by the client
+ * and echoed by core, and the int length of the payload that follows.
+ * <p/>
+ * A slot is taken by the client in state {@link #FREE}, which writes the
+ * request and moves it to {@link #REQUEST}. Core moves it to
+ * {@link #PROCESSING}, and then to {@link #RESPONSE} once the response has
+ * been written. A response that does not fit in the slot is written in parts,
+ * each one moving the slot to {@link #RESPONSE_PART}, which the client
+ * acknowledges by moving the slot back to {@link #PROCESSING}.
+ * <p/>
+ * States are read and written while holding a lock, whose memory barriers
+ * keep the payload from being reordered with respect to the state.
+ */
+public class SharedMemoryRing {
+	/**
+	 * System property holding the path of the file, set by core when launching
+	 * a stage group using this transport.
+	 */
+	public static final String FILE_PROPERTY = "hydra.transport.file";
+
+	public static final int DEFAULT_SLOTS = 32;
+	public static final int DEFAULT_SLOT_SIZE = 1024 * 1024;
+
+	public static final int FREE = 0;
+	public static final int REQUEST = 1;
+	public static final int PROCESSING = 2;
+	public static final int RESPONSE = 3;
+	public static final int RESPONSE_PART = 4;
+
+	static final int MAGIC = 0x48594452;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOTS_OFFSET = 8;
+	private static final int SLOT_SIZE_OFFSET = 12;
+	private static final int GENERATION_OFFSET = 16;
+
+	private static final int STATE_OFFSET = 0;
+	private static final int SEQUENCE_OFFSET = 4;
+	private static final int LENGTH_OFFSET = 12;
+	private static final int PAYLOAD_OFFSET = 16;
+
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final int slotSize;
+
+	private SharedMemoryRing(MappedByteBuffer buffer, int slots, int slotSize) {
+		this.buffer = buffer;
+		this.slots = slots;
+		this.slotSize = slotSize;
+	}
+
+	/**
+	 * Creates (or truncates) the file, with all slots free.
+	 */
+	public static SharedMemoryRing create(File file, int slots, int slotSize) throws IOException {
+		if (slotSize <= PAYLOAD_OFFSET) {
+			throw new IllegalArgumentException("Slot size must be larger than " + PAYLOAD_OFFSET);
+		}
+		if (HEADER_SIZE + (long) slots * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A ring can not be larger than " + Integer.MAX_VALUE + " bytes");
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			long size = HEADER_SIZE + (long) slots * slotSize;
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putInt(SLOTS_OFFSET, slots);
+			buffer.putInt(SLOT_SIZE_OFFSET, slotSize);
+			buffer.putInt(GENERATION_OFFSET, 0);
+			return new SharedMemoryRing(buffer, slots, slotSize);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Opens a file created by {@link #create(File, int, int)}.
+	 *
+	 * @throws IOException if the file does not exist or is not a valid ring
+	 */
+	public static SharedMemoryRing open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < HEADER_SIZE) {
+				throw new IOException("File " + file + " is too small to be a shared memory ring");
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+				throw new IOException("File " + file + " is not a shared memory ring of version " + VERSION);
+			}
+			int slots = buffer.getInt(SLOTS_OFFSET);
+			int slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+			if (raf.length() < HEADER_SIZE + (long) slots * slotSize) {
+				throw new IOException("File " + file + " is truncated");
+			}
+			return new SharedMemoryRing(buffer, slots, slotSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return the maximum number of bytes of payload that fit in a slot
+	 */
+	public int getCapacity() {
+		return slotSize - PAYLOAD_OFFSET;
+	}
+
+	private int offset(int slot) {
+		return HEADER_SIZE + slot * slotSize;
+	}
+
+	public synchronized int getState(int slot) {
+		return buffer.getInt(offset(slot) + STATE_OFFSET);
+	}
+
+	public synchronized void setState(int slot, int state) {
+		buffer.putInt(offset(slot) + STATE_OFFSET, state);
+	}
+
+	public synchronized int getGeneration() {
+		return buffer.getInt(GENERATION_OFFSET);
+	}
+
+	/**
+	 * Frees all slots, abandoning any requests in progress. Used by core when
+	 * the JVM using the ring is restarted.
+	 */
+	public synchronized void reset() {
+		buffer.putInt(GENERATION_OFFSET, buffer.getInt(GENERATION_OFFSET) + 1);
+		for (int i = 0; i < slots; i++) {
+			setState(i, FREE);
+		}
+	}
+
+	public long getSequence(int slot) {
+		return buffer.getLong(offset(slot) + SEQUENCE_OFFSET);
+	}
+
+	/**
+	 * Writes a payload to the slot. Must be followed by a call to
+	 * {@link #setState(int, int)} to publish it.
+	 */
+	public void write(int slot, long sequence, byte[] payload, int offset, int length) {
+		if (length > getCapacity()) {
+			throw new IllegalArgumentException("Payload of " + length + " bytes does not fit in a slot of " + getCapacity() + " bytes");
+		}
+		int start = offset(slot);
+		buffer.putLong(start + SEQUENCE_OFFSET, sequence);
+		buffer.putInt(start + LENGTH_OFFSET, length);
+		ByteBuffer b = buffer.duplicate();
+		b.position(start + PAYLOAD_OFFSET);
+		b.put(payload, offset, length);
+	}
+
+	public byte[] read(int slot) {
+		int start = offset(slot);
+		int length = buffer.getInt(start + LENGTH_OFFSET);
+		if (length < 0 || length > getCapacity()) {
+			throw new IllegalStateException("Corrupt payload length " + length + " in slot " + slot);
+		}
+		byte[] payload = new byte[length];
+		ByteBuffer b = buffer.duplicate();
+		b.position(start + PAYLOAD_OFFSET);
+		b.get(payload);
+		return payload;
+	}
+
+	public static byte[] encodeRequest(String method, String url, String contentType, byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + url.length() + (body == null ? 0 : body.length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(method);
+		out.writeUTF(url);
+		out.writeUTF(contentType == null ? "" : contentType);
+		if (body != null) {
+			out.write(body);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static byte[] encodeResponse(int status, String contentType, byte[] body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (body == null ? 0 : body.length));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(status);
+		out.writeUTF(contentType == null ? "" : contentType);
+		if (body != null) {
+			out.write(body);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A decoded request or response. The method and url are only set for
+	 * requests, the status only for responses.
+	 */
+	public static class Frame {
+		private String method;
+		private String url;
+		private int status;
+		private String contentType;
+		private byte[] body;
+
+		public static Frame decodeRequest(byte[] frame) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+			Frame f = new Frame();
+			f.method = in.readUTF();
+			f.url = in.readUTF();
+			f.readRest(in);
+			return f;
+		}
+
+		public static Frame decodeResponse(byte[] frame) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+			Frame f = new Frame();
+			f.status = in.readInt();
+			f.readRest(in);
+			return f;
+		}
+
+		private void readRest(DataInputStream in) throws IOException {
+			contentType = in.readUTF();
+			if (contentType.isEmpty()) {
+				contentType = null;
+			}
+			body = new byte[in.available()];
+			in.readFully(body);
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+
+	/**
+	 * Waits between polls of a slot: spins at first, to keep latency low under
+	 * load, then parks for increasingly long, up to a millisecond, when idle.
+	 */
+	public static class Backoff {
+		private static final int SPINS = 100;
+		private static final int YIELDS = 100;
+		private static final long MAX_PARK_NANOS = 1000000L;
+
+		private int idleCount = 0;
+
+		public void reset() {
+			idleCount = 0;
+		}
+
+		public void idle() {
+			if (idleCount < SPINS) {
+				idleCount++;
+			} else if (idleCount < SPINS + YIELDS) {
+				idleCount++;
+				Thread.yield();
+			} else {
+				long park = 1000L << Math.min(10, idleCount - SPINS - YIELDS);
+				idleCount++;
+				LockSupport.parkNanos(Math.min(park, MAX_PARK_NANOS));
+			}
+		}
+	}
+}
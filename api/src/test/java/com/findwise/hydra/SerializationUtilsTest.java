@@ -1,12 +1,25 @@
 package com.findwise.hydra;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SerializationUtilsTest {
 
@@ -29,4 +42,164 @@ public class SerializationUtilsTest {
 		assertTrue(date.getTime() - ((Date)deserializedDate).getTime() < 1000L);
 	}
 
+	@Test
+	public void testNumbers_deserialize_to_smallest_type() throws JsonException {
+		assertEquals(1, SerializationUtils.toObject("1"));
+		assertEquals(1, SerializationUtils.toObject("1.0"));
+		assertEquals(2147483648L, SerializationUtils.toObject("2147483648"));
+		assertEquals(0.5, SerializationUtils.toObject("0.5"));
+	}
+
+	@Test
+	public void testStreamed_json_equals_string_json() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("text", "<b>\"quoted\" &amp;</b>");
+		List<Object> list = new ArrayList<Object>();
+		list.add(1);
+		list.add(2.5);
+		list.add(null);
+		list.add("x");
+		map.put("list", list);
+		map.put("date", new Date(1380000000123L));
+
+		StringWriter writer = new StringWriter();
+		SerializationUtils.toJson(map, writer);
+		assertEquals(SerializationUtils.toJson(map), writer.toString());
+		// Escaped like Gson does
+		assertTrue(writer.toString().contains("\\u003cb\\u003e"));
+		assertEquals(map, SerializationUtils.fromJson(new StringReader(writer.toString())));
+	}
+
+	@Test
+	public void testEmpty_json_is_null() throws JsonException {
+		assertNull(SerializationUtils.toObject(""));
+	}
+
+	@Test(expected = JsonException.class)
+	public void testMalformed_json_throws() throws JsonException {
+		SerializationUtils.toObject("{\"a\":");
+	}
+
+	@Test
+	public void testBson_keeps_types() throws JsonException {
+		Map<String, Object> nested = new HashMap<String, Object>();
+		nested.put("list", Arrays.asList(1, "two", null, Arrays.asList(true)));
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("text", "\u00e5\u00e4\u00f6 \u0000 text");
+		map.put("int", 1);
+		map.put("long", 1L);
+		map.put("double", 2.0);
+		map.put("boolean", false);
+		map.put("date", new Date(1380000000123L));
+		map.put("dateString", "2013-09-24T07:20:00.123+0200");
+		map.put("null", null);
+		map.put("nested", nested);
+
+		assertEquals(map, SerializationUtils.fromBson(SerializationUtils.toBson(map)));
+	}
+
+	@Test
+	public void testBson_converts_other_types_like_json() throws JsonException {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("float", 0.1f);
+		map.put("array", new int[] { 1, 2 });
+		map.put("enum", Thread.State.NEW);
+		map.put("object", new StringBuilder("builder"));
+
+		Map<String, Object> bson = SerializationUtils.fromBson(SerializationUtils.toBson(map));
+		assertEquals(0.1, bson.get("float"));
+		assertEquals(Arrays.asList(1, 2), bson.get("array"));
+		assertEquals("NEW", bson.get("enum"));
+		assertEquals(SerializationUtils.fromJson(SerializationUtils.toJson(map)).get("object"), bson.get("object"));
+	}
+
+	@Test
+	public void testBson_stream_is_read_one_document_at_a_time() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(SerializationUtils.toBson(Collections.singletonMap("n", 1)));
+		bytes.write(SerializationUtils.toBson(Collections.singletonMap("n", 2)));
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes.toByteArray());
+
+		assertEquals(1, SerializationUtils.fromBson(in).get("n"));
+		assertEquals(2, SerializationUtils.fromBson(in).get("n"));
+	}
+
+	@Test(expected = JsonException.class)
+	public void testTruncated_bson_throws() throws Exception {
+		byte[] bson = SerializationUtils.toBson(Collections.singletonMap("text", "value"));
+		SerializationUtils.fromBson(new ByteArrayInputStream(bson, 0, bson.length - 3));
+	}
+
+	@Test(expected = JsonException.class)
+	public void testMalformed_bson_throws() throws JsonException {
+		byte[] bson = SerializationUtils.toBson(Collections.singletonMap("text", "value"));
+		// A string length running past the end of the document
+		bson[4 + 1 + "text".length() + 1] = 100;
+		SerializationUtils.fromBson(bson);
+	}
+
+	@Test
+	public void testLazy_map_reads_values_when_asked_for() throws JsonException {
+		LazyJsonMap map = SerializationUtils.fromJsonLazily("{\"text\":\"a \\\"quoted\\\" value\",\"list\":[1,{\"a\":null}],\"empty\":null,\"esc\\u0061ped\":1.50}");
+
+		assertEquals(4, map.size());
+		assertFalse(map.isRead("list"));
+		assertTrue(map.isNull("empty"));
+		assertFalse(map.isNull("text"));
+		assertTrue(map.containsKey("escaped"));
+		assertEquals("a \"quoted\" value", map.get("text"));
+		assertTrue(map.isRead("text"));
+		assertFalse(map.isRead("list"));
+		assertEquals(SerializationUtils.fromJson("{\"list\":[1,{\"a\":null}]}").get("list"), map.get("list"));
+	}
+
+	@Test
+	public void testLazy_map_writes_unread_values_untouched() throws JsonException {
+		LazyJsonMap map = SerializationUtils.fromJsonLazily("{\"number\":1.50,\"date\":\"2013-01-01T00:00:00Z\"}");
+
+		Map<String, Object> written = SerializationUtils.fromJson(SerializationUtils.toJson(map));
+
+		assertTrue(SerializationUtils.toJson(map).contains("1.50"));
+		assertEquals(SerializationUtils.fromJson("{\"number\":1.50,\"date\":\"2013-01-01T00:00:00Z\"}"), written);
+	}
+
+	@Test
+	public void testLazy_map_writes_unread_nested_values() throws JsonException {
+		String json = "{\"nested\":{\"list\":[1,-2.5e3,true,null,\"a \\\"quoted\\\" <b>\"],\"empty\":{}},\"none\":null}";
+		LazyJsonMap map = SerializationUtils.fromJsonLazily(json);
+
+		String written = SerializationUtils.toJson(map);
+
+		assertFalse(map.isRead("nested"));
+		assertEquals(SerializationUtils.fromJson(json), SerializationUtils.fromJson(written));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLazy_map_copy_is_independent() throws JsonException {
+		LazyJsonMap map = SerializationUtils.fromJsonLazily("{\"read\":[1],\"unread\":[2]}");
+		((List<Object>) map.get("read")).add(3);
+
+		LazyJsonMap copy = map.copy();
+		((List<Object>) copy.get("read")).add(4);
+		((List<Object>) copy.get("unread")).add(5);
+
+		assertEquals(Arrays.asList(1, 3), map.get("read"));
+		assertEquals(Arrays.asList(2), map.get("unread"));
+		assertEquals(Arrays.asList(1, 3, 4), copy.get("read"));
+		assertEquals(Arrays.asList(2, 5), copy.get("unread"));
+	}
+
+	@Test
+	public void testMalformed_json_is_not_read_lazily() {
+		for (String json : Arrays.asList("{\"a\":}", "{\"a\":[1,2}", "{\"a\":tru}", "{\"a\":\"\\x\"}", "{\"a\":1}}", "{\"a\":-}", "[1]", "{\"a\":1")) {
+			try {
+				SerializationUtils.fromJsonLazily(json);
+				fail("Expected " + json + " to be malformed");
+			} catch (JsonException e) {
+				// Expected
+			}
+		}
+	}
+
 }
@@ -1,8 +1,11 @@
 package com.findwise.hydra.local;
 
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -13,6 +16,7 @@ import org.junit.Test;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.Document.Action;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.LazyJsonMap;
 import com.findwise.hydra.SerializationUtils;
 import com.findwise.tools.Comparator;
 
@@ -93,6 +97,28 @@ public class LocalDocumentTest {
 		assertNull(content.get("name"));
 	}
 
+	@Test
+	public void testBsonTransfer() throws Exception {
+		test.setID(new LocalDocumentID("id"));
+		test.setAction(Action.DELETE);
+		test.putContentField("list", Arrays.asList("a", "b"));
+
+		LocalDocument read = new LocalDocument(new ByteArrayInputStream(test.toBson()));
+		assertTrue(read.isEqual(test));
+		assertTrue(read.isSynced());
+	}
+
+	@Test
+	public void testModifiedFieldsToBson() throws Exception {
+		test.setID(new LocalDocumentID("id"));
+		test.markSynced();
+		test.putContentField("x", 3);
+		test.removeContentField("name");
+
+		assertEquals(SerializationUtils.fromJson(test.modifiedFieldsToJson()),
+				SerializationUtils.fromBson(test.modifiedFieldsToBson()));
+	}
+
 	@Test
 	public void testActionTransfer() throws Exception {
 		LocalDocument ld = new LocalDocument();
@@ -272,6 +298,16 @@ public class LocalDocumentTest {
 		assertTrue("Document created from json should be synced", newFromJson.isSynced());
 	}
 
+	@Test
+	public void testDocumentsStreamedFromJsonEqualDocumentsFromString() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("x", "y");
+		doc.putContentField("list", Arrays.asList(1, 2));
+		LocalDocument streamed = new LocalDocument(new StringReader(doc.toJson()));
+		assertTrue(streamed.isSynced());
+		assertTrue(new LocalDocument(doc.toJson()).isEqual(streamed));
+	}
+
 	@Test
 	public void testCopyOfAnUnsyncedDocumentIsUnsynced() throws Exception {
 		LocalDocument doc = new LocalDocument();
@@ -555,4 +591,37 @@ public class LocalDocumentTest {
 			return prop;
 		}
 	}
+	@Test
+	public void testContent_fields_are_read_when_asked_for() throws JsonException {
+		LocalDocument d = new LocalDocument("{\"contents\":{\"used\":\"value\",\"unused\":1.50,\"empty\":null,\"dotted.name\":1}}");
+		LazyJsonMap content = (LazyJsonMap) d.getContentMap();
+
+		assertEquals("value", d.getContentField("used"));
+		assertTrue(d.hasContentField("unused"));
+		assertFalse(d.hasContentField("empty"));
+		assertEquals(new HashSet<String>(Arrays.asList("used", "unused", "dotted-name")), d.getContentFields());
+		assertFalse(content.isRead("unused"));
+		assertTrue(d.isSynced());
+		assertTrue(d.toJson().contains("1.50"));
+	}
+
+	@Test
+	public void testCopy_shares_no_changes_with_the_original() throws JsonException {
+		LocalDocument d = new LocalDocument("{\"contents\":{\"read\":[1],\"unread\":[2]},\"metadata\":{\"touched\":{\"stage\":\"2013-01-01T00:00:00.000+0000\"}}}");
+		d.appendToContentField("read", 3);
+		d.setAction(Action.ADD);
+
+		LocalDocument copy = new LocalDocument(d);
+		copy.appendToContentField("read", 4);
+		copy.appendToContentField("unread", 5);
+
+		assertEquals(Arrays.asList(1, 3), d.getContentField("read"));
+		assertEquals(Arrays.asList(2), d.getContentField("unread"));
+		assertEquals(Arrays.asList(1, 3, 4), copy.getContentField("read"));
+		assertEquals(Arrays.asList(2, 5), copy.getContentField("unread"));
+		assertEquals(Action.ADD, copy.getAction());
+		assertEquals(d.getMetadataMap(), copy.getMetadataMap());
+		assertTrue(copy.getTouchedContent().contains("read"));
+	}
+
 }
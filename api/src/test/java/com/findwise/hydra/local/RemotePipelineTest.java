@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -22,9 +23,16 @@ import com.findwise.hydra.DocumentFile;
 import com.findwise.hydra.SerializationUtils;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.reset;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -44,6 +52,8 @@ public class RemotePipelineTest {
 
 	@Before
 	public void setUp() {
+		// Stubs and requests are kept between tests otherwise
+		reset();
 		rp = new RemotePipeline(mockHost, mockPort, stageName, false);
 		doc = new LocalDocument();
 		doc.setID(new LocalDocumentID("testdoc"));
@@ -129,6 +139,47 @@ public class RemotePipelineTest {
 		stubFor(get(urlEqualTo(fileUrl)).willReturn(aResponse().withBody(SerializationUtils.toJson(fileMap))));
 	}
 
+	@Test
+	public void testSaveFullRetriesWhenNotAdmitted() throws Exception {
+		String writeUrl = "/" + RemotePipeline.WRITE_DOCUMENT_URL + ".*";
+		stubFor(post(urlMatching(writeUrl)).inScenario("admission").whenScenarioStateIs(Scenario.STARTED)
+				.willReturn(aResponse().withStatus(RemotePipeline.TOO_MANY_REQUESTS).withHeader(RemotePipeline.RETRY_AFTER_HEADER, "0"))
+				.willSetStateTo("admitted"));
+		stubFor(post(urlMatching(writeUrl)).inScenario("admission").whenScenarioStateIs("admitted")
+				.willReturn(aResponse().withBody("{\"_id\":\"inserted\"}")));
+
+		LocalDocument inserted = new LocalDocument();
+		assertTrue(rp.saveFull(inserted));
+		assertEquals(new LocalDocumentID("inserted"), inserted.getID());
+		verify(2, postRequestedFor(urlMatching(writeUrl)));
+	}
+
+	@Test
+	public void testBsonIsOnlySentOnceCoreAnswersInBson() throws Exception {
+		String getUrl = "/" + RemotePipeline.GET_DOCUMENT_URL + ".*";
+		String writeUrl = "/" + RemotePipeline.WRITE_DOCUMENT_URL + ".*";
+		LocalDocument fetched = new LocalDocument();
+		fetched.setID(new LocalDocumentID("fetched"));
+		fetched.putContentField("number", 2L);
+		stubFor(post(urlMatching(getUrl)).willReturn(aResponse()
+				.withHeader("Content-Type", RemotePipeline.BSON_CONTENT_TYPE).withBody(fetched.toBson())));
+		stubFor(post(urlMatching(writeUrl)).willReturn(aResponse().withBody("saved")));
+		rp.setBsonWireFormat(true);
+
+		doc.putContentField("field", "value");
+		assertTrue(rp.save(doc));
+		verify(postRequestedFor(urlMatching(writeUrl)).withHeader("Content-Type", containing("text/plain")));
+
+		LocalDocument ld = rp.getDocument(new LocalQuery());
+		verify(postRequestedFor(urlMatching(getUrl)).withHeader("Accept", equalTo(RemotePipeline.BSON_CONTENT_TYPE)));
+		assertEquals(new LocalDocumentID("fetched"), ld.getID());
+		assertEquals(2L, ld.getContentField("number"));
+
+		ld.putContentField("field", "value");
+		assertTrue(rp.save(ld));
+		verify(postRequestedFor(urlMatching(writeUrl)).withHeader("Content-Type", equalTo(RemotePipeline.BSON_CONTENT_TYPE)));
+	}
+
 	private void documentFileEquals(DocumentFile<Local> expected, DocumentFile<Local> actual) throws IOException {
 		assertEquals(expected, actual);
 		assertTrue(IOUtils.contentEquals(expected.getStream(), actual.getStream()));
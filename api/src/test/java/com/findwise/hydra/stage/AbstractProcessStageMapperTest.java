@@ -7,11 +7,13 @@ import org.junit.rules.ExpectedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -53,6 +55,25 @@ public class AbstractProcessStageMapperTest {
 		AbstractProcessStageMapper.fromJsonString(stagePropertiesJsonString);
 	}
 
+	@Test
+	public void itOnlyReconfiguresWhenNoRestartIsNeeded() throws Exception {
+		Map<String, Object> old = new HashMap<String, Object>();
+		old.put("stageClass", TestStage.class.getName());
+		old.put("nonEssentialField", "a");
+
+		Map<String, Object> changed = new HashMap<String, Object>(old);
+		changed.put("nonEssentialField", "b");
+		assertTrue(AbstractProcessStageMapper.canReconfigure(old, changed));
+
+		Map<String, Object> removed = new HashMap<String, Object>(old);
+		removed.remove("nonEssentialField");
+		assertFalse(AbstractProcessStageMapper.canReconfigure(old, removed));
+
+		Map<String, Object> threads = new HashMap<String, Object>(changed);
+		threads.put("numberOfThreads", 2);
+		assertFalse(AbstractProcessStageMapper.canReconfigure(old, threads));
+	}
+
 	@Stage
 	public static class TestStage extends AbstractProcessStage {
 		@Parameter(required = true)
@@ -0,0 +1,150 @@
+package com.findwise.hydra.stage;
+
+import ch.qos.logback.classic.Level;
+import com.findwise.hydra.Logging;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AsyncStageServiceTest {
+	RemotePipeline rp;
+	AsyncStageService service;
+
+	@Before
+	public void setUp() throws Exception {
+		Logging.setGlobalLoggingLevel(Level.OFF);
+		rp = mock(RemotePipeline.class);
+		when(rp.save(any(LocalDocument.class))).thenReturn(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (service != null) {
+			service.stopAsync().awaitTerminated(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private AsyncStageService buildService(AbstractAsyncProcessStage stage) {
+		service = new AsyncStageService("testStage", new ProcessStageRunner("testStage", stage, rp), stage, rp);
+		return service;
+	}
+
+	@Test
+	public void testSavesDocumentWhenFutureCompletes() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		when(rp.getDocument(any(LocalQuery.class))).thenReturn(doc, (LocalDocument) null);
+
+		buildService(new AbstractAsyncProcessStage() {
+			@Override
+			public ListenableFuture<?> processAsync(LocalDocument document) {
+				return Futures.immediateFuture(null);
+			}
+		}).startAsync();
+
+		verify(rp, timeout(1000)).save(doc);
+		verify(rp, never()).markProcessed(any(LocalDocument.class));
+	}
+
+	@Test
+	public void testMarksOutputDocumentProcessedWhenFutureCompletes() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		when(rp.getDocument(any(LocalQuery.class))).thenReturn(doc, (LocalDocument) null);
+
+		buildService(new AbstractAsyncOutputStage() {
+			@Override
+			public ListenableFuture<?> outputAsync(LocalDocument document) {
+				return Futures.immediateFuture(null);
+			}
+		}).startAsync();
+
+		verify(rp, timeout(1000)).markProcessed(doc);
+		verify(rp, never()).save(any(LocalDocument.class));
+	}
+
+	@Test
+	public void testFailsDocumentWhenFutureFails() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		when(rp.getDocument(any(LocalQuery.class))).thenReturn(doc, (LocalDocument) null);
+
+		buildService(new AbstractAsyncProcessStage() {
+			@Override
+			public ListenableFuture<?> processAsync(LocalDocument document) {
+				return Futures.immediateFailedFuture(new Exception("Stage failed for some reason"));
+			}
+		}).startAsync();
+
+		verify(rp, timeout(1000)).markFailed(eq(doc), any(Exception.class));
+		verify(rp, never()).save(any(LocalDocument.class));
+	}
+
+	@Test
+	public void testFailsAndCancelsDocumentWhenTimeoutExceeded() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		when(rp.getDocument(any(LocalQuery.class))).thenReturn(doc, (LocalDocument) null);
+		final SettableFuture<Object> future = SettableFuture.create();
+
+		AbstractAsyncProcessStage stage = new AbstractAsyncProcessStage() {
+			@Override
+			public ListenableFuture<?> processAsync(LocalDocument document) {
+				return future;
+			}
+		};
+		stage.setProcessingTimeout(10);
+		buildService(stage).startAsync();
+
+		verify(rp, timeout(1000)).markFailed(eq(doc), any(TimeoutException.class));
+		assertTrue(future.isCancelled());
+		assertTrue(service.isRunning());
+	}
+
+	@Test
+	public void testNeverExceedsMaxInFlight() throws Exception {
+		when(rp.getDocument(any(LocalQuery.class))).thenReturn(new LocalDocument());
+		final List<SettableFuture<Object>> pending = new CopyOnWriteArrayList<SettableFuture<Object>>();
+
+		AbstractAsyncProcessStage stage = new AbstractAsyncProcessStage() {
+			@Override
+			public ListenableFuture<?> processAsync(LocalDocument document) {
+				SettableFuture<Object> future = SettableFuture.create();
+				pending.add(future);
+				return future;
+			}
+		};
+		stage.setMaxInFlight(3);
+		buildService(stage).startAsync();
+
+		Thread.sleep(200);
+		assertEquals(3, pending.size());
+		assertEquals(3, service.getInFlight());
+
+		pending.get(0).set(null);
+		verify(rp, timeout(1000)).save(any(LocalDocument.class));
+		Thread.sleep(200);
+		assertEquals(4, pending.size());
+
+		for (SettableFuture<Object> future : pending) {
+			future.set(null);
+		}
+	}
+}
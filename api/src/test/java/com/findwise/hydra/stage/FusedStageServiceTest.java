@@ -0,0 +1,148 @@
+package com.findwise.hydra.stage;
+
+import ch.qos.logback.classic.Level;
+import com.findwise.hydra.Logging;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FusedStageServiceTest {
+	private RemotePipeline first;
+	private RemotePipeline second;
+	private RemotePipeline third;
+	private List<String> processed;
+
+	@Before
+	public void setUp() throws Exception {
+		Logging.setGlobalLoggingLevel(Level.OFF);
+		first = mock(RemotePipeline.class);
+		second = mock(RemotePipeline.class);
+		third = mock(RemotePipeline.class);
+		when(first.save(any(LocalDocument.class), anyListOf(String.class), anyBoolean())).thenReturn(true);
+		processed = new ArrayList<String>();
+	}
+
+	private AbstractProcessStage stage(final String name, LocalQuery query) {
+		AbstractProcessStage stage = new AbstractProcessStage() {
+			@Override
+			public void process(LocalDocument doc) {
+				processed.add(name);
+				doc.putContentField(name, true);
+			}
+		};
+		stage.setQuery(query);
+		return stage;
+	}
+
+	private LocalQuery touchedBy(String stage) {
+		LocalQuery query = new LocalQuery();
+		query.requireTouchedByStage(stage);
+		return query;
+	}
+
+	@Test
+	public void testRunsChainAndSavesOnceOnBehalfOfAllStages() throws Exception {
+		FusedStageService service = new FusedStageService(Arrays.asList(
+				new ProcessStageRunner("a", stage("a", new LocalQuery()), first),
+				new ProcessStageRunner("b", stage("b", touchedBy("a")), second),
+				new ProcessStageRunner("c", stage("c", touchedBy("b")), third)));
+
+		LocalDocument doc = new LocalDocument();
+		service.process(doc);
+
+		assertEquals(Arrays.asList("a", "b", "c"), processed);
+		verify(first).save(doc, Arrays.asList("b", "c"), true);
+		verify(second, never()).save(any(LocalDocument.class), anyListOf(String.class), anyBoolean());
+		verify(third, never()).save(any(LocalDocument.class), anyListOf(String.class), anyBoolean());
+	}
+
+	@Test
+	public void testStopsChainWhenQueryDoesNotMatch() throws Exception {
+		LocalQuery notSecond = new LocalQuery();
+		notSecond.requireContentFieldNotExists("b");
+		FusedStageService service = new FusedStageService(Arrays.asList(
+				new ProcessStageRunner("a", stage("a", new LocalQuery()), first),
+				new ProcessStageRunner("b", stage("b", touchedBy("a")), second),
+				new ProcessStageRunner("c", stage("c", notSecond), third)));
+
+		LocalDocument doc = new LocalDocument();
+		service.process(doc);
+
+		assertEquals(Arrays.asList("a", "b"), processed);
+		verify(first).save(doc, Arrays.asList("b"), true);
+	}
+
+	@Test
+	public void testFailingStageReportsFailure() throws Exception {
+		AbstractProcessStage failing = new AbstractProcessStage() {
+			@Override
+			public void process(LocalDocument doc) throws Exception {
+				throw new Exception("Stage failed for some reason");
+			}
+		};
+		failing.setQuery(touchedBy("a"));
+		FusedStageService service = new FusedStageService(Arrays.asList(
+				new ProcessStageRunner("a", stage("a", new LocalQuery()), first),
+				new ProcessStageRunner("b", failing, second)));
+
+		LocalDocument doc = new LocalDocument();
+		service.process(doc);
+
+		verify(second).markFailed(eq(doc), any(Exception.class));
+		verify(first, never()).save(any(LocalDocument.class), anyListOf(String.class), anyBoolean());
+	}
+
+	@Test
+	public void testOutputStageLastMarksProcessedAfterSave() throws Exception {
+		AbstractOutputStage output = new AbstractOutputStage() {
+			@Override
+			public void output(LocalDocument doc) {
+				processed.add("out");
+			}
+		};
+		output.setQuery(touchedBy("a"));
+		FusedStageService service = new FusedStageService(Arrays.asList(
+				new ProcessStageRunner("a", stage("a", new LocalQuery()), first),
+				new ProcessStageRunner("out", output, second)));
+
+		LocalDocument doc = new LocalDocument();
+		service.process(doc);
+
+		verify(first).save(doc, Collections.<String>emptyList(), false);
+		verify(second).markProcessed(doc);
+	}
+
+	@Test
+	public void testMatchesTreatsChainedStagesAsTouched() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+
+		LocalQuery query = touchedBy("a");
+		query.requireNotTouchedByStage("b");
+		query.requireContentFieldEquals("field", "value");
+
+		assertTrue(FusedStageService.matches(query, doc, new HashSet<String>(Arrays.asList("a"))));
+		assertFalse(FusedStageService.matches(query, doc, new HashSet<String>()));
+		assertFalse(FusedStageService.matches(query, doc, new HashSet<String>(Arrays.asList("a", "b"))));
+	}
+}
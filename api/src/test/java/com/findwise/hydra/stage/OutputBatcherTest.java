@@ -0,0 +1,131 @@
+package com.findwise.hydra.stage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class OutputBatcherTest {
+	private TestBatcher batcher;
+
+	@After
+	public void tearDown() throws Exception {
+		if (batcher != null) {
+			batcher.close(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testBatchIsSentWhenFull() throws Exception {
+		batcher = new TestBatcher(3, 0, 0);
+		ListenableFuture<?> first = batcher.add("a", 1);
+		batcher.add("b", 1);
+		assertFalse(first.isDone());
+		assertEquals(2, batcher.getPending());
+
+		batcher.add("c", 1).get(1, TimeUnit.SECONDS);
+		assertTrue(first.isDone());
+		assertEquals(oneBatch("a", "b", "c"), batcher.sent);
+	}
+
+	@Test
+	public void testBatchIsSentWhenLargeEnough() throws Exception {
+		batcher = new TestBatcher(100, 1000, 0);
+		batcher.add("a", 600);
+		batcher.add("b", 600).get(1, TimeUnit.SECONDS);
+		assertEquals(oneBatch("a", "b"), batcher.sent);
+	}
+
+	@Test
+	public void testBatchIsSentAfterFlushInterval() throws Exception {
+		batcher = new TestBatcher(100, 0, 50);
+		batcher.add("a", 1).get(1, TimeUnit.SECONDS);
+		assertEquals(oneBatch("a"), batcher.sent);
+	}
+
+	@Test
+	public void testFailedBatchIsBisected() throws Exception {
+		batcher = new TestBatcher(4, 0, 0);
+		batcher.reject = "c";
+		List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+		for (String s : new String[] { "a", "b", "c", "d" }) {
+			futures.add(batcher.add(s, 1));
+		}
+
+		futures.get(0).get(1, TimeUnit.SECONDS);
+		futures.get(1).get(1, TimeUnit.SECONDS);
+		futures.get(3).get(1, TimeUnit.SECONDS);
+		try {
+			futures.get(2).get(1, TimeUnit.SECONDS);
+			fail("Rejected item did not fail");
+		} catch (ExecutionException e) {
+			assertEquals("c", e.getCause().getMessage());
+		}
+		assertTrue(batcher.sent.contains(Arrays.asList("a", "b")));
+		assertTrue(batcher.sent.contains(Arrays.asList("d")));
+	}
+
+	@Test
+	public void testUnavailableTargetFailsWholeBatch() throws Exception {
+		batcher = new TestBatcher(2, 0, 0);
+		batcher.available = false;
+		List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+		futures.add(batcher.add("a", 1));
+		futures.add(batcher.add("b", 1));
+		for (ListenableFuture<?> f : futures) {
+			try {
+				f.get(1, TimeUnit.SECONDS);
+				fail("Item did not fail");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		}
+		assertEquals(0, batcher.sent.size());
+		assertEquals(1, batcher.attempts);
+	}
+
+	private static List<List<String>> oneBatch(String... items) {
+		return Collections.singletonList(Arrays.asList(items));
+	}
+
+	private static class TestBatcher extends OutputBatcher<String> {
+		private final List<List<String>> sent = new CopyOnWriteArrayList<List<String>>();
+		private volatile String reject;
+		private volatile boolean available = true;
+		private volatile int attempts = 0;
+
+		TestBatcher(int maxItems, long maxBytes, long flushInterval) {
+			super(maxItems, maxBytes, flushInterval, 1);
+		}
+
+		@Override
+		protected void send(List<String> items) throws Exception {
+			attempts++;
+			if (!available) {
+				throw new IllegalStateException("unavailable");
+			}
+			if (items.contains(reject)) {
+				throw new IllegalArgumentException(reject);
+			}
+			sent.add(new ArrayList<String>(items));
+		}
+
+		@Override
+		protected boolean shouldBisect(Exception e) {
+			return e instanceof IllegalArgumentException;
+		}
+	}
+}
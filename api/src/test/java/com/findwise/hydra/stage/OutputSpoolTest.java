@@ -0,0 +1,302 @@
+package com.findwise.hydra.stage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class OutputSpoolTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private TestSpool spool;
+
+	@Before
+	public void setUp() throws Exception {
+		file = new File(folder.getRoot(), "output.spool");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (spool != null) {
+			spool.close();
+		}
+	}
+
+	private TestSpool open() throws IOException {
+		spool = new TestSpool(file);
+		spool.setRetryInterval(10, 40);
+		spool.setFailureThreshold(2);
+		return spool;
+	}
+
+	private static LocalDocument doc(String name) {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("name", name);
+		return doc;
+	}
+
+	private void add(String... names) throws IOException {
+		for (String name : names) {
+			spool.add(doc(name));
+		}
+	}
+
+	private void awaitDelivered(int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		// Documents are sent before they are counted as delivered
+		while ((spool.delivered.size() < count || spool.getDepth() > 0) && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, spool.delivered.size());
+	}
+
+	@Test
+	public void testDocumentsAreDeliveredInOrder() throws Exception {
+		open().start();
+		add("a", "b", "c");
+
+		awaitDelivered(3);
+		assertEquals(Arrays.asList("a", "b", "c"), spool.delivered);
+		assertEquals(0, spool.getDepth());
+		assertEquals(0, spool.getAge());
+	}
+
+	@Test
+	public void testDocumentsAreQueuedWhileTargetIsDown() throws Exception {
+		open().available = false;
+		spool.start();
+		add("a", "b", "c");
+		assertEquals(3, spool.getDepth());
+
+		long end = System.currentTimeMillis() + 5000;
+		while (spool.getState() != OutputSpool.State.OPEN && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(OutputSpool.State.OPEN, spool.getState());
+		assertEquals(3, spool.getDepth());
+		assertTrue(spool.getAge() > 0);
+		assertEquals(0, spool.delivered.size());
+
+		spool.available = true;
+		awaitDelivered(3);
+		assertEquals(Arrays.asList("a", "b", "c"), spool.delivered);
+		assertEquals(OutputSpool.State.CLOSED, spool.getState());
+		assertEquals(0, spool.getDepth());
+	}
+
+	@Test
+	public void testRejectedDocumentIsDropped() throws Exception {
+		open().reject = "b";
+		spool.start();
+		add("a", "b", "c");
+
+		awaitDelivered(2);
+		assertEquals(Arrays.asList("a", "c"), spool.delivered);
+		assertEquals(0, spool.getDepth());
+	}
+
+	@Test
+	public void testQueuedDocumentsSurviveRestart() throws Exception {
+		open().start();
+		add("a");
+		awaitDelivered(1);
+		spool.available = false;
+		add("b", "c");
+		spool.close();
+
+		open();
+		assertEquals(2, spool.getDepth());
+		spool.start();
+		awaitDelivered(2);
+		assertEquals(Arrays.asList("b", "c"), spool.delivered);
+	}
+
+	@Test
+	public void testFileIsEmptiedOnceDelivered() throws Exception {
+		open().start();
+		add("a", "b");
+		awaitDelivered(2);
+
+		long end = System.currentTimeMillis() + 5000;
+		while (spool.getSize() > 0 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, spool.getSize());
+
+		add("c");
+		awaitDelivered(3);
+	}
+
+	@Test
+	public void testRecordCutShortByCrashIsIgnored() throws Exception {
+		open();
+		add("a");
+		long size = spool.getSize();
+		spool.close();
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		// The start of a record of 1000 bytes
+		out.write(new byte[] { 0, 0, 3, (byte) 232, 1, 2, 3, 4, 5, 6 });
+		out.close();
+
+		open();
+		assertEquals(size, spool.getSize());
+		assertEquals(1, spool.getDepth());
+		spool.start();
+		awaitDelivered(1);
+	}
+
+	@Test
+	public void testRetryDelayDoublesUpToMax() throws Exception {
+		open();
+		assertEquals(0, spool.getRetryDelay());
+		spool.available = false;
+		spool.start();
+		add("a");
+
+		long end = System.currentTimeMillis() + 5000;
+		while (spool.getRetryDelay() < 40 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(40, spool.getRetryDelay());
+	}
+
+	@Test
+	public void testOutputStageDeliversBacklogOnStartAndClosesOnStop() throws Exception {
+		open();
+		add("a", "b");
+		spool.close();
+		spool = null;
+
+		final List<String> output = new CopyOnWriteArrayList<String>();
+		AbstractOutputStage stage = new AbstractOutputStage() {
+			@Override
+			public void output(LocalDocument document) {
+				output.add((String) document.getContentField("name"));
+			}
+		};
+		stage.setSpoolFile(file.getPath());
+		stage.start();
+		long end = System.currentTimeMillis() + 5000;
+		while (output.size() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList("a", "b"), output);
+
+		stage.stop();
+		// The file is no longer locked
+		open().close();
+		spool = null;
+	}
+
+	@Test
+	public void testSpoolInUseInThisJvmCanNotBeOpenedAgain() throws Exception {
+		open();
+		try {
+			new TestSpool(file);
+			fail("Expected the spool to be locked");
+		} catch (IOException e) {
+			// Expected
+		}
+		add("a");
+		spool.start();
+		awaitDelivered(1);
+
+		spool.close();
+		// Nothing was left holding the file
+		open().close();
+		spool = null;
+	}
+
+	@Test
+	public void testEachInstanceSpoolsToItsOwnFile() throws Exception {
+		assertEquals(new File("output.spool"), StageSpool.getFile("output.spool"));
+		System.setProperty(RemotePipeline.INSTANCE_PROPERTY, "2");
+		try {
+			assertEquals(new File("output.spool.2"), StageSpool.getFile("output.spool"));
+		} finally {
+			System.clearProperty(RemotePipeline.INSTANCE_PROPERTY);
+		}
+	}
+
+	@Test
+	public void testOutputStageAbandonsOutputPastProcessingTimeout() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean hung = new AtomicBoolean();
+		final List<String> output = new CopyOnWriteArrayList<String>();
+		AbstractOutputStage stage = new AbstractOutputStage() {
+			@Override
+			public void output(LocalDocument document) throws Exception {
+				if (hung.compareAndSet(false, true)) {
+					release.await();
+				}
+				output.add((String) document.getContentField("name"));
+			}
+		};
+		stage.setSpoolFile(file.getPath());
+		stage.setProcessingTimeout(50);
+		try {
+			stage.start();
+			stage.process(doc("a"));
+			stage.process(doc("b"));
+			long end = System.currentTimeMillis() + 5000;
+			while (output.size() < 2 && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			// The hung output of a was abandoned and a sent again
+			assertEquals(Arrays.asList("a", "b"), output);
+		} finally {
+			release.countDown();
+			stage.stop();
+		}
+	}
+
+	private static class TestSpool extends OutputSpool {
+		private final List<String> delivered = new CopyOnWriteArrayList<String>();
+		private volatile boolean available = true;
+		private volatile String reject;
+
+		TestSpool(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		protected ListenableFuture<?> send(LocalDocument document) {
+			String name = (String) document.getContentField("name");
+			if (!available) {
+				return Futures.immediateFailedFuture(new IllegalStateException("unavailable"));
+			}
+			if (name.equals(reject)) {
+				return Futures.immediateFailedFuture(new IllegalArgumentException(name));
+			}
+			delivered.add(name);
+			return Futures.immediateFuture(null);
+		}
+
+		@Override
+		protected boolean shouldRetry(Throwable failure) {
+			return !(failure instanceof IllegalArgumentException);
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.junit.rules.ExpectedException;
 
 import java.util.concurrent.TimeoutException;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
@@ -92,4 +93,115 @@ public class ProcessStageRunnerTest {
 		// rethrow the TimeoutException.
 		stageRunner.performProcessing(mock(LocalDocument.class));
 	}
+
+	@Test
+	public void testApplyChangedProperties_reconfigures_stage_without_restart() throws Exception {
+		ReconfigurableStage stage = new ReconfigurableStage();
+		ProcessStageRunner stageRunner = buildStageRunner(stage);
+		when(rp.getStageProperties()).thenReturn(properties("first"));
+		stageRunner.applyChangedProperties();
+		assertEquals(0, stage.initCount);
+
+		when(rp.getStageProperties()).thenReturn(properties("second"));
+		stageRunner.applyChangedProperties();
+		assertEquals("second", stage.value);
+		assertEquals(1, stage.initCount);
+
+		stageRunner.applyChangedProperties();
+		assertEquals(1, stage.initCount);
+	}
+
+	@Test
+	public void testApplyChangedProperties_leaves_restart_properties_to_core() throws Exception {
+		ReconfigurableStage stage = new ReconfigurableStage();
+		ProcessStageRunner stageRunner = buildStageRunner(stage);
+		when(rp.getStageProperties()).thenReturn(properties("first"));
+		stageRunner.applyChangedProperties();
+
+		when(rp.getStageProperties()).thenReturn("{stageClass: \"" + ReconfigurableStage.class.getName() + "\", value: \"first\", numberOfThreads: 4}");
+		stageRunner.applyChangedProperties();
+		assertEquals(0, stage.initCount);
+	}
+
+	@Test
+	public void testApplyChangedProperties_stops_and_starts_started_stage() throws Exception {
+		ReconfigurableStage stage = new ReconfigurableStage();
+		ProcessStageRunner stageRunner = buildStageRunner(stage);
+		stageRunner.startProcessing();
+		when(rp.getStageProperties()).thenReturn(properties("first"));
+		stageRunner.applyChangedProperties();
+
+		when(rp.getStageProperties()).thenReturn(properties("second"));
+		stageRunner.applyChangedProperties();
+		assertEquals(1, stage.stopCount);
+		assertEquals(1, stage.initCount);
+		assertEquals(2, stage.startCount);
+	}
+
+	@Test
+	public void testApplyChangedProperties_is_postponed_while_documents_are_in_flight() throws Exception {
+		ReconfigurableStage stage = new ReconfigurableStage();
+		ProcessStageRunner stageRunner = buildStageRunner(stage);
+		ProcessStageRunner.Quiescer quiescer = mock(ProcessStageRunner.Quiescer.class);
+		stageRunner.setQuiescer(quiescer);
+		when(rp.getStageProperties()).thenReturn(properties("first"));
+		stageRunner.applyChangedProperties();
+
+		when(rp.getStageProperties()).thenReturn(properties("second"));
+		stageRunner.applyChangedProperties();
+		assertEquals(0, stage.initCount);
+		verify(quiescer, never()).resume();
+
+		when(quiescer.quiesce()).thenReturn(true);
+		stageRunner.applyChangedProperties();
+		assertEquals("second", stage.value);
+		assertEquals(1, stage.initCount);
+		verify(quiescer).resume();
+	}
+
+	@Test
+	public void testShutdownProcessing_stops_stage_once_last_service_stops() throws Exception {
+		ReconfigurableStage stage = new ReconfigurableStage();
+		ProcessStageRunner stageRunner = buildStageRunner(stage);
+		stageRunner.startProcessing();
+		stageRunner.startProcessing();
+
+		stageRunner.shutdownProcessing();
+		assertEquals(0, stage.stopCount);
+
+		stageRunner.shutdownProcessing();
+		assertEquals(1, stage.stopCount);
+	}
+
+	private String properties(String value) {
+		return "{stageClass: \"" + ReconfigurableStage.class.getName() + "\", value: \"" + value + "\"}";
+	}
+
+	@Stage
+	public static class ReconfigurableStage extends AbstractProcessStage {
+		@Parameter
+		String value;
+
+		int initCount = 0;
+		int startCount = 0;
+		int stopCount = 0;
+
+		@Override
+		public void init() {
+			initCount++;
+		}
+
+		@Override
+		public void start() {
+			startCount++;
+		}
+
+		@Override
+		public void stop() {
+			stopCount++;
+		}
+
+		@Override
+		public void process(LocalDocument doc) {}
+	}
 }
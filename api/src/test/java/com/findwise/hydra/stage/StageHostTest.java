@@ -0,0 +1,49 @@
+package com.findwise.hydra.stage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StageHostTest {
+	private ByteArrayOutputStream events;
+	private StageHost host;
+
+	@Before
+	public void setUp() throws Exception {
+		events = new ByteArrayOutputStream();
+		// Nothing listens on this port, so no group can be started
+		host = new StageHost("localhost", 1, false, new PrintStream(events, true, "UTF-8"));
+	}
+
+	private String getEvents() throws Exception {
+		return events.toString("UTF-8").trim();
+	}
+
+	@Test
+	public void testGroupThatCannotStartIsReportedAsFailed() throws Exception {
+		host.handle(StageHost.START_COMMAND + " group /no/such/library.jar");
+
+		assertEquals(StageHost.EVENT_PREFIX + StageHost.FAILED_EVENT + " group", getEvents());
+		assertFalse(host.isRunning("group"));
+	}
+
+	@Test
+	public void testStoppingUnknownGroupIsReportedAsStopped() throws Exception {
+		host.stop("group");
+
+		assertEquals(StageHost.EVENT_PREFIX + StageHost.STOPPED_EVENT + " group", getEvents());
+	}
+
+	@Test
+	public void testUnknownCommandIsIgnored() throws Exception {
+		host.handle("restart group");
+		host.stopAll();
+
+		assertEquals("", getEvents());
+	}
+}
@@ -0,0 +1,283 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the stage agents that have registered with core, and of
+ * which stage groups have been placed on which agent.
+ * <p/>
+ * Agents poll core with a heartbeat, reporting the state of the groups they
+ * run, and get the groups assigned to them in return. An agent that has not
+ * been heard from within the agent timeout is considered lost, and its groups
+ * are placed on other agents. New groups are placed on the agent running the
+ * fewest groups, unless the group names an agent of its own.
+ */
+public class AgentRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(AgentRegistry.class);
+
+	public static final long DEFAULT_AGENT_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+
+	/**
+	 * The value of {@link StageGroup#AGENT_KEY} that lets core pick any agent
+	 */
+	public static final String ANY_AGENT = "*";
+
+	public static final String ID_KEY = "id";
+	public static final String GROUP_KEY = "group";
+	public static final String FILES_KEY = "files";
+	public static final String JAVA_KEY = "java";
+	public static final String JVM_PARAMETERS_KEY = "jvm_parameters";
+	public static final String PERFORMANCE_LOGGING_KEY = "performance_logging";
+	public static final String LOGGING_PORT_KEY = "logging_port";
+	public static final String VIRTUAL_THREADS_KEY = "virtual_threads";
+	public static final String WIRE_FORMAT_KEY = "wire_format";
+	public static final String COMPRESSION_KEY = "compression";
+
+	public static final String RUNNING = "running";
+	public static final String FAILED = "failed";
+
+	private final long agentTimeout;
+	private final Map<String, Agent> agents = new HashMap<String, Agent>();
+	private final Map<String, Assignment> assignments = new HashMap<String, Assignment>();
+	private long nextAssignmentId = 0;
+
+	public AgentRegistry() {
+		this(DEFAULT_AGENT_TIMEOUT);
+	}
+
+	public AgentRegistry(long agentTimeout) {
+		this.agentTimeout = agentTimeout;
+	}
+
+	/**
+	 * Records a heartbeat from an agent, registering it if it is new.
+	 *
+	 * @param status the state of the groups running on the agent, by assignment
+	 * ID, so that a failure of an earlier run of a group is not mistaken for a
+	 * failure of the current one
+	 * @return the groups assigned to the agent
+	 */
+	public synchronized List<Map<String, Object>> heartbeat(String agentName, String address, Map<String, String> status) {
+		Agent agent = agents.get(agentName);
+		if (agent == null) {
+			logger.info("Stage agent " + agentName + " registered from " + address);
+			agent = new Agent(agentName);
+			agents.put(agentName, agent);
+		}
+		agent.address = address;
+		agent.lastSeen = System.currentTimeMillis();
+
+		for (Assignment assignment : new ArrayList<Assignment>(assignments.values())) {
+			if (agentName.equals(assignment.agent) && FAILED.equals(status.get(assignment.id))) {
+				logger.error("Stage group " + assignment.group + " failed on agent " + agentName);
+				end(assignment, false);
+			}
+		}
+		expireAgents();
+		notifyAll();
+
+		List<Map<String, Object>> assigned = new ArrayList<Map<String, Object>>();
+		for (Assignment assignment : assignments.values()) {
+			if (agentName.equals(assignment.agent)) {
+				assigned.add(assignment.toMap());
+			}
+		}
+		return assigned;
+	}
+
+	/**
+	 * Places a group on an agent, waiting for a suitable agent to register if
+	 * there is none.
+	 *
+	 * @return the name of the agent that the group was placed on
+	 */
+	public synchronized String assign(StageGroup group, List<File> files, String java, String jvmParameters, boolean performanceLogging, int loggingPort) throws InterruptedException {
+		Assignment assignment = new Assignment(Long.toString(nextAssignmentId++), group, files, java, jvmParameters, performanceLogging, loggingPort);
+		assignments.put(group.getName(), assignment);
+		String wanted = group.getAgent();
+		while (assignments.get(group.getName()) == assignment) {
+			expireAgents();
+			Agent agent = pickAgent(wanted);
+			if (agent != null) {
+				assignment.agent = agent.name;
+				logger.info("Placed stage group " + group.getName() + " on agent " + agent.name + " (" + agent.address + ")");
+				return agent.name;
+			}
+			wait(1000);
+		}
+		return null;
+	}
+
+	private Agent pickAgent(String wanted) {
+		Agent best = null;
+		int fewest = Integer.MAX_VALUE;
+		for (Agent agent : agents.values()) {
+			if (!ANY_AGENT.equals(wanted) && !agent.name.equals(wanted)) {
+				continue;
+			}
+			int running = countAssignments(agent.name);
+			if (running < fewest) {
+				best = agent;
+				fewest = running;
+			}
+		}
+		return best;
+	}
+
+	private int countAssignments(String agentName) {
+		int count = 0;
+		for (Assignment assignment : assignments.values()) {
+			if (agentName.equals(assignment.agent)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Waits for a group placed by {@link #assign} to stop running, either
+	 * because it failed, its agent was lost or it was unassigned.
+	 *
+	 * @return true if the group was unassigned, false otherwise
+	 */
+	public synchronized boolean awaitGroup(String group) throws InterruptedException {
+		Assignment assignment = assignments.get(group);
+		if (assignment == null) {
+			return false;
+		}
+		while (!assignment.ended) {
+			expireAgents();
+			wait(1000);
+		}
+		return assignment.unassigned;
+	}
+
+	/**
+	 * Removes a group from its agent, which stops it on its next heartbeat.
+	 */
+	public synchronized void unassign(String group) {
+		Assignment assignment = assignments.get(group);
+		if (assignment != null) {
+			end(assignment, true);
+		}
+	}
+
+	/**
+	 * @return the library file of a group with the given name, if the group is
+	 * assigned to the agent
+	 */
+	public synchronized File getFile(String agentName, String group, String fileName) {
+		Assignment assignment = assignments.get(group);
+		if (assignment == null || !agentName.equals(assignment.agent)) {
+			return null;
+		}
+		for (File f : assignment.files) {
+			if (f.getName().equals(fileName)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	public synchronized String getAgent(String group) {
+		Assignment assignment = assignments.get(group);
+		return (assignment == null) ? null : assignment.agent;
+	}
+
+	public synchronized List<String> getAgents() {
+		expireAgents();
+		return new ArrayList<String>(agents.keySet());
+	}
+
+	private void end(Assignment assignment, boolean unassigned) {
+		assignment.ended = true;
+		assignment.unassigned = unassigned;
+		if (assignments.get(assignment.group) == assignment) {
+			assignments.remove(assignment.group);
+		}
+		notifyAll();
+	}
+
+	private void expireAgents() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Agent> it = agents.values().iterator(); it.hasNext();) {
+			Agent agent = it.next();
+			if (now - agent.lastSeen > agentTimeout) {
+				logger.error("Lost contact with stage agent " + agent.name + " (" + agent.address + ")");
+				it.remove();
+				for (Assignment assignment : new ArrayList<Assignment>(assignments.values())) {
+					if (agent.name.equals(assignment.agent)) {
+						end(assignment, false);
+					}
+				}
+			}
+		}
+	}
+
+	private static class Agent {
+		private final String name;
+		private String address;
+		private long lastSeen;
+
+		public Agent(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class Assignment {
+		private final String id;
+		private final String group;
+		private final List<File> files;
+		private final String java;
+		private final String jvmParameters;
+		private final boolean performanceLogging;
+		private final int loggingPort;
+		private final boolean virtualThreads;
+		private final String wireFormat;
+		private final String compression;
+		private String agent;
+		private boolean ended = false;
+		private boolean unassigned = false;
+
+		public Assignment(String id, StageGroup group, List<File> files, String java, String jvmParameters, boolean performanceLogging, int loggingPort) {
+			this.id = id;
+			this.group = group.getName();
+			this.files = files;
+			this.java = java;
+			this.jvmParameters = jvmParameters;
+			this.performanceLogging = performanceLogging;
+			this.loggingPort = loggingPort;
+			virtualThreads = group.isVirtualThreads();
+			wireFormat = group.getWireFormat();
+			compression = group.getCompression();
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put(ID_KEY, id);
+			map.put(GROUP_KEY, group);
+			List<String> fileNames = new ArrayList<String>();
+			for (File f : files) {
+				fileNames.add(f.getName());
+			}
+			map.put(FILES_KEY, fileNames);
+			map.put(JAVA_KEY, java);
+			map.put(JVM_PARAMETERS_KEY, jvmParameters);
+			map.put(PERFORMANCE_LOGGING_KEY, performanceLogging);
+			map.put(LOGGING_PORT_KEY, loggingPort);
+			map.put(VIRTUAL_THREADS_KEY, virtualThreads);
+			map.put(WIRE_FORMAT_KEY, wireFormat);
+			map.put(COMPRESSION_KEY, compression);
+			return map;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the class data sharing archives of stage groups. An archive holds the
+ * classes loaded by a run of a group, already parsed and verified, so that
+ * later runs of the group start without doing that work again.
+ * <p/>
+ * Archives are keyed by a hash of the java executable and the names, sizes
+ * and modification times of the libraries of the group, which are set from
+ * their upload dates, so an archive is reused across restarts and pipeline
+ * changes for as long as the libraries stay the same. There is no archive until
+ * a run of the group has exited; that run is launched with the JVM option that
+ * writes it.
+ * <p/>
+ * Dynamic archives need Java 13 or later. Older JVMs are detected once per
+ * java executable, in the background, and their groups are launched as before.
+ */
+public class ClassDataSharing {
+	private static final Logger logger = LoggerFactory.getLogger(ClassDataSharing.class);
+
+	public static final String ARCHIVE_SUFFIX = ".jsa";
+
+	private static final long PROBE_TIMEOUT = 30000;
+	private static final Map<String, FutureTask<Boolean>> probes = new HashMap<String, FutureTask<Boolean>>();
+
+	private final File directory;
+
+	/**
+	 * @param directory where the archives are kept. Must not be a directory
+	 * that is deleted when a group stops, or the archives would never be reused
+	 */
+	public ClassDataSharing(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Gets the archive of the group, whether it exists yet or not, and deletes
+	 * any archive of the group built from other libraries.
+	 */
+	public File getArchive(String group, String java, List<File> files) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create archive directory " + directory.getAbsolutePath());
+		}
+		String name = group + "-" + hash(java, files) + ARCHIVE_SUFFIX;
+		File[] existing = directory.listFiles();
+		if (existing != null) {
+			for (File f : existing) {
+				if (isArchiveOf(group, f.getName()) && !f.getName().equals(name)) {
+					logger.debug("Deleting stale class data sharing archive " + f.getName());
+					FileUtils.deleteQuietly(f);
+				}
+			}
+		}
+		return new File(directory, name);
+	}
+
+	private static boolean isArchiveOf(String group, String fileName) {
+		// The hash is 40 hex characters, telling "a-<hash>.jsa" apart from "a-b-<hash>.jsa"
+		return fileName.startsWith(group + "-")
+				&& fileName.endsWith(ARCHIVE_SUFFIX)
+				&& fileName.length() == group.length() + 1 + 40 + ARCHIVE_SUFFIX.length();
+	}
+
+	/**
+	 * @return the JVM options that use the archive, or null if it does not
+	 * exist yet
+	 */
+	public static List<String> getUseArguments(File archive) {
+		if (!archive.isFile() || archive.length() == 0) {
+			return null;
+		}
+		List<String> args = new ArrayList<String>();
+		args.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+		// An archive that the JVM can not use, such as one left incomplete, is ignored rather than fatal
+		args.add("-Xshare:auto");
+		return args;
+	}
+
+	/**
+	 * @return the JVM option that writes the classes loaded by the JVM to the
+	 * given file when the JVM exits
+	 */
+	public static String getCreateArgument(File file) {
+		return "-XX:ArchiveClassesAtExit=" + file.getAbsolutePath();
+	}
+
+	/**
+	 * Whether the given java executable supports dynamic archives, found by
+	 * launching it once with the option that creates one. Waits for that launch
+	 * to finish, should it not have yet.
+	 */
+	public static boolean isSupported(String java) {
+		try {
+			return getProbe(java).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Like {@link #isSupported(String)}, but does not wait for the java
+	 * executable to be probed, so that groups do not wait for it to start.
+	 *
+	 * @return false until the probe has finished, in which case the group starts
+	 * without an archive this once
+	 */
+	public static boolean isKnownToBeSupported(String java) {
+		FutureTask<Boolean> probe = getProbe(java);
+		return probe.isDone() && isSupported(java);
+	}
+
+	private static FutureTask<Boolean> getProbe(final String java) {
+		synchronized (probes) {
+			FutureTask<Boolean> probe = probes.get(java);
+			if (probe == null) {
+				probe = new FutureTask<Boolean>(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						boolean result = probe(java);
+						if (!result) {
+							logger.info("The JVM " + java + " does not support class data sharing archives, stage groups will start without them");
+						}
+						return result;
+					}
+				});
+				probes.put(java, probe);
+				Thread thread = new Thread(probe, "ClassDataSharing-probe");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return probe;
+		}
+	}
+
+	private static boolean probe(String java) {
+		File file = null;
+		try {
+			file = File.createTempFile("hydra-cds-probe", ARCHIVE_SUFFIX);
+			FileUtils.deleteQuietly(file);
+			CommandLine cmdLine = new CommandLine(java);
+			cmdLine.addArgument(getCreateArgument(file));
+			cmdLine.addArgument("-version");
+			DefaultExecutor executor = new DefaultExecutor();
+			executor.setStreamHandler(new PumpStreamHandler(new NullOutputStream()));
+			executor.setWatchdog(new ExecuteWatchdog(PROBE_TIMEOUT));
+			executor.setExitValues(null);
+			return executor.execute(cmdLine) == 0;
+		} catch (IOException e) {
+			logger.debug("Unable to probe " + java + " for class data sharing support", e);
+			return false;
+		} finally {
+			FileUtils.deleteQuietly(file);
+		}
+	}
+
+	/**
+	 * Hashes the metadata of the libraries rather than their contents, which
+	 * would mean reading all of them every time a group is prepared.
+	 */
+	private static String hash(String java, List<File> files) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(java.getBytes("UTF-8"));
+		List<File> sorted = new ArrayList<File>(files);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		for (File f : sorted) {
+			digest.update((f.getName() + ":" + f.length() + ":" + f.lastModified() + "\n").getBytes("UTF-8"));
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
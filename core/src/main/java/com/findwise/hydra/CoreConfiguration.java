@@ -6,8 +6,23 @@ public interface CoreConfiguration extends DatabaseConfiguration {
     static final int DEFAULT_LOGGING_PORT = 12002;
 	static final String USE_CACHE = "core.cache.enabled";
 	static final String CACHE_TIMEOUT = "core.cache.timeout";
+	static final String CACHE_TYPE = "core.cache.type";
+	static final String CACHE_OFFHEAP_SIZE = "core.cache.offheap.size";
+	static final String MEMORY_CACHE = "memory";
+	static final String OFFHEAP_CACHE = "offheap";
+	static final int DEFAULT_CACHE_OFFHEAP_SIZE = 256;
+	static final String CACHE_JOURNAL = "core.cache.journal";
+	static final String CACHE_JOURNAL_SYNC_INTERVAL = "core.cache.journal.sync_interval";
 	static final String PIPELINE_POLLING_INTERVAL = "core.polling_interval";
 	static final String COMMUNICATION_PORT_PARAM = "core.communication_port";
+	static final String DRAIN_TIMEOUT = "core.drain_timeout";
+	static final String ADMISSION_MAX_DOCUMENTS = "core.admission.max_documents";
+	static final String ADMISSION_MAX_LATENCY = "core.admission.max_latency";
+	static final String ADMISSION_MAX_CACHED = "core.admission.max_cached";
+	static final String ADMISSION_RETRY_AFTER = "core.admission.retry_after";
+	static final int DEFAULT_ADMISSION_RETRY_AFTER = 1;
+	static final String HTTP_COMPRESSION = "core.http.compression";
+	static final String HTTP_COMPRESSION_THRESHOLD = "core.http.compression.threshold";
 	
 	int getRestPort();
 
@@ -18,6 +33,73 @@ public interface CoreConfiguration extends DatabaseConfiguration {
 	boolean isCacheEnabled();
 	
 	int getCacheTimeout();
+	
+	/**
+	 * @return where the cache keeps documents: {@value #MEMORY_CACHE}, as
+	 * objects on the heap, or {@value #OFFHEAP_CACHE}, serialized outside of
+	 * it
+	 */
+	String getCacheType();
+	
+	/**
+	 * @return the most memory, in megabytes, an off-heap cache uses
+	 */
+	int getCacheOffHeapSize();
+	
+	/**
+	 * @return the file changes to cached documents are logged to, so they
+	 * survive a crash, or null for none
+	 */
+	String getCacheJournal();
+	
+	/**
+	 * @return how often, in milliseconds, the cache journal is forced to
+	 * disk, or 0 for every change
+	 */
+	int getCacheJournalSyncInterval();
+	
+	/**
+	 * @return how long, in milliseconds, a stage group that is stopped gets to
+	 * persist the documents it is working on
+	 */
+	int getDrainTimeout();
+	
+	/**
+	 * @return the number of active documents above which new documents are
+	 * not admitted, or 0 for no limit
+	 */
+	long getAdmissionMaxDocuments();
+	
+	/**
+	 * @return the average database write latency, in milliseconds, above
+	 * which new documents are not admitted, or 0 for no limit
+	 */
+	int getAdmissionMaxLatency();
+	
+	/**
+	 * @return the number of cached documents above which new documents are
+	 * not admitted, or 0 for no limit
+	 */
+	int getAdmissionMaxCached();
+	
+	/**
+	 * @return the seconds producers are told to wait before sending a document
+	 * that was not admitted again
+	 */
+	int getAdmissionRetryAfter();
+	
+	/**
+	 * @return how bodies sent over HTTP to stages that accept it are
+	 * compressed: {@value com.findwise.tools.HttpCompression#DEFAULT},
+	 * {@value com.findwise.tools.HttpCompression#FAST} or
+	 * {@value com.findwise.tools.HttpCompression#NONE}
+	 */
+	String getHttpCompression();
+	
+	/**
+	 * @return the size, in bytes, below which bodies are not compressed
+	 */
+	int getHttpCompressionThreshold();
 
     int getLoggingPort();
 }
@@ -2,6 +2,7 @@ package com.findwise.hydra;
 
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.mongodb.MongoConfiguration;
+import com.findwise.tools.HttpCompression;
 
 public class CoreMapConfiguration implements CoreConfiguration, Configuration {
 
@@ -99,6 +100,99 @@ public class CoreMapConfiguration implements CoreConfiguration, Configuration {
 	public void setCacheTimeout(int timeout) {
 		setParameter(CACHE_TIMEOUT, ""+timeout);
 	}
+	
+	public String getCacheType() {
+		return getParameter(CACHE_TYPE, MEMORY_CACHE);
+	}
+	
+	public void setCacheType(String type) {
+		setParameter(CACHE_TYPE, type);
+	}
+	
+	public int getCacheOffHeapSize() {
+		return Integer.parseInt(getParameter(CACHE_OFFHEAP_SIZE, ""
+				+ DEFAULT_CACHE_OFFHEAP_SIZE));
+	}
+	
+	public void setCacheOffHeapSize(int megabytes) {
+		setParameter(CACHE_OFFHEAP_SIZE, ""+megabytes);
+	}
+	
+	public String getCacheJournal() {
+		return getParameter(CACHE_JOURNAL, null);
+	}
+	
+	public void setCacheJournal(String file) {
+		setParameter(CACHE_JOURNAL, file);
+	}
+	
+	public int getCacheJournalSyncInterval() {
+		return Integer.parseInt(getParameter(CACHE_JOURNAL_SYNC_INTERVAL, ""
+				+ CacheJournal.DEFAULT_SYNC_INTERVAL));
+	}
+	
+	public void setCacheJournalSyncInterval(int millis) {
+		setParameter(CACHE_JOURNAL_SYNC_INTERVAL, ""+millis);
+	}
+	
+	public int getDrainTimeout() {
+		return Integer.parseInt(getParameter(DRAIN_TIMEOUT, ""
+				+ NodeMaster.DEFAULT_DRAIN_TIMEOUT));
+	}
+	
+	public void setDrainTimeout(int timeout) {
+		setParameter(DRAIN_TIMEOUT, ""+timeout);
+	}
+	
+	public long getAdmissionMaxDocuments() {
+		return Long.parseLong(getParameter(ADMISSION_MAX_DOCUMENTS, "0"));
+	}
+	
+	public void setAdmissionMaxDocuments(long max) {
+		setParameter(ADMISSION_MAX_DOCUMENTS, ""+max);
+	}
+	
+	public int getAdmissionMaxLatency() {
+		return Integer.parseInt(getParameter(ADMISSION_MAX_LATENCY, "0"));
+	}
+	
+	public void setAdmissionMaxLatency(int max) {
+		setParameter(ADMISSION_MAX_LATENCY, ""+max);
+	}
+	
+	public int getAdmissionMaxCached() {
+		return Integer.parseInt(getParameter(ADMISSION_MAX_CACHED, "0"));
+	}
+	
+	public void setAdmissionMaxCached(int max) {
+		setParameter(ADMISSION_MAX_CACHED, ""+max);
+	}
+	
+	public int getAdmissionRetryAfter() {
+		return Integer.parseInt(getParameter(ADMISSION_RETRY_AFTER, ""
+				+ DEFAULT_ADMISSION_RETRY_AFTER));
+	}
+	
+	public void setAdmissionRetryAfter(int seconds) {
+		setParameter(ADMISSION_RETRY_AFTER, ""+seconds);
+	}
+
+	public String getHttpCompression() {
+		return getParameter(HTTP_COMPRESSION, HttpCompression.DEFAULT);
+	}
+	
+	public void setHttpCompression(String compression) {
+		setParameter(HTTP_COMPRESSION, compression);
+	}
+	
+	public int getHttpCompressionThreshold() {
+		return Integer.parseInt(getParameter(HTTP_COMPRESSION_THRESHOLD, ""
+				+ HttpCompression.DEFAULT_THRESHOLD));
+	}
+	
+	public void setHttpCompressionThreshold(int threshold) {
+		setParameter(HTTP_COMPRESSION_THRESHOLD, ""+threshold);
+	}
 
     public int getLoggingPort() {
         return Integer.parseInt(getParameter(LOGGING_PORT, "" + DEFAULT_LOGGING_PORT));
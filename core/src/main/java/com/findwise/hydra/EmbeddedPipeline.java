@@ -0,0 +1,417 @@
+package com.findwise.hydra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.Local;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalDocumentID;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.stage.AbstractProcessStage;
+import com.findwise.hydra.stage.AbstractProcessStageMapper;
+import com.findwise.hydra.stage.InitFailedException;
+import com.findwise.hydra.stage.RequiredArgumentMissingException;
+import com.findwise.tools.CoreConnection;
+
+/**
+ * A pipeline for stages running inside the core JVM. Documents are read from
+ * and written to the {@link CachingDocumentNIO} of core directly, the same way
+ * the REST handlers would have done it, but without the HTTP round trip and
+ * without serializing the documents to JSON.
+ * <p/>
+ * Content written by a stage is copied into the database document, so that no
+ * object owned by the stage (or loaded by its class loader) ends up in the
+ * cache. Values that are not plain strings, numbers, booleans, dates, lists
+ * or maps are converted the same way they would have been when sent over REST.
+ */
+public class EmbeddedPipeline<T extends DatabaseType> extends RemotePipeline {
+	private static final Logger internalLogger = LoggerFactory.getLogger("internal");
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedPipeline.class);
+
+	private final CachingDocumentNIO<T> io;
+	private final PipelineReader reader;
+	private final ClassLoader classLoader;
+
+	public EmbeddedPipeline(String stageName, CachingDocumentNIO<T> io, PipelineReader reader, ClassLoader classLoader, boolean performanceLogging) {
+		super(new NoConnection(stageName), stageName, performanceLogging);
+		this.io = io;
+		this.reader = reader;
+		this.classLoader = classLoader;
+	}
+
+	@Override
+	public LocalDocument getDocument(LocalQuery query) throws IOException {
+		long start = System.currentTimeMillis();
+		StageRunner runner = reportQuery();
+		if (runner != null && !runner.documentFetched()) {
+			// The group is draining, and only persists what it already has
+			return null;
+		}
+
+		DatabaseDocument<T> d = io.getAndTag(io.convert(query), getStageName());
+		if (d == null && runner != null) {
+			runner.documentSettled();
+		}
+		long fetch = System.currentTimeMillis();
+
+		LocalDocument ld = null;
+		if (d != null) {
+			ld = toLocalDocument(d);
+			internalLogger.debug("Received document with ID " + ld.getID());
+		} else {
+			internalLogger.debug("No document found matching query");
+		}
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			Object docId = ld != null ? ld.getID() : null;
+			logger.info(String.format("type=performance event=query stage_name=%s doc_id=\"%s\" start=%d fetch=%d convert=%d end=%d total=%d", getStageName(), docId, start, fetch - start, end - fetch, end, end - start));
+		}
+		return ld;
+	}
+
+	private StageRunner reportQuery() {
+		StageManager sm = StageManager.getStageManager();
+		StageRunner runner = sm.getRunnerForStage(getStageName());
+		if (runner != null) {
+			runner.setHasQueried();
+		}
+		return runner;
+	}
+
+	@Override
+	public boolean saveFull(LocalDocument d) throws IOException, JsonException {
+		DatabaseDocument<T> md;
+		try {
+			md = io.convert(d);
+		} catch (ConversionException e) {
+			logger.error("Unable to convert document " + d.getID(), e);
+			return false;
+		}
+		boolean update = d.getID() != null;
+		if (update) {
+			if (!io.update(md)) {
+				logger.error("Unable to update document " + d.getID());
+				return false;
+			}
+		} else {
+			if (!io.insert(md)) {
+				logger.error("Unable to insert document");
+				return false;
+			}
+			d.putAll(toLocalDocument(md));
+		}
+		if (!release(md, update)) {
+			return false;
+		}
+		d.markSynced();
+		return true;
+	}
+
+	@Override
+	public List<Boolean> insert(List<LocalDocument> documents) throws IOException, JsonException {
+		List<DatabaseDocument<T>> toInsert = new ArrayList<DatabaseDocument<T>>(documents.size());
+		List<Integer> positions = new ArrayList<Integer>(documents.size());
+		for (int i = 0; i < documents.size(); i++) {
+			LocalDocument d = documents.get(i);
+			if (d.getID() != null) {
+				continue;
+			}
+			try {
+				toInsert.add(io.convert(d));
+				positions.add(i);
+			} catch (ConversionException e) {
+				logger.error("Unable to convert document", e);
+			}
+		}
+		List<Boolean> inserted = io.insertAll(toInsert);
+		List<Boolean> results = new ArrayList<Boolean>(Collections.nCopies(documents.size(), false));
+		for (int i = 0; i < toInsert.size(); i++) {
+			DatabaseDocument<T> md = toInsert.get(i);
+			if (inserted.get(i) && release(md, false)) {
+				LocalDocument d = documents.get(positions.get(i));
+				d.putAll(toLocalDocument(md));
+				d.markSynced();
+				results.set(positions.get(i), true);
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public boolean save(LocalDocument d, List<String> chainedStages, boolean settle) throws IOException, JsonException {
+		long start = System.currentTimeMillis();
+		if (d.getID() == null) {
+			logger.error("Unable to do a partial save of a document without an ID");
+			return false;
+		}
+		DatabaseDocument<T> inDB = io.getDocumentById(toDatabaseId(d.getID()));
+		if (inDB == null) {
+			logger.error("No document found with ID " + d.getID());
+			return false;
+		}
+		putModified(d, inDB);
+		if (chainedStages != null) {
+			Date now = new Date();
+			for (String stage : chainedStages) {
+				inDB.setFetchedBy(stage, now);
+				inDB.setTouchedBy(stage, now);
+			}
+		}
+		if (!io.update(inDB) || !release(inDB, settle)) {
+			logger.error("Unable to save document " + d.getID());
+			return false;
+		}
+		d.markSynced();
+		if (isPerformanceLogging()) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=update stage_name=%s doc_id=\"%s\" start=%d end=%d total=%d", getStageName(), d.getID(), start, end, end - start));
+		}
+		return true;
+	}
+
+	/**
+	 * @param settle whether the stage is done with a document it was given, as
+	 * opposed to one it just inserted, or one another stage reports
+	 */
+	private boolean release(DatabaseDocument<T> md, boolean settle) {
+		boolean released = io.markTouched(md.getID(), getStageName());
+		if (settle) {
+			StageManager.getStageManager().documentSettled(getStageName());
+		}
+		return released;
+	}
+
+	@Override
+	public boolean markPending(LocalDocument d) throws IOException {
+		DatabaseDocument<T> dbdoc = getForMark(d, false);
+		boolean marked = dbdoc != null && io.markPending(dbdoc, getStageName());
+		StageManager.getStageManager().documentSettled(getStageName());
+		return marked;
+	}
+
+	@Override
+	public boolean markFailed(LocalDocument d) throws IOException {
+		DatabaseDocument<T> dbdoc = getForMark(d, true);
+		boolean marked = dbdoc != null && io.markFailed(dbdoc, getStageName());
+		StageManager.getStageManager().documentSettled(getStageName());
+		return marked;
+	}
+
+	@Override
+	public boolean markProcessed(LocalDocument d) throws IOException {
+		DatabaseDocument<T> dbdoc = getForMark(d, true);
+		boolean marked = dbdoc != null && io.markProcessed(dbdoc, getStageName());
+		StageManager.getStageManager().documentSettled(getStageName());
+		return marked;
+	}
+
+	@Override
+	public boolean markDiscarded(LocalDocument d) throws IOException {
+		DatabaseDocument<T> dbdoc = getForMark(d, true);
+		boolean marked = dbdoc != null && io.markDiscarded(dbdoc, getStageName());
+		StageManager.getStageManager().documentSettled(getStageName());
+		return marked;
+	}
+
+	/**
+	 * @param withChanges whether the outstanding updates of the document should
+	 * be applied, as they are when marking over REST, except for pending.
+	 */
+	private DatabaseDocument<T> getForMark(LocalDocument d, boolean withChanges) {
+		DatabaseDocument<T> dbdoc = io.getDocumentById(toDatabaseId(d.getID()));
+		if (dbdoc == null) {
+			logger.error("No document found with ID " + d.getID());
+			return null;
+		}
+		if (withChanges) {
+			putModified(d, dbdoc);
+		} else if (d.isTouchedAction()) {
+			dbdoc.setAction(d.getAction());
+		}
+		return dbdoc;
+	}
+
+	private void putModified(LocalDocument d, DatabaseDocument<T> target) {
+		if (d.isTouchedAction()) {
+			target.setAction(d.getAction());
+		}
+		for (String field : d.getTouchedContent()) {
+			target.putContentField(field, copyValue(d.getContentField(field)));
+		}
+		for (String field : d.getTouchedMetadata()) {
+			target.putMetadataField(field, copyValue(d.getMetadataMap().get(field)));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Object copyValue(Object value) {
+		if (value == null || value instanceof String || value instanceof Number
+				|| value instanceof Boolean || value instanceof Date) {
+			return value;
+		}
+		if (value instanceof Map) {
+			Map<String, Object> copy = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+				copy.put(e.getKey(), copyValue(e.getValue()));
+			}
+			return copy;
+		}
+		if (value instanceof Collection) {
+			List<Object> copy = new ArrayList<Object>();
+			for (Object o : (Collection<Object>) value) {
+				copy.add(copyValue(o));
+			}
+			return copy;
+		}
+		try {
+			return SerializationUtils.toObject(SerializationUtils.toJson(value));
+		} catch (JsonException e) {
+			throw new IllegalArgumentException("Unable to convert value of type " + value.getClass(), e);
+		}
+	}
+
+	private LocalDocument toLocalDocument(DatabaseDocument<T> d) throws IOException {
+		LocalDocument ld = new LocalDocument();
+		ld.putAll(d);
+		ld.setID(toLocalId(d.getID()));
+		ld.markSynced();
+		ld.setDocumentFileRepository(this);
+		return ld;
+	}
+
+	/**
+	 * Gives the ID the same form as it has in a document read over REST, for
+	 * stages that depend on it.
+	 */
+	private LocalDocumentID toLocalId(DocumentID<T> id) throws IOException {
+		try {
+			return new LocalDocumentID(SerializationUtils.toObject(id.toJSON()));
+		} catch (JsonException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private DocumentID<T> toDatabaseId(DocumentID<?> id) {
+		return io.toDocumentId(id.getID());
+	}
+
+	@Override
+	public AbstractProcessStage getStageInstance() throws IOException, IllegalAccessException, InitFailedException, InstantiationException, JsonException, RequiredArgumentMissingException, ClassNotFoundException {
+		return AbstractProcessStageMapper.fromJsonString(getStageProperties(), classLoader);
+	}
+
+	/**
+	 * Reads the properties straight from the pipeline, through JSON so that the
+	 * parameters get the same types as over REST.
+	 */
+	@Override
+	public String getStageProperties() throws IOException {
+		Map<String, Object> properties;
+		if (reader.getPipeline().hasStage(getStageName())) {
+			properties = reader.getPipeline().getStage(getStageName()).getProperties();
+		} else if (reader.getDebugPipeline().hasStage(getStageName())) {
+			properties = reader.getDebugPipeline().getStage(getStageName()).getProperties();
+		} else {
+			throw new RuntimeException("No stage properties found for " + getStageName());
+		}
+		return SerializationUtils.toJson(properties);
+	}
+
+	@Override
+	public DocumentFile<Local> getFile(String fileName, DocumentID<Local> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		if (md == null) {
+			return null;
+		}
+		DocumentFile<T> df = io.getDocumentFile(md, fileName);
+		if (df == null) {
+			return null;
+		}
+		DocumentFile<Local> file = new DocumentFile<Local>(docid, fileName, df.getStream(), df.getSavedByStage(), df.getUploadDate());
+		file.setEncoding(df.getEncoding());
+		file.setMimetype(df.getMimetype());
+		return file;
+	}
+
+	@Override
+	public boolean saveFile(DocumentFile<Local> df) {
+		DocumentID<T> id = toDatabaseId(df.getDocumentId());
+		if (io.getDocumentById(id) == null) {
+			return false;
+		}
+		DocumentFile<T> file = new DocumentFile<T>(id, df.getFileName(), df.getStream(), df.getSavedByStage(), df.getUploadDate());
+		file.setEncoding(df.getEncoding());
+		file.setMimetype(df.getMimetype());
+		try {
+			io.write(file);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean deleteFile(String fileName, DocumentID<Local> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		return md != null && io.deleteDocumentFile(md, fileName);
+	}
+
+	@Override
+	public List<String> getFileNames(DocumentID<?> docid) {
+		DatabaseDocument<T> md = io.getDocumentById(toDatabaseId(docid));
+		if (md == null) {
+			return null;
+		}
+		return io.getDocumentFileNames(md);
+	}
+
+	/**
+	 * Stands in for the connection to core of a remote pipeline, which an
+	 * embedded one has no use for. Anything still sent over it fails, rather
+	 * than going out over HTTP to whatever listens on the default port.
+	 */
+	private static final class NoConnection implements CoreConnection {
+		private final String stageName;
+
+		NoConnection(String stageName) {
+			this.stageName = stageName;
+		}
+
+		private IOException unsupported(String url) {
+			return new IOException("Stage " + stageName + " runs embedded in core, and can not request " + url);
+		}
+
+		@Override
+		public HttpResponse get(String url) throws IOException {
+			throw unsupported(url);
+		}
+
+		@Override
+		public HttpResponse post(String url, String content) throws IOException {
+			throw unsupported(url);
+		}
+
+		@Override
+		public HttpResponse post(String url, HttpEntity content, String accept) throws IOException {
+			throw unsupported(url);
+		}
+
+		@Override
+		public HttpResponse delete(String url) throws IOException {
+			throw unsupported(url);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.stage.GroupClassLoader;
+import com.findwise.hydra.stage.StageService;
+import com.findwise.hydra.stage.StageServiceFactory;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ServiceManager;
+
+/**
+ * Runs a stage group inside the core JVM rather than in a JVM of its own. The
+ * libraries of the group are loaded by a {@link GroupClassLoader}, and the
+ * stages talk to the database through an {@link EmbeddedPipeline}.
+ * <p/>
+ * Should any stage in the group fail, all of the stages in the group are
+ * stopped and the group is restarted, the same way a group running in a JVM of
+ * its own would be.
+ */
+public class EmbeddedStageRunner<T extends DatabaseType> extends StageRunner {
+	private static final Logger logger = LoggerFactory.getLogger(EmbeddedStageRunner.class);
+
+	private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	private final CachingDocumentNIO<T> io;
+	private final PipelineReader reader;
+	private final boolean performanceLogging;
+
+	private final Object lock = new Object();
+	private ServiceManager manager;
+	private volatile boolean destroyed = false;
+
+	public EmbeddedStageRunner(StageGroup stageGroup, File baseDirectory, CachingDocumentNIO<T> io, PipelineReader reader, boolean performanceLogging, ShutdownHandler shutdownHandler) {
+		super(stageGroup, baseDirectory, 0, performanceLogging, 0, shutdownHandler);
+		this.io = io;
+		this.reader = reader;
+		this.performanceLogging = performanceLogging;
+	}
+
+	/**
+	 * Starts the stages of the group and waits for them to stop.
+	 *
+	 * @return true if the stages were stopped by a call to the destroy()-method. false otherwise.
+	 */
+	@Override
+	protected boolean runGroup() {
+		StageGroup group = getStageGroup();
+		GroupClassLoader classLoader;
+		try {
+			classLoader = GroupClassLoader.fromFiles(getFiles(), getClass().getClassLoader());
+		} catch (Exception e) {
+			logger.error("Unable to load the libraries of stage group " + group.getName(), e);
+			return false;
+		}
+
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		// Threads started by the stages inherit this as their context class loader
+		Thread.currentThread().setContextClassLoader(classLoader);
+		try {
+			final ServiceManager services;
+			try {
+				services = new ServiceManager(createServices(group, classLoader));
+			} catch (Exception e) {
+				logger.error("Unable to start the stages of group " + group.getName(), e);
+				return false;
+			}
+
+			services.addListener(new ServiceManager.Listener() {
+				public void stopped() {}
+				public void healthy() {}
+				public void failure(Service service) {
+					logger.error("Failure in " + service.toString() + ". Stopping stage group.", service.failureCause());
+					services.stopAsync();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+
+			synchronized (lock) {
+				if (destroyed) {
+					return true;
+				}
+				manager = services;
+				services.startAsync();
+			}
+			services.awaitStopped();
+		} finally {
+			Thread.currentThread().setContextClassLoader(previous);
+			classLoader.release();
+		}
+
+		if (!destroyed) {
+			logger.error("Stage group " + group.getName() + " stopped unexpectedly");
+			return false;
+		}
+		return true;
+	}
+
+	private List<StageService> createServices(StageGroup group, ClassLoader classLoader) throws Exception {
+		List<StageService> services = new ArrayList<StageService>();
+		List<String> fusedChain = group.getFusedChain();
+		if (!fusedChain.isEmpty()) {
+			logger.info("Running stages " + fusedChain + " as a fused chain");
+			List<EmbeddedPipeline<T>> chain = new ArrayList<EmbeddedPipeline<T>>();
+			for (String stageName : fusedChain) {
+				chain.add(newPipeline(stageName, classLoader));
+			}
+			services.addAll(StageServiceFactory.createFusedStageServices(chain));
+		}
+		for (String stageName : group.getStageNames()) {
+			if (fusedChain.contains(stageName)) {
+				continue;
+			}
+			services.addAll(StageServiceFactory.createStageServices(newPipeline(stageName, classLoader), null));
+		}
+		return services;
+	}
+
+	private EmbeddedPipeline<T> newPipeline(String stageName, ClassLoader classLoader) {
+		return new EmbeddedPipeline<T>(stageName, io, reader, classLoader, performanceLogging);
+	}
+
+	/**
+	 * An embedded group always runs as a single instance.
+	 */
+	@Override
+	protected boolean supportsInstances() {
+		return false;
+	}
+
+	/**
+	 * Stops the stages of this group and removes its working files.
+	 */
+	@Override
+	public void destroy() {
+		ServiceManager services;
+		synchronized (lock) {
+			destroyed = true;
+			services = manager;
+		}
+		if (services != null) {
+			try {
+				services.stopAsync().awaitStopped(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				logger.error("Stages of group " + getStageGroup().getName() + " did not stop within " + STOP_TIMEOUT + "ms");
+			}
+		}
+		super.destroy();
+	}
+}
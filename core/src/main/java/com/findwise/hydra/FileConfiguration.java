@@ -7,6 +7,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.tools.HttpCompression;
 
 public class FileConfiguration implements CoreConfiguration, Configuration {
 	public static final String DEFAULT_PROPERTIES_FILE = "resource.properties";
@@ -88,6 +89,61 @@ public class FileConfiguration implements CoreConfiguration, Configuration {
 		return conf.getInt(CACHE_TIMEOUT, CachingDocumentNIO.DEFAULT_CACHE_TIMEOUT);
 	}
 
+	@Override
+	public String getCacheType() {
+		return conf.getString(CACHE_TYPE, MEMORY_CACHE);
+	}
+
+	@Override
+	public int getCacheOffHeapSize() {
+		return conf.getInt(CACHE_OFFHEAP_SIZE, DEFAULT_CACHE_OFFHEAP_SIZE);
+	}
+
+	@Override
+	public String getCacheJournal() {
+		return conf.getString(CACHE_JOURNAL, null);
+	}
+
+	@Override
+	public int getCacheJournalSyncInterval() {
+		return conf.getInt(CACHE_JOURNAL_SYNC_INTERVAL, CacheJournal.DEFAULT_SYNC_INTERVAL);
+	}
+
+	@Override
+	public int getDrainTimeout() {
+		return conf.getInt(DRAIN_TIMEOUT, NodeMaster.DEFAULT_DRAIN_TIMEOUT);
+	}
+
+	@Override
+	public long getAdmissionMaxDocuments() {
+		return conf.getLong(ADMISSION_MAX_DOCUMENTS, 0);
+	}
+
+	@Override
+	public int getAdmissionMaxLatency() {
+		return conf.getInt(ADMISSION_MAX_LATENCY, 0);
+	}
+
+	@Override
+	public int getAdmissionMaxCached() {
+		return conf.getInt(ADMISSION_MAX_CACHED, 0);
+	}
+
+	@Override
+	public int getAdmissionRetryAfter() {
+		return conf.getInt(ADMISSION_RETRY_AFTER, DEFAULT_ADMISSION_RETRY_AFTER);
+	}
+
+	@Override
+	public String getHttpCompression() {
+		return conf.getString(HTTP_COMPRESSION, HttpCompression.DEFAULT);
+	}
+
+	@Override
+	public int getHttpCompressionThreshold() {
+		return conf.getInt(HTTP_COMPRESSION_THRESHOLD, HttpCompression.DEFAULT_THRESHOLD);
+	}
+
     @Override
     public int getLoggingPort() {
         return conf.getInt(LOGGING_PORT, DEFAULT_LOGGING_PORT);
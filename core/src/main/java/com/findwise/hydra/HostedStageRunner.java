@@ -0,0 +1,95 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a stage group in a {@link StageHostProcess} shared with other groups,
+ * rather than in a JVM of its own. Restarting or destroying the group only
+ * affects this group, not the others in the same host.
+ * <p/>
+ * The host JVM is launched with the java executable, JVM parameters, virtual
+ * threads, wire format and compression of the first group started in it, and
+ * those settings apply to all groups in the host. The shared memory transport
+ * is not available to hosted groups.
+ */
+public class HostedStageRunner extends StageRunner {
+	private static final Logger logger = LoggerFactory.getLogger(HostedStageRunner.class);
+
+	private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+	private final StageHostProcess host;
+
+	private final Object lock = new Object();
+	private volatile boolean destroyed = false;
+
+	public HostedStageRunner(StageGroup stageGroup, File baseDirectory, StageHostProcess host, ShutdownHandler shutdownHandler) {
+		super(stageGroup, baseDirectory, 0, false, 0, shutdownHandler);
+		this.host = host;
+	}
+
+	/**
+	 * Starts the group in the host and waits for it to stop.
+	 *
+	 * @return true if the group was stopped by a call to the destroy()-method. false otherwise.
+	 */
+	@Override
+	protected boolean runGroup() {
+		String name = getStageGroup().getName();
+		synchronized (lock) {
+			if (destroyed) {
+				return true;
+			}
+			try {
+				host.startGroup(name, getFiles(), getJava(), getJvmParameters(), getSystemPropertyArguments());
+			} catch (IOException e) {
+				logger.error("Unable to start stage group " + name + " in stage host " + host.getName(), e);
+				return false;
+			}
+		}
+
+		try {
+			host.awaitGroup(name);
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Caught Interrupt while waiting for stage group to stop", e);
+		}
+
+		if (!destroyed) {
+			logger.error("Stage group " + name + " stopped unexpectedly in stage host " + host.getName());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A hosted group always runs as a single instance.
+	 */
+	@Override
+	protected boolean supportsInstances() {
+		return false;
+	}
+
+	/**
+	 * Stops the group in its host and removes its working files.
+	 */
+	@Override
+	public void destroy() {
+		synchronized (lock) {
+			destroyed = true;
+			host.stopGroup(getStageGroup().getName());
+		}
+		try {
+			join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (isAlive()) {
+			logger.error("Stage group " + getStageGroup().getName() + " did not stop within " + STOP_TIMEOUT + "ms");
+		}
+		super.destroy();
+	}
+}
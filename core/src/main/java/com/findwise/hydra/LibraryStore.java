@@ -0,0 +1,166 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local copy of the stage libraries in the database, so that a library is
+ * only read from the database once, rather than every time a group using it
+ * starts. Libraries are stored by their contents: by the MD5 the database
+ * keeps for them, or by their ID and upload date when there is none. A
+ * library that is uploaded again with new contents is therefore stored anew.
+ * <p/>
+ * Each library is kept as &lt;directory&gt;/&lt;key&gt;/&lt;file name&gt;,
+ * so that it keeps the name it was uploaded with.
+ */
+public class LibraryStore {
+	private static final Logger logger = LoggerFactory.getLogger(LibraryStore.class);
+
+	/**
+	 * Where the store is kept, under the base directory of the stage groups.
+	 * Not a valid group name, so it is never removed with a group.
+	 */
+	public static final String STORE_DIRECTORY = ".libraries";
+
+	private final File directory;
+
+	public LibraryStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Gets the stored copy of a library, storing it from the stream attached
+	 * to the file if it is not in the store yet. The stream is closed either
+	 * way.
+	 *
+	 * @return the stored library, or null if the file has nothing to key it by
+	 */
+	public File get(DatabaseFile df) throws IOException {
+		String key = getKey(df);
+		InputStream in = df.getInputStream();
+		try {
+			if (key == null) {
+				return null;
+			}
+			File stored = new File(new File(directory, key), df.getFilename());
+			if (stored.isFile()) {
+				logger.debug("Using stored copy of library " + df.getFilename());
+				return stored;
+			}
+			if (in == null) {
+				throw new IOException("Library " + df.getFilename() + " is not stored and has no stream to read it from");
+			}
+			store(df, in, stored);
+			return stored;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void store(DatabaseFile df, InputStream in, File stored) throws IOException {
+		File keyDirectory = stored.getParentFile();
+		if (!keyDirectory.isDirectory() && !keyDirectory.mkdirs()) {
+			throw new IOException("Unable to create library directory " + keyDirectory.getAbsolutePath());
+		}
+		logger.info("Storing library " + df.getFilename() + " in " + keyDirectory.getAbsolutePath());
+		// Written to a file of its own first, so that a concurrent or failed copy is never seen as stored
+		File temp = File.createTempFile(df.getFilename(), ".tmp", keyDirectory);
+		DigestInputStream digestIn = new DigestInputStream(in, newMd5());
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			IOUtils.copy(digestIn, out);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(out);
+			FileUtils.deleteQuietly(temp);
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+
+		String md5 = toHex(digestIn.getMessageDigest().digest());
+		if (df.getMd5() != null && !df.getMd5().equalsIgnoreCase(md5)) {
+			FileUtils.deleteQuietly(temp);
+			throw new IOException("Library " + df.getFilename() + " was corrupted while copying, expected MD5 " + df.getMd5() + " but got " + md5);
+		}
+		if (df.getUploadDate() != null) {
+			// A class data sharing archive is only valid for libraries with the same modification time
+			temp.setLastModified(df.getUploadDate().getTime());
+		}
+		if (!temp.renameTo(stored) && !stored.isFile()) {
+			FileUtils.deleteQuietly(temp);
+			throw new IOException("Unable to store library " + df.getFilename() + " as " + stored.getAbsolutePath());
+		}
+		FileUtils.deleteQuietly(temp);
+	}
+
+	/**
+	 * Removes all libraries from the store but the given ones.
+	 */
+	public void retain(Collection<DatabaseFile> inUse) {
+		Set<String> keys = new HashSet<String>();
+		for (DatabaseFile df : inUse) {
+			keys.add(getKey(df));
+		}
+		File[] stored = directory.listFiles();
+		if (stored == null) {
+			return;
+		}
+		for (File f : stored) {
+			if (!keys.contains(f.getName())) {
+				logger.debug("Removing unused library " + f.getName() + " from the store");
+				FileUtils.deleteQuietly(f);
+			}
+		}
+	}
+
+	/**
+	 * @return the key that the library is stored by, or null if it has neither
+	 * an MD5 nor an ID and upload date
+	 */
+	static String getKey(DatabaseFile df) {
+		if (df.getMd5() != null) {
+			return df.getMd5().toLowerCase();
+		}
+		if (df.getId() == null || df.getUploadDate() == null) {
+			return null;
+		}
+		try {
+			MessageDigest digest = newMd5();
+			digest.update((df.getId() + "/" + df.getUploadDate().getTime() + "/" + df.getFilename()).getBytes("UTF-8"));
+			// Prefixed, so that it can not be mistaken for the MD5 of the contents of another library
+			return "id-" + toHex(digest.digest());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -1,5 +1,6 @@
 package com.findwise.hydra;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.concurrent.TimeUnit;
@@ -13,6 +14,7 @@ import ch.qos.logback.classic.net.SimpleSocketServer;
 
 import com.findwise.hydra.mongodb.MongoConnector;
 import com.findwise.hydra.mongodb.MongoType;
+import com.findwise.hydra.net.AdmissionControl;
 import com.findwise.hydra.net.HttpRESTHandler;
 import com.findwise.hydra.net.RESTServer;
 
@@ -28,6 +30,7 @@ public final class Main implements ShutdownHandler {
 	private static Logger logger = LoggerFactory.getLogger(Main.class);
 	private SimpleSocketServer simpleSocketServer = null;
 	private RESTServer server = null;
+	private NodeMaster<MongoType> nm = null;
 
 	private volatile boolean shuttingDown = false;
 	
@@ -65,30 +68,54 @@ public final class Main implements ShutdownHandler {
 		}
 
 		Cache<MongoType> cache;
-		if (coreConfiguration.isCacheEnabled()) {
+		if (coreConfiguration.isCacheEnabled() && CoreConfiguration.OFFHEAP_CACHE.equals(coreConfiguration.getCacheType())) {
+			cache = new OffHeapCache<MongoType>(backing, coreConfiguration.getCacheOffHeapSize() * 1024L * 1024L);
+		} else if (coreConfiguration.isCacheEnabled()) {
 			cache = new MemoryCache<MongoType>();
 		} else {
 			cache = new NoopCache<MongoType>();
 		}
 
+		CacheJournal<MongoType> journal = null;
+		if (coreConfiguration.isCacheEnabled() && coreConfiguration.getCacheJournal() != null) {
+			try {
+				journal = new CacheJournal<MongoType>(new File(coreConfiguration.getCacheJournal()), coreConfiguration.getCacheJournalSyncInterval());
+			} catch (IOException e) {
+				logger.error("Unable to open cache journal", e);
+				return;
+			}
+		}
+
 		CachingDocumentNIO<MongoType> caching = new CachingDocumentNIO<MongoType>(
 				backing, 
 				cache, 
 				coreConfiguration.isCacheEnabled(),
-				coreConfiguration.getCacheTimeout());
+				coreConfiguration.getCacheTimeout(),
+				journal);
 
-		NodeMaster<MongoType> nm = new NodeMaster<MongoType>(
+		nm = new NodeMaster<MongoType>(
 				coreConfiguration,
 				caching,
 				new Pipeline(), 
 				this);
 
-		server = new RESTServer(coreConfiguration,
-				new HttpRESTHandler<MongoType>(
-						nm.getDocumentIO(),
-						backing.getPipelineReader(), 
-						null,
-						coreConfiguration.isPerformanceLogging()));
+		HttpRESTHandler<MongoType> restHandler = new HttpRESTHandler<MongoType>(
+				nm.getDocumentIO(),
+				backing.getPipelineReader(), 
+				null,
+				coreConfiguration.isPerformanceLogging());
+		restHandler.setAgentRegistry(nm.getAgentRegistry());
+		AdmissionControl<MongoType> admissionControl = new AdmissionControl<MongoType>(
+				caching,
+				coreConfiguration.getAdmissionMaxDocuments(),
+				coreConfiguration.getAdmissionMaxLatency(),
+				coreConfiguration.getAdmissionMaxCached(),
+				coreConfiguration.getAdmissionRetryAfter());
+		if (admissionControl.isEnabled()) {
+			restHandler.setAdmissionControl(admissionControl);
+			caching.setWriteListener(admissionControl);
+		}
+		server = new RESTServer(coreConfiguration, restHandler);
 
 		if (!server.blockingStart()) {
 			if (server.hasError()) {
@@ -111,7 +138,12 @@ public final class Main implements ShutdownHandler {
 	public void shutdown() {
 		logger.info("Got shutdown request...");
 		shuttingDown = true;
-		killUnlessShutdownWithin(KILL_DELAY);
+		killUnlessShutdownWithin(coreConfiguration.getDrainTimeout() + KILL_DELAY);
+
+		if (nm != null) {
+			// Before the server is shut down, as the groups persist their documents through it
+			nm.stopAllGroups();
+		}
 
 		if (simpleSocketServer != null) {
 			try {
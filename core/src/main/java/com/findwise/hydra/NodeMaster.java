@@ -2,14 +2,34 @@ package com.findwise.hydra;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.net.HttpRESTHandler;
+import com.findwise.hydra.stage.AbstractProcessStageMapper;
+
 public final class NodeMaster<T extends DatabaseType> extends Thread {
 	public static final int DEFAULT_POLLING_INTERVAL = 10; //Seconds
+	public static final int DEFAULT_DRAIN_TIMEOUT = 20000; //Milliseconds
+	/**
+	 * Least time between two changes of the instances of a group, before it
+	 * is scaled down
+	 */
+	public static final long SCALE_DOWN_COOLDOWN = 60000; //Milliseconds
+	/**
+	 * How much more than the backlog the instances left after scaling down
+	 * must be able to take
+	 */
+	public static final double SCALE_DOWN_MARGIN = 0.25;
 	private Logger logger = LoggerFactory.getLogger(NodeMaster.class);
 	
 	private DatabaseConnector<T> dbc;
@@ -25,6 +45,11 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	
 	private CoreConfiguration conf;
 	private ShutdownHandler shutdownHandler;
+	private HttpRESTHandler<T> localHandler;
+	private Map<String, StageHostProcess> stageHosts = new HashMap<String, StageHostProcess>();
+	private final AgentRegistry agentRegistry = new AgentRegistry();
+	private String pipelineVersion;
+	private final Map<String, Long> lastScaled = new HashMap<String, Long>();
 	
 	public NodeMaster(CoreConfiguration conf, CachingDocumentNIO<T> documentNIO, Pipeline pipeline, ShutdownHandler shutdownHandler) {
 		this.conf = conf;
@@ -54,19 +79,26 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 
 	public void run() {
 		while (!isInterrupted()) {
-			Pipeline newPipeline = dbc.getPipelineReader().getPipeline();
-			if(!pipeline.equals(newPipeline)) {
-				logger.info("Pipeline has been updated");
-				try {
-					updatePipeline(newPipeline);
-					startStopped();
-				} catch (IOException e) {
-					logger.error("An IOException occurred while updating the pipeline");
-					throw new IllegalStateException(e);
-				}
-			} else {
+			String version = dbc.getPipelineReader().getPipelineVersion();
+			if(version != null && version.equals(pipelineVersion)) {
 				logger.debug("No updates found");
+			} else {
+				Pipeline newPipeline = dbc.getPipelineReader().getPipeline();
+				if(!pipeline.equals(newPipeline)) {
+					logger.info("Pipeline has been updated");
+					try {
+						updatePipeline(newPipeline);
+						startStopped();
+					} catch (IOException e) {
+						logger.error("An IOException occurred while updating the pipeline");
+						throw new IllegalStateException(e);
+					}
+				} else {
+					logger.debug("No updates found");
+				}
+				pipelineVersion = version;
 			}
+			scaleGroups();
 			
 			try {
 				Thread.sleep(pollingInterval * 1000L);
@@ -77,6 +109,72 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		}
 	}
 	
+	/**
+	 * Scales every group that may run as a varying number of instances by
+	 * the number of documents waiting for its stages.
+	 */
+	private void scaleGroups() {
+		long now = System.currentTimeMillis();
+		for(StageRunner runner : sm.getRunners()) {
+			if(runner.isAlive() && runner.getMaxInstances() > runner.getMinInstances()) {
+				StageGroup group = runner.getStageGroup();
+				Long last = lastScaled.get(group.getName());
+				long sinceScaled = (last == null) ? Long.MAX_VALUE : now - last;
+				int current = runner.getTargetInstances();
+				int target = getTargetInstances(getBacklog(group), group.getBacklogPerInstance(), current, sinceScaled);
+				target = Math.max(runner.getMinInstances(), Math.min(runner.getMaxInstances(), target));
+				if(target != current) {
+					runner.setTargetInstances(target);
+					lastScaled.put(group.getName(), now);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Scales up as soon as the backlog needs more instances, but down only by
+	 * one instance at a time, no sooner than {@link #SCALE_DOWN_COOLDOWN} after
+	 * the last change, and only once the remaining instances can take the
+	 * backlog with a {@link #SCALE_DOWN_MARGIN}. A backlog hovering around a
+	 * boundary thus does not start and retire instances on every poll.
+	 */
+	static int getTargetInstances(long backlog, int backlogPerInstance, int current, long sinceScaled) {
+		long needed = (backlog + backlogPerInstance - 1) / backlogPerInstance;
+		if(needed > current) {
+			return (int) Math.min(Integer.MAX_VALUE, needed);
+		}
+		long neededWithMargin = (long) Math.ceil(backlog * (1 + SCALE_DOWN_MARGIN) / backlogPerInstance);
+		if(neededWithMargin < current && sinceScaled >= SCALE_DOWN_COOLDOWN) {
+			return current - 1;
+		}
+		return current;
+	}
+	
+	/**
+	 * @return the largest number of documents that any stage of the group has yet to fetch
+	 */
+	long getBacklog(StageGroup group) {
+		long backlog = 0;
+		for(Stage stage : group.getStages()) {
+			DatabaseQuery<T> query = documentNIO.convert(getStageQuery(stage));
+			query.requireNotFetchedByStage(stage.getName());
+			backlog = Math.max(backlog, dbc.getDocumentReader().getNumberOfDocuments(query));
+		}
+		return backlog;
+	}
+	
+	private LocalQuery getStageQuery(Stage stage) {
+		Object query = stage.getProperties().get("query");
+		if(query != null) {
+			try {
+				return new LocalQuery(SerializationUtils.toJson(query));
+			} catch (JsonException e) {
+				logger.warn("Unable to read the query of stage "+stage.getName()+", counting all documents as its backlog", e);
+			}
+		}
+		return new LocalQuery();
+	}
+	
 	private void startStopped() throws IOException {
 		for(StageRunner runner : sm.getRunners()) {
 			if(!runner.isAlive() && !runner.isStarted()) {
@@ -93,12 +191,36 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 	 * @throws IOException
 	 */
 	private void updatePipeline(Pipeline newPipeline) throws IOException {
+		List<String> stopped = new ArrayList<String>();
 		for(String group : getChangedGroups(newPipeline)) {
-			stopGroup(group);
+			if(canReconfigure(pipeline.getGroup(group), newPipeline.getGroup(group))) {
+				reconfigureGroup(newPipeline.getGroup(group));
+			} else {
+				stopped.add(group);
+			}
+		}
+		stopGroups(stopped);
+		for(String group : stopped) {
 			removeGroup(group);
 		}
 		
 		addMissingGroups(newPipeline);
+		removeUnusedLibraries();
+	}
+	
+	/**
+	 * Removes the libraries that no group of the pipeline uses any longer from
+	 * the library store, see {@link LibraryStore}.
+	 */
+	private void removeUnusedLibraries() {
+		List<DatabaseFile> inUse = new ArrayList<DatabaseFile>();
+		for(StageGroup group : pipeline.getStageGroups()) {
+			Set<DatabaseFile> files = group.getDatabaseFiles();
+			if(files != null) {
+				inUse.addAll(files);
+			}
+		}
+		new LibraryStore(new File(namespace, LibraryStore.STORE_DIRECTORY)).retain(inUse);
 	}
 	
 	private Set<String> getChangedGroups(Pipeline newPipeline) {
@@ -113,14 +235,85 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		return list;
 	}
 	
-	private void stopGroup(String group) {
-		if(sm.hasRunner(group) && sm.getRunner(group).isAlive()) {
-			sm.getRunner(group).destroy();
-		} else {
-			logger.debug("StageGroup "+group+" had already terminated");
+	/**
+	 * Whether a running group can take the changes of its new version without
+	 * being restarted. That is the case when only the properties of its stages
+	 * changed, in ways that the stages can apply themselves, see
+	 * {@link AbstractProcessStageMapper#canReconfigure}.
+	 */
+	boolean canReconfigure(StageGroup oldGroup, StageGroup newGroup) {
+		if(newGroup == null || !sm.hasRunner(oldGroup.getName()) || !sm.getRunner(oldGroup.getName()).isAlive()) {
+			return false;
+		}
+		if(!oldGroup.getStageNames().equals(newGroup.getStageNames())
+				|| !oldGroup.toPropertiesMap().equals(newGroup.toPropertiesMap())) {
+			return false;
+		}
+		for(Stage oldStage : oldGroup.getStages()) {
+			Stage newStage = newGroup.getStage(oldStage.getName());
+			if(oldStage.getMode() != newStage.getMode()) {
+				return false;
+			}
+			if(oldStage.getDatabaseFile() == null ? newStage.getDatabaseFile() != null : !oldStage.getDatabaseFile().equals(newStage.getDatabaseFile())) {
+				return false;
+			}
+			Map<String, Object> oldProperties = oldStage.getProperties();
+			Map<String, Object> newProperties = newStage.getProperties();
+			if(!AbstractProcessStageMapper.canReconfigure(oldProperties, newProperties)) {
+				return false;
+			}
+			// The properties of the only stage of a group also decide how the group is launched
+			if(oldGroup.getSize() == 1) {
+				for(String key : oldGroup.toPropertiesMap().keySet()) {
+					Object oldValue = oldProperties.get(key);
+					Object newValue = newProperties.get(key);
+					if(oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+	
+	private void reconfigureGroup(StageGroup group) {
+		logger.info("Only the stage properties of group '"+group.getName()+"' changed, its stages will apply them without a restart");
+		pipeline.addGroup(group);
+		sm.getRunner(group.getName()).reconfigure(group);
+	}
+	
+	/**
+	 * Stops the given groups, first letting them persist the documents they
+	 * are working on. The groups are drained together, so that stopping
+	 * several groups takes no longer than the drain timeout.
+	 */
+	private void stopGroups(Collection<String> groups) {
+		List<StageRunner> running = new ArrayList<StageRunner>();
+		for(String group : groups) {
+			if(sm.hasRunner(group) && sm.getRunner(group).isAlive()) {
+				sm.getRunner(group).startDraining();
+				running.add(sm.getRunner(group));
+			} else {
+				logger.debug("StageGroup "+group+" had already terminated");
+			}
+		}
+		long deadline = System.currentTimeMillis() + conf.getDrainTimeout();
+		for(StageRunner runner : running) {
+			runner.drain(Math.max(0, deadline - System.currentTimeMillis()));
 		}
 	}
 	
+	/**
+	 * Drains and stops every group, for shutting down core.
+	 */
+	public void stopAllGroups() {
+		List<String> groups = new ArrayList<String>();
+		for(StageRunner runner : sm.getRunners()) {
+			groups.add(runner.getStageGroup().getName());
+		}
+		stopGroups(groups);
+	}
+	
 	private void removeGroup(String group) {
 		pipeline.removeGroup(group);
 		sm.removeRunner(group);
@@ -131,7 +324,7 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 			if(!pipeline.hasGroup(group.getName())) {
 				pipeline.addGroup(group);
 				if(attachFiles(group)) {
-					sm.addRunner(new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging(), conf.getLoggingPort(), shutdownHandler));
+					sm.addRunner(createRunner(group));
 				} else {
 					logger.error("Was unable to start the stage group '"+group.getName()+"' due to missing libraries.");
 				}
@@ -139,6 +332,51 @@ public final class NodeMaster<T extends DatabaseType> extends Thread {
 		}
 	}
 	
+	private StageRunner createRunner(StageGroup group) {
+		if(group.isEmbedded()) {
+			logger.info("Stage group '"+group.getName()+"' will run embedded in core");
+			return new EmbeddedStageRunner<T>(group, new File(namespace), documentNIO, dbc.getPipelineReader(), conf.isPerformanceLogging(), shutdownHandler);
+		}
+		if(group.getStageHost() != null) {
+			logger.info("Stage group '"+group.getName()+"' will run in stage host '"+group.getStageHost()+"'");
+			return new HostedStageRunner(group, new File(namespace), getStageHost(group.getStageHost()), shutdownHandler);
+		}
+		if(group.getAgent() != null) {
+			logger.info("Stage group '"+group.getName()+"' will run on stage agent '"+group.getAgent()+"'");
+			return new RemoteStageRunner(group, new File(namespace), agentRegistry, conf.isPerformanceLogging(), conf.getLoggingPort(), shutdownHandler);
+		}
+		StageRunner runner = new StageRunner(group, new File(namespace), port, conf.isPerformanceLogging(), conf.getLoggingPort(), shutdownHandler);
+		if(group.isSharedMemoryTransport()) {
+			runner.setLocalHandler(getLocalHandler());
+		}
+		return runner;
+	}
+	
+	/**
+	 * @return the registry of the stage agents that groups of this node can be placed on
+	 */
+	public AgentRegistry getAgentRegistry() {
+		return agentRegistry;
+	}
+	
+	private StageHostProcess getStageHost(String name) {
+		if(!stageHosts.containsKey(name)) {
+			stageHosts.put(name, new StageHostProcess(name, port, conf.isPerformanceLogging(), conf.getLoggingPort()));
+		}
+		return stageHosts.get(name);
+	}
+	
+	/**
+	 * Serves the requests made through shared memory by all stage groups on
+	 * this host. The callers are known to be local, so no hosts are checked.
+	 */
+	private HttpRESTHandler<T> getLocalHandler() {
+		if(localHandler == null) {
+			localHandler = new HttpRESTHandler<T>(documentNIO, dbc.getPipelineReader(), null, conf.isPerformanceLogging());
+		}
+		return localHandler;
+	}
+	
 	private boolean attachFiles(StageGroup group) {
 		Set<DatabaseFile> files = group.getDatabaseFiles();
 		if(files == null) {
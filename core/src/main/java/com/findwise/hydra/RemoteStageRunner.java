@@ -0,0 +1,82 @@
+package com.findwise.hydra;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a stage group on a stage agent, see {@link StageAgent}, rather than on
+ * the host of core. The group is placed on an agent by the
+ * {@link AgentRegistry}, and placed again, possibly on another agent, when it
+ * fails or its agent is lost.
+ */
+public class RemoteStageRunner extends StageRunner {
+	private static final Logger logger = LoggerFactory.getLogger(RemoteStageRunner.class);
+
+	private final AgentRegistry registry;
+	private final boolean performanceLogging;
+	private final int loggingPort;
+
+	private volatile boolean destroyed = false;
+
+	public RemoteStageRunner(StageGroup stageGroup, File baseDirectory, AgentRegistry registry, boolean performanceLogging, int loggingPort, ShutdownHandler shutdownHandler) {
+		super(stageGroup, baseDirectory, 0, performanceLogging, loggingPort, shutdownHandler);
+		this.registry = registry;
+		this.performanceLogging = performanceLogging;
+		this.loggingPort = loggingPort;
+	}
+
+	/**
+	 * Places the group on an agent and waits for it to stop running there.
+	 *
+	 * @return true if the group was stopped by a call to the destroy()-method. false otherwise.
+	 */
+	@Override
+	protected boolean runGroup() {
+		StageGroup group = getStageGroup();
+		String agent;
+		if (destroyed) {
+			return true;
+		}
+		try {
+			agent = registry.assign(group, getFiles(), getJava(), getJvmParameters(), performanceLogging, loggingPort);
+			if (agent == null) {
+				return destroyed;
+			}
+			if (destroyed) {
+				// Destroyed while being placed, after destroy() had nothing to unassign
+				registry.unassign(group.getName());
+				return true;
+			}
+			registry.awaitGroup(group.getName());
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Caught Interrupt while waiting for stage group to stop", e);
+		}
+
+		if (!destroyed) {
+			logger.error("Stage group " + group.getName() + " stopped unexpectedly on agent " + agent);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A remote group always runs as a single instance.
+	 */
+	@Override
+	protected boolean supportsInstances() {
+		return false;
+	}
+
+	/**
+	 * Removes the group from its agent, which stops it on its next heartbeat,
+	 * and removes the working files of the group.
+	 */
+	@Override
+	public void destroy() {
+		destroyed = true;
+		registry.unassign(getStageGroup().getName());
+		super.destroy();
+	}
+}
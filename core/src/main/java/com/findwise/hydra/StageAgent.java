@@ -0,0 +1,386 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.launcher.CommandLauncherFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.stage.GroupStarter;
+import com.findwise.tools.HttpConnection;
+
+/**
+ * Runs stage groups on a worker node on behalf of core. The agent registers
+ * with core through a heartbeat, downloads the libraries of the groups that
+ * core assigns to it and launches them, pointing them back at core. Groups no
+ * longer assigned to the agent are stopped.
+ * <p/>
+ * Groups are downloaded and launched in the background, so that a large
+ * download does not hold up the heartbeats.
+ * <p/>
+ * Several agents may run on the same machine, as long as they have different
+ * names and working directories.
+ * <p/>
+ * Usage: StageAgent &lt;agent name&gt; &lt;core host&gt; [core port] [working directory]
+ */
+public class StageAgent {
+	private static final Logger logger = LoggerFactory.getLogger(StageAgent.class);
+
+	public static final String HEARTBEAT_URL = "agentHeartbeat";
+	public static final String LIBRARY_URL = "agentLibrary";
+	public static final String AGENT_PARAM = "agent";
+	public static final String GROUP_PARAM = "group";
+	public static final String FILE_PARAM = "file";
+
+	public static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(3);
+
+	private final String name;
+	private final String coreHost;
+	private final int corePort;
+	private final File workDirectory;
+	private final HttpConnection connection;
+
+	private final Map<String, RunningGroup> running = new HashMap<String, RunningGroup>();
+	private final ExecutorService starter = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "StageAgent-starter");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile boolean stopped = false;
+	/**
+	 * Number of groups being started in the background, including those no
+	 * longer assigned
+	 */
+	private int starting = 0;
+
+	public StageAgent(String name, String coreHost, int corePort, File workDirectory) {
+		this.name = name;
+		this.coreHost = coreHost;
+		this.corePort = corePort;
+		this.workDirectory = workDirectory;
+		connection = new HttpConnection(coreHost, corePort);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: StageAgent <agent name> <core host> [core port] [working directory]");
+			System.exit(1);
+		}
+		String name = args[0];
+		int port = (args.length > 2) ? Integer.parseInt(args[2]) : RemotePipeline.DEFAULT_PORT;
+		File directory = new File((args.length > 3) ? args[3] : "agent-" + name);
+
+		final StageAgent agent = new StageAgent(name, args[1], port, directory);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				agent.stop();
+			}
+		});
+		agent.run();
+	}
+
+	/**
+	 * Sends heartbeats to core until stopped.
+	 */
+	public void run() {
+		logger.info("Stage agent " + name + " connecting to core at " + coreHost + ":" + corePort);
+		while (!stopped) {
+			try {
+				heartbeat();
+			} catch (IOException e) {
+				logger.warn("Unable to reach core at " + coreHost + ":" + corePort + ": " + e.getMessage());
+			}
+			try {
+				Thread.sleep(HEARTBEAT_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reports the state of the running groups to core, and starts and stops
+	 * groups to match the assignments in the reply.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void heartbeat() throws IOException {
+		HttpResponse response = connection.post("/" + HEARTBEAT_URL + "?" + AGENT_PARAM + "=" + encode(name), SerializationUtils.toJson(getStatus()));
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			logger.error("Heartbeat refused by core: " + response.getStatusLine());
+			EntityUtils.consume(response.getEntity());
+			return;
+		}
+		List<Map<String, Object>> assigned;
+		try {
+			assigned = (List<Map<String, Object>>) SerializationUtils.toObject(EntityUtils.toString(response.getEntity()));
+		} catch (JsonException e) {
+			throw new IOException("Unable to read the assignments of agent " + name, e);
+		}
+		apply(assigned);
+	}
+
+	private Map<String, String> getStatus() {
+		Map<String, String> status = new HashMap<String, String>();
+		for (RunningGroup group : running.values()) {
+			status.put(group.id, group.isAlive() ? AgentRegistry.RUNNING : AgentRegistry.FAILED);
+		}
+		return status;
+	}
+
+	private void apply(List<Map<String, Object>> assigned) {
+		if (stopped) {
+			return;
+		}
+		Set<String> ids = new HashSet<String>();
+		for (Map<String, Object> assignment : assigned) {
+			String id = (String) assignment.get(AgentRegistry.ID_KEY);
+			ids.add(id);
+			if (!running.containsKey(id)) {
+				String group = (String) assignment.get(AgentRegistry.GROUP_KEY);
+				RunningGroup runningGroup = new RunningGroup(id, group, new File(workDirectory, group + "-" + id));
+				running.put(id, runningGroup);
+				starting++;
+				starter.execute(new Starter(runningGroup, assignment));
+			}
+		}
+		for (Iterator<RunningGroup> it = running.values().iterator(); it.hasNext();) {
+			RunningGroup group = it.next();
+			if (!ids.contains(group.id)) {
+				logger.info("Stopping stage group " + group.name + ", no longer assigned to agent " + name);
+				group.destroy();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Downloads the libraries of the group and launches it.
+	 *
+	 * @return the process running the group, or null if it could not be started
+	 */
+	@SuppressWarnings("unchecked")
+	private Process start(String group, File directory, Map<String, Object> assignment) {
+		logger.info("Starting stage group " + group + " on agent " + name);
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+			}
+			List<File> files = new ArrayList<File>();
+			for (String fileName : (List<String>) assignment.get(AgentRegistry.FILES_KEY)) {
+				files.add(download(group, fileName, directory));
+			}
+			return launch(group, files, assignment);
+		} catch (IOException e) {
+			logger.error("Unable to start stage group " + group + " on agent " + name, e);
+			return null;
+		}
+	}
+
+	private synchronized void started(RunningGroup group, Process process) {
+		group.started(process);
+		starting--;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the groups being started in the background to have been
+	 * launched, or to have failed to.
+	 *
+	 * @return false if some group was still being started after the timeout
+	 */
+	public synchronized boolean awaitStarted(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (starting > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	private File download(String group, String fileName, File directory) throws IOException {
+		HttpResponse response = connection.get("/" + LIBRARY_URL + "?" + AGENT_PARAM + "=" + encode(name)
+				+ "&" + GROUP_PARAM + "=" + encode(group) + "&" + FILE_PARAM + "=" + encode(fileName));
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+			EntityUtils.consume(response.getEntity());
+			throw new IOException("Unable to download library " + fileName + ": " + response.getStatusLine());
+		}
+		File file = new File(directory, fileName);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			response.getEntity().writeTo(out);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		return file;
+	}
+
+	/**
+	 * Launches a JVM running the group, the same way core would have launched it.
+	 */
+	protected Process launch(String group, List<File> files, Map<String, Object> assignment) throws IOException {
+		CommandLine cmdLine = createCommandLine(group, files, assignment);
+		logger.info("Launching with command " + cmdLine.toString());
+
+		Process p = CommandLauncherFactory.createVMLauncher().exec(cmdLine, null);
+		new StreamLogger(String.format("%s (stdout)", group), p.getInputStream()).start();
+		new StreamLogger(String.format("%s (stderr)", group), p.getErrorStream()).start();
+		return p;
+	}
+
+	protected CommandLine createCommandLine(String group, List<File> files, Map<String, Object> assignment) {
+		String java = (String) assignment.get(AgentRegistry.JAVA_KEY);
+		CommandLine cmdLine = new CommandLine(java == null ? "java" : java);
+		String jvmParameters = (String) assignment.get(AgentRegistry.JVM_PARAMETERS_KEY);
+		if (jvmParameters != null) {
+			cmdLine.addArgument(jvmParameters, false);
+		}
+		List<String> properties = StageRunner.getSystemPropertyArguments(Boolean.TRUE.equals(assignment.get(AgentRegistry.VIRTUAL_THREADS_KEY)),
+				(String) assignment.get(AgentRegistry.WIRE_FORMAT_KEY), (String) assignment.get(AgentRegistry.COMPRESSION_KEY));
+		for (String property : properties) {
+			cmdLine.addArgument(property);
+		}
+		cmdLine.addArgument("-cp");
+		cmdLine.addArgument("${classpath}", false);
+		cmdLine.addArgument(GroupStarter.class.getCanonicalName());
+		cmdLine.addArgument(group);
+		cmdLine.addArgument(coreHost);
+		cmdLine.addArgument("" + corePort);
+		cmdLine.addArgument("" + assignment.get(AgentRegistry.PERFORMANCE_LOGGING_KEY));
+		cmdLine.addArgument("" + ((Number) assignment.get(AgentRegistry.LOGGING_PORT_KEY)).intValue());
+
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("classpath", StringUtils.join(files, File.pathSeparator));
+		cmdLine.setSubstitutionMap(map);
+		return cmdLine;
+	}
+
+	/**
+	 * Stops sending heartbeats and destroys all running groups.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		starter.shutdownNow();
+		for (RunningGroup group : running.values()) {
+			group.destroy();
+		}
+		running.clear();
+	}
+
+	public synchronized Set<String> getRunningGroups() {
+		Set<String> groups = new HashSet<String>();
+		for (RunningGroup group : running.values()) {
+			groups.add(group.name);
+		}
+		return groups;
+	}
+
+	private static String encode(String s) throws IOException {
+		return URLEncoder.encode(s, "UTF-8");
+	}
+
+	private class Starter implements Runnable {
+		private final RunningGroup group;
+		private final Map<String, Object> assignment;
+
+		public Starter(RunningGroup group, Map<String, Object> assignment) {
+			this.group = group;
+			this.assignment = assignment;
+		}
+
+		@Override
+		public void run() {
+			started(group, start(group.name, group.directory, assignment));
+		}
+	}
+
+	/**
+	 * A group assigned to the agent. Guarded by the lock of the agent.
+	 */
+	private static class RunningGroup {
+		private final String id;
+		private final String name;
+		private final File directory;
+		private Process process;
+		private boolean starting = true;
+		private boolean destroyed = false;
+
+		public RunningGroup(String id, String name, File directory) {
+			this.id = id;
+			this.name = name;
+			this.directory = directory;
+		}
+
+		public void started(Process process) {
+			this.process = process;
+			starting = false;
+			if (destroyed) {
+				// Unassigned, or the agent stopped, while it was being started
+				destroy();
+			}
+		}
+
+		/**
+		 * @return true while the group is being started, so that core does not
+		 * count it as failed
+		 */
+		public boolean isAlive() {
+			if (starting) {
+				return true;
+			}
+			if (process == null) {
+				return false;
+			}
+			try {
+				process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * Destroys the process and removes the libraries of the group, once it
+		 * has been started should it still be starting.
+		 */
+		public void destroy() {
+			destroyed = true;
+			if (starting) {
+				return;
+			}
+			if (process != null) {
+				process.destroy();
+			}
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+}
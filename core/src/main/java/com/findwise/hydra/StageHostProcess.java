@@ -0,0 +1,213 @@
+package com.findwise.hydra;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.launcher.CommandLauncherFactory;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.stage.StageHost;
+
+/**
+ * A JVM running the stage groups that share a stage host, see
+ * {@link StageHost}. The JVM is launched when the first group is started in
+ * it, with the java executable, JVM parameters and system properties of that
+ * group, and is shut down when its last group has stopped.
+ * <p/>
+ * The stage host gets the classpath of core, which includes the Hydra API.
+ * The libraries of each group are loaded on top of it, by the host.
+ */
+public class StageHostProcess {
+	private static final Logger logger = LoggerFactory.getLogger(StageHostProcess.class);
+
+	private final String name;
+	private final int pipelinePort;
+	private final boolean performanceLogging;
+	private final int loggingPort;
+
+	private final StageRunner.StageDestroyer stageDestroyer = new StageRunner.StageDestroyer();
+	private final Map<String, BlockingQueue<String>> groups = new HashMap<String, BlockingQueue<String>>();
+
+	private Process process;
+	private Writer commands;
+	private List<String> systemProperties;
+
+	public StageHostProcess(String name, int pipelinePort, boolean performanceLogging, int loggingPort) {
+		this.name = name;
+		this.pipelinePort = pipelinePort;
+		this.performanceLogging = performanceLogging;
+		this.loggingPort = loggingPort;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Starts a group in the host, launching the host JVM if it is not running.
+	 * Must be followed by a call to {@link #awaitGroup(String)}.
+	 */
+	public synchronized void startGroup(String group, List<File> files, String java, String jvmParameters, List<String> systemProperties) throws IOException {
+		if (process == null) {
+			launch(java, jvmParameters, systemProperties);
+		} else if (!this.systemProperties.equals(systemProperties)) {
+			logger.warn("Stage group " + group + " is configured with " + systemProperties + ", but stage host " + name + " runs with " + this.systemProperties + " for all its groups");
+		}
+		groups.put(group, new LinkedBlockingQueue<String>());
+		send(StageHost.START_COMMAND + " " + group + " " + StringUtils.join(files, File.pathSeparator));
+	}
+
+	/**
+	 * Asks the host to stop a group. The group has stopped once
+	 * {@link #awaitGroup(String)} returns.
+	 */
+	public synchronized void stopGroup(String group) {
+		if (process == null || !groups.containsKey(group)) {
+			return;
+		}
+		try {
+			send(StageHost.STOP_COMMAND + " " + group);
+		} catch (IOException e) {
+			logger.error("Unable to stop stage group " + group + " in stage host " + name, e);
+		}
+	}
+
+	/**
+	 * Waits for a group to stop, which it does on request, when one of its
+	 * stages fails or when the host JVM dies.
+	 *
+	 * @return true if the group was stopped on request, false otherwise
+	 */
+	public boolean awaitGroup(String group) throws InterruptedException {
+		BlockingQueue<String> events;
+		synchronized (this) {
+			events = groups.get(group);
+		}
+		if (events == null) {
+			return false;
+		}
+		String event = events.take();
+		synchronized (this) {
+			if (groups.get(group) == events) {
+				groups.remove(group);
+			}
+			if (groups.isEmpty() && process != null) {
+				logger.info("No stage groups left in stage host " + name + ", shutting it down");
+				shutdown();
+			}
+		}
+		return StageHost.STOPPED_EVENT.equals(event);
+	}
+
+	private void launch(String java, String jvmParameters, List<String> systemProperties) throws IOException {
+		CommandLine cmdLine = new CommandLine(java);
+		cmdLine.addArgument(jvmParameters, false);
+		for (String property : systemProperties) {
+			cmdLine.addArgument(property);
+		}
+		this.systemProperties = systemProperties;
+		cmdLine.addArgument("-cp");
+		cmdLine.addArgument("${classpath}", false);
+		cmdLine.addArgument(StageHost.class.getCanonicalName());
+		cmdLine.addArgument(name);
+		cmdLine.addArgument("localhost");
+		cmdLine.addArgument("" + pipelinePort);
+		cmdLine.addArgument("" + performanceLogging);
+		cmdLine.addArgument("" + loggingPort);
+
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("classpath", System.getProperty("java.class.path"));
+		cmdLine.setSubstitutionMap(map);
+		logger.info("Launching stage host " + name + " with command " + cmdLine.toString());
+
+		final Process p = CommandLauncherFactory.createVMLauncher().exec(cmdLine, null);
+		stageDestroyer.add(p);
+		process = p;
+		commands = new OutputStreamWriter(p.getOutputStream(), "UTF-8");
+
+		new StreamLogger(String.format("%s (stderr)", name), p.getErrorStream()).start();
+		Thread reader = new Thread("StageHost-" + name) {
+			public void run() {
+				readEvents(p);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void send(String command) throws IOException {
+		commands.write(command);
+		commands.write('\n');
+		commands.flush();
+	}
+
+	/**
+	 * Passes the events of the host on to the groups waiting for them, and
+	 * logs anything else the stages write to standard output.
+	 */
+	private void readEvents(Process p) {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(StageHost.EVENT_PREFIX)) {
+					String[] event = line.substring(StageHost.EVENT_PREFIX.length()).split(" ", 2);
+					if (event.length == 2) {
+						dispatch(event[1], event[0]);
+						continue;
+					}
+				}
+				logger.info(String.format("Received message from stage host %s: %s", name, line));
+			}
+		} catch (IOException e) {
+			logger.error("Error while reading from stage host " + name, e);
+		}
+		hostStopped(p);
+	}
+
+	private synchronized void dispatch(String group, String event) {
+		BlockingQueue<String> events = groups.get(group);
+		if (events != null) {
+			events.add(event);
+		}
+	}
+
+	private synchronized void hostStopped(Process p) {
+		if (process != p) {
+			return;
+		}
+		if (!groups.isEmpty()) {
+			logger.error("Stage host " + name + " terminated unexpectedly, failing its stage groups " + groups.keySet());
+		}
+		for (BlockingQueue<String> events : groups.values()) {
+			events.add(StageHost.FAILED_EVENT);
+		}
+		stageDestroyer.remove(p);
+		process = null;
+		commands = null;
+	}
+
+	/**
+	 * Kills the host JVM, failing any groups still running in it.
+	 */
+	public synchronized void shutdown() {
+		if (process == null) {
+			return;
+		}
+		Process p = process;
+		p.destroy();
+		hostStopped(p);
+	}
+}
@@ -46,6 +46,25 @@ public final class StageManager {
 		return getRunnerForStage(stage)!=null;
 	}
 	
+	/**
+	 * Tells the runner of the stage, if there is one, that the stage is done
+	 * with a document it fetched
+	 */
+	public void documentSettled(String stage) {
+		documentSettled(stage, null);
+	}
+	
+	/**
+	 * @param instance the index of the instance running the stage, or null
+	 * if the stage did not say
+	 */
+	public void documentSettled(String stage, String instance) {
+		StageRunner runner = getRunnerForStage(stage);
+		if(runner!=null) {
+			runner.documentSettled(instance);
+		}
+	}
+	
 	public void addRunner(StageRunner runner) {
 		runnerMap.put(runner.getStageGroup().getName(), runner);
 	}
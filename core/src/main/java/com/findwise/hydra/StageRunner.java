@@ -6,8 +6,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
@@ -23,22 +27,45 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.net.HttpRESTHandler;
+import com.findwise.hydra.net.SharedMemoryServer;
 import com.findwise.hydra.stage.GroupStarter;
+import com.findwise.hydra.stage.StageThreads;
+import com.findwise.tools.HttpCompression;
+import com.findwise.tools.SharedMemoryRing;
 
 public class StageRunner extends Thread {
 
-	private StageGroup stageGroup;
+	/**
+	 * Where the class data sharing archives of all groups are kept, under the
+	 * base directory. Not a valid group name, so it is never removed with a group.
+	 */
+	public static final String ARCHIVE_DIRECTORY = ".cds";
+
+	/**
+	 * How long a retired instance gets to persist the documents it is working
+	 * on before its process is destroyed.
+	 */
+	public static final long INSTANCE_DRAIN_TIMEOUT = 20000;
+
+	private volatile StageGroup stageGroup;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private StageDestroyer stageDestroyer;
 	private boolean prepared = false;
 	private int timesToRetry = -1;
 	private int timesStarted;
+	private int instances = 1;
+	private int maxInstances = 1;
+	private volatile int targetInstances = 1;
+	private final List<Instance> runningInstances = new ArrayList<Instance>();
 	private int pipelinePort;
 
 	private List<File> files = null;
 	private String jvmParameters = null;
 	private String startupArgsString = null;
 	private String java = "java";
+	private boolean virtualThreads = false;
 
 	private boolean hasQueried = false;
 
@@ -49,9 +76,30 @@ public class StageRunner extends Thread {
 	private int loggingPort;
 
 	private boolean started;
-	private boolean wasKilled = false;
+	private volatile boolean wasKilled = false;
 	private ShutdownHandler shutdownHandler;
 
+	private HttpRESTHandler<?> localHandler;
+	/**
+	 * The shared memory server of each running process of the group, by the
+	 * name of its ring. Processes never share a ring, since a ring hands out
+	 * its slots within a single client JVM.
+	 */
+	private final Map<String, SharedMemoryServer> sharedMemoryServers = new HashMap<String, SharedMemoryServer>();
+
+	private File archive;
+	private final AtomicBoolean archiving = new AtomicBoolean(false);
+
+	private volatile boolean draining = false;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	/**
+	 * The instances of the group by index, as sent by their stages with each
+	 * request, see {@link RemotePipeline#INSTANCE_PARAM}. Retired instances stay
+	 * here until they have exited.
+	 */
+	private final Map<String, Instance> instancesByIndex = new ConcurrentHashMap<String, Instance>();
+
 	public synchronized void setHasQueried() {
 		hasQueried = true;
 	}
@@ -60,6 +108,135 @@ public class StageRunner extends Thread {
 		return hasQueried;
 	}
 
+	public boolean documentFetched() {
+		return documentFetched(null);
+	}
+
+	/**
+	 * Called when a stage of the group is about to be given a document.
+	 *
+	 * @param instance the index of the instance running the stage, or null if
+	 * the stage did not say
+	 * @return false if the group, or the instance, is draining, in which case
+	 * the stage gets no document
+	 */
+	public boolean documentFetched(String instance) {
+		Instance i = getInstance(instance);
+		inFlight.incrementAndGet();
+		if (i != null) {
+			i.inFlight.incrementAndGet();
+		}
+		if (draining || (i != null && i.draining)) {
+			documentSettled(instance);
+			return false;
+		}
+		return true;
+	}
+
+	public void documentSettled() {
+		documentSettled(null);
+	}
+
+	/**
+	 * Called when a stage of the group is done with a document it was given,
+	 * or was given none after all.
+	 *
+	 * @param instance the index of the instance running the stage, or null if
+	 * the stage did not say
+	 */
+	public void documentSettled(String instance) {
+		decrement(inFlight);
+		Instance i = getInstance(instance);
+		if (i != null) {
+			decrement(i.inFlight);
+		}
+	}
+
+	/**
+	 * Decrements the count, unless it already is zero, and wakes up the
+	 * threads waiting for it once it reaches zero.
+	 */
+	private static void decrement(AtomicInteger count) {
+		int current;
+		do {
+			current = count.get();
+			if (current == 0) {
+				// Fetched before core restarted, or by an instance that has since died
+				return;
+			}
+		} while (!count.compareAndSet(current, current - 1));
+		if (current == 1) {
+			synchronized (count) {
+				count.notifyAll();
+			}
+		}
+	}
+
+	private Instance getInstance(String instance) {
+		return (instance == null) ? null : instancesByIndex.get(instance);
+	}
+
+	/**
+	 * @return the number of documents the stages of the group have been given
+	 * and not yet persisted
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Stops handing out documents to the stages of the group. The group keeps
+	 * running, so that it can persist the documents it is working on.
+	 */
+	public void startDraining() {
+		if (!draining) {
+			logger.info("Draining stage group " + stageGroup.getName() + ", " + inFlight.get() + " documents in flight");
+			draining = true;
+		}
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Waits for the stages of a draining group to persist the documents they
+	 * are working on, or for the group to stop on its own.
+	 *
+	 * @return true if the group was drained within the timeout
+	 */
+	public boolean awaitDrained(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (inFlight) {
+			while (inFlight.get() > 0 && (isAlive() || !started)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				// Bounded, so that a group that dies while draining is noticed
+				inFlight.wait(Math.min(remaining, 100));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drains the group and then destroys it. Documents still in flight when
+	 * the timeout runs out are left to be recovered, as with {@link #destroy()}.
+	 */
+	public void drain(long timeout) {
+		startDraining();
+		try {
+			if (!awaitDrained(timeout)) {
+				logger.warn("Stage group " + stageGroup.getName() + " did not drain within " + timeout + "ms, abandoning " + inFlight.get() + " documents");
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while draining stage group " + stageGroup.getName());
+			Thread.currentThread().interrupt();
+		}
+		destroy();
+	}
+
 	public StageRunner(StageGroup stageGroup, File baseDirectory, int pipelinePort, boolean performanceLogging, int loggingPort, ShutdownHandler shutdownHandler) {
 		this.stageGroup = stageGroup;
 		this.baseDirectory = baseDirectory;
@@ -85,7 +262,13 @@ public class StageRunner extends Thread {
 			throw new IOException("Unable to write files, target (" + targetDirectory.getAbsolutePath() + ") is not a directory");
 		}
 
+		LibraryStore store = new LibraryStore(new File(baseDirectory, LibraryStore.STORE_DIRECTORY));
 		for (DatabaseFile df : stageGroup.getDatabaseFiles()) {
+			File stored = store.get(df);
+			if (stored != null) {
+				files.add(stored);
+				continue;
+			}
 			File f = new File(targetDirectory, df.getFilename());
 			files.add(f);
 			InputStream dfis = df.getInputStream();
@@ -98,6 +281,10 @@ public class StageRunner extends Thread {
 				IOUtils.closeQuietly(dfis);
 				IOUtils.closeQuietly(fos);
 			}
+			// A class data sharing archive is only valid for libraries with the same modification time
+			if (df.getUploadDate() != null) {
+				f.setLastModified(df.getUploadDate().getTime());
+			}
 		}
 
 		stageDestroyer = new StageDestroyer();
@@ -108,6 +295,12 @@ public class StageRunner extends Thread {
 			setParameters(stageGroup.getStages().iterator().next().getProperties());
 		}
 
+		archive = null;
+		// Only runners that launch a JVM of their own can use an archive
+		if (stageGroup.isClassDataSharing() && supportsInstances() && ClassDataSharing.isKnownToBeSupported(java)) {
+			archive = new ClassDataSharing(new File(baseDirectory, ARCHIVE_DIRECTORY)).getArchive(stageGroup.getName(), java, files);
+		}
+
 		prepared = true;
 	}
 
@@ -128,6 +321,19 @@ public class StageRunner extends Thread {
 		} else {
 			timesToRetry = -1;
 		}
+		// Only the group decides these, so a single stage without the settings does not reset them
+		if (conf.containsKey(StageGroup.VIRTUAL_THREADS_KEY) && conf.get(StageGroup.VIRTUAL_THREADS_KEY) != null) {
+			virtualThreads = (Boolean) conf.get(StageGroup.VIRTUAL_THREADS_KEY);
+		}
+		if (conf.containsKey(StageGroup.INSTANCES_KEY) && conf.get(StageGroup.INSTANCES_KEY) != null) {
+			instances = Math.max(1, (Integer) conf.get(StageGroup.INSTANCES_KEY));
+			targetInstances = instances;
+		}
+		if (conf.containsKey(StageGroup.MAX_INSTANCES_KEY) && conf.get(StageGroup.MAX_INSTANCES_KEY) != null) {
+			maxInstances = Math.max(instances, (Integer) conf.get(StageGroup.MAX_INSTANCES_KEY));
+		} else {
+			maxInstances = Math.max(instances, maxInstances);
+		}
 	}
 
 	public void run() {
@@ -142,22 +348,132 @@ public class StageRunner extends Thread {
 			return;
 		}
 
+		if (maxInstances > 1 && supportsInstances()) {
+			superviseInstances();
+		} else {
+			runWithRetries(null);
+		}
+	}
+
+	/**
+	 * Runs the group, or a single instance of it, restarting it when it fails.
+	 * With several instances, the retries are shared by all of them.
+	 *
+	 * @return true if it was stopped by a call to destroy(), or by the instance being retired
+	 */
+	private boolean runWithRetries(Instance instance) {
+		String name = (instance == null) ? stageGroup.getName() : instance.getInstanceName();
+		int count;
 		do {
-			logger.info("Starting stage group " + stageGroup.getName()
-					+ ". Times started so far: " + timesStarted);
-			timesStarted++;
-			boolean cleanShutdown = runGroup();
+			synchronized (this) {
+				count = timesStarted++;
+			}
+			logger.info("Starting stage group " + name
+					+ ". Times started so far: " + count);
+			boolean cleanShutdown = (instance == null) ? runGroup() : runProcess(instance);
+			if (instance != null) {
+				instance.abandonInFlight();
+			}
 			if (cleanShutdown) {
-				return;
+				return true;
 			}
 			if (!hasQueried()) {
-				logger.error("The stage group " + stageGroup.getName() + " did not start. It will not be restarted until configuration changes.");
-				return;
+				logger.error("The stage group " + name + " did not start. It will not be restarted until configuration changes.");
+				return false;
 			}
-		} while ((timesToRetry == -1 || timesToRetry >= timesStarted) && !shutdownHandler.isShuttingDown());
+			synchronized (this) {
+				count = timesStarted;
+			}
+		} while ((timesToRetry == -1 || timesToRetry >= count) && !shutdownHandler.isShuttingDown() && !wasKilled);
 
-		logger.error("Stage group " + stageGroup.getName()
+		logger.error("Stage group " + name
 				+ " has failed and cannot be restarted. ");
+		return false;
+	}
+
+	/**
+	 * Whether this runner can run a group as several processes. Runners that
+	 * do not launch a process of their own for the group can not.
+	 */
+	protected boolean supportsInstances() {
+		return true;
+	}
+
+	/**
+	 * Keeps the number of running instances at the target, which is between
+	 * the configured minimum and maximum. Should an instance fail and not be
+	 * restarted, all instances are stopped, the same way a single process
+	 * group would have stopped.
+	 */
+	private void superviseInstances() {
+		logger.info("Running stage group " + stageGroup.getName() + " as " + instances
+				+ (maxInstances > instances ? " to " + maxInstances : "") + " instances");
+		int nextIndex = 0;
+		synchronized (runningInstances) {
+			while (!wasKilled && !shutdownHandler.isShuttingDown()) {
+				for (Iterator<Instance> it = runningInstances.iterator(); it.hasNext();) {
+					Instance instance = it.next();
+					if (!instance.isAlive()) {
+						it.remove();
+						if (!instance.isRetired() && !wasKilled) {
+							logger.error("Instance " + instance.getInstanceName() + " has stopped, stopping all instances of the group");
+							retireAll();
+							return;
+						}
+					}
+				}
+				while (runningInstances.size() < targetInstances) {
+					Instance instance = new Instance(nextIndex++);
+					runningInstances.add(instance);
+					instance.start();
+				}
+				while (runningInstances.size() > targetInstances) {
+					Instance instance = runningInstances.remove(runningInstances.size() - 1);
+					logger.info("Retiring instance " + instance.getInstanceName());
+					instance.retire();
+				}
+				try {
+					runningInstances.wait(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void retireAll() {
+		for (Instance instance : runningInstances) {
+			instance.retire();
+		}
+		runningInstances.clear();
+	}
+
+	/**
+	 * Sets how many instances of the group should be running, within the
+	 * configured minimum and maximum.
+	 */
+	public void setTargetInstances(int target) {
+		int bounded = Math.max(instances, Math.min(maxInstances, target));
+		if (bounded != targetInstances) {
+			logger.info("Scaling stage group " + stageGroup.getName() + " from " + targetInstances + " to " + bounded + " instances");
+			targetInstances = bounded;
+			synchronized (runningInstances) {
+				runningInstances.notifyAll();
+			}
+		}
+	}
+
+	public int getTargetInstances() {
+		return targetInstances;
+	}
+
+	public int getMinInstances() {
+		return instances;
+	}
+
+	public int getMaxInstances() {
+		return maxInstances;
 	}
 
 	public void printJavaVersion() {
@@ -179,9 +495,27 @@ public class StageRunner extends Thread {
 	 *
 	 * @return true if the stage was killed by a call to the destroy()-method. false otherwise.
 	 */
-	private boolean runGroup() {
+	protected boolean runGroup() {
+		return runProcess(null);
+	}
+
+	private boolean runProcess(Instance instance) {
+		String name = (instance == null) ? stageGroup.getName() : instance.getInstanceName();
 		CommandLine cmdLine = new CommandLine(java);
 		cmdLine.addArgument(jvmParameters, false);
+		for (String property : getSystemPropertyArguments()) {
+			cmdLine.addArgument(property);
+		}
+		File newArchive = addClassDataSharingArguments(cmdLine);
+		if (instance != null) {
+			cmdLine.addArgument("-D" + RemotePipeline.INSTANCE_PROPERTY + "=" + instance.index);
+		}
+		if (stageGroup.isSharedMemoryTransport()) {
+			File ring = startSharedMemoryServer(getRingName(instance));
+			if (ring != null) {
+				cmdLine.addArgument("-D" + SharedMemoryRing.FILE_PROPERTY + "=" + ring.getAbsolutePath());
+			}
+		}
 		cmdLine.addArgument("-cp");
 		cmdLine.addArgument("${classpath}", false);
 		cmdLine.addArgument(GroupStarter.class.getCanonicalName());
@@ -206,37 +540,178 @@ public class StageRunner extends Thread {
 		try {
 			Process p = cl.exec(cmdLine, null);
 			new StreamLogger(
-					String.format("%s (stdout)", stageGroup.getName()),
+					String.format("%s (stdout)", name),
 					p.getInputStream()
 			).start();
 			new StreamLogger(
-					String.format("%s (stderr)", stageGroup.getName()),
+					String.format("%s (stderr)", name),
 					p.getErrorStream()
 			).start();
 
 			stageDestroyer.add(p);
+			if (instance != null) {
+				instance.setProcess(p);
+			}
 
 			exitValue = p.waitFor();
+			stageDestroyer.remove(p);
 
 		} catch (InterruptedException e) {
 			throw new IllegalStateException("Caught Interrupt while waiting for process exit", e);
 		} catch (IOException e) {
 			logger.error("Caught IOException while running command", e);
 			return false;
+		} finally {
+			if (newArchive != null) {
+				finishArchive(newArchive);
+			}
 		}
 
+		if (instance != null && instance.isRetired()) {
+			return true;
+		}
 		if (!wasKilled) {
-			logger.error("Stage group " + stageGroup.getName()
+			logger.error("Stage group " + name
 					+ " terminated unexpectedly with exit value " + exitValue);
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * @return the options setting the system properties that the stages of
+	 * the group read their virtual threads, wire format and compression
+	 * settings from
+	 */
+	protected List<String> getSystemPropertyArguments() {
+		return getSystemPropertyArguments(virtualThreads, stageGroup.getWireFormat(), stageGroup.getCompression());
+	}
+
+	/**
+	 * @return the options setting the system properties that stages read the
+	 * given group settings from, for JVMs launched by core or by an agent
+	 */
+	public static List<String> getSystemPropertyArguments(boolean virtualThreads, String wireFormat, String compression) {
+		List<String> args = new ArrayList<String>();
+		if (virtualThreads) {
+			args.add("-D" + StageThreads.VIRTUAL_THREADS_PROPERTY + "=true");
+		}
+		if (RemotePipeline.BSON_WIRE_FORMAT.equals(wireFormat)) {
+			args.add("-D" + RemotePipeline.WIRE_FORMAT_PROPERTY + "=" + RemotePipeline.BSON_WIRE_FORMAT);
+		}
+		if (compression != null && !StageGroup.NO_COMPRESSION.equals(compression)) {
+			args.add("-D" + HttpCompression.COMPRESSION_PROPERTY + "=" + compression);
+		}
+		return args;
+	}
+
+	/**
+	 * Adds the options that make the JVM use the archive of the group or, if
+	 * there is none yet and no other instance is creating it, create it.
+	 *
+	 * @return the file that the JVM writes a new archive to, or null
+	 */
+	private File addClassDataSharingArguments(CommandLine cmdLine) {
+		if (archive == null) {
+			return null;
+		}
+		List<String> args = ClassDataSharing.getUseArguments(archive);
+		if (args != null) {
+			for (String arg : args) {
+				cmdLine.addArgument(arg);
+			}
+			return null;
+		}
+		if (!archiving.compareAndSet(false, true)) {
+			return null;
+		}
+		// Written next to the archive, which is only replaced once the JVM has exited
+		File newArchive = new File(archive.getPath() + ".tmp");
+		FileUtils.deleteQuietly(newArchive);
+		logger.info("Stage group " + stageGroup.getName() + " will create a class data sharing archive when it exits");
+		cmdLine.addArgument(ClassDataSharing.getCreateArgument(newArchive));
+		return newArchive;
+	}
+
+	private void finishArchive(File newArchive) {
+		try {
+			if (newArchive.isFile() && newArchive.length() > 0) {
+				if (newArchive.renameTo(archive)) {
+					logger.info("Created class data sharing archive " + archive.getName() + " for stage group " + stageGroup.getName());
+				} else {
+					logger.warn("Unable to store class data sharing archive " + archive.getAbsolutePath());
+				}
+			}
+			FileUtils.deleteQuietly(newArchive);
+		} finally {
+			archiving.set(false);
+		}
+	}
+
+	/**
+	 * @return the class data sharing archive of the group, which may not have
+	 * been created yet, or null if the group does not use one
+	 */
+	public File getArchive() {
+		return archive;
+	}
+
+	/**
+	 * @return the name of the ring of the group, or of an instance of it
+	 */
+	private String getRingName(Instance instance) {
+		return (instance == null) ? stageGroup.getName() : stageGroup.getName() + "-" + instance.index;
+	}
+
+	/**
+	 * Starts serving requests through the ring, or frees all its slots if it
+	 * was already started for a previous run of the same process.
+	 *
+	 * @return the file of the ring, or null if the process has to use HTTP
+	 */
+	private File startSharedMemoryServer(String ringName) {
+		if (localHandler == null) {
+			logger.warn("No handler available for shared memory requests, stage group " + stageGroup.getName() + " will talk to core over HTTP");
+			return null;
+		}
+		try {
+			synchronized (sharedMemoryServers) {
+				SharedMemoryServer server = sharedMemoryServers.get(ringName);
+				if (server == null) {
+					// Kept outside the target directory, so that it does not end up on the classpath
+					server = new SharedMemoryServer(new File(baseDirectory, ringName + ".ring"), localHandler);
+					server.start();
+					sharedMemoryServers.put(ringName, server);
+				} else {
+					server.reset();
+				}
+				return server.getFile();
+			}
+		} catch (IOException e) {
+			logger.error("Unable to create shared memory ring for " + ringName + ", it will talk to core over HTTP", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stops serving requests through the ring, once the process using it will
+	 * not be started again
+	 */
+	private void stopSharedMemoryServer(String ringName) {
+		SharedMemoryServer server;
+		synchronized (sharedMemoryServers) {
+			server = sharedMemoryServers.remove(ringName);
+		}
+		if (server != null) {
+			server.shutdown();
+			FileUtils.deleteQuietly(server.getFile());
+		}
+	}
+
 	private String getClassPath() {
-		String[] jarPaths = targetDirectory.list();
+		String[] jarPaths = new String[files.size()];
 		for (int i = 0; i < jarPaths.length; i++) {
-			jarPaths[i] = targetDirectory.getAbsolutePath() + File.separator + jarPaths[i];
+			jarPaths[i] = files.get(i).getAbsolutePath();
 		}
 		return StringUtils.join(jarPaths, File.pathSeparator);
 	}
@@ -248,6 +723,11 @@ public class StageRunner extends Thread {
 	public void destroy() {
 		logger.debug("Attempting to destroy JVM running stage group "
 				+ stageGroup.getName());
+		// Set first, so that instances killed below are not restarted
+		wasKilled = true;
+		synchronized (runningInstances) {
+			runningInstances.notifyAll();
+		}
 		boolean success = stageDestroyer.killAll();
 		if (success) {
 			logger.debug("... destruction successful");
@@ -258,9 +738,15 @@ public class StageRunner extends Thread {
 					+ stageGroup.getName());
 		}
 
-		removeFiles();
+		List<String> rings;
+		synchronized (sharedMemoryServers) {
+			rings = new ArrayList<String>(sharedMemoryServers.keySet());
+		}
+		for (String ring : rings) {
+			stopSharedMemoryServer(ring);
+		}
 
-		wasKilled = true;
+		removeFiles();
 	}
 
 	private void removeFiles() {
@@ -290,10 +776,163 @@ public class StageRunner extends Thread {
 		return stageGroup;
 	}
 
+	/**
+	 * Replaces the group of this runner with a new version of it, whose
+	 * changes the running stages apply themselves, see
+	 * {@link com.findwise.hydra.stage.ProcessStageRunner}. The new version must
+	 * have the same name, stages, libraries and group properties.
+	 */
+	public void reconfigure(StageGroup stageGroup) {
+		this.stageGroup = stageGroup;
+	}
+
+	/**
+	 * @return the library files of the group, as written by prepare()
+	 */
+	protected List<File> getFiles() {
+		return files;
+	}
+
+	/**
+	 * @return the JVM parameters of the group, as set by prepare()
+	 */
+	protected String getJvmParameters() {
+		return jvmParameters;
+	}
+
+	/**
+	 * @return the java executable of the group, as set by prepare()
+	 */
+	protected String getJava() {
+		return java;
+	}
+
+	/**
+	 * Sets the handler serving requests made by the group through a shared
+	 * memory ring, when it is configured to use one.
+	 */
+	public void setLocalHandler(HttpRESTHandler<?> localHandler) {
+		this.localHandler = localHandler;
+	}
+
 	public boolean isStarted() {
 		return started;
 	}
 
+	/**
+	 * One of several processes running the same group, which share the work
+	 * through the fetch tagging of documents, the same way the threads of a
+	 * stage do.
+	 */
+	private class Instance extends Thread {
+		private final int index;
+		private Process process;
+		private boolean retired = false;
+		private volatile boolean draining = false;
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+
+		public Instance(int index) {
+			super("StageRunner-" + stageGroup.getName() + "#" + index);
+			this.index = index;
+			setDaemon(true);
+			instancesByIndex.put(String.valueOf(index), this);
+		}
+
+		@Override
+		public void run() {
+			try {
+				runWithRetries(this);
+			} finally {
+				instancesByIndex.remove(String.valueOf(index));
+			}
+			stopSharedMemoryServer(getRingName(this));
+			synchronized (runningInstances) {
+				runningInstances.notifyAll();
+			}
+		}
+
+		public String getInstanceName() {
+			return stageGroup.getName() + "#" + index;
+		}
+
+		public synchronized void setProcess(Process process) {
+			this.process = process;
+			if (retired) {
+				process.destroy();
+			}
+		}
+
+		public synchronized boolean isRetired() {
+			return retired;
+		}
+
+		/**
+		 * Stops handing out documents to the instance, and destroys its process
+		 * once it has persisted the documents it is working on, or once
+		 * {@link #INSTANCE_DRAIN_TIMEOUT} has passed. Does not wait for either.
+		 */
+		public synchronized void retire() {
+			retired = true;
+			draining = true;
+			if (process == null) {
+				return;
+			}
+			logger.info("Draining instance " + getInstanceName() + ", " + inFlight.get() + " documents in flight");
+			Thread drainer = new Thread(getName() + "-drain") {
+				@Override
+				public void run() {
+					try {
+						if (!awaitDrained(INSTANCE_DRAIN_TIMEOUT)) {
+							logger.warn("Instance " + getInstanceName() + " did not drain within " + INSTANCE_DRAIN_TIMEOUT + "ms, abandoning " + inFlight.get() + " documents");
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					destroyProcess();
+				}
+			};
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+
+		/**
+		 * Forgets the documents the process of the instance had fetched, once it
+		 * has exited, so that they no longer hold up draining the group.
+		 */
+		private void abandonInFlight() {
+			int abandoned = inFlight.getAndSet(0);
+			if (abandoned == 0) {
+				return;
+			}
+			logger.warn("Instance " + getInstanceName() + " exited with " + abandoned + " documents in flight");
+			for (int n = 0; n < abandoned; n++) {
+				decrement(StageRunner.this.inFlight);
+			}
+			synchronized (inFlight) {
+				inFlight.notifyAll();
+			}
+		}
+
+		private synchronized void destroyProcess() {
+			process.destroy();
+		}
+
+		private boolean awaitDrained(long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			synchronized (inFlight) {
+				while (inFlight.get() > 0 && isAlive()) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					// Bounded, so that an instance that dies while draining is noticed
+					inFlight.wait(Math.min(remaining, 100));
+				}
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * Manages the destruction of any Stages launched in this wrapper.
 	 * Automatically binds to the Runtime to shut down along with the master
@@ -315,13 +954,17 @@ public class StageRunner extends Thread {
 			 * Register this destroyer to Runtime in order to avoid orphaned
 			 * processes if the main JVM dies
 			 */
-			processes.add(p);
+			synchronized (processes) {
+				processes.add(p);
+			}
 			return true;
 		}
 
 		@Override
 		public boolean remove(Process p) {
-			return processes.remove(p);
+			synchronized (processes) {
+				return processes.remove(p);
+			}
 		}
 
 		@Override
@@ -0,0 +1,139 @@
+package com.findwise.hydra.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseType;
+
+/**
+ * Decides whether core admits new documents, so that producers are held back
+ * while the pipeline is behind, rather than growing the active documents until
+ * every query of the stages slows down.
+ * <p/>
+ * New documents are not admitted while any of the configured limits is
+ * exceeded: the number of active documents, the measured latency of writes to
+ * the database or the number of documents in the cache. A limit of 0 is no
+ * limit.
+ * <p/>
+ * The latency is only measured once this is set as the write listener of the
+ * {@link CachingDocumentNIO}, which times the writes that go past the cache.
+ */
+public class AdmissionControl<T extends DatabaseType> implements CachingDocumentNIO.WriteListener {
+	private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+	/**
+	 * How often the active documents are counted, as counting them is a query
+	 * of its own
+	 */
+	static final long COUNT_INTERVAL = 1000;
+	/**
+	 * How long a latency measurement is trusted. Writes are only measured when
+	 * they happen, so with no recent writes the latency is not held against new
+	 * documents.
+	 */
+	static final long LATENCY_MAX_AGE = 10000;
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final CachingDocumentNIO<T> io;
+	private final long maxActiveDocuments;
+	private final int maxLatency;
+	private final int maxCachedDocuments;
+	private final int retryAfter;
+
+	private final AtomicLong nextCount = new AtomicLong(0);
+	private volatile long activeDocuments = 0;
+
+	private double latency = 0;
+	private long lastMeasurement = 0;
+
+	/**
+	 * @param maxLatency average write latency, in milliseconds
+	 * @param retryAfter seconds that producers are told to wait before trying again
+	 */
+	public AdmissionControl(CachingDocumentNIO<T> io, long maxActiveDocuments, int maxLatency, int maxCachedDocuments, int retryAfter) {
+		this.io = io;
+		this.maxActiveDocuments = maxActiveDocuments;
+		this.maxLatency = maxLatency;
+		this.maxCachedDocuments = maxCachedDocuments;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return null if a new document is admitted, otherwise why it is not
+	 */
+	public String check() {
+		if (maxActiveDocuments > 0) {
+			long active = getActiveDocuments();
+			if (active >= maxActiveDocuments) {
+				return reject("there are " + active + " active documents, the limit is " + maxActiveDocuments);
+			}
+		}
+		if (maxLatency > 0) {
+			long average = getLatency();
+			if (average > maxLatency) {
+				return reject("database writes take " + average + "ms, the limit is " + maxLatency + "ms");
+			}
+		}
+		if (maxCachedDocuments > 0) {
+			int cached = io.getCacheSize();
+			if (cached >= maxCachedDocuments) {
+				return reject("there are " + cached + " cached documents, the limit is " + maxCachedDocuments);
+			}
+		}
+		return null;
+	}
+
+	private String reject(String reason) {
+		logger.debug("Not admitting new document, " + reason);
+		return reason;
+	}
+
+	private long getActiveDocuments() {
+		long now = System.currentTimeMillis();
+		long next = nextCount.get();
+		if (now >= next && nextCount.compareAndSet(next, now + COUNT_INTERVAL)) {
+			activeDocuments = io.getActiveDatabaseSize();
+		}
+		return activeDocuments;
+	}
+
+	/**
+	 * Records how long a write to the database took.
+	 */
+	public synchronized void recordLatency(long millis) {
+		long now = System.currentTimeMillis();
+		if (now - lastMeasurement > LATENCY_MAX_AGE) {
+			latency = millis;
+		} else {
+			latency = LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * latency;
+		}
+		lastMeasurement = now;
+	}
+
+	@Override
+	public void written(long millis) {
+		recordLatency(millis);
+	}
+
+	/**
+	 * @return the moving average of the write latency, or 0 if there have
+	 * been no recent writes
+	 */
+	public synchronized long getLatency() {
+		if (System.currentTimeMillis() - lastMeasurement > LATENCY_MAX_AGE) {
+			return 0;
+		}
+		return Math.round(latency);
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	public boolean isEnabled() {
+		return maxActiveDocuments > 0 || maxLatency > 0 || maxCachedDocuments > 0;
+	}
+}
@@ -0,0 +1,115 @@
+package com.findwise.hydra.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NFileEntity;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.AgentRegistry;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.StageAgent;
+import com.findwise.hydra.net.RESTTools.Method;
+
+/**
+ * Serves the stage agents: their heartbeats, answered with the groups
+ * assigned to them, and the library files of those groups.
+ */
+public class AgentHandler implements ResponsibleHandler {
+	private static Logger logger = LoggerFactory.getLogger(AgentHandler.class);
+
+	private final AgentRegistry registry;
+
+	public AgentHandler(AgentRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public void handle(HttpRequest request, HttpResponse response,
+			HttpContext context) throws HttpException, IOException {
+		String agent = getDecodedParam(request, StageAgent.AGENT_PARAM);
+		if (agent == null) {
+			HttpResponseWriter.printMissingParameter(response, StageAgent.AGENT_PARAM);
+			return;
+		}
+		if (StageAgent.HEARTBEAT_URL.equals(RESTTools.getBaseUrl(request))) {
+			handleHeartbeat(request, response, context, agent);
+		} else {
+			handleLibrary(request, response, agent);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handleHeartbeat(HttpRequest request, HttpResponse response,
+			HttpContext context, String agent) throws IOException {
+		String requestContent = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+		Map<String, String> status = new HashMap<String, String>();
+		if (!requestContent.isEmpty()) {
+			try {
+				status = (Map<String, String>) SerializationUtils.toObject(requestContent);
+			} catch (JsonException e) {
+				HttpResponseWriter.printJsonException(response, e);
+				return;
+			}
+		}
+		HttpResponseWriter.printJson(response, registry.heartbeat(agent, getRemoteAddress(context), status));
+	}
+
+	private void handleLibrary(HttpRequest request, HttpResponse response, String agent) throws IOException {
+		String group = getDecodedParam(request, StageAgent.GROUP_PARAM);
+		String fileName = getDecodedParam(request, StageAgent.FILE_PARAM);
+		if (group == null || fileName == null) {
+			HttpResponseWriter.printMissingParameter(response, group == null ? StageAgent.GROUP_PARAM : StageAgent.FILE_PARAM);
+			return;
+		}
+		File file = registry.getFile(agent, group, fileName);
+		if (file == null || !file.isFile()) {
+			HttpResponseWriter.printFileNotFound(response, fileName);
+			return;
+		}
+		logger.debug("Sending library " + fileName + " of stage group " + group + " to agent " + agent);
+		response.setStatusCode(HttpStatus.SC_OK);
+		response.setEntity(new NFileEntity(file, ContentType.APPLICATION_OCTET_STREAM));
+	}
+
+	private static String getDecodedParam(HttpRequest request, String param) throws IOException {
+		String value = RESTTools.getParam(request, param);
+		return (value == null) ? null : URLDecoder.decode(value, "UTF-8");
+	}
+
+	private static String getRemoteAddress(HttpContext context) {
+		Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		if (connection instanceof HttpInetConnection) {
+			return String.valueOf(((HttpInetConnection) connection).getRemoteAddress());
+		}
+		return "unknown";
+	}
+
+	@Override
+	public boolean supports(HttpRequest request) {
+		String url = RESTTools.getBaseUrl(request);
+		Method method = RESTTools.getMethod(request);
+		return (method == Method.POST && StageAgent.HEARTBEAT_URL.equals(url))
+				|| (method == Method.GET && StageAgent.LIBRARY_URL.equals(url));
+	}
+
+	@Override
+	public String[] getSupportedUrls() {
+		return new String[] { StageAgent.HEARTBEAT_URL, StageAgent.LIBRARY_URL };
+	}
+}
@@ -0,0 +1,66 @@
+package com.findwise.hydra.net;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.tools.HttpCompression;
+
+/**
+ * Decompresses gzipped request bodies before handing requests on, and
+ * compresses the bodies of responses to stages that accept it. Every response
+ * tells that compressed request bodies are read, see {@link HttpCompression}.
+ */
+public class CompressionHandler implements HttpRequestHandler {
+	private static final Logger logger = LoggerFactory.getLogger(CompressionHandler.class);
+
+	private final HttpRequestHandler handler;
+	private final HttpCompression compression;
+
+	public CompressionHandler(HttpRequestHandler handler, HttpCompression compression) {
+		this.handler = handler;
+		this.compression = compression;
+	}
+
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = enclosing.getEntity();
+			if (entity != null && HttpCompression.isGzipped(entity)) {
+				try {
+					enclosing.setEntity(compression.decompress(entity));
+				} catch (IOException e) {
+					logger.error("Unable to decompress request body: " + e.getMessage());
+					HttpResponseWriter.printBadRequestContent(response);
+					return;
+				}
+			}
+		}
+
+		handler.handle(request, response, context);
+
+		response.addHeader(HttpCompression.ACCEPT_ENCODING, HttpCompression.GZIP);
+		HttpEntity entity = response.getEntity();
+		if (compression.shouldCompress(entity) && HttpCompression.listsGzip(request, HttpCompression.ACCEPT_ENCODING)) {
+			NByteArrayEntity compressed = new NByteArrayEntity(compression.compress(EntityUtils.toByteArray(entity)));
+			compressed.setContentType(entity.getContentType());
+			compressed.setContentEncoding(HttpCompression.GZIP);
+			response.setEntity(compressed);
+		}
+	}
+
+	public HttpCompression getCompression() {
+		return compression;
+	}
+}
@@ -15,6 +15,7 @@ import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.findwise.hydra.AgentRegistry;
 import com.findwise.hydra.CachingDocumentNIO;
 import com.findwise.hydra.DatabaseConnector;
 import com.findwise.hydra.DatabaseType;
@@ -40,6 +41,10 @@ public class HttpRESTHandler<T extends DatabaseType> implements
 
 	private PingHandler pingHandler;
 
+	private AgentRegistry agentRegistry;
+
+	private AdmissionControl<T> admissionControl;
+
 	private PingHandler getPingHandler() {
 		if (pingHandler == null) {
 			pingHandler = new PingHandler(restId);
@@ -62,12 +67,35 @@ public class HttpRESTHandler<T extends DatabaseType> implements
 	}
 
 	private void createHandlers() {
-		handlers = new ResponsibleHandler[] { new FileHandler<T>(documentIO),
-				new PropertiesHandler<T>(pipelineReader),
-				new MarkHandler<T>(documentIO, performanceLogging),
-				new QueryHandler<T>(documentIO, performanceLogging),
-				new ReleaseHandler<T>(documentIO),
-				new WriteHandler<T>(documentIO, performanceLogging) };
+		List<ResponsibleHandler> list = new ArrayList<ResponsibleHandler>();
+		list.add(new FileHandler<T>(documentIO));
+		list.add(new PropertiesHandler<T>(pipelineReader));
+		list.add(new MarkHandler<T>(documentIO, performanceLogging));
+		list.add(new QueryHandler<T>(documentIO, performanceLogging));
+		list.add(new ReleaseHandler<T>(documentIO));
+		list.add(new WriteHandler<T>(documentIO, performanceLogging, admissionControl));
+		list.add(new InsertHandler<T>(documentIO, performanceLogging, admissionControl));
+		if (agentRegistry != null) {
+			list.add(new AgentHandler(agentRegistry));
+		}
+		handlers = list.toArray(new ResponsibleHandler[list.size()]);
+	}
+
+	/**
+	 * Makes this handler serve stage agents, as tracked by the given registry.
+	 * Must be called before the first request is handled.
+	 */
+	public void setAgentRegistry(AgentRegistry agentRegistry) {
+		this.agentRegistry = agentRegistry;
+	}
+
+	/**
+	 * Makes this handler hold back new documents while the given admission
+	 * control does not admit them. Must be called before the first request is
+	 * handled.
+	 */
+	public void setAdmissionControl(AdmissionControl<T> admissionControl) {
+		this.admissionControl = admissionControl;
 	}
 
 	private ResponsibleHandler[] getHandlers() {
@@ -100,6 +128,16 @@ public class HttpRESTHandler<T extends DatabaseType> implements
 			HttpResponseWriter.printAccessDenied(response);
 			return;
 		}
+		handleLocal(request, response, context);
+	}
+
+	/**
+	 * Handles a request from a stage on this host, without checking the
+	 * allowed hosts. Used by transports other than HTTP, which have no remote
+	 * address.
+	 */
+	public void handleLocal(final HttpRequest request, final HttpResponse response,
+			final HttpContext context) {
 		try {
 			logger.trace("Parsing incoming request");
 
@@ -1,8 +1,14 @@
 package com.findwise.hydra.net;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
 import org.apache.http.nio.entity.NStringEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +16,8 @@ import org.slf4j.LoggerFactory;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
 
 /**
  * This class provides methods for writing output to a HttpResponse.
@@ -22,10 +30,28 @@ public final class HttpResponseWriter {
 	private HttpResponseWriter() {} // Should not be possible to instantiate
 	
 	public static final ContentType CONTENT_TYPE = ContentType.create("application/json", "UTF-8");
+	public static final ContentType BSON_CONTENT_TYPE = ContentType.create(RemotePipeline.BSON_CONTENT_TYPE);
 
 	private static void setStringEntity(HttpResponse response, String content) {
 		response.setEntity(new NStringEntity(content, CONTENT_TYPE));
 	}
+
+	/**
+	 * Serializes the object straight to the encoded bytes of the entity,
+	 * without going through a string
+	 */
+	private static void setJsonEntity(HttpResponse response, Object o) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			Writer writer = new OutputStreamWriter(bytes, CONTENT_TYPE.getCharset());
+			SerializationUtils.toJson(o, writer);
+			writer.close();
+		} catch (IOException e) {
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		response.setEntity(new NByteArrayEntity(bytes.toByteArray(), CONTENT_TYPE));
+	}
 	
 	protected static void printDocument(HttpResponse response, Document<?> d, String stage) {
 		logger.debug("Printing document with ID " + d.getID() + " to stage " + stage);
@@ -33,6 +59,17 @@ public final class HttpResponseWriter {
 		setStringEntity(response, d.toJson());
 	}
 
+	/**
+	 * Prints the document in BSON, for stages that ask for it
+	 */
+	protected static void printBsonDocument(HttpResponse response, Document<?> d, String stage) {
+		logger.debug("Printing document with ID " + d.getID() + " in BSON to stage " + stage);
+		response.setStatusCode(HttpStatus.SC_OK);
+		LocalDocument ld = new LocalDocument();
+		ld.putAll(d);
+		response.setEntity(new NByteArrayEntity(ld.toBson(), BSON_CONTENT_TYPE));
+	}
+
 	protected static void printDocumentReleased(HttpResponse response) {
 		logger.debug("Printing release successful");
 		response.setStatusCode(HttpStatus.SC_OK);
@@ -114,12 +151,25 @@ public final class HttpResponseWriter {
 		setStringEntity(response, d.contentFieldsToJson(null));
 	}
 
+	protected static void printBulkInsertResults(HttpResponse response, String results) {
+		response.setStatusCode(HttpStatus.SC_OK);
+		setStringEntity(response, results);
+	}
+
 	protected static void printInsertFailed(HttpResponse response) {
 		logger.error("Failed to insert the document");
 		response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
 		setStringEntity(response, "An error occurred while inserting the document");
 	}
 
+	protected static void printTooManyRequests(HttpResponse response, int retryAfter, String reason) {
+		logger.debug("Printing too many requests, retry after " + retryAfter + "s");
+		response.setStatusCode(RemotePipeline.TOO_MANY_REQUESTS);
+		response.setReasonPhrase("Too Many Requests");
+		response.setHeader(RemotePipeline.RETRY_AFTER_HEADER, "" + retryAfter);
+		setStringEntity(response, "New documents are not admitted at the moment, " + reason);
+	}
+
 	protected static void printReleaseFailed(HttpResponse response) {
 		logger.error("Failed to release the document");
 		response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
@@ -141,7 +191,7 @@ public final class HttpResponseWriter {
 	protected static void printJson(HttpResponse response, Object o) {
 		logger.debug("Printing a JSON response.");
 		response.setStatusCode(HttpStatus.SC_OK);
-		setStringEntity(response, SerializationUtils.toJson(o));
+		setJsonEntity(response, o);
 	}
 
 	protected static void printID(HttpResponse response, String uuid) {
@@ -0,0 +1,150 @@
+package com.findwise.hydra.net;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DatabaseType;
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.net.RESTTools.Method;
+
+/**
+ * Inserts several new documents in one request. The request has one document
+ * per line, as newline delimited JSON, and is answered with one line per
+ * document: the ID it was inserted with, or {@link RemotePipeline#INSERT_FAILED}.
+ * A document that can not be read or inserted does not fail the others.
+ */
+public class InsertHandler<T extends DatabaseType> implements ResponsibleHandler {
+	private static Logger logger = LoggerFactory.getLogger(InsertHandler.class);
+
+	private CachingDocumentNIO<T> io;
+	private boolean performanceLogging;
+	private AdmissionControl<T> admissionControl;
+
+	/**
+	 * @param admissionControl decides whether new documents are inserted, or
+	 * null to insert all of them
+	 */
+	public InsertHandler(CachingDocumentNIO<T> io, boolean performanceLogging, AdmissionControl<T> admissionControl) {
+		this.io = io;
+		this.performanceLogging = performanceLogging;
+		this.admissionControl = admissionControl;
+	}
+
+	@Override
+	public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+		long start = System.currentTimeMillis();
+		String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
+		if (stage == null) {
+			HttpResponseWriter.printMissingParameter(response, RemotePipeline.STAGE_PARAM);
+			return;
+		}
+		if (admissionControl != null) {
+			String reason = admissionControl.check();
+			if (reason != null) {
+				HttpResponseWriter.printTooManyRequests(response, admissionControl.getRetryAfter(), reason);
+				return;
+			}
+		}
+
+		List<DatabaseDocument<T>> documents = readDocuments(((HttpEntityEnclosingRequest) request).getEntity());
+		long parse = System.currentTimeMillis();
+
+		List<DatabaseDocument<T>> toInsert = new ArrayList<DatabaseDocument<T>>(documents.size());
+		Date now = new Date();
+		for (DatabaseDocument<T> d : documents) {
+			if (d != null) {
+				// Touched by the inserting stage, as a single insert is when released, but as part of the insert
+				d.setTouchedBy(stage, now);
+				toInsert.add(d);
+			}
+		}
+		List<Boolean> inserted = io.insertAll(toInsert);
+
+		StringBuilder sb = new StringBuilder();
+		int next = 0;
+		int failures = 0;
+		for (DatabaseDocument<T> d : documents) {
+			if (d != null && inserted.get(next++)) {
+				// Only the ID, the stage already has the rest of the document
+				sb.append(d.getID().toJSON());
+			} else {
+				sb.append(RemotePipeline.INSERT_FAILED);
+				failures++;
+			}
+			sb.append('\n');
+		}
+		if (failures > 0) {
+			logger.warn(failures + " of " + documents.size() + " documents of a bulk insert from stage " + stage + " were not inserted");
+		}
+		long write = System.currentTimeMillis();
+		HttpResponseWriter.printBulkInsertResults(response, sb.toString());
+
+		if (performanceLogging) {
+			long end = System.currentTimeMillis();
+			logger.info(String.format("type=performance event=bulk_insert stage_name=%s documents=%d start=%d end=%d total=%d parse=%d query=%d serialize=%d", stage, documents.size(), start, end, end - start, parse - start, write - parse, end - write));
+		}
+	}
+
+	/**
+	 * @return the documents of the request, with null for lines that are not
+	 * documents
+	 */
+	private List<DatabaseDocument<T>> readDocuments(HttpEntity entity) throws IOException {
+		Charset charset = ContentType.getOrDefault(entity).getCharset();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(entity.getContent(), charset != null ? charset : Charset.forName("ISO-8859-1")));
+		List<DatabaseDocument<T>> documents = new ArrayList<DatabaseDocument<T>>();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					LocalDocument d = new LocalDocument(line);
+					// Only new documents are inserted, as in a single insert
+					documents.add(d.getID() == null ? io.convert(d) : null);
+				} catch (JsonException e) {
+					logger.debug("Unable to read document of bulk insert: " + e.getMessage());
+					documents.add(null);
+				} catch (ConversionException e) {
+					logger.debug("Unable to convert document of bulk insert: " + e.getMessage());
+					documents.add(null);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return documents;
+	}
+
+	@Override
+	public boolean supports(HttpRequest request) {
+		return RESTTools.getMethod(request) == Method.POST
+				&& RemotePipeline.INSERT_DOCUMENTS_URL.equals(RESTTools.getBaseUrl(request));
+	}
+
+	@Override
+	public String[] getSupportedUrls() {
+		return new String[] { RemotePipeline.INSERT_DOCUMENTS_URL };
+	}
+}
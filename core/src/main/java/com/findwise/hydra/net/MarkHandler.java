@@ -8,7 +8,6 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +16,7 @@ import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.StageManager;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 
@@ -41,22 +41,26 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 		long start = System.currentTimeMillis();
 		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request)
 				.getEntity();
-		String requestContent = EntityUtils.toString(requestEntity);
+		LocalDocument requestDocument;
+		try {
+			requestDocument = RESTTools.readDocument(requestEntity);
+		} catch (JsonException e) {
+			HttpResponseWriter.printJsonException(response, e);
+			return;
+		}
 		long tostring = System.currentTimeMillis();
 		String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
 		if (stage == null) {
 			HttpResponseWriter.printMissingParameter(response, RemotePipeline.STAGE_PARAM);
 			return;
 		}
+		String instance = RESTTools.getParam(request, RemotePipeline.INSTANCE_PARAM);
 
 		DatabaseDocument<T> md;
 		try {
-			md = io.convert(new LocalDocument(requestContent));
-		} catch (JsonException e) {
-			HttpResponseWriter.printJsonException(response, e);
-			return;
+			md = io.convert(requestDocument);
 		} catch (ConversionException e) {
-			logger.error("Caught Exception when trying to convert "+requestContent, e);
+			logger.error("Caught Exception when trying to convert "+requestDocument, e);
 			HttpResponseWriter.printBadRequestContent(response);
 			return;
 		}
@@ -65,13 +69,16 @@ public class MarkHandler<T extends DatabaseType> implements ResponsibleHandler {
 		DatabaseDocument<T> dbdoc = io.getDocumentById(md.getID());
 		long query = System.currentTimeMillis();
 		if(dbdoc==null) {
+			StageManager.getStageManager().documentSettled(stage, instance);
 			HttpResponseWriter.printNoDocument(response);
 			return;
 		}
 		
 		dbdoc.putAll(md);
 
-		if (!mark(dbdoc, stage, getMark(request))) {
+		boolean marked = mark(dbdoc, stage, getMark(request));
+		StageManager.getStageManager().documentSettled(stage, instance);
+		if (!marked) {
 			HttpResponseWriter.printNoDocument(response);
 		} else {
 			HttpResponseWriter.printSaveOk(response, md.getID());
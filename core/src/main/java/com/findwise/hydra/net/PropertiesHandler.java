@@ -24,10 +24,31 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
 	
 	private PipelineReader reader;
 	
+	private String cachedVersion;
+	private Pipeline cachedPipeline;
+	private Pipeline cachedDebugPipeline;
+	
 	public PropertiesHandler(PipelineReader reader) {
 		this.reader = reader;
 	}
 	
+	/**
+	 * Reads the pipeline again only if its version has changed, as every stage
+	 * checks its properties for changes regularly.
+	 */
+	private synchronized Pipeline getPipeline(boolean debug) {
+		String version = reader.getPipelineVersion();
+		if(version == null) {
+			return debug ? reader.getDebugPipeline() : reader.getPipeline();
+		}
+		if(!version.equals(cachedVersion)) {
+			cachedPipeline = reader.getPipeline();
+			cachedDebugPipeline = reader.getDebugPipeline();
+			cachedVersion = version;
+		}
+		return debug ? cachedDebugPipeline : cachedPipeline;
+	}
+	
 	@Override
 	public void handle(HttpRequest request, HttpResponse response, HttpContext context)
 			throws HttpException, IOException {
@@ -35,6 +56,8 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
 			getPropetries(request, response, context);
 		} else if(RESTTools.getBaseUrl(request).equals(GroupStarter.GET_STAGES_URL)) {
 			getStages(request, response, context);
+		} else if(RESTTools.getBaseUrl(request).equals(GroupStarter.GET_GROUP_PROPERTIES_URL)) {
+			getGroupProperties(request, response, context);
 		} else {
 			logger.error("Unsupported request to PropertiesHandler. Request URL was: "+RESTTools.getUri(request));
 		}
@@ -45,9 +68,9 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
 		logger.trace("handleGetStages()");
 		String group = RESTTools.getParam(request, GroupStarter.GROUP_PARAM);
 		
-		Pipeline p = reader.getPipeline();
+		Pipeline p = getPipeline(false);
 		if(!p.hasGroup(group)) {
-			p = reader.getDebugPipeline();
+			p = getPipeline(true);
 		}
 		if(p.hasGroup(group)) {
 			HttpResponseWriter.printJson(response, p.getGroup(group).getStageNames());
@@ -58,6 +81,24 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
 		response.setEntity(new NStringEntity("", HttpResponseWriter.CONTENT_TYPE));
 	}
 
+	private void getGroupProperties(HttpRequest request, HttpResponse response,
+			HttpContext context) {
+		logger.trace("handleGetGroupProperties()");
+		String group = RESTTools.getParam(request, GroupStarter.GROUP_PARAM);
+		
+		Pipeline p = getPipeline(false);
+		if(!p.hasGroup(group)) {
+			p = getPipeline(true);
+		}
+		if(p.hasGroup(group)) {
+			HttpResponseWriter.printJson(response, p.getGroup(group).toPropertiesMap());
+			return;
+		}
+		
+		response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+		response.setEntity(new NStringEntity("", HttpResponseWriter.CONTENT_TYPE));
+	}
+
 	private void getPropetries(HttpRequest request, HttpResponse response,
 			HttpContext context) {
 		logger.trace("handleGetProperties()");
@@ -72,11 +113,11 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
         
         Map<String, Object> map = new HashMap<String, Object>();
         
-        if(reader.getPipeline().hasStage(stage)) {
-        	map = reader.getPipeline().getStage(stage).getProperties();
+        if(getPipeline(false).hasStage(stage)) {
+        	map = getPipeline(false).getStage(stage).getProperties();
         }
-        else if(reader.getDebugPipeline().hasStage(stage)){
-        	map = reader.getDebugPipeline().getStage(stage).getProperties();
+        else if(getPipeline(true).hasStage(stage)){
+        	map = getPipeline(true).getStage(stage).getProperties();
         } 
         
         HttpResponseWriter.printJson(response, map);
@@ -84,12 +125,12 @@ public class PropertiesHandler<T extends DatabaseType> implements ResponsibleHan
 
 	@Override
 	public boolean supports(HttpRequest request) {
-		return RESTTools.isGet(request) && (RESTTools.getBaseUrl(request).equals(RemotePipeline.GET_PROPERTIES_URL) || RESTTools.getBaseUrl(request).equals(GroupStarter.GET_STAGES_URL));
+		return RESTTools.isGet(request) && (RESTTools.getBaseUrl(request).equals(RemotePipeline.GET_PROPERTIES_URL) || RESTTools.getBaseUrl(request).equals(GroupStarter.GET_STAGES_URL) || RESTTools.getBaseUrl(request).equals(GroupStarter.GET_GROUP_PROPERTIES_URL));
 	}
 
 	@Override
 	public String[] getSupportedUrls() {
-		return new String[] {RemotePipeline.GET_PROPERTIES_URL, GroupStarter.GET_STAGES_URL};
+		return new String[] {RemotePipeline.GET_PROPERTIES_URL, GroupStarter.GET_STAGES_URL, GroupStarter.GET_GROUP_PROPERTIES_URL};
 	}
 
 }
@@ -18,6 +18,7 @@ import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
 import com.findwise.hydra.StageManager;
+import com.findwise.hydra.StageRunner;
 import com.findwise.hydra.local.LocalQuery;
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.net.RESTTools.Method;
@@ -62,12 +63,24 @@ public class QueryHandler<T extends DatabaseType> implements ResponsibleHandler
 		
 		reportQuery(stage);		
 		
+		StageRunner runner = StageManager.getStageManager().getRunnerForStage(stage);
+		String instance = RESTTools.getParam(request, RemotePipeline.INSTANCE_PARAM);
+		if (runner != null && !runner.documentFetched(instance)) {
+			// The group is draining, and only persists what it already has
+			HttpResponseWriter.printNoDocument(response);
+			return;
+		}
 
 		Document<T> d = io.getAndTag(dbq, stage);
+		if (d == null && runner != null) {
+			runner.documentSettled(instance);
+		}
 		
 		long query = System.currentTimeMillis();
 		
-		if (d != null) {
+		if (d != null && RESTTools.acceptsBson(request)) {
+			HttpResponseWriter.printBsonDocument(response, d, stage);
+		} else if (d != null) {
 			HttpResponseWriter.printDocument(response, d, stage);
 		} else {
 			HttpResponseWriter.printNoDocument(response);
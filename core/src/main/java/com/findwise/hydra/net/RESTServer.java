@@ -23,6 +23,7 @@ import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.SyncBasicHttpParams;
 import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.protocol.ImmutableHttpProcessor;
 import org.apache.http.protocol.ResponseConnControl;
 import org.apache.http.protocol.ResponseContent;
@@ -33,6 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.CoreConfiguration;
+import com.findwise.tools.HttpCompression;
 import com.findwise.tools.HttpConnection;
 
 /**
@@ -56,6 +58,8 @@ public class RESTServer extends Thread {
 	
 	private HttpRESTHandler<?> requestHandler;
 	
+	private HttpCompression compression;
+	
 	private String id;
 
 	@SuppressWarnings("rawtypes")
@@ -66,11 +70,24 @@ public class RESTServer extends Thread {
 		this.port = port;
 		executing = false;
 		setDaemon(true);
+		compression = HttpCompression.forSetting(HttpCompression.DEFAULT, HttpCompression.DEFAULT_THRESHOLD);
 	}
 	
 	@SuppressWarnings("rawtypes")
 	public RESTServer(CoreConfiguration conf, HttpRESTHandler requestHandler) {
 		this(conf.getRestPort(), requestHandler);
+		compression = HttpCompression.forSetting(conf.getHttpCompression(), conf.getHttpCompressionThreshold());
+		if (compression != null) {
+			compression.setPerformanceLogging(conf.isPerformanceLogging());
+		}
+	}
+	
+	/**
+	 * @return the compression of bodies sent to and from stages that accept
+	 * it, or null if bodies are not compressed
+	 */
+	public HttpCompression getCompression() {
+		return compression;
 	}
 	
 	public boolean isExecuting() {
@@ -147,9 +164,13 @@ public class RESTServer extends Thread {
 						});
 
 			HttpAsyncRequestHandlerRegistry registry = new HttpAsyncRequestHandlerRegistry();
-			registry.register("*", new BasicAsyncRequestHandler(requestHandler));
+			HttpRequestHandler handler = requestHandler;
+			if (compression != null) {
+				handler = new CompressionHandler(requestHandler, compression);
+			}
+			registry.register("*", new BasicAsyncRequestHandler(handler));
 			
-			HttpAsyncService handler = new HttpAsyncService(httpproc, new DefaultConnectionReuseStrategy(), registry, params) {
+			HttpAsyncService service = new HttpAsyncService(httpproc, new DefaultConnectionReuseStrategy(), registry, params) {
 	            @Override
 	            public void connected(final NHttpServerConnection conn) {
 	            	logger.debug("Connection open: " + conn);
@@ -166,7 +187,7 @@ public class RESTServer extends Thread {
 	        NHttpConnectionFactory<DefaultNHttpServerConnection> connFactory = new DefaultNHttpServerConnectionFactory(params);
 			
 
-	        IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(handler, connFactory);
+	        IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(service, connFactory);
 
 			ioReactor = new DefaultListeningIOReactor();
 
@@ -190,6 +211,9 @@ public class RESTServer extends Thread {
 	public void shutdown() throws IOException {
 		logger.info("Caught shutdown command to RESTServer");
 		shutdownCalled = true;
+		if (compression != null && compression.getCompressedBodies() + compression.getDecompressedBodies() > 0) {
+			logger.info("HTTP compression " + compression);
+		}
 		ioReactor.shutdown();
 	}
 	
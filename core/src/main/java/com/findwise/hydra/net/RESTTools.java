@@ -1,11 +1,19 @@
 package com.findwise.hydra.net;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
+import org.apache.http.util.EntityUtils;
 
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 
 public final class RESTTools {
@@ -58,4 +66,30 @@ public final class RESTTools {
 	public static boolean isDelete(HttpRequest request) {
 		return getMethod(request) == Method.DELETE;
 	}
+
+	public static boolean isBson(HttpEntity entity) {
+		Header contentType = entity.getContentType();
+		return contentType != null && contentType.getValue().startsWith(RemotePipeline.BSON_CONTENT_TYPE);
+	}
+
+	public static boolean acceptsBson(HttpRequest request) {
+		Header accept = request.getFirstHeader(HttpHeaders.ACCEPT);
+		return accept != null && accept.getValue().contains(RemotePipeline.BSON_CONTENT_TYPE);
+	}
+
+	/**
+	 * Reads the document in the body of a request, in BSON if the body is
+	 * tagged as such, and in Json otherwise.
+	 */
+	public static LocalDocument readDocument(HttpEntity entity) throws IOException, JsonException {
+		if (isBson(entity)) {
+			InputStream in = entity.getContent();
+			try {
+				return new LocalDocument(in);
+			} finally {
+				in.close();
+			}
+		}
+		return new LocalDocument(EntityUtils.toString(entity));
+	}
 }
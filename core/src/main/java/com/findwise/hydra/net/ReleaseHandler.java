@@ -17,6 +17,7 @@ import com.findwise.hydra.DatabaseConnector.ConversionException;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.StageManager;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.net.RESTTools.Method;
@@ -48,7 +49,7 @@ public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandle
 		}
 
 		try {
-			boolean x = release(io.convert(new LocalDocument(requestContent)), stage);
+			boolean x = release(io.convert(new LocalDocument(requestContent)), stage, RESTTools.getParam(request, RemotePipeline.INSTANCE_PARAM));
 			if (!x) {
 				HttpResponseWriter.printNoDocument(response);
 			}
@@ -64,10 +65,12 @@ public class ReleaseHandler<T extends DatabaseType> implements ResponsibleHandle
 
 	}
 
-	private boolean release(Document<T> md, String stage) {
-		return io.markTouched(md.getID(), stage);
+	private boolean release(Document<T> md, String stage, String instance) {
+		boolean released = io.markTouched(md.getID(), stage);
+		StageManager.getStageManager().documentSettled(stage, instance);
+		return released;
 	}
-
+	
 	@Override
 	public boolean supports(HttpRequest request) {
 		return RESTTools.getMethod(request) == Method.POST
@@ -0,0 +1,219 @@
+package com.findwise.hydra.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.tools.SharedMemoryRing;
+
+/**
+ * Serves the requests that a stage group on this host makes through a
+ * {@link SharedMemoryRing}, by dispatching them to the same
+ * {@link HttpRESTHandler} as the {@link RESTServer} does.
+ * <p/>
+ * A single thread polls the slots of the ring, and hands each new request to a
+ * worker, which writes the response back into the slot of the request.
+ */
+public class SharedMemoryServer extends Thread {
+	private static final Logger logger = LoggerFactory.getLogger(SharedMemoryServer.class);
+
+	private static final long RESPONSE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+	private final File file;
+	private final SharedMemoryRing ring;
+	private final HttpRESTHandler<?> handler;
+	private final ExecutorService workers;
+
+	private volatile boolean shutdownCalled = false;
+
+	public SharedMemoryServer(File file, HttpRESTHandler<?> handler) throws IOException {
+		this(file, handler, SharedMemoryRing.DEFAULT_SLOTS, SharedMemoryRing.DEFAULT_SLOT_SIZE);
+	}
+
+	public SharedMemoryServer(File file, HttpRESTHandler<?> handler, int slots, int slotSize) throws IOException {
+		super("SharedMemoryServer-" + file.getName());
+		this.file = file;
+		this.handler = handler;
+		ring = SharedMemoryRing.create(file, slots, slotSize);
+		workers = Executors.newCachedThreadPool(new WorkerThreadFactory(getName()));
+		setDaemon(true);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void run() {
+		logger.debug("Serving requests through " + file.getAbsolutePath());
+		SharedMemoryRing.Backoff backoff = new SharedMemoryRing.Backoff();
+		while (!shutdownCalled) {
+			boolean found = false;
+			for (int slot = 0; slot < ring.getSlots(); slot++) {
+				if (ring.getState(slot) == SharedMemoryRing.REQUEST) {
+					ring.setState(slot, SharedMemoryRing.PROCESSING);
+					workers.execute(new Dispatcher(slot, ring.getGeneration()));
+					found = true;
+				}
+			}
+			if (found) {
+				backoff.reset();
+			} else {
+				backoff.idle();
+			}
+		}
+	}
+
+	/**
+	 * Abandons all requests in progress and frees all slots. Must be called
+	 * before a new JVM starts using the ring.
+	 */
+	public void reset() {
+		ring.reset();
+	}
+
+	public void shutdown() {
+		shutdownCalled = true;
+		workers.shutdownNow();
+	}
+
+	private class Dispatcher implements Runnable {
+		private final int slot;
+		private final int generation;
+
+		public Dispatcher(int slot, int generation) {
+			this.slot = slot;
+			this.generation = generation;
+		}
+
+		/**
+		 * Always answers, with an error response should the request fail, so
+		 * that the client is not left waiting for the slot.
+		 */
+		@Override
+		public void run() {
+			long sequence = ring.getSequence(slot);
+			byte[] response;
+			try {
+				SharedMemoryRing.Frame frame = SharedMemoryRing.Frame.decodeRequest(ring.read(slot));
+				HttpResponse httpResponse = handle(frame);
+				HttpEntity entity = httpResponse.getEntity();
+				byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+				String contentType = entity == null || entity.getContentType() == null ? null : entity.getContentType().getValue();
+				response = SharedMemoryRing.encodeResponse(httpResponse.getStatusLine().getStatusCode(), contentType, body);
+			} catch (Exception e) {
+				logger.error("Unable to serve request in slot " + slot + " of " + file.getName(), e);
+				response = errorResponse(e);
+			}
+			try {
+				respond(sequence, response);
+			} catch (IOException e) {
+				logger.error("Unable to respond to request in slot " + slot + " of " + file.getName() + ", freeing it", e);
+				synchronized (ring) {
+					if (isCurrent()) {
+						ring.setState(slot, SharedMemoryRing.FREE);
+					}
+				}
+			}
+		}
+
+		private byte[] errorResponse(Exception e) {
+			try {
+				return SharedMemoryRing.encodeResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, "text/plain; charset=UTF-8", String.valueOf(e.getMessage()).getBytes("UTF-8"));
+			} catch (IOException e1) {
+				// Encoding to memory only fails on an unknown charset
+				throw new IllegalStateException(e1);
+			}
+		}
+
+		private HttpResponse handle(SharedMemoryRing.Frame frame) {
+			BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(frame.getMethod(), frame.getUrl());
+			ByteArrayEntity entity = new ByteArrayEntity(frame.getBody());
+			entity.setContentType(frame.getContentType());
+			request.setEntity(entity);
+			HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+			handler.handleLocal(request, response, new BasicHttpContext());
+			return response;
+		}
+
+		/**
+		 * Writes the response in as many parts as needed to fit the slot,
+		 * waiting for the client to read each part before writing the next.
+		 */
+		private void respond(long sequence, byte[] response) throws IOException {
+			int capacity = ring.getCapacity();
+			int offset = 0;
+			do {
+				int length = Math.min(capacity, response.length - offset);
+				boolean last = offset + length == response.length;
+				// Holding the lock of the ring keeps it from being reset in between
+				synchronized (ring) {
+					if (!isCurrent()) {
+						return;
+					}
+					ring.write(slot, sequence, response, offset, length);
+					ring.setState(slot, last ? SharedMemoryRing.RESPONSE : SharedMemoryRing.RESPONSE_PART);
+				}
+				offset += length;
+				if (!last && !awaitAcknowledgement()) {
+					return;
+				}
+			} while (offset < response.length);
+		}
+
+		private boolean awaitAcknowledgement() throws IOException {
+			long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+			SharedMemoryRing.Backoff backoff = new SharedMemoryRing.Backoff();
+			while (ring.getState(slot) != SharedMemoryRing.PROCESSING) {
+				if (!isCurrent()) {
+					return false;
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Client did not read the response within " + RESPONSE_TIMEOUT + "ms");
+				}
+				backoff.idle();
+			}
+			return true;
+		}
+
+		/**
+		 * @return false if the ring has been reset since the request was made,
+		 * in which case the slot may already be in use by a new JVM.
+		 */
+		private boolean isCurrent() {
+			return !shutdownCalled && ring.getGeneration() == generation;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
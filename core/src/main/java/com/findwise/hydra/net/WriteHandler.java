@@ -2,6 +2,11 @@ package com.findwise.hydra.net;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -9,7 +14,6 @@ import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +23,7 @@ import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.Document;
 import com.findwise.hydra.JsonException;
+import com.findwise.hydra.StageManager;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.RemotePipeline;
 import com.findwise.hydra.net.RESTTools.Method;
@@ -27,12 +32,22 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 
 	private CachingDocumentNIO<T> io;
 	private boolean performanceLogging;
+	private AdmissionControl<T> admissionControl;
 	
 	private static Logger logger = LoggerFactory.getLogger(WriteHandler.class);
 
 	public WriteHandler(CachingDocumentNIO<T> dbc, boolean performanceLogging) {
+		this(dbc, performanceLogging, null);
+	}
+	
+	/**
+	 * @param admissionControl decides whether new documents are inserted, or
+	 * null to insert all of them
+	 */
+	public WriteHandler(CachingDocumentNIO<T> dbc, boolean performanceLogging, AdmissionControl<T> admissionControl) {
 		this.io = dbc;
 		this.performanceLogging = performanceLogging;
+		this.admissionControl = admissionControl;
 	}
 	
 	@Override
@@ -41,8 +56,6 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 		logger.trace("handleWriteDocument()");
         long start = System.currentTimeMillis();
 		HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
-        String requestContent = EntityUtils.toString(requestEntity);
-        long tostring = System.currentTimeMillis();
         
         String stage = RESTTools.getParam(request, RemotePipeline.STAGE_PARAM);
         if(stage==null) {
@@ -62,40 +75,56 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
         	return;
         }
         
-        DatabaseDocument<T> md;
+        LocalDocument requestDocument;
         try {
-        	md = io.convert(new LocalDocument(requestContent));
+        	requestDocument = RESTTools.readDocument(requestEntity);
         }
         catch(JsonException e) {
         	HttpResponseWriter.printJsonException(response, e);
         	return;
+        }
+        long tostring = System.currentTimeMillis();
+        
+        DatabaseDocument<T> md;
+        try {
+        	md = io.convert(requestDocument);
         } catch (ConversionException e) {
-			logger.error("Caught Exception when trying to convert "+requestContent, e);
+			logger.error("Caught Exception when trying to convert "+requestDocument, e);
 			HttpResponseWriter.printBadRequestContent(response);
 			return;
 		}
         
         long convert = System.currentTimeMillis();
         
+        List<String> chain = getChain(request);
+        
         String type;
         boolean saveRes;
+        boolean inserted = false;
         if(partial.equals("1")) {
-        	saveRes = handlePartialWrite(md, response);
+        	saveRes = handlePartialWrite(md, chain, response);
         	type="update";
         }
         else {
         	if(md.getID()!=null) {
-        		saveRes = handleFullUpdate(md, response);
+        		saveRes = handleFullUpdate(md, chain, response);
         	}
         	else {
+        		if(!admit(response)) {
+        			return;
+        		}
         		saveRes = handleInsert(md, response);
+        		inserted = true;
         	}
         	type="insert";
         }
         long write = System.currentTimeMillis();
 
 		if (saveRes && norelease.equals("0")) {
-			boolean result = release(md, stage);
+			// A new document was never fetched, and a stage that does not
+			// settle leaves it to the stage reporting the document
+			boolean settle = !inserted && !"0".equals(RESTTools.getParam(request, RemotePipeline.SETTLE_PARAM));
+			boolean result = release(md, stage, RESTTools.getParam(request, RemotePipeline.INSTANCE_PARAM), settle);
 			if (!result) {
 				HttpResponseWriter.printReleaseFailed(response);
 				return;
@@ -107,11 +136,46 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 		}
 	}
 	
-	private boolean release(Document<T> md, String stage) {
-		return io.markTouched(md.getID(), stage);
+	private boolean admit(HttpResponse response) {
+		if(admissionControl == null) {
+			return true;
+		}
+		String reason = admissionControl.check();
+		if(reason != null) {
+			HttpResponseWriter.printTooManyRequests(response, admissionControl.getRetryAfter(), reason);
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean release(Document<T> md, String stage, String instance, boolean settle) {
+		boolean released = io.markTouched(md.getID(), stage);
+		if(settle) {
+			StageManager.getStageManager().documentSettled(stage, instance);
+		}
+		return released;
+	}
+	
+	/**
+	 * Stages that processed the document in a fused chain after the writing stage
+	 */
+	private List<String> getChain(HttpRequest request) throws UnsupportedEncodingException {
+		String chain = RESTTools.getParam(request, RemotePipeline.CHAIN_PARAM);
+		if(chain==null) {
+			return new ArrayList<String>();
+		}
+		return Arrays.asList(URLDecoder.decode(chain, "UTF-8").split(","));
+	}
+	
+	private void tagChain(DatabaseDocument<T> doc, List<String> chain) {
+		Date now = new Date();
+		for(String stage : chain) {
+			doc.setFetchedBy(stage, now);
+			doc.setTouchedBy(stage, now);
+		}
 	}
 	
-	private boolean handlePartialWrite(DatabaseDocument<T> md, HttpResponse response) throws UnsupportedEncodingException{
+	private boolean handlePartialWrite(DatabaseDocument<T> md, List<String> chain, HttpResponse response) throws UnsupportedEncodingException{
 		logger.trace("handlePartialWrite()");
 		if(md.getID()==null) {
 			HttpResponseWriter.printMissingID(response);
@@ -124,7 +188,7 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 			return false;
 		}
 		inDB.putAll(md);
-
+		tagChain(inDB, chain);
 
 		if(io.update(inDB)){
 			HttpResponseWriter.printSaveOk(response, md.getID());
@@ -136,8 +200,9 @@ public class WriteHandler<T extends DatabaseType> implements ResponsibleHandler
 		}
 	}
 	
-	private boolean handleFullUpdate(DatabaseDocument<T> md, HttpResponse response) {
+	private boolean handleFullUpdate(DatabaseDocument<T> md, List<String> chain, HttpResponse response) {
 		logger.trace("handleFullUpdate()");
+		tagChain(md, chain);
 		if(io.update(md)) {
 			HttpResponseWriter.printSaveOk(response, md.getID());
 			return true;
@@ -0,0 +1,172 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * Simulates core going down between cache flushes by abandoning the cache
+ * and its journal without flushing or closing them, and starting over with
+ * the same database and journal file.
+ */
+public class CacheJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MemoryConnector mc;
+	private File file;
+	private DocumentID<MemoryType> id;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		file = new File(folder.getRoot(), "cache.journal");
+
+		LocalDocument ld = new LocalDocument();
+		ld.putContentField("text", "value");
+		DatabaseDocument<MemoryType> doc = mc.convert(ld);
+		mc.getDocumentWriter().insert(doc);
+		id = doc.getID();
+	}
+
+	private CachingDocumentNIO<MemoryType> start() throws Exception {
+		return new CachingDocumentNIO<MemoryType>(mc, new MemoryCache<MemoryType>(), false, 60000,
+				new CacheJournal<MemoryType>(file, 0));
+	}
+
+	/**
+	 * Fetches the document for a stage, and saves it with a new field the way
+	 * a stage would
+	 */
+	private void process(CachingDocumentNIO<MemoryType> nio) {
+		DatabaseDocument<MemoryType> doc = nio.getAndTag(mc.convert(new LocalQuery()), "stage").copy();
+		doc.putContentField("result", "processed");
+		assertTrue(nio.update(doc));
+		assertTrue(nio.markTouched(id, "stage"));
+	}
+
+	@Test
+	public void testChangesSurviveCrashBetweenFlushes() throws Exception {
+		process(start());
+		assertNull(mc.getDocumentReader().getDocumentById(id).getContentField("result"));
+
+		CachingDocumentNIO<MemoryType> restarted = start();
+
+		DatabaseDocument<MemoryType> recovered = mc.getDocumentReader().getDocumentById(id);
+		assertEquals("processed", recovered.getContentField("result"));
+		assertTrue(recovered.touchedBy("stage"));
+		assertTrue(recovered.fetchedBy("stage"));
+		assertFalse(recovered.fetchedBy(CachingDocumentNIO.CACHE_TAG));
+		assertEquals(0, restarted.getJournal().getSize());
+	}
+
+	@Test
+	public void testFlushedDocumentsAreNotRecovered() throws Exception {
+		CachingDocumentNIO<MemoryType> nio = start();
+		process(nio);
+		nio.flush();
+		assertEquals("processed", mc.getDocumentReader().getDocumentById(id).getContentField("result"));
+
+		assertEquals(0, new CacheJournal<MemoryType>(file, 0).recover(mc));
+	}
+
+	@Test
+	public void testProcessedDocumentsAreNotRecovered() throws Exception {
+		CachingDocumentNIO<MemoryType> nio = start();
+		process(nio);
+		assertTrue(nio.markProcessed(nio.getDocumentById(id), "output"));
+
+		assertEquals(0, new CacheJournal<MemoryType>(file, 0).recover(mc));
+		assertNull(mc.getDocumentReader().getDocumentById(id));
+	}
+
+	@Test
+	public void testRecordCutShortByCrashIsIgnored() throws Exception {
+		process(start());
+		long size = file.length();
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		// The start of a record of 1000 bytes
+		out.write(new byte[] { 'U', 0, 0, 3, (byte) 232, 1, 2, 3, 4, 5, 6 });
+		out.close();
+		assertTrue(file.length() > size);
+
+		assertEquals(1, new CacheJournal<MemoryType>(file, 0).recover(mc));
+		assertEquals("processed", mc.getDocumentReader().getDocumentById(id).getContentField("result"));
+	}
+
+	@Test
+	public void testCorruptRecordEndsJournal() throws Exception {
+		CacheJournal<MemoryType> journal = new CacheJournal<MemoryType>(file, 0);
+		DatabaseDocument<MemoryType> doc = mc.getDocumentReader().getDocumentById(id).copy();
+		doc.putContentField("result", "first");
+		journal.update(doc);
+		long size = journal.getSize();
+		doc.putContentField("result", "second");
+		journal.update(doc);
+		journal.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(size + 20);
+		raf.write('x');
+		raf.close();
+
+		assertEquals(1, new CacheJournal<MemoryType>(file, 0).recover(mc));
+		assertEquals("first", mc.getDocumentReader().getDocumentById(id).getContentField("result"));
+	}
+
+	@Test
+	public void testCompactionKeepsLastVersions() throws Exception {
+		CacheJournal<MemoryType> journal = new CacheJournal<MemoryType>(file, 0);
+		DatabaseDocument<MemoryType> doc = mc.getDocumentReader().getDocumentById(id).copy();
+		char[] large = new char[1024 * 1024];
+		Arrays.fill(large, 'x');
+		doc.putContentField("large", new String(large));
+		for (int i = 0; journal.getSize() <= 4 * CacheJournal.MIN_COMPACTION_SIZE / 3; i++) {
+			doc.putContentField("result", "version " + i);
+			journal.update(doc);
+		}
+		doc.putContentField("result", "last");
+		journal.update(doc);
+		long size = journal.getSize();
+
+		journal.compactIfNeeded();
+		assertTrue(journal.getSize() < size / 10);
+
+		doc.putContentField("result", "after compaction");
+		journal.update(doc);
+		journal.close();
+
+		assertEquals(1, new CacheJournal<MemoryType>(file, 0).recover(mc));
+		assertEquals("after compaction", mc.getDocumentReader().getDocumentById(id).getContentField("result"));
+	}
+
+	@Test
+	public void testChangeIsWrittenToDatabaseWhenItCanNotBeLogged() throws Exception {
+		CachingDocumentNIO<MemoryType> nio = start();
+		nio.getJournal().close();
+
+		process(nio);
+
+		DatabaseDocument<MemoryType> written = mc.getDocumentReader().getDocumentById(id);
+		assertEquals("processed", written.getContentField("result"));
+		assertTrue(written.touchedBy("stage"));
+		assertEquals(0, nio.getCacheSize());
+	}
+}
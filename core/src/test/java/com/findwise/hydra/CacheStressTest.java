@@ -0,0 +1,113 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+/**
+ * Compares the garbage collection of the cache keeping documents on the heap
+ * with that of the cache keeping them off it. Each cache is filled with
+ * documents, which are then fetched, updated and replaced the way stages do,
+ * and the time spent collecting garbage, the number of collections and the
+ * heap used are printed. Only run with the stresstest profile.
+ */
+public class CacheStressTest {
+	private static final int DOCUMENTS = 20000;
+	private static final int FIELDS = 20;
+	private static final int FIELD_LENGTH = 500;
+	private static final long MEASURE_MILLIS = 10000;
+
+	private final MemoryConnector mc = new MemoryConnector();
+	private int ids = 0;
+
+	@Test
+	public void testGarbageCollection() throws Exception {
+		benchmark("memory", new MemoryCache<MemoryType>());
+		benchmark("offheap", new OffHeapCache<MemoryType>(mc, 1024L * 1024 * 1024));
+	}
+
+	private void benchmark(String name, Cache<MemoryType> cache) throws Exception {
+		Random random = new Random(1);
+		for (int i = 0; i < DOCUMENTS; i++) {
+			cache.add(createDocument(random));
+		}
+		assertEquals(DOCUMENTS, cache.getSize());
+		System.gc();
+
+		long gcMillis = getCollectionMillis();
+		long gcCount = getCollectionCount();
+		long operations = 0;
+		long start = System.currentTimeMillis();
+		DatabaseQuery<MemoryType> query = mc.convert(new LocalQuery());
+		while (System.currentTimeMillis() - start < MEASURE_MILLIS) {
+			DatabaseDocument<MemoryType> doc = cache.getAndTag(query, "stage");
+			if (doc == null) {
+				List<DatabaseDocument<MemoryType>> docs = new ArrayList<DatabaseDocument<MemoryType>>(cache.removeAll());
+				for (DatabaseDocument<MemoryType> d : docs) {
+					d.removeFetchedBy("stage");
+				}
+				cache.add(docs);
+				continue;
+			}
+			doc.putContentField("processed", true);
+			cache.update(doc);
+			if (operations % 10 == 0) {
+				cache.remove(doc.getID());
+				cache.add(createDocument(random));
+			}
+			operations++;
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		gcMillis = getCollectionMillis() - gcMillis;
+		gcCount = getCollectionCount() - gcCount;
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+
+		System.out.println(String.format("%-8s %8.0f ops/s, gc %5d ms in %4d collections (%.1f%% of time), heap used %d MB",
+				name, operations * 1000.0 / elapsed, gcMillis, gcCount, gcMillis * 100.0 / elapsed, heap / (1024 * 1024)));
+		cache.removeAll();
+	}
+
+	private DatabaseDocument<MemoryType> createDocument(Random random) {
+		LocalDocument ld = new LocalDocument();
+		for (int i = 0; i < FIELDS; i++) {
+			char[] text = new char[FIELD_LENGTH];
+			for (int j = 0; j < text.length; j++) {
+				text[j] = (char) ('a' + random.nextInt(26));
+			}
+			ld.putContentField("field" + i, new String(text));
+		}
+		DatabaseDocument<MemoryType> doc = mc.convert(ld);
+		doc.setID(mc.getDocumentReader().toDocumentId("doc" + ids++));
+		return doc;
+	}
+
+	private static long getCollectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+}
@@ -0,0 +1,158 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ServiceManager;
+import com.google.gson.Gson;
+
+/**
+ * Compares the time it takes to launch a JVM loading the libraries a stage
+ * group typically loads with and without a class data sharing archive. Only
+ * run with the stresstest profile, and only on a JVM that supports dynamic
+ * archives, which can be given with -Dhydra.benchmark.java=/path/to/java.
+ */
+public class ClassDataSharingStressTest {
+	private static final int RUNS = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testStartupTime() throws Exception {
+		String java = System.getProperty("hydra.benchmark.java", System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		assumeTrue(ClassDataSharing.isSupported(java));
+
+		List<File> files = getLibraries();
+		String classPath = StringUtils.join(files, File.pathSeparator);
+		File archive = new ClassDataSharing(folder.newFolder("cds")).getArchive("benchmark", java, files);
+
+		// Warms the disk cache, so that the first measured run is not penalized
+		launch(java, classPath, new ArrayList<String>());
+
+		long without = 0;
+		for (int i = 0; i < RUNS; i++) {
+			without += launch(java, classPath, new ArrayList<String>());
+		}
+
+		long creation = launch(java, classPath, Arrays.asList(ClassDataSharing.getCreateArgument(archive)));
+		List<String> useArguments = ClassDataSharing.getUseArguments(archive);
+		assertNotNull("No archive was created", useArguments);
+
+		long with = 0;
+		for (int i = 0; i < RUNS; i++) {
+			with += launch(java, classPath, useArguments);
+		}
+
+		System.out.println(String.format("Startup without archive: %d ms, run creating archive: %d ms, with archive: %d ms (archive size %d kB)",
+				without / RUNS, creation, with / RUNS, archive.length() / 1024));
+		assertTrue(with > 0);
+	}
+
+	private long launch(String java, String classPath, List<String> jvmArguments) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.addAll(jvmArguments);
+		command.add("-cp");
+		command.add(classPath);
+		command.add(StartupMain.class.getName());
+		long start = System.nanoTime();
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		String output = IOUtils.toString(p.getInputStream());
+		assertEquals(output, 0, p.waitFor());
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * The libraries of the benchmark, which all have to be jars, as classes
+	 * are only archived from jars.
+	 */
+	private List<File> getLibraries() throws Exception {
+		List<File> files = new ArrayList<File>();
+		files.add(createMainJar());
+		for (Class<?> c : new Class<?>[] { Gson.class, ServiceManager.class, DefaultHttpClient.class,
+				org.apache.http.HttpRequest.class, org.apache.commons.logging.Log.class, LoggerFactory.class,
+				ch.qos.logback.classic.Logger.class, ch.qos.logback.core.Appender.class }) {
+			File f = new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+			assumeTrue(f.isFile());
+			if (!files.contains(f)) {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+
+	private File createMainJar() throws Exception {
+		File jar = folder.newFile("benchmark.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			String base = StartupMain.class.getName().replace('.', '/');
+			for (String name : new String[] { base + ".class", base + "$1.class" }) {
+				out.putNextEntry(new JarEntry(name));
+				InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+				try {
+					IOUtils.copy(in, out);
+				} finally {
+					IOUtils.closeQuietly(in);
+				}
+				out.closeEntry();
+			}
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		return jar;
+	}
+
+	/**
+	 * Does what a stage group does before its first document: sets up logging,
+	 * serialization, an HTTP client and the services of the stages.
+	 */
+	public static class StartupMain {
+		public static void main(String[] args) throws Exception {
+			LoggerFactory.getLogger(StartupMain.class).debug("Starting");
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("stage", "benchmark");
+			map.put("threads", 4);
+			new Gson().fromJson(new Gson().toJson(map), HashMap.class);
+			new DefaultHttpClient().getConnectionManager().shutdown();
+			List<Service> services = new ArrayList<Service>();
+			for (int i = 0; i < 4; i++) {
+				services.add(new AbstractIdleService() {
+					@Override
+					protected void startUp() {
+					}
+
+					@Override
+					protected void shutDown() {
+					}
+				});
+			}
+			ServiceManager manager = new ServiceManager(services);
+			manager.startAsync().awaitHealthy();
+			manager.stopAsync().awaitStopped();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.findwise.hydra;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.Document.Status;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalDocumentID;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class EmbeddedPipelineTest {
+	private MemoryConnector mc;
+	private EmbeddedPipeline<MemoryType> pipeline;
+	private MemoryDocument inserted;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		CachingDocumentNIO<MemoryType> io = new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>(), false);
+		pipeline = new EmbeddedPipeline<MemoryType>("x", io, mc.getPipelineReader(), getClass().getClassLoader(), false);
+
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("field", "value");
+		inserted = (MemoryDocument) mc.convert(doc);
+		mc.getDocumentWriter().insert(inserted);
+	}
+
+	private MemoryDocument getInserted() {
+		return (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+	}
+
+	@Test
+	public void testGetDocumentTagsDocument() throws Exception {
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+
+		assertNotNull(doc);
+		assertEquals("value", doc.getContentField("field"));
+		assertTrue(doc.isSynced());
+		assertTrue(getInserted().fetchedBy("x"));
+		assertNull(pipeline.getDocument(new LocalQuery()));
+	}
+
+	@Test
+	public void testSaveWritesModifiedFieldsAndReleases() throws Exception {
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		doc.putContentField("added", Arrays.asList("a", "b"));
+
+		assertTrue(pipeline.save(doc));
+
+		MemoryDocument saved = getInserted();
+		assertEquals(Arrays.asList("a", "b"), saved.getContentField("added"));
+		assertEquals("value", saved.getContentField("field"));
+		assertTrue(saved.touchedBy("x"));
+		assertTrue(doc.isSynced());
+	}
+
+	@Test
+	public void testInsertGivesEachNewDocumentItsId() throws Exception {
+		LocalDocument first = new LocalDocument();
+		first.putContentField("new", "first");
+		LocalDocument existing = new LocalDocument();
+		existing.setID(new LocalDocumentID(1));
+		LocalDocument second = new LocalDocument();
+		second.putContentField("new", "second");
+
+		assertEquals(Arrays.asList(true, false, true), pipeline.insert(Arrays.asList(first, existing, second)));
+
+		assertNotNull(first.getID());
+		assertNotNull(second.getID());
+		assertTrue(second.isSynced());
+		assertEquals(3, mc.getDocumentReader().getActiveDatabaseSize());
+	}
+
+	@Test
+	public void testSaveFullInsertsNewDocument() throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField("new", "document");
+
+		assertTrue(pipeline.saveFull(doc));
+
+		assertNotNull(doc.getID());
+		assertTrue(doc.isSynced());
+	}
+
+	@Test
+	public void testMarkProcessed() throws Exception {
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+		doc.putContentField("field2", "value2");
+
+		assertTrue(pipeline.markProcessed(doc));
+
+		MemoryDocument processed = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(Status.PROCESSED, processed.getStatus());
+		assertEquals("value2", processed.getContentField("field2"));
+	}
+
+	@Test
+	public void testMarkFailedStoresError() throws Exception {
+		LocalDocument doc = pipeline.getDocument(new LocalQuery());
+
+		assertTrue(pipeline.markFailed(doc, new Exception("Stage failed for some reason")));
+
+		MemoryDocument failed = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(Status.FAILED, failed.getStatus());
+		assertTrue(failed.hasErrors());
+	}
+
+	@Test
+	public void testFetchedDocumentsAreSettledOnce() throws Exception {
+		StageGroup group = new StageGroup("group");
+		group.addStage(new Stage("x", null));
+		StageRunner runner = new StageRunner(group, new File("test"), 0, false, 0, mock(ShutdownHandler.class));
+		StageManager.getStageManager().addRunner(runner);
+		try {
+			LocalDocument doc = pipeline.getDocument(new LocalQuery());
+			assertEquals(1, runner.getInFlight());
+
+			LocalDocument added = new LocalDocument();
+			added.putContentField("new", "document");
+			assertTrue(pipeline.saveFull(added));
+			assertEquals(1, runner.getInFlight());
+
+			assertTrue(pipeline.save(doc, null, false));
+			assertEquals(1, runner.getInFlight());
+
+			assertTrue(pipeline.markProcessed(doc));
+			assertEquals(0, runner.getInFlight());
+
+			LocalQuery none = new LocalQuery();
+			none.requireContentFieldExists("missing");
+			assertNull(pipeline.getDocument(none));
+			assertEquals(0, runner.getInFlight());
+		} finally {
+			StageManager.getStageManager().removeRunner("group");
+		}
+	}
+
+	@Test
+	public void testCopyValueDoesNotShareCollections() throws Exception {
+		List<String> list = new ArrayList<String>(Arrays.asList("a"));
+
+		Object copy = EmbeddedPipeline.copyValue(list);
+		list.add("b");
+
+		assertEquals(Arrays.asList("a"), copy);
+		assertFalse(copy == list);
+	}
+}
@@ -0,0 +1,110 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LibraryStoreTest {
+	private static final String CONTENTS = "library contents";
+	// MD5 of CONTENTS
+	private static final String MD5 = "818b11a6889373b1af12f9a2ed73f7aa";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LibraryStore store;
+
+	@Before
+	public void setUp() {
+		store = new LibraryStore(new File(folder.getRoot(), LibraryStore.STORE_DIRECTORY));
+	}
+
+	@Test
+	public void testLibraryIsOnlyCopiedOnce() throws Exception {
+		File first = store.get(newFile("stage.jar", null, CONTENTS));
+		assertEquals(CONTENTS, FileUtils.readFileToString(first));
+
+		// Same ID and upload date, so the stream is never read
+		File second = store.get(newFile("stage.jar", null, "other contents"));
+		assertEquals(first, second);
+		assertEquals(CONTENTS, FileUtils.readFileToString(second));
+	}
+
+	@Test
+	public void testNewUploadIsStoredAnew() throws Exception {
+		File first = store.get(newFile("stage.jar", null, CONTENTS));
+		DatabaseFile uploaded = newFile("stage.jar", null, "new contents");
+		uploaded.setUploadDate(new Date(2000));
+
+		File second = store.get(uploaded);
+		assertFalse(first.equals(second));
+		assertEquals("new contents", FileUtils.readFileToString(second));
+		assertEquals("stage.jar", second.getName());
+		assertEquals(2000, second.lastModified());
+	}
+
+	@Test
+	public void testStoredByMd5() throws Exception {
+		File stored = store.get(newFile("stage.jar", MD5, CONTENTS));
+		assertEquals(MD5, stored.getParentFile().getName());
+	}
+
+	@Test
+	public void testCorruptedCopyIsNotStored() throws Exception {
+		DatabaseFile df = newFile("stage.jar", MD5, "corrupted");
+		try {
+			store.get(df);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(0, new File(folder.getRoot(), LibraryStore.STORE_DIRECTORY + File.separator + MD5).list().length);
+	}
+
+	@Test
+	public void testFileWithoutKeyIsNotStored() throws Exception {
+		DatabaseFile df = new DatabaseFile();
+		df.setFilename("stage.jar");
+		df.attach(IOUtils.toInputStream(CONTENTS));
+		assertNull(store.get(df));
+	}
+
+	@Test
+	public void testRetain() throws Exception {
+		DatabaseFile kept = newFile("kept.jar", null, CONTENTS);
+		File keptFile = store.get(kept);
+		File removedFile = store.get(newFile("removed.jar", MD5, CONTENTS));
+
+		store.retain(Arrays.asList(kept));
+		assertTrue(keptFile.isFile());
+		assertFalse(removedFile.exists());
+
+		store.retain(Collections.<DatabaseFile> emptyList());
+		assertFalse(keptFile.exists());
+	}
+
+	private DatabaseFile newFile(String name, String md5, String contents) {
+		DatabaseFile df = new DatabaseFile();
+		df.setFilename(name);
+		df.setId(name);
+		df.setUploadDate(new Date(1000));
+		df.setMd5(md5);
+		df.attach(IOUtils.toInputStream(contents));
+		return df;
+	}
+}
@@ -0,0 +1,26 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class NodeMasterTest {
+
+	@Test
+	public void testScalesUpAtOnce() {
+		assertEquals(5, NodeMaster.getTargetInstances(450, 100, 1, 0));
+	}
+
+	@Test
+	public void testScalesDownOneInstanceAfterCooldown() {
+		assertEquals(3, NodeMaster.getTargetInstances(0, 100, 4, NodeMaster.SCALE_DOWN_COOLDOWN));
+		assertEquals(4, NodeMaster.getTargetInstances(0, 100, 4, NodeMaster.SCALE_DOWN_COOLDOWN - 1));
+	}
+
+	@Test
+	public void testKeepsInstancesWithinMargin() {
+		// 3 instances would take the backlog, but not with the margin
+		assertEquals(4, NodeMaster.getTargetInstances(290, 100, 4, Long.MAX_VALUE));
+		assertEquals(3, NodeMaster.getTargetInstances(230, 100, 4, Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,160 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class OffHeapCacheTest {
+	private static final String LONG_TEXT = createText(1000);
+
+	private MemoryConnector mc;
+	private OffHeapCache<MemoryType> cache;
+	private int ids = 0;
+
+	@Before
+	public void setUp() {
+		mc = new MemoryConnector();
+		cache = new OffHeapCache<MemoryType>(mc, 64 * 1024, 16 * 1024);
+	}
+
+	private DatabaseDocument<MemoryType> createDocument(String text) throws Exception {
+		LocalDocument ld = new LocalDocument();
+		ld.putContentField("text", text);
+		ld.putContentField("number", 1);
+		DatabaseDocument<MemoryType> doc = mc.convert(ld);
+		doc.setID(mc.getDocumentReader().toDocumentId("doc" + ids++));
+		return doc;
+	}
+
+	private static String createText(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testDocumentsAreReadBack() throws Exception {
+		DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+		cache.add(doc);
+
+		DatabaseDocument<MemoryType> read = cache.getDocumentById(doc.getID());
+		assertNotSame(doc, read);
+		assertEquals(doc.getID(), read.getID());
+		assertEquals(LONG_TEXT, read.getContentField("text"));
+		assertEquals(1, ((Number) read.getContentField("number")).intValue());
+		assertTrue(cache.getUsedBytes() > LONG_TEXT.length());
+		assertEquals(0, cache.getOnHeapSize());
+	}
+
+	@Test
+	public void testQueriesMatchFieldsKeptOffHeap() throws Exception {
+		DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+		cache.add(doc);
+
+		LocalQuery matching = new LocalQuery();
+		matching.requireContentFieldEquals("text", LONG_TEXT);
+		assertNotNull(cache.getDocument(mc.convert(matching)));
+
+		LocalQuery other = new LocalQuery();
+		other.requireContentFieldEquals("text", "something else");
+		assertNull(cache.getDocument(mc.convert(other)));
+	}
+
+	@Test
+	public void testGetAndTagHandsOutDocumentOnce() throws Exception {
+		DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+		cache.add(doc);
+
+		DatabaseDocument<MemoryType> tagged = cache.getAndTag(mc.convert(new LocalQuery()), "stage");
+		assertNotNull(tagged);
+		assertTrue(tagged.fetchedBy("stage"));
+		assertTrue(cache.getDocumentById(doc.getID()).fetchedBy("stage"));
+		assertEquals(2, cache.getVersion(doc.getID()));
+
+		assertNull(cache.getAndTag(mc.convert(new LocalQuery()), "stage"));
+	}
+
+	@Test
+	public void testUpdateReplacesDocument() throws Exception {
+		DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+		cache.add(doc);
+
+		DatabaseDocument<MemoryType> changed = cache.getDocumentById(doc.getID());
+		changed.putContentField("text", "changed");
+		assertTrue(cache.update(changed));
+
+		assertEquals("changed", cache.getDocumentById(doc.getID()).getContentField("text"));
+		assertFalse(cache.update(createDocument("not cached")));
+	}
+
+	@Test
+	public void testSlabsAreReusedWhenEmptied() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+			cache.add(doc);
+			assertEquals(LONG_TEXT, cache.remove(doc.getID()).getContentField("text"));
+		}
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getOnHeapSize());
+	}
+
+	@Test
+	public void testDocumentsThatDoNotFitAreKeptOnHeap() throws Exception {
+		DatabaseDocument<MemoryType> large = createDocument(createText(20 * 1024));
+		cache.add(large);
+		assertEquals(1, cache.getOnHeapSize());
+
+		for (int i = 0; i < 100; i++) {
+			cache.add(createDocument(LONG_TEXT));
+		}
+		assertEquals(101, cache.getSize());
+		assertTrue(cache.getOnHeapSize() > 1);
+		assertEquals(cache.getOnHeapSize(), cache.getSpilledCount());
+		assertEquals(101, cache.removeAll().size());
+	}
+
+	@Test
+	public void testDocumentsLeftInSlabsAreMovedToMakeRoom() throws Exception {
+		List<DatabaseDocument<MemoryType>> docs = new ArrayList<DatabaseDocument<MemoryType>>();
+		while (cache.getOnHeapSize() == 0) {
+			DatabaseDocument<MemoryType> doc = createDocument(LONG_TEXT);
+			cache.add(doc);
+			docs.add(doc);
+		}
+		List<DatabaseDocument<MemoryType>> kept = new ArrayList<DatabaseDocument<MemoryType>>();
+		for (int i = 0; i < docs.size() - 1; i++) {
+			if (i % 4 == 0) {
+				kept.add(docs.get(i));
+			} else {
+				cache.remove(docs.get(i).getID());
+			}
+		}
+
+		for (int i = 0; i < docs.size() / 2; i++) {
+			cache.add(createDocument(LONG_TEXT));
+		}
+
+		assertEquals(1, cache.getOnHeapSize());
+		assertEquals(1, cache.getSpilledCount());
+		for (DatabaseDocument<MemoryType> doc : kept) {
+			assertEquals(LONG_TEXT, cache.getDocumentById(doc.getID()).getContentField("text"));
+			assertTrue(cache.markTouched(doc.getID(), "stage"));
+		}
+	}
+}
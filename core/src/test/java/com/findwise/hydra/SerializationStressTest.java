@@ -0,0 +1,195 @@
+package com.findwise.hydra;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+/**
+ * Compares the throughput of SerializationUtils with that of serializing
+ * through a Gson tree, with a new date format for every date, the way it was
+ * done before Json was streamed. Documents of the sizes stages typically
+ * handle are written and read back, and the results printed. Only run with
+ * the stresstest profile.
+ */
+public class SerializationStressTest {
+	private static final long WARMUP_MILLIS = 2000;
+	private static final long MEASURE_MILLIS = 5000;
+
+	@Test
+	public void testThroughput() throws Exception {
+		Random random = new Random(1);
+		benchmark("small", createDocument(random, 10, 200, 0));
+		benchmark("medium", createDocument(random, 50, 5 * 1024, 20));
+		benchmark("large", createDocument(random, 200, 100 * 1024, 200));
+	}
+
+	private void benchmark(String name, final LocalDocument d) throws Exception {
+		final String json = d.toJson();
+		assertEquals(GsonTree.fromJson(json), SerializationUtils.fromJson(json));
+		assertEquals(GsonTree.fromJson(GsonTree.toJson(d.toMap())), SerializationUtils.fromJson(json));
+
+		double treeWrite = measure(new Operation() {
+			public void run() {
+				GsonTree.toJson(d.toMap());
+			}
+		});
+		double streamWrite = measure(new Operation() {
+			public void run() {
+				d.toJson();
+			}
+		});
+		double treeRead = measure(new Operation() {
+			public void run() {
+				GsonTree.fromJson(json);
+			}
+		});
+		double streamRead = measure(new Operation() {
+			public void run() throws Exception {
+				new LocalDocument(json);
+			}
+		});
+		System.out.println(String.format("%s document (%d kB): write %.0f ops/s with Gson tree, %.0f ops/s streamed; read %.0f ops/s with Gson tree, %.0f ops/s streamed",
+				name, json.length() / 1024, treeWrite, streamWrite, treeRead, streamRead));
+	}
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	private double measure(Operation operation) throws Exception {
+		long end = System.currentTimeMillis() + WARMUP_MILLIS;
+		while (System.currentTimeMillis() < end) {
+			operation.run();
+		}
+		long count = 0;
+		long start = System.nanoTime();
+		end = System.currentTimeMillis() + MEASURE_MILLIS;
+		while (System.currentTimeMillis() < end) {
+			operation.run();
+			count++;
+		}
+		return count * 1e9 / (System.nanoTime() - start);
+	}
+
+	private LocalDocument createDocument(Random random, int fields, int textLength, int listLength) {
+		LocalDocument d = new LocalDocument();
+		for (int i = 0; i < fields; i++) {
+			switch (i % 5) {
+			case 0:
+				d.putContentField("string" + i, randomText(random, 20));
+				break;
+			case 1:
+				d.putContentField("number" + i, random.nextInt(100000));
+				break;
+			case 2:
+				d.putContentField("double" + i, random.nextDouble());
+				break;
+			case 3:
+				d.putContentField("date" + i, new Date(random.nextInt() * 1000L));
+				break;
+			default:
+				d.putContentField("flag" + i, random.nextBoolean());
+			}
+		}
+		d.putContentField("text", randomText(random, textLength));
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < listLength; i++) {
+			list.add(randomText(random, 10));
+		}
+		d.putContentField("list", list);
+		d.putContentField("tags", Arrays.asList("a", "b", "c"));
+		return d;
+	}
+
+	private String randomText(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(i % 7 == 6 ? ' ' : (char) ('a' + random.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Json through a Gson tree, as SerializationUtils did it before streaming
+	 */
+	private static final class GsonTree {
+		private static final Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new JsonSerializer<Date>() {
+			@Override
+			public JsonElement serialize(Date src, Type typeOfSrc, JsonSerializationContext context) {
+				return new JsonPrimitive(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(src));
+			}
+		}).serializeNulls().create();
+
+		static String toJson(Object o) {
+			return gson.toJson(o);
+		}
+
+		static Object fromJson(String json) {
+			return toObject(new JsonParser().parse(json));
+		}
+
+		private static Object toObject(JsonElement json) {
+			if (json.isJsonNull()) {
+				return null;
+			} else if (json.isJsonArray()) {
+				List<Object> list = new ArrayList<Object>();
+				for (JsonElement e : json.getAsJsonArray()) {
+					list.add(toObject(e));
+				}
+				return list;
+			} else if (json.isJsonObject()) {
+				Map<String, Object> map = new HashMap<String, Object>();
+				for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet()) {
+					map.put(e.getKey(), toObject(e.getValue()));
+				}
+				return map;
+			}
+			JsonPrimitive p = json.getAsJsonPrimitive();
+			if (p.isBoolean()) {
+				return p.getAsBoolean();
+			} else if (p.isString()) {
+				try {
+					return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parse(p.getAsString());
+				} catch (ParseException e) {
+					try {
+						return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").parse(p.getAsString());
+					} catch (ParseException e2) {
+						return p.getAsString();
+					}
+				}
+			}
+			BigDecimal bigDec = p.getAsBigDecimal();
+			try {
+				bigDec.toBigIntegerExact();
+				try {
+					return bigDec.intValueExact();
+				} catch (ArithmeticException e) {
+					return bigDec.longValue();
+				}
+			} catch (ArithmeticException e) {
+				return bigDec.doubleValue();
+			}
+		}
+	}
+}
@@ -3,6 +3,10 @@ package com.findwise.hydra;
 import java.io.File;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 import org.mockito.Mockito;
 
@@ -32,4 +36,52 @@ public class StageRunnerTest {
 		Mockito.verify(p, Mockito.times(1)).destroy();
 	}
 
+	@Test
+	public void testTargetInstancesStayWithinConfiguredRange() throws Exception {
+		StageGroup group = new StageGroup("group");
+		group.setInstances(2);
+		group.setMaxInstances(4);
+		ShutdownHandler shutdownHandler = Mockito.mock(ShutdownHandler.class);
+
+		StageRunner sr = new StageRunner(group, new File("test"), 0, false, 0, shutdownHandler);
+		sr.setParameters(group.toPropertiesMap());
+
+		assertEquals(2, sr.getTargetInstances());
+		sr.setTargetInstances(10);
+		assertEquals(4, sr.getTargetInstances());
+		sr.setTargetInstances(0);
+		assertEquals(2, sr.getTargetInstances());
+	}
+
+	@Test
+	public void testDrainingGroupGetsNoDocuments() throws Exception {
+		StageRunner sr = new StageRunner(new StageGroup("group"), new File("test"), 0, false, 0, Mockito.mock(ShutdownHandler.class));
+
+		assertTrue(sr.documentFetched());
+		sr.startDraining();
+		assertFalse(sr.documentFetched());
+		assertEquals(1, sr.getInFlight());
+	}
+
+	@Test
+	public void testAwaitDrainedWaitsForDocumentsInFlight() throws Exception {
+		final StageRunner sr = new StageRunner(new StageGroup("group"), new File("test"), 0, false, 0, Mockito.mock(ShutdownHandler.class));
+		sr.documentFetched();
+		sr.documentFetched();
+		sr.startDraining();
+		assertFalse(sr.awaitDrained(10));
+
+		new Thread() {
+			@Override
+			public void run() {
+				sr.documentSettled();
+				sr.documentSettled();
+			}
+		}.start();
+		assertTrue(sr.awaitDrained(5000));
+
+		// A document settled after the count reached zero does not make it negative
+		sr.documentSettled();
+		assertEquals(0, sr.getInFlight());
+	}
 }
@@ -0,0 +1,110 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DatabaseConnector;
+import com.findwise.hydra.DatabaseDocument;
+import com.findwise.hydra.DocumentReader;
+import com.findwise.hydra.DocumentWriter;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class AdmissionControlTest {
+	private CachingDocumentNIO<MemoryType> io;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() {
+		io = mock(CachingDocumentNIO.class);
+	}
+
+	@Test
+	public void testActiveDocumentLimit() {
+		AdmissionControl<MemoryType> admission = new AdmissionControl<MemoryType>(io, 10, 0, 0, 1);
+		when(io.getActiveDatabaseSize()).thenReturn(9L);
+		assertNull(admission.check());
+		// Counted at most once per interval
+		when(io.getActiveDatabaseSize()).thenReturn(10L);
+		assertNull(admission.check());
+		verify(io, times(1)).getActiveDatabaseSize();
+	}
+
+	@Test
+	public void testLatencyLimit() {
+		AdmissionControl<MemoryType> admission = new AdmissionControl<MemoryType>(io, 0, 50, 0, 1);
+		assertNull(admission.check());
+		admission.recordLatency(200);
+		assertNotNull(admission.check());
+		for (int i = 0; i < 20; i++) {
+			admission.recordLatency(5);
+		}
+		assertNull(admission.check());
+	}
+
+	@Test
+	public void testCacheLimit() {
+		AdmissionControl<MemoryType> admission = new AdmissionControl<MemoryType>(io, 0, 0, 100, 1);
+		when(io.getCacheSize()).thenReturn(100);
+		assertNotNull(admission.check());
+		when(io.getCacheSize()).thenReturn(99);
+		assertNull(admission.check());
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testInsertIsRejectedWithRetryAfter() throws Exception {
+		DatabaseConnector dbc = mock(DatabaseConnector.class);
+		DocumentWriter writer = mock(DocumentWriter.class);
+		DocumentReader reader = mock(DocumentReader.class);
+		when(dbc.getDocumentWriter()).thenReturn(writer);
+		when(dbc.getDocumentReader()).thenReturn(reader);
+		when(dbc.convert(any(LocalDocument.class))).thenReturn(mock(DatabaseDocument.class));
+		when(reader.getActiveDatabaseSize()).thenReturn(5L);
+
+		CachingDocumentNIO<MemoryType> caching = new CachingDocumentNIO<MemoryType>(dbc, new NoopCache<MemoryType>(), false);
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(caching, null, null, false);
+		handler.setAdmissionControl(new AdmissionControl<MemoryType>(caching, 5, 0, 0, 7));
+		RESTServer server = RESTServer.getNewStartedRESTServer(14000, handler);
+		try {
+			HttpResponse rejected = insert(server.getPort());
+			assertEquals(RemotePipeline.TOO_MANY_REQUESTS, rejected.getStatusLine().getStatusCode());
+			assertEquals("7", rejected.getFirstHeader(RemotePipeline.RETRY_AFTER_HEADER).getValue());
+			verify(writer, never()).insert(any(DatabaseDocument.class));
+		} finally {
+			server.shutdown();
+		}
+	}
+
+	private HttpResponse insert(int port) throws Exception {
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			HttpPost post = new HttpPost("http://localhost:" + port + "/" + RemotePipeline.WRITE_DOCUMENT_URL + "?"
+					+ RemotePipeline.STAGE_PARAM + "=producer&" + RemotePipeline.NORELEASE_PARAM + "=1&" + RemotePipeline.PARTIAL_PARAM + "=0");
+			post.setEntity(new StringEntity("{\"contents\":{\"field\":\"value\"}}"));
+			HttpResponse response = client.execute(post);
+			EntityUtils.consume(response.getEntity());
+			return response;
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.AgentRegistry;
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.StageAgent;
+import com.findwise.hydra.StageGroup;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.hydra.stage.StageThreads;
+import com.findwise.tools.HttpCompression;
+
+public class AgentHandlerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AgentRegistry registry;
+	private RESTServer server;
+	private TestAgent agentA;
+	private TestAgent agentB;
+	private File library;
+
+	@Before
+	public void setUp() throws Exception {
+		MemoryConnector mc = new MemoryConnector();
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>()), mc.getPipelineReader(), null, false);
+		registry = new AgentRegistry();
+		handler.setAgentRegistry(registry);
+		server = RESTServer.getNewStartedRESTServer(20000, handler);
+
+		library = folder.newFile("stages.jar");
+		FileUtils.writeStringToFile(library, "library contents");
+
+		agentA = new TestAgent("a", server.getPort(), folder.newFolder("a"));
+		agentB = new TestAgent("b", server.getPort(), folder.newFolder("b"));
+		agentA.heartbeat();
+		agentB.heartbeat();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		agentA.stop();
+		agentB.stop();
+		server.shutdown();
+	}
+
+	@Test
+	public void testGroupsArePlacedOnLeastLoadedAgent() throws Exception {
+		String first = assign("g1", AgentRegistry.ANY_AGENT);
+		String second = assign("g2", AgentRegistry.ANY_AGENT);
+		assertFalse(first.equals(second));
+
+		agentA.heartbeat();
+		assertTrue(agentA.awaitStarted(5000));
+		agentB.heartbeat();
+		assertTrue(agentB.awaitStarted(5000));
+		assertEquals(1, agentA.getRunningGroups().size());
+		assertEquals(1, agentB.getRunningGroups().size());
+		assertEquals("library contents", agentA.launchedLibrary);
+		assertEquals("library contents", agentB.launchedLibrary);
+	}
+
+	@Test
+	public void testPinnedGroupIsPlacedOnItsAgent() throws Exception {
+		assertEquals("b", assign("g1", "b"));
+		assertEquals("b", assign("g2", "b"));
+
+		agentA.heartbeat();
+		assertTrue(agentA.awaitStarted(5000));
+		agentB.heartbeat();
+		assertTrue(agentB.awaitStarted(5000));
+		assertTrue(agentA.getRunningGroups().isEmpty());
+		assertEquals(2, agentB.getRunningGroups().size());
+	}
+
+	@Test
+	public void testFailedGroupIsEnded() throws Exception {
+		String agentName = assign("g1", AgentRegistry.ANY_AGENT);
+		TestAgent agent = "a".equals(agentName) ? agentA : agentB;
+		agent.heartbeat();
+		assertTrue(agent.awaitStarted(5000));
+		assertTrue(agent.getRunningGroups().contains("g1"));
+
+		agent.process.exit();
+		agent.heartbeat();
+		assertFalse(registry.awaitGroup("g1"));
+		assertFalse(agent.getRunningGroups().contains("g1"));
+	}
+
+	@Test
+	public void testUnassignedGroupIsStopped() throws Exception {
+		String agentName = assign("g1", AgentRegistry.ANY_AGENT);
+		TestAgent agent = "a".equals(agentName) ? agentA : agentB;
+		agent.heartbeat();
+		assertTrue(agent.awaitStarted(5000));
+		assertTrue(agent.getRunningGroups().contains("g1"));
+
+		registry.unassign("g1");
+		agent.heartbeat();
+		assertTrue(agent.getRunningGroups().isEmpty());
+		assertTrue(agent.process.destroyed);
+	}
+
+	@Test
+	public void testHeartbeatDoesNotWaitForGroupToStart() throws Exception {
+		agentB.launchAllowed = new CountDownLatch(1);
+		assign("g1", "b");
+		agentB.heartbeat();
+		assertFalse(agentB.awaitStarted(100));
+
+		registry.unassign("g1");
+		agentB.heartbeat();
+		agentB.launchAllowed.countDown();
+		assertTrue(agentB.awaitStarted(5000));
+		assertTrue(agentB.process.destroyed);
+		assertTrue(agentB.getRunningGroups().isEmpty());
+	}
+
+	@Test
+	public void testAssignmentCarriesGroupSettings() throws Exception {
+		StageGroup group = new StageGroup("g1");
+		group.setAgent("a");
+		group.setVirtualThreads(true);
+		group.setWireFormat(StageGroup.BSON_WIRE_FORMAT);
+		group.setCompression("fast");
+		registry.assign(group, Arrays.asList(library), "java", "", false, 12002);
+
+		agentA.heartbeat();
+		assertTrue(agentA.awaitStarted(5000));
+		List<String> args = Arrays.asList(agentA.launchedCommand.getArguments());
+		assertTrue(args.contains("-D" + StageThreads.VIRTUAL_THREADS_PROPERTY + "=true"));
+		assertTrue(args.contains("-D" + RemotePipeline.WIRE_FORMAT_PROPERTY + "=" + RemotePipeline.BSON_WIRE_FORMAT));
+		assertTrue(args.contains("-D" + HttpCompression.COMPRESSION_PROPERTY + "=fast"));
+	}
+
+	@Test
+	public void testLibraryOfOtherAgentIsNotServed() throws Exception {
+		String agentName = assign("g1", AgentRegistry.ANY_AGENT);
+		String other = "a".equals(agentName) ? "b" : "a";
+		assertNotNull(registry.getFile(agentName, "g1", library.getName()));
+		assertEquals(null, registry.getFile(other, "g1", library.getName()));
+	}
+
+	private String assign(String groupName, String agent) throws InterruptedException {
+		StageGroup group = new StageGroup(groupName);
+		group.setAgent(agent);
+		return registry.assign(group, Arrays.asList(library), "java", "", false, 12002);
+	}
+
+	private static class TestAgent extends StageAgent {
+		private FakeProcess process;
+		private String launchedLibrary;
+		private CommandLine launchedCommand;
+		private volatile CountDownLatch launchAllowed;
+
+		public TestAgent(String name, int port, File workDirectory) {
+			super(name, "localhost", port, workDirectory);
+		}
+
+		@Override
+		protected Process launch(String group, List<File> files, Map<String, Object> assignment) throws IOException {
+			if (launchAllowed != null) {
+				try {
+					launchAllowed.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			launchedLibrary = FileUtils.readFileToString(files.get(0));
+			launchedCommand = createCommandLine(group, files, assignment);
+			process = new FakeProcess();
+			return process;
+		}
+	}
+
+	private static class FakeProcess extends Process {
+		private volatile boolean exited = false;
+		private volatile boolean destroyed = false;
+
+		public void exit() {
+			exited = true;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return null;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return null;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return null;
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			if (!exited && !destroyed) {
+				throw new IllegalThreadStateException();
+			}
+			return 0;
+		}
+
+		@Override
+		public void destroy() {
+			destroyed = true;
+		}
+	}
+}
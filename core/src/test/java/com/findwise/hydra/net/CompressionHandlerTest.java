@@ -0,0 +1,108 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.tools.HttpCompression;
+import com.findwise.tools.HttpConnection;
+
+public class CompressionHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>(), false), mc.getPipelineReader(), null, false);
+		server = RESTServer.getNewStartedRESTServer(14001, handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testLargeBodiesAreCompressedBothWays() throws Exception {
+		LocalDocument inserted = new LocalDocument();
+		inserted.putContentField("text", text(10000));
+		new RemotePipeline("localhost", server.getPort(), "producer").insert(Arrays.asList(inserted));
+
+		HttpConnection connection = new HttpConnection("localhost", server.getPort());
+		HttpCompression compression = new HttpCompression(Deflater.BEST_SPEED, HttpCompression.DEFAULT_THRESHOLD);
+		connection.setCompression(compression);
+		RemotePipeline rp = new RemotePipeline(connection, "stage", false);
+
+		LocalDocument fetched = rp.getDocument(new LocalQuery());
+		assertEquals(text(10000), fetched.getContentField("text"));
+		assertTrue(server.getCompression().getCompressedBodies() > 0);
+		assertTrue(compression.getDecompressedBodies() > 0);
+
+		fetched.putContentField("added", text(5000));
+		assertTrue(rp.save(fetched));
+		assertTrue(compression.getCompressedBodies() > 0);
+		assertTrue(server.getCompression().getDecompressedBodies() > 0);
+
+		MemoryDocument stored = (MemoryDocument) mc.getDocumentReader().getDocumentById(mc.convert(inserted).getID(), true);
+		assertEquals(text(5000), stored.getContentField("added"));
+	}
+
+	@Test
+	public void testSmallBodiesAreNotCompressed() throws Exception {
+		LocalDocument inserted = new LocalDocument();
+		inserted.putContentField("text", "value");
+		new RemotePipeline("localhost", server.getPort(), "producer").insert(Arrays.asList(inserted));
+
+		HttpConnection connection = new HttpConnection("localhost", server.getPort());
+		HttpCompression compression = new HttpCompression(Deflater.BEST_SPEED, HttpCompression.DEFAULT_THRESHOLD);
+		connection.setCompression(compression);
+		RemotePipeline rp = new RemotePipeline(connection, "stage", false);
+
+		assertEquals("value", rp.getDocument(new LocalQuery()).getContentField("text"));
+		assertEquals(0, compression.getDecompressedBodies());
+	}
+
+	@Test
+	public void testMalformedCompressedBodyIsNotUnderstood() throws Exception {
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			HttpPost post = new HttpPost("http://localhost:" + server.getPort() + "/" + RemotePipeline.WRITE_DOCUMENT_URL + "?" + RemotePipeline.STAGE_PARAM + "=stage");
+			ByteArrayEntity entity = new ByteArrayEntity("not gzip".getBytes("UTF-8"));
+			entity.setContentEncoding(HttpCompression.GZIP);
+			post.setEntity(entity);
+			HttpResponse response = client.execute(post);
+
+			assertEquals(HttpStatus.SC_UNPROCESSABLE_ENTITY, response.getStatusLine().getStatusCode());
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	private static String text(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(i % 7 == 6 ? ' ' : (char) ('a' + i % 26));
+		}
+		return sb.toString();
+	}
+}
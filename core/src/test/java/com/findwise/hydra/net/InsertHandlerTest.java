@@ -0,0 +1,94 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.DocumentID;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalDocumentID;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class InsertHandlerTest {
+	private MemoryConnector mc;
+	private CachingDocumentNIO<MemoryType> io;
+	private RESTServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		io = Mockito.spy(new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>(), false));
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(io, mc.getPipelineReader(), null, false);
+		server = RESTServer.getNewStartedRESTServer(14000, handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testInsertGivesEachDocumentItsId() throws Exception {
+		LocalDocument first = new LocalDocument();
+		first.putContentField("field", "first");
+		LocalDocument existing = new LocalDocument();
+		existing.setID(new LocalDocumentID(1));
+		LocalDocument second = new LocalDocument();
+		second.putContentField("field", "second");
+
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "producer");
+		List<Boolean> results = rp.insert(Arrays.asList(first, existing, second));
+
+		assertEquals(Arrays.asList(true, false, true), results);
+		assertNotNull(first.getID());
+		assertNotNull(second.getID());
+		assertTrue(first.isSynced());
+		assertEquals(2, mc.getDocumentReader().getActiveDatabaseSize());
+
+		MemoryDocument inserted = (MemoryDocument) mc.getDocumentReader().getDocumentById(mc.convert(first).getID(), true);
+		assertEquals("first", inserted.getContentField("field"));
+		assertTrue(inserted.touchedBy("producer"));
+		// Tagged as part of the insert, rather than by a write per document
+		Mockito.verify(io, Mockito.never()).markTouched(Mockito.<DocumentID<MemoryType>>any(), Mockito.anyString());
+	}
+
+	@Test
+	public void testUnreadableLineOnlyFailsItsDocument() throws Exception {
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			HttpPost post = new HttpPost("http://localhost:" + server.getPort() + "/" + RemotePipeline.INSERT_DOCUMENTS_URL + "?" + RemotePipeline.STAGE_PARAM + "=producer");
+			post.setEntity(new StringEntity("{\"contents\":{\"field\":\"value\"}}\nnot a document\n\n{\"contents\":{}}\n", "UTF-8"));
+			HttpResponse response = client.execute(post);
+			String[] lines = EntityUtils.toString(response.getEntity()).split("\n");
+
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			assertEquals(3, lines.length);
+			assertFalse(RemotePipeline.INSERT_FAILED.equals(lines[0]));
+			assertEquals(RemotePipeline.INSERT_FAILED, lines[1]);
+			assertNotNull(io.getDocumentById(io.toDocumentId(SerializationUtils.toObject(lines[2]))));
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+		assertEquals(2, mc.getDocumentReader().getActiveDatabaseSize());
+	}
+}
@@ -4,8 +4,11 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -63,4 +66,20 @@ public class PropertiesHandlerTest {
 		assertFalse(stages.contains("stage"));
 	}
 
+
+	@Test
+	public void testGetGroupProperties() throws Exception {
+		Pipeline p = new Pipeline();
+		StageGroup g = new StageGroup("1");
+		g.addStage(new Stage("a", Mockito.mock(DatabaseFile.class)));
+		g.addStage(new Stage("b", Mockito.mock(DatabaseFile.class)));
+		g.setFusedChain(Arrays.asList("a", "b"));
+		p.addGroup(g);
+
+		Mockito.when(reader.getPipeline()).thenReturn(p);
+
+		Map<String, Object> properties = GroupStarter.getGroupProperties("localhost", server.getPort(), "1");
+
+		assertEquals(Arrays.asList("a", "b"), properties.get(GroupStarter.FUSED_CHAIN_KEY));
+	}
 }
@@ -0,0 +1,84 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.findwise.hydra.CachingDocumentNIO;
+import com.findwise.hydra.NoopCache;
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+
+public class QueryHandlerTest {
+	private MemoryConnector mc;
+	private RESTServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(new CachingDocumentNIO<MemoryType>(mc, new NoopCache<MemoryType>(), false), mc.getPipelineReader(), null, false);
+		server = RESTServer.getNewStartedRESTServer(14000, handler);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+	}
+
+	@Test
+	public void testDocumentIsAnsweredInBsonWhenAccepted() throws Exception {
+		LocalDocument inserted = new LocalDocument();
+		inserted.putContentField("text", "value");
+		new RemotePipeline("localhost", server.getPort(), "producer").insert(Arrays.asList(inserted));
+
+		DefaultHttpClient client = new DefaultHttpClient();
+		try {
+			HttpPost post = new HttpPost("http://localhost:" + server.getPort() + "/" + RemotePipeline.GET_DOCUMENT_URL + "?" + RemotePipeline.STAGE_PARAM + "=stage");
+			post.setEntity(new StringEntity(new LocalQuery().toJson(), "UTF-8"));
+			post.setHeader("Accept", RemotePipeline.BSON_CONTENT_TYPE);
+			HttpResponse response = client.execute(post);
+
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			assertEquals(RemotePipeline.BSON_CONTENT_TYPE, response.getEntity().getContentType().getValue());
+			LocalDocument fetched = new LocalDocument(response.getEntity().getContent());
+			assertEquals(inserted.getID(), fetched.getID());
+			assertEquals("value", fetched.getContentField("text"));
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	@Test
+	public void testBsonDocumentsAreFetchedAndSaved() throws Exception {
+		LocalDocument inserted = new LocalDocument();
+		inserted.putContentField("text", "value");
+		new RemotePipeline("localhost", server.getPort(), "producer").insert(Arrays.asList(inserted));
+
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		rp.setBsonWireFormat(true);
+		LocalDocument fetched = rp.getDocument(new LocalQuery());
+		assertEquals("value", fetched.getContentField("text"));
+
+		fetched.putContentField("added", "field");
+		assertTrue(rp.save(fetched));
+		assertTrue(rp.markProcessed(fetched));
+
+		MemoryDocument stored = (MemoryDocument) mc.getDocumentReader().getDocumentById(mc.convert(inserted).getID(), true);
+		assertEquals("field", stored.getContentField("added"));
+		assertTrue(stored.touchedBy("stage"));
+	}
+}
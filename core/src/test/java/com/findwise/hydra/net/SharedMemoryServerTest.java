@@ -0,0 +1,171 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryDocument;
+import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.tools.CoreConnection;
+import com.findwise.tools.HttpConnection;
+import com.findwise.tools.SharedMemoryConnection;
+import com.findwise.tools.SharedMemoryRing;
+
+public class SharedMemoryServerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MemoryConnector mc;
+	private RESTServer rest;
+	private SharedMemoryServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(mc);
+		rest = RESTServer.getNewStartedRESTServer(20000, handler);
+		// Small slots, so that large documents have to be split or sent over HTTP
+		server = new SharedMemoryServer(new File(folder.getRoot(), "test.ring"), handler, 4, 1024);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		rest.shutdown();
+	}
+
+	private RemotePipeline newPipeline(String stageName) throws Exception {
+		SharedMemoryConnection connection = new SharedMemoryConnection(SharedMemoryRing.open(server.getFile()), new HttpConnection(RemotePipeline.DEFAULT_HOST, rest.getPort()));
+		return new RemotePipeline(connection, stageName, false);
+	}
+
+	private MemoryDocument insert(String field, String value) throws Exception {
+		LocalDocument doc = new LocalDocument();
+		doc.putContentField(field, value);
+		MemoryDocument md = (MemoryDocument) mc.convert(doc);
+		mc.getDocumentWriter().insert(md);
+		return md;
+	}
+
+	private static String repeat(char c, int times) {
+		StringBuilder sb = new StringBuilder(times);
+		for (int i = 0; i < times; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testGetAndSave() throws Exception {
+		MemoryDocument inserted = insert("field", "value");
+		RemotePipeline rp = newPipeline("stage");
+
+		LocalDocument doc = rp.getDocument(new LocalQuery());
+		assertNotNull(doc);
+		assertEquals("value", doc.getContentField("field"));
+
+		doc.putContentField("added", "new value");
+		assertTrue(rp.save(doc));
+
+		MemoryDocument saved = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals("new value", saved.getContentField("added"));
+		assertTrue(saved.touchedBy("stage"));
+	}
+
+	@Test
+	public void testResponseLargerThanSlotIsSentInParts() throws Exception {
+		String large = repeat('x', 10000);
+		insert("large", large);
+
+		LocalDocument doc = newPipeline("stage").getDocument(new LocalQuery());
+
+		assertEquals(large, doc.getContentField("large"));
+	}
+
+	@Test
+	public void testRequestLargerThanSlotIsSentOverHttp() throws Exception {
+		MemoryDocument inserted = insert("field", "value");
+		RemotePipeline rp = newPipeline("stage");
+		LocalDocument doc = rp.getDocument(new LocalQuery());
+
+		String large = repeat('y', 10000);
+		doc.putContentField("large", large);
+		assertTrue(rp.save(doc));
+
+		MemoryDocument saved = (MemoryDocument) mc.getDocumentReader().getDocumentById(inserted.getID(), true);
+		assertEquals(large, saved.getContentField("large"));
+	}
+
+	@Test
+	public void testResetFreesAllSlots() throws Exception {
+		SharedMemoryRing ring = SharedMemoryRing.open(server.getFile());
+		for (int i = 0; i < ring.getSlots(); i++) {
+			ring.setState(i, SharedMemoryRing.PROCESSING);
+		}
+		int generation = ring.getGeneration();
+
+		server.reset();
+
+		assertEquals(generation + 1, ring.getGeneration());
+		for (int i = 0; i < ring.getSlots(); i++) {
+			assertEquals(SharedMemoryRing.FREE, ring.getState(i));
+		}
+	}
+
+	@Test
+	public void testTimedOutSlotIsReclaimedOnceAnswered() throws Exception {
+		// A ring that no server polls, with a single slot
+		SharedMemoryRing ring = SharedMemoryRing.create(folder.newFile("unserved.ring"), 1, 1024);
+		CoreConnection fallback = mock(CoreConnection.class);
+		HttpResponse fallbackResponse = mock(HttpResponse.class);
+		when(fallback.get("/url")).thenReturn(fallbackResponse);
+		SharedMemoryConnection connection = new SharedMemoryConnection(ring, fallback);
+		connection.setTimeout(50);
+		connection.setSlotWait(10);
+
+		try {
+			connection.get("/url");
+			fail("Expected the request to time out");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(SharedMemoryRing.REQUEST, ring.getState(0));
+
+		// The slot is still taken, so the request goes over HTTP
+		assertTrue(connection.get("/url") == fallbackResponse);
+		verify(fallback).get("/url");
+
+		// Once core answers the abandoned request, the slot is reused
+		ring.write(0, ring.getSequence(0), new byte[0], 0, 0);
+		ring.setState(0, SharedMemoryRing.RESPONSE);
+		try {
+			connection.get("/url");
+			fail("Expected the request to time out");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(SharedMemoryRing.REQUEST, ring.getState(0));
+		verify(fallback, times(1)).get("/url");
+	}
+}
@@ -0,0 +1,143 @@
+package com.findwise.hydra.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.LocalQuery;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.hydra.memorydb.MemoryConnector;
+import com.findwise.hydra.memorydb.MemoryType;
+import com.findwise.tools.CoreConnection;
+import com.findwise.tools.HttpConnection;
+import com.findwise.tools.SharedMemoryConnection;
+import com.findwise.tools.SharedMemoryRing;
+
+/**
+ * Compares the throughput and latency of a stage fetching and saving documents
+ * over HTTP with doing the same through a shared memory ring. Only run with the
+ * stresstest profile.
+ */
+public class SharedMemoryTransportStressTest {
+	private static final int DOCUMENTS = 2000;
+	private static final int THREADS = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MemoryConnector mc;
+	private RESTServer rest;
+	private SharedMemoryServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		mc = new MemoryConnector();
+		HttpRESTHandler<MemoryType> handler = new HttpRESTHandler<MemoryType>(mc);
+		rest = RESTServer.getNewStartedRESTServer(20000, handler);
+		server = new SharedMemoryServer(new File(folder.getRoot(), "stress.ring"), handler);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		rest.shutdown();
+	}
+
+	@Test
+	public void testCompareTransports() throws Exception {
+		HttpConnection http = new HttpConnection(RemotePipeline.DEFAULT_HOST, rest.getPort());
+		SharedMemoryConnection mmap = new SharedMemoryConnection(SharedMemoryRing.open(server.getFile()), http);
+
+		// Warm up both paths before measuring
+		run("warmup-http", http, DOCUMENTS / 5);
+		run("warmup-mmap", mmap, DOCUMENTS / 5);
+
+		Result overHttp = run("http", http, DOCUMENTS);
+		Result overMmap = run("mmap", mmap, DOCUMENTS);
+
+		System.out.println("http: " + overHttp);
+		System.out.println("mmap: " + overMmap);
+	}
+
+	private Result run(final String stageName, CoreConnection connection, int documents) throws Exception {
+		for (int i = 0; i < documents; i++) {
+			LocalDocument doc = new LocalDocument();
+			doc.putContentField("title", "Document " + i);
+			doc.putContentField("body", "Some text that a stage would work on, for document number " + i);
+			doc.putContentField(stageName, true);
+			mc.getDocumentWriter().insert(mc.convert(doc));
+		}
+
+		final RemotePipeline rp = new RemotePipeline(connection, stageName, false);
+		final LocalQuery query = new LocalQuery();
+		query.requireContentFieldExists(stageName);
+		final AtomicInteger processed = new AtomicInteger();
+		final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					while (true) {
+						long before = System.nanoTime();
+						LocalDocument doc = rp.getDocument(query);
+						if (doc == null) {
+							return null;
+						}
+						doc.putContentField("processed", true);
+						assertTrue(rp.markProcessed(doc));
+						latencies.add(System.nanoTime() - before);
+						processed.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Future<Void> f : futures) {
+			f.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		assertEquals(documents, processed.get());
+		return new Result(documents, elapsed, latencies);
+	}
+
+	private static class Result {
+		private final double docsPerSecond;
+		private final double p50;
+		private final double p99;
+
+		public Result(int documents, long elapsedNanos, List<Long> latencies) {
+			docsPerSecond = documents / (elapsedNanos / 1e9);
+			List<Long> sorted = new ArrayList<Long>(latencies);
+			Collections.sort(sorted);
+			p50 = sorted.get(sorted.size() / 2) / 1e6;
+			p99 = sorted.get((int) (sorted.size() * 0.99)) / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.0f docs/s, p50 %.3f ms, p99 %.3f ms (get and mark processed)", docsPerSecond, p50, p99);
+		}
+	}
+}
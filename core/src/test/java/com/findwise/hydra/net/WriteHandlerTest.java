@@ -1,12 +1,20 @@
 package com.findwise.hydra.net;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -15,6 +23,11 @@ import com.findwise.hydra.DatabaseDocument;
 import com.findwise.hydra.DatabaseType;
 import com.findwise.hydra.DocumentReader;
 import com.findwise.hydra.DocumentWriter;
+import com.findwise.hydra.ShutdownHandler;
+import com.findwise.hydra.Stage;
+import com.findwise.hydra.StageGroup;
+import com.findwise.hydra.StageManager;
+import com.findwise.hydra.StageRunner;
 import com.findwise.hydra.local.LocalDocument;
 import com.findwise.hydra.local.LocalDocumentID;
 import com.findwise.hydra.local.RemotePipeline;
@@ -93,4 +106,95 @@ public class WriteHandlerTest {
 		verify(writer).update(any(DatabaseDocument.class));
 	}
 
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testSaveTagsChainedStages() throws Exception {
+		DatabaseDocument dbdoc = mock(DatabaseDocument.class);
+		when(dbc.convert(any(LocalDocument.class))).thenReturn(dbdoc);
+		
+		LocalDocumentID id = new LocalDocumentID(1);
+		
+		when(dbdoc.getID()).thenReturn(id);
+		when(reader.getDocumentById(id, false)).thenReturn(dbdoc);
+		when(dbdoc.copy()).thenReturn(dbdoc);
+		when(writer.update(any(DatabaseDocument.class))).thenReturn(true);
+		
+		RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+		LocalDocument ld = new LocalDocument();
+		ld.setID(id);
+		
+		rp.save(ld, Arrays.asList("second", "third"));
+		
+		verify(dbdoc).setFetchedBy(eq("second"), any(Date.class));
+		verify(dbdoc).setTouchedBy(eq("second"), any(Date.class));
+		verify(dbdoc).setFetchedBy(eq("third"), any(Date.class));
+		verify(dbdoc).setTouchedBy(eq("third"), any(Date.class));
+		verify(dbdoc, never()).setTouchedBy(eq("stage"), any(Date.class));
+		verify(writer).update(any(DatabaseDocument.class));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testReleasingSaveSettlesDocument() throws Exception {
+		DatabaseDocument dbdoc = mock(DatabaseDocument.class);
+		when(dbc.convert(any(LocalDocument.class))).thenReturn(dbdoc);
+		
+		LocalDocumentID id = new LocalDocumentID(1);
+		
+		when(dbdoc.getID()).thenReturn(id);
+		when(reader.getDocumentById(id, false)).thenReturn(dbdoc);
+		when(reader.getDocumentById(id)).thenReturn(dbdoc);
+		when(dbdoc.copy()).thenReturn(dbdoc);
+		when(writer.update(any(DatabaseDocument.class))).thenReturn(true);
+		
+		StageGroup group = new StageGroup("group");
+		group.addStage(new Stage("stage", null));
+		StageRunner runner = new StageRunner(group, new File("test"), 0, false, 0, mock(ShutdownHandler.class));
+		StageManager.getStageManager().addRunner(runner);
+		try {
+			assertTrue(runner.documentFetched());
+			assertEquals(1, runner.getInFlight());
+			
+			RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+			LocalDocument ld = new LocalDocument();
+			ld.setID(id);
+			
+			assertTrue(rp.save(ld));
+			assertEquals(0, runner.getInFlight());
+		} finally {
+			StageManager.getStageManager().removeRunner("group");
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Test
+	public void testSaveLeftToAnotherStageDoesNotSettleDocument() throws Exception {
+		DatabaseDocument dbdoc = mock(DatabaseDocument.class);
+		when(dbc.convert(any(LocalDocument.class))).thenReturn(dbdoc);
+		
+		LocalDocumentID id = new LocalDocumentID(1);
+		
+		when(dbdoc.getID()).thenReturn(id);
+		when(reader.getDocumentById(id, false)).thenReturn(dbdoc);
+		when(reader.getDocumentById(id)).thenReturn(dbdoc);
+		when(dbdoc.copy()).thenReturn(dbdoc);
+		when(writer.update(any(DatabaseDocument.class))).thenReturn(true);
+		
+		StageGroup group = new StageGroup("group");
+		group.addStage(new Stage("stage", null));
+		StageRunner runner = new StageRunner(group, new File("test"), 0, false, 0, mock(ShutdownHandler.class));
+		StageManager.getStageManager().addRunner(runner);
+		try {
+			assertTrue(runner.documentFetched());
+			
+			RemotePipeline rp = new RemotePipeline("localhost", server.getPort(), "stage");
+			LocalDocument ld = new LocalDocument();
+			ld.setID(id);
+			
+			assertTrue(rp.save(ld, Arrays.asList("output"), false));
+			assertEquals(1, runner.getInFlight());
+		} finally {
+			StageManager.getStageManager().removeRunner("group");
+		}
+	}
 }
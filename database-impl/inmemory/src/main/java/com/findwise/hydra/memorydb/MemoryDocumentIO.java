@@ -278,6 +278,15 @@ public class MemoryDocumentIO implements DocumentWriter<MemoryType>,
 		return true;
 	}
 
+	@Override
+	public List<Boolean> insertAll(List<DatabaseDocument<MemoryType>> documents) {
+		List<Boolean> results = new ArrayList<Boolean>(documents.size());
+		for (DatabaseDocument<MemoryType> d : documents) {
+			results.add(insert(d));
+		}
+		return results;
+	}
+
 	@Override
 	public boolean insert(DatabaseDocument<MemoryType> d, List<DocumentFile<MemoryType>> attachments) {
 		if(attachments == null || attachments.isEmpty()) {
@@ -47,6 +47,11 @@ import com.mongodb.gridfs.GridFSInputFile;
  */
 public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWriter<MongoType> {
 	private static final int MAX_NUMBER_OF_DONE_RETRIES = 10;
+	/**
+	 * Documents sent to the database in each write by insertAll(). The driver
+	 * splits writes that are too large for a single message further.
+	 */
+	public static final int INSERT_BATCH_SIZE = 500;
 	private DBCollection documents;
 	private DBCollection oldDocuments;
 	private GridFS documentfs;
@@ -265,6 +270,79 @@ public class MongoDocumentIO implements DocumentReader<MongoType>, DocumentWrite
 		return false;
 	}
 
+	/**
+	 * Inserts the documents in batches of {@link #INSERT_BATCH_SIZE}. The
+	 * insert continues past documents that fail, and when a batch reports an
+	 * error, the documents of the batch that made it into the database are
+	 * looked up by the IDs they were given.
+	 */
+	@Override
+	public List<Boolean> insertAll(List<DatabaseDocument<MongoType>> docs) {
+		List<Boolean> results = new ArrayList<Boolean>(docs.size());
+		for (int start = 0; start < docs.size(); start += INSERT_BATCH_SIZE) {
+			results.addAll(insertBatch(docs.subList(start, Math.min(docs.size(), start + INSERT_BATCH_SIZE))));
+		}
+		return results;
+	}
+
+	private List<Boolean> insertBatch(List<DatabaseDocument<MongoType>> batch) {
+		List<DBObject> toInsert = new ArrayList<DBObject>(batch.size());
+		boolean[] attempted = new boolean[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			DatabaseDocument<MongoType> d = batch.get(i);
+			// As with insert(), documents that already have an ID are not inserted
+			if (d.getID() == null) {
+				attempted[i] = true;
+				for (String key : getNullFields((MongoDocument) d)) {
+					d.removeContentField(key);
+				}
+				toInsert.add((MongoDocument) d);
+			}
+		}
+		Set<Object> failed = new HashSet<Object>();
+		if (!toInsert.isEmpty()) {
+			try {
+				documents.insert(toInsert, concern.continueOnErrorForInsert(true));
+			} catch (MongoException e) {
+				logger.error("Batch insert of " + toInsert.size() + " documents reported an error, checking which were inserted", e);
+				try {
+					failed = getMissing(toInsert);
+				} catch (MongoException lookupFailure) {
+					logger.error("Unable to check which documents were inserted, reporting all of them as failed", lookupFailure);
+					for (DBObject dbo : toInsert) {
+						failed.add(dbo.get(MongoDocument.MONGO_ID_KEY));
+					}
+				}
+			}
+		}
+		List<Boolean> results = new ArrayList<Boolean>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			results.add(attempted[i] && !failed.contains(((MongoDocument) batch.get(i)).get(MongoDocument.MONGO_ID_KEY)));
+		}
+		return results;
+	}
+
+	/**
+	 * @return the IDs, as given by the driver, of the documents that are not in
+	 * the database
+	 */
+	private Set<Object> getMissing(List<DBObject> inserted) {
+		Set<Object> missing = new HashSet<Object>();
+		for (DBObject dbo : inserted) {
+			missing.add(dbo.get(MongoDocument.MONGO_ID_KEY));
+		}
+		DBObject query = QueryBuilder.start(MongoDocument.MONGO_ID_KEY).in(missing.toArray()).get();
+		DBCursor cursor = documents.find(query, new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1));
+		try {
+			while (cursor.hasNext()) {
+				missing.remove(cursor.next().get(MongoDocument.MONGO_ID_KEY));
+			}
+		} finally {
+			cursor.close();
+		}
+		return missing;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.findwise.hydra.DocumentWriter#insert(com.findwise.hydra.DatabaseDocument)
 	 */
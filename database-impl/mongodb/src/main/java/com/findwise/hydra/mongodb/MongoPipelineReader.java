@@ -1,6 +1,9 @@
 package com.findwise.hydra.mongodb;
 
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -25,6 +28,7 @@ public class MongoPipelineReader implements PipelineReader {
 	private GridFS pipelinefs;
 
 	private DBCollection stages = null;
+	private DBCollection files = null;
 	
 	public static final String STAGE_KEY = "stage";
 	public static final String TYPE_KEY = "type";
@@ -43,10 +47,21 @@ public class MongoPipelineReader implements PipelineReader {
 	
 	public static final String PIPELINE_FS = "configuration";
 	public static final String STAGES_COLLECTION = "stages";
+	
+	/**
+	 * How long, in milliseconds, a pipeline version is reused before it is
+	 * computed again
+	 */
+	public static final long DEFAULT_VERSION_CACHE_TIME = 1000;
+	
+	private long versionCacheTime = DEFAULT_VERSION_CACHE_TIME;
+	private String cachedVersion;
+	private long cachedVersionTime;
 
 	public MongoPipelineReader(DB db) {
 		stages = db.getCollection(STAGES_COLLECTION);
 		pipelinefs = new GridFS(db, PIPELINE_FS); 
+		files = db.getCollection(PIPELINE_FS + ".files");
 	}
 
 	@Override
@@ -58,6 +73,62 @@ public class MongoPipelineReader implements PipelineReader {
 	public Pipeline getDebugPipeline() {
 		return getPipeline(Stage.Mode.DEBUG);
 	}
+	
+	/**
+	 * Hashes only the fields of the stages and libraries that the change
+	 * detection of the pipeline looks at, in two queries, rather than reading
+	 * every stage and looking its library up. The hash is reused for
+	 * {@link #DEFAULT_VERSION_CACHE_TIME}, as every stage asks for its
+	 * properties, and so for the version, on its own.
+	 */
+	@Override
+	public synchronized String getPipelineVersion() {
+		long now = System.currentTimeMillis();
+		if(cachedVersion == null || now - cachedVersionTime >= versionCacheTime) {
+			cachedVersion = computePipelineVersion();
+			cachedVersionTime = now;
+		}
+		return cachedVersion;
+	}
+	
+	public synchronized void setVersionCacheTime(long versionCacheTime) {
+		this.versionCacheTime = versionCacheTime;
+	}
+	
+	private String computePipelineVersion() {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		BasicDBObject stageFields = new BasicDBObject();
+		for(String field : new String[] {TYPE_KEY, STAGE_KEY, NAME_KEY, GROUP_KEY, ACTIVE_KEY, FILE_KEY, PROPERTIES_KEY + "." + PROPERTIES_DATE_SUBKEY}) {
+			stageFields.put(field, 1);
+		}
+		update(digest, stages.find(new BasicDBObject(), stageFields).sort(new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1)));
+		BasicDBObject fileFields = new BasicDBObject(UPLOAD_DATE_KEY, 1);
+		fileFields.put("md5", 1);
+		update(digest, files.find(new BasicDBObject(), fileFields).sort(new BasicDBObject(MongoDocument.MONGO_ID_KEY, 1)));
+		
+		StringBuilder sb = new StringBuilder();
+		for(byte b : digest.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+	
+	private void update(MessageDigest digest, DBCursor cursor) {
+		try {
+			while(cursor.hasNext()) {
+				digest.update(cursor.next().toString().getBytes("UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			cursor.close();
+		}
+	}
 
 	private Pipeline getPipeline(Stage.Mode mode) {
 		Pipeline p = new Pipeline();
@@ -90,9 +161,9 @@ public class MongoPipelineReader implements PipelineReader {
 	
 	@SuppressWarnings("unchecked")
 	private StageGroup getGroup(DBObject dbo) {
-		((DBObject)dbo.get(PROPERTIES_KEY)).get(PROPERTIES_MAP_SUBKEY);
-		StageGroup sg = new StageGroup((String)dbo.get(NAME_KEY), ((DBObject)((DBObject)dbo.get(PROPERTIES_KEY)).get(PROPERTIES_MAP_SUBKEY)).toMap());
-		sg.setPropertiesModifiedDate(sg.getPropertiesModifiedDate());
+		DBObject props = (DBObject)dbo.get(PROPERTIES_KEY);
+		StageGroup sg = new StageGroup((String)dbo.get(NAME_KEY), ((DBObject)props.get(PROPERTIES_MAP_SUBKEY)).toMap());
+		sg.setPropertiesModifiedDate((Date)props.get(PROPERTIES_DATE_SUBKEY));
 		return sg;
 	}
 	
@@ -178,6 +249,7 @@ public class MongoPipelineReader implements PipelineReader {
 		df.setFilename((String)dbo.get("filename"));
 		df.setUploadDate((Date)dbo.get("uploadDate"));
 		df.setId(dbo.get(MongoDocument.MONGO_ID_KEY));
+		df.setMd5((String)dbo.get("md5"));
 		return df;
 	}
 }
@@ -0,0 +1,107 @@
+package com.findwise.hydra.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Contains tests for {@link MongoPipelineReader}.
+ *
+ * <p>
+ * This test is a part of the MongoDB-less test suite which values mocks over running
+ * MongoDB instances.
+ * </p>
+ */
+public class MongoPipelineReaderMongoLessTest {
+	private DBCollection stages;
+	private DBCollection files;
+	private MongoPipelineReader reader;
+
+	@Before
+	public void setUp() {
+		DB db = mock(DB.class);
+		stages = mock(DBCollection.class);
+		files = mock(DBCollection.class);
+		when(db.getCollection(anyString())).thenReturn(mock(DBCollection.class));
+		when(db.getCollection(MongoPipelineReader.STAGES_COLLECTION)).thenReturn(stages);
+		when(db.getCollection(MongoPipelineReader.PIPELINE_FS + ".files")).thenReturn(files);
+		reader = new MongoPipelineReader(db);
+
+		returnFromFind(stages, stage("s1", "a"));
+		returnFromFind(files);
+	}
+
+	private static DBObject stage(String name, String changed) {
+		BasicDBObject stage = new BasicDBObject(MongoPipelineReader.STAGE_KEY, name);
+		stage.put(MongoPipelineReader.PROPERTIES_KEY, new BasicDBObject(MongoPipelineReader.PROPERTIES_DATE_SUBKEY, changed));
+		return stage;
+	}
+
+	private static void returnFromFind(DBCollection collection, final DBObject... objects) {
+		// A new cursor for every query, as each is read to the end
+		doAnswer(new Answer<DBCursor>() {
+			@Override
+			public DBCursor answer(InvocationOnMock invocation) {
+				return cursor(objects);
+			}
+		}).when(collection).find(any(DBObject.class), any(DBObject.class));
+	}
+
+	private static DBCursor cursor(DBObject... objects) {
+		final Iterator<DBObject> it = Arrays.asList(objects).iterator();
+		DBCursor cursor = mock(DBCursor.class);
+		when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+		when(cursor.hasNext()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return it.hasNext();
+			}
+		});
+		when(cursor.next()).thenAnswer(new Answer<DBObject>() {
+			@Override
+			public DBObject answer(InvocationOnMock invocation) {
+				return it.next();
+			}
+		});
+		return cursor;
+	}
+
+	@Test
+	public void testVersion_is_reused_within_cache_time() {
+		String version = reader.getPipelineVersion();
+		assertEquals(version, reader.getPipelineVersion());
+
+		verify(stages, times(1)).find(any(DBObject.class), any(DBObject.class));
+		verify(files, times(1)).find(any(DBObject.class), any(DBObject.class));
+	}
+
+	@Test
+	public void testVersion_changes_with_stage_properties() {
+		reader.setVersionCacheTime(0);
+		String version = reader.getPipelineVersion();
+		assertEquals(version, reader.getPipelineVersion());
+
+		returnFromFind(stages, stage("s1", "b"));
+		assertFalse(version.equals(reader.getPipelineVersion()));
+	}
+}
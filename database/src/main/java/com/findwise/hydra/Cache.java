@@ -14,6 +14,9 @@ import java.util.Collection;
  * consistently reproduce the same document over and over, unless a
  * remove-method is invoked.
  * 
+ * Documents returned from the cache may be shared with other threads, so they
+ * must not be modified outside of the cache. Copy a document to modify it.
+ * 
  * @author joel.westberg@findwise.com
  */
 public interface Cache<T extends DatabaseType> {
@@ -0,0 +1,417 @@
+package com.findwise.hydra;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * An append-only log of the changes made to documents while they are in the
+ * cache, so that those changes survive core going down before the cache is
+ * flushed to the database.
+ * <p/>
+ * Each change is logged as the document after the change, and each document
+ * leaving the cache for the database is logged as removed. On startup, the
+ * last logged version of every document not removed is written to the
+ * database by {@link #recover(DatabaseConnector)}.
+ * <p/>
+ * Records carry a checksum, so a record cut short by a crash ends the log
+ * rather than corrupting it. With a sync interval of 0, every change is
+ * forced to disk before it is acknowledged, concurrent changes sharing the
+ * same fsync. With a longer interval, changes are forced at most that often,
+ * and up to that much may be lost.
+ * <p/>
+ * The log is compacted, keeping only the last version of documents still in
+ * the cache, once it has grown to several times the size of that. Changes go
+ * on being logged while it is compacted.
+ */
+public class CacheJournal<T extends DatabaseType> {
+	private static final Logger logger = LoggerFactory.getLogger(CacheJournal.class);
+
+	public static final int DEFAULT_SYNC_INTERVAL = 0;
+
+	/**
+	 * The size, in bytes, below which the log is never compacted
+	 */
+	static final long MIN_COMPACTION_SIZE = 16 * 1024 * 1024;
+
+	private static final byte UPDATE = 'U';
+	private static final byte REMOVE = 'R';
+	private static final int HEADER_SIZE = 1 + 4 + 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final int syncInterval;
+
+	private FileChannel channel;
+	/**
+	 * The size of the log file
+	 */
+	private long size;
+	/**
+	 * The number of bytes ever appended, and how many of them are known to be
+	 * on disk, which unlike the size do not shrink when the log is compacted
+	 */
+	private long appended;
+	private volatile long synced;
+	private volatile long lastSync;
+	private long compactedSize;
+	/**
+	 * Counts the times the log has been replaced, so that a compaction does
+	 * not replace a log that was emptied meanwhile
+	 */
+	private long generation;
+	private boolean compacting;
+
+	private final Object syncLock = new Object();
+
+	/**
+	 * @param syncInterval how often, in milliseconds, changes are forced to
+	 * disk, or 0 to force each change before it is acknowledged
+	 */
+	public CacheJournal(File file, int syncInterval) throws IOException {
+		this.file = file;
+		this.syncInterval = syncInterval;
+		open();
+	}
+
+	private void open() throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		size = channel.size();
+		channel.position(size);
+		synced = appended;
+		lastSync = System.currentTimeMillis();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Logs the document as it is after a change
+	 *
+	 * @return the position to {@link #sync(long)} to before the change is
+	 * acknowledged
+	 */
+	public synchronized long update(DatabaseDocument<T> doc) throws IOException {
+		return append(UPDATE, doc.getID().toJSON(), doc.toJson().getBytes(UTF8));
+	}
+
+	/**
+	 * Logs a document as written to the database, and no longer cached
+	 */
+	public synchronized long remove(DocumentID<T> id) throws IOException {
+		return append(REMOVE, id.toJSON(), new byte[0]);
+	}
+
+	private long append(byte type, String id, byte[] document) throws IOException {
+		ByteBuffer buffer = record(type, id, document);
+		int length = buffer.remaining();
+		write(channel, buffer);
+		size += length;
+		appended += length;
+		return appended;
+	}
+
+	private static ByteBuffer record(byte type, String id, byte[] document) throws IOException {
+		byte[] record = encode(id, document);
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(record);
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+		buffer.put(type).putInt(record.length).putInt((int) crc.getValue()).put(record);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void write(FileChannel c, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			c.write(buffer);
+		}
+	}
+
+	private static byte[] encode(String id, byte[] document) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(document.length + id.length() + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(id);
+		out.write(document);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Forces the log to disk up to the position, unless it already has been,
+	 * or the sync interval allows waiting. Callers waiting for the same fsync
+	 * share it.
+	 */
+	public void sync(long position) throws IOException {
+		if (synced >= position) {
+			return;
+		}
+		if (syncInterval > 0 && System.currentTimeMillis() - lastSync < syncInterval) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (synced >= position) {
+				return;
+			}
+			force();
+		}
+	}
+
+	/**
+	 * Forces everything logged so far to disk
+	 */
+	public void sync() throws IOException {
+		synchronized (syncLock) {
+			force();
+		}
+	}
+
+	/**
+	 * Must be called holding the sync lock. Appends may go on meanwhile.
+	 */
+	private void force() throws IOException {
+		long end;
+		FileChannel c;
+		synchronized (this) {
+			end = appended;
+			c = channel;
+		}
+		try {
+			c.force(false);
+		} catch (ClosedChannelException e) {
+			synchronized (this) {
+				if (c == channel) {
+					throw e;
+				}
+			}
+			// Compacted meanwhile, which forces the new log to disk
+		}
+		if (end > synced) {
+			synced = end;
+		}
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Writes the last logged version of every document not logged as removed
+	 * to the database, and empties the log.
+	 *
+	 * @return the number of documents written
+	 */
+	public synchronized int recover(DatabaseConnector<T> connector) throws IOException {
+		Map<String, byte[]> documents = read(size);
+		int recovered = 0;
+		for (Map.Entry<String, byte[]> e : documents.entrySet()) {
+			try {
+				DatabaseDocument<T> doc = connector.convert(new LocalDocument(new String(e.getValue(), UTF8)));
+				if (connector.getDocumentReader().getDocumentById(doc.getID()) == null) {
+					// Processed, discarded or deleted after it was last logged
+					continue;
+				}
+				doc.removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+				if (connector.getDocumentWriter().update(doc)) {
+					recovered++;
+				} else {
+					logger.error("Unable to recover document " + e.getKey());
+				}
+			} catch (JsonException ex) {
+				logger.error("Unable to recover document " + e.getKey(), ex);
+			} catch (ConversionException ex) {
+				logger.error("Unable to recover document " + e.getKey(), ex);
+			}
+		}
+		if (recovered > 0) {
+			logger.info("Recovered " + recovered + " cached documents from " + file);
+		}
+		rewrite(new LinkedHashMap<String, byte[]>());
+		return recovered;
+	}
+
+	/**
+	 * Empties the log, for when all documents have been deleted
+	 */
+	public synchronized void clear() throws IOException {
+		rewrite(new LinkedHashMap<String, byte[]>());
+	}
+
+	/**
+	 * Compacts the log if it has grown to several times its size after it
+	 * was last compacted.
+	 * <p/>
+	 * The log up to where it ends now is read and compacted without holding
+	 * the lock changes are logged under. Only the changes logged meanwhile
+	 * are copied, as they are, while holding it, before the compacted log
+	 * replaces the old one.
+	 */
+	public void compactIfNeeded() throws IOException {
+		long end;
+		long compactingGeneration;
+		synchronized (this) {
+			if (compacting || size <= MIN_COMPACTION_SIZE || size <= 4 * compactedSize) {
+				return;
+			}
+			compacting = true;
+			end = size;
+			compactingGeneration = generation;
+		}
+		File temp = new File(file.getPath() + ".compact");
+		try {
+			FileChannel compacted = new RandomAccessFile(temp, "rw").getChannel();
+			try {
+				compacted.truncate(0);
+				for (Map.Entry<String, byte[]> e : read(end).entrySet()) {
+					write(compacted, record(UPDATE, e.getKey(), e.getValue()));
+				}
+				synchronized (this) {
+					if (generation != compactingGeneration) {
+						// Emptied meanwhile
+						return;
+					}
+					long before = size;
+					for (long position = end; position < size;) {
+						position += channel.transferTo(position, size - position, compacted);
+					}
+					compacted.force(true);
+					compacted.close();
+					replace(temp);
+					compactedSize = size;
+					logger.debug("Compacted cache journal from " + before + " to " + size + " bytes");
+				}
+			} finally {
+				compacted.close();
+			}
+		} finally {
+			synchronized (this) {
+				compacting = false;
+			}
+			if (temp.exists() && !temp.delete()) {
+				logger.warn("Unable to delete " + temp);
+			}
+		}
+	}
+
+	/**
+	 * @param limit the size of the log, any records beyond it are not read
+	 * @return the last logged version of every document not logged as removed,
+	 * by id, up to the first record that is cut short or corrupt
+	 */
+	private Map<String, byte[]> read(long limit) throws IOException {
+		Map<String, byte[]> documents = new LinkedHashMap<String, byte[]>();
+		InputStream in = new FileInputStream(file);
+		try {
+			DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			long position = 0;
+			while (true) {
+				byte type;
+				byte[] record;
+				try {
+					type = data.readByte();
+					int length = data.readInt();
+					int checksum = data.readInt();
+					if (length < 0 || position + HEADER_SIZE + length > limit) {
+						logger.warn("Cache journal " + file + " ends with a partial record at " + position);
+						break;
+					}
+					record = new byte[length];
+					data.readFully(record);
+					CRC32 crc = new CRC32();
+					crc.update(type);
+					crc.update(record);
+					if ((int) crc.getValue() != checksum) {
+						logger.warn("Cache journal " + file + " has a corrupt record at " + position + ", ignoring the rest");
+						break;
+					}
+					position += HEADER_SIZE + length;
+				} catch (EOFException e) {
+					if (position < limit) {
+						logger.warn("Cache journal " + file + " ends with a partial record at " + position);
+					}
+					break;
+				}
+				DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+				String id = r.readUTF();
+				if (type == UPDATE) {
+					byte[] document = new byte[r.available()];
+					r.readFully(document);
+					documents.remove(id);
+					documents.put(id, document);
+				} else {
+					documents.remove(id);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return documents;
+	}
+
+	/**
+	 * Replaces the log with one holding only the given documents
+	 */
+	private void rewrite(Map<String, byte[]> documents) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		if (temp.exists() && !temp.delete()) {
+			throw new IOException("Unable to delete " + temp);
+		}
+		FileChannel old = channel;
+		channel = new RandomAccessFile(temp, "rw").getChannel();
+		size = 0;
+		for (Map.Entry<String, byte[]> e : documents.entrySet()) {
+			append(UPDATE, e.getKey(), e.getValue());
+		}
+		channel.force(true);
+		channel.close();
+		channel = old;
+		replace(temp);
+		compactedSize = size;
+	}
+
+	/**
+	 * Replaces the log with a file that has been forced to disk
+	 */
+	private void replace(File temp) throws IOException {
+		channel.close();
+		if (!temp.renameTo(file)) {
+			if (!file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Unable to replace " + file + " with " + temp);
+			}
+		}
+		open();
+		generation++;
+	}
+
+	public void close() throws IOException {
+		sync();
+		synchronized (this) {
+			channel.close();
+		}
+	}
+}
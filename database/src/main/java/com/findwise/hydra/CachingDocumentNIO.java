@@ -3,7 +3,7 @@ package com.findwise.hydra;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.ConcurrentModificationException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -26,10 +26,14 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	private DocumentWriter<T> writer;
 	private DocumentReader<T> reader;
 
+	private CacheJournal<T> journal;
+
 	private CacheMonitor monitor;
 
 	private int cacheTimeout;
 
+	private volatile WriteListener writeListener;
+
 	private final org.slf4j.Logger logger = LoggerFactory
 			.getLogger(CachingDocumentNIO.class);
 
@@ -44,11 +48,30 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 
 	public CachingDocumentNIO(DatabaseConnector<T> backing, Cache<T> cache,
 			boolean startMonitorThread, int cacheTimeout) {
+		this(backing, cache, startMonitorThread, cacheTimeout, null);
+	}
+
+	/**
+	 * @param journal where changes to cached documents are logged, or null.
+	 * Documents left in it are recovered to the database before anything
+	 * else is done.
+	 */
+	public CachingDocumentNIO(DatabaseConnector<T> backing, Cache<T> cache,
+			boolean startMonitorThread, int cacheTimeout, CacheJournal<T> journal) {
 		writer = backing.getDocumentWriter();
 		reader = backing.getDocumentReader();
 		this.getDatabaseConnector(backing);
 		this.cache = cache;
 		this.cacheTimeout = cacheTimeout;
+		this.journal = journal;
+
+		if (journal != null) {
+			try {
+				journal.recover(backing);
+			} catch (IOException e) {
+				logger.error("Unable to recover cached documents from " + journal.getFile(), e);
+			}
+		}
 
 		monitor = new CacheMonitor();
 		if (startMonitorThread) {
@@ -60,7 +83,9 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String... tags) {
 		DatabaseDocument<T> doc = cache.getAndTag(query, tags);
 
-		if (doc == null) {
+		if (doc != null) {
+			log(doc.getID());
+		} else {
 			for (String t : tags) {
 				query.requireNotFetchedByStage(t);
 			}
@@ -73,7 +98,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			}
 		}
 
-		return getCopy(doc);
+		return doc;
 	}
 
 	@Override
@@ -84,6 +109,9 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		Collection<DatabaseDocument<T>> c = cache.getAndTag(query, n, tags);
 		if (c != null) {
 			list.addAll(c);
+			for (DatabaseDocument<T> d : c) {
+				log(d.getID());
+			}
 		}
 
 		if (list.size() == 0) {
@@ -110,11 +138,14 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			if (d != null) {
 				d.removeFetchedBy(CACHE_TAG);
 				d.setTouchedBy(tag, new Date());
-				return writer.update(d);
+				long start = System.currentTimeMillis();
+				boolean updated = writer.update(d);
+				written(start, 1);
+				return updated;
 			}
 			return false;
 		}
-		return true;
+		return log(id);
 	}
 
 	@Override
@@ -124,7 +155,11 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			d.putAll(cached);
 			cache.remove(d.getID());
 		}
-		if (writer.markProcessed(d, stage)) {
+		long start = System.currentTimeMillis();
+		boolean marked = writer.markProcessed(d, stage);
+		written(start, 1);
+		if (marked) {
+			logRemoved(d.getID());
 			return true;
 		}
 		return false;
@@ -133,9 +168,15 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	@Override
 	public boolean markDiscarded(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
-		d.putAll(cached);
-		cache.remove(d.getID());
-		if (writer.markDiscarded(d, stage)) {
+		if (cached != null) {
+			d.putAll(cached);
+			cache.remove(d.getID());
+		}
+		long start = System.currentTimeMillis();
+		boolean marked = writer.markDiscarded(d, stage);
+		written(start, 1);
+		if (marked) {
+			logRemoved(d.getID());
 			return true;
 		}
 		return false;
@@ -144,9 +185,15 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	@Override
 	public boolean markFailed(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
-		d.putAll(cached);
-		cache.remove(d.getID());
-		if (writer.markFailed(d, stage)) {
+		if (cached != null) {
+			d.putAll(cached);
+			cache.remove(d.getID());
+		}
+		long start = System.currentTimeMillis();
+		boolean marked = writer.markFailed(d, stage);
+		written(start, 1);
+		if (marked) {
+			logRemoved(d.getID());
 			return true;
 		}
 		return false;
@@ -155,19 +202,42 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	@Override
 	public boolean markPending(DatabaseDocument<T> d, String stage) {
 		DatabaseDocument<T> cached = cache.getDocumentById(d.getID());
-		d.putAll(cached);
-		cache.remove(d.getID());
-		return writer.markPending(d, stage);
+		if (cached != null) {
+			d.putAll(cached);
+			cache.remove(d.getID());
+		}
+		long start = System.currentTimeMillis();
+		boolean marked = writer.markPending(d, stage);
+		written(start, 1);
+		if (marked) {
+			logRemoved(d.getID());
+			return true;
+		}
+		return false;
 	}
 
 	@Override
 	public boolean insert(DatabaseDocument<T> d) {
-		return writer.insert(d);
+		long start = System.currentTimeMillis();
+		boolean inserted = writer.insert(d);
+		written(start, 1);
+		return inserted;
 	}
 
 	@Override
 	public boolean insert(DatabaseDocument<T> d, List<DocumentFile<T>> attachments) {
-		return writer.insert(d, attachments);
+		long start = System.currentTimeMillis();
+		boolean inserted = writer.insert(d, attachments);
+		written(start, 1);
+		return inserted;
+	}
+
+	@Override
+	public List<Boolean> insertAll(List<DatabaseDocument<T>> documents) {
+		long start = System.currentTimeMillis();
+		List<Boolean> inserted = writer.insertAll(documents);
+		written(start, documents.size());
+		return inserted;
 	}
 
 	@Override
@@ -181,15 +251,19 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			if (cache.getDocumentById(d.getID()) == null) {
 				d.removeFetchedBy(CACHE_TAG);
 			}
-			return writer.update(d);
+			long start = System.currentTimeMillis();
+			boolean updated = writer.update(d);
+			written(start, 1);
+			return updated;
 		}
-		return true;
+		return log(d.getID());
 	}
 
 	@Override
 	public void delete(DatabaseDocument<T> d) {
 		cache.remove(d.getID());
 		writer.delete(d);
+		logRemoved(d.getID());
 	}
 
 	@Override
@@ -201,6 +275,13 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	public void deleteAll() {
 		cache.removeAll();
 		writer.deleteAll();
+		if (journal != null) {
+			try {
+				journal.clear();
+			} catch (IOException e) {
+				logger.error("Unable to clear cache journal", e);
+			}
+		}
 	}
 
 	@Override
@@ -223,9 +304,14 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			cache.add(doc);
 		}
 
-		return getCopy(doc);
+		return doc;
 	}
 
+	/**
+	 * Unlike the other methods returning documents, this returns a copy of
+	 * the cached document, since documents fetched by id are typically
+	 * modified and written back.
+	 */
 	@Override
 	public DatabaseDocument<T> getDocumentById(DocumentID<T> id) {
 		DatabaseDocument<T> doc = cache.getDocumentById(id);
@@ -239,7 +325,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			}
 		}
 
-		return getCopy(doc);
+		return doc.copy();
 	}
 
 	@Override
@@ -249,7 +335,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		if (doc == null && includeInactive) {
 			return reader.getDocumentById(id, includeInactive);
 		}
-		return cache.getDocumentById(id);
+		return doc;
 	}
 
 	@Override
@@ -320,6 +406,13 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return reader.getDocumentFileNames(d);
 	}
 
+	/**
+	 * @return the number of documents currently held in the cache
+	 */
+	public int getCacheSize() {
+		return cache.getSize();
+	}
+
 	@Override
 	public long getActiveDatabaseSize() {
 		return reader.getActiveDatabaseSize();
@@ -357,11 +450,7 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 	 * Flushes the cache back to the database
 	 */
 	public void flush() {
-		Collection<DatabaseDocument<T>> docs = cache.removeAll();
-		for (DatabaseDocument<T> d : docs) {
-			d.removeFetchedBy(CACHE_TAG);
-			writer.update(d);
-		}
+		write(cache.removeAll());
 	}
 
 	/**
@@ -374,12 +463,101 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			logger.debug("Flushing " + docs.size() + " out of "
 					+ (docs.size() + cache.getSize()) + " documents from cache");
 		}
-		for (DatabaseDocument<T> d : docs) {
+		write(docs);
+	}
+
+	/**
+	 * Writes documents removed from the cache. They are copied before being
+	 * untagged, since they may still be read by others.
+	 *
+	 * @return false if any of them could not be written
+	 */
+	private boolean write(Collection<DatabaseDocument<T>> docs) {
+		boolean allWritten = true;
+		for (DatabaseDocument<T> cached : docs) {
+			DatabaseDocument<T> d = cached.copy();
 			d.removeFetchedBy(CACHE_TAG);
-			writer.update(d);
+			long start = System.currentTimeMillis();
+			boolean updated = writer.update(d);
+			written(start, 1);
+			if (updated) {
+				logRemoved(d.getID());
+			} else {
+				allWritten = false;
+			}
+		}
+		return allWritten;
+	}
+
+	/**
+	 * Logs the cached document as it is now to the journal, if there is one,
+	 * and waits for it to be on disk. If it can not be logged, the document is
+	 * taken out of the cache and written to the database instead, so that the
+	 * change is not acknowledged before it is durable.
+	 *
+	 * @return false if the change is neither logged nor written
+	 */
+	private boolean log(DocumentID<T> id) {
+		if (journal == null) {
+			return true;
+		}
+		try {
+			long position;
+			// Read and logged together, so the last logged is the latest
+			synchronized (journal) {
+				DatabaseDocument<T> doc = cache.getDocumentById(id);
+				if (doc == null) {
+					return true;
+				}
+				position = journal.update(doc);
+			}
+			journal.sync(position);
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to log change to document " + id + " in cache journal, writing it to the database", e);
+			DatabaseDocument<T> doc = cache.remove(id);
+			if (doc == null) {
+				// Flushed meanwhile
+				return true;
+			}
+			return write(Collections.singletonList(doc));
+		}
+	}
+
+	/**
+	 * A removal that is not logged only means the document is written to the
+	 * database again on recovery, as it was when last logged, since the
+	 * document itself is already in the database.
+	 */
+	private void logRemoved(DocumentID<T> id) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.sync(journal.remove(id));
+		} catch (IOException e) {
+			logger.error("Unable to log removal of document " + id + " in cache journal", e);
 		}
 	}
 
+	/**
+	 * Reports how long a write that went to the database, rather than to the
+	 * cache, took per document
+	 */
+	private void written(long start, int documents) {
+		WriteListener listener = writeListener;
+		if (listener != null && documents > 0) {
+			listener.written((System.currentTimeMillis() - start) / documents);
+		}
+	}
+
+	/**
+	 * @param writeListener told about every write to the database, or null
+	 */
+	public void setWriteListener(WriteListener writeListener) {
+		this.writeListener = writeListener;
+	}
+
 	public void setCacheTimeout(int cacheTimeout) {
 		this.cacheTimeout = cacheTimeout;
 	}
@@ -388,6 +566,10 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		return cacheTimeout;
 	}
 
+	public CacheJournal<T> getJournal() {
+		return journal;
+	}
+
 	public CacheMonitor getCacheMonitor() {
 		return monitor;
 	}
@@ -400,6 +582,16 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 		this.backing = backing;
 	}
 
+	/**
+	 * Measures the writes that reach the database
+	 */
+	public interface WriteListener {
+		/**
+		 * @param millis how long the write took, per document written
+		 */
+		void written(long millis);
+	}
+
 	/**
 	 * Monitor thread, responsible for upholding the Cache TTL.
 	 * 
@@ -423,9 +615,15 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 					if (getCacheTimeout() != 0) {
 						flush(getCacheTimeout());
 					}
+					if (journal != null) {
+						journal.sync();
+						journal.compactIfNeeded();
+					}
 					Thread.sleep(1000);
 				} catch (InterruptedException e) {
 					interrupt();
+				} catch (IOException e) {
+					logger.error("Unable to sync cache journal", e);
 				}
 			}
 			shutdown();
@@ -436,6 +634,13 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 			if (isAlive()) {
 				logger.info("Shutting down cache monitor thread. Attempting to save local changes.");
 				flush();
+				if (journal != null) {
+					try {
+						journal.close();
+					} catch (IOException e) {
+						logger.error("Unable to close cache journal", e);
+					}
+				}
 			}
 		}
 	}
@@ -449,19 +654,4 @@ public class CachingDocumentNIO<T extends DatabaseType> implements
 
 		return s;
 	}
-
-	public DatabaseDocument<T> getCopy(DatabaseDocument<T> doc) {
-		if (doc == null) {
-			return null;
-		}
-		for (int i = 0; i < 10; i++) {
-			try {
-				return doc.copy();
-			} catch (ConcurrentModificationException e) {
-
-			}
-		}
-		logger.error("Unable to copy a document with id " + doc);
-		return null;
-	}
 }
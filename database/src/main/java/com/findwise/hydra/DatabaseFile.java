@@ -8,6 +8,7 @@ public class DatabaseFile {
 	private String filename;
 	private Date uploadDate;
 	private Object id;
+	private String md5;
 	private InputStream inputStream;
 	
 	public Object getId() {
@@ -37,6 +38,18 @@ public class DatabaseFile {
 		this.uploadDate = new Date(uploadDate.getTime());
 	}
 	
+	/**
+	 * The MD5 of the contents of the file as a hex string, or null if the
+	 * database does not keep one.
+	 */
+	public String getMd5() {
+		return md5;
+	}
+
+	public void setMd5(String md5) {
+		this.md5 = md5;
+	}
+	
 	public void attach(InputStream inputStream) {
 		this.inputStream = inputStream;
 	}
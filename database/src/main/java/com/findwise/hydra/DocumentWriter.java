@@ -155,6 +155,15 @@ public interface DocumentWriter<T extends DatabaseType> {
 	 * @return false if the document already has an id, true otherwise.
 	 */
 	boolean insert(DatabaseDocument<T> d, List<DocumentFile<T>> attachments);
+
+	/**
+	 * Inserts several new documents, in as few writes as the database allows.
+	 * A document that can not be inserted does not keep the others from being
+	 * inserted.
+	 * 
+	 * @return whether each document was inserted, in the order given
+	 */
+	List<Boolean> insertAll(List<DatabaseDocument<T>> documents);
 	/**
 	 * Updates the document in the database. If any field in document is 
 	 * <pre>null</pre>, this field will be ignored and removed. 
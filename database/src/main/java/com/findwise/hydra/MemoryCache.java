@@ -9,13 +9,21 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A cache of immutable snapshots of documents. Documents are never modified
+ * once they are in the cache: an update copies the current snapshot, applies
+ * the change to the copy, and replaces the snapshot with the copy unless
+ * another thread replaced it first, in which case the update is retried on the
+ * newer snapshot. Documents returned from the cache can thereby be read
+ * without copying them, but must not be modified.
+ */
 public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 
-	private ConcurrentHashMap<DocumentID<T>, DatabaseDocument<T>> map;
+	private ConcurrentHashMap<DocumentID<T>, Snapshot<T>> map;
 	private ConcurrentHashMap<DocumentID<T>, Long> lastTouched;
 
 	public MemoryCache() {
-		map = new ConcurrentHashMap<DocumentID<T>, DatabaseDocument<T>>();
+		map = new ConcurrentHashMap<DocumentID<T>, Snapshot<T>>();
 		lastTouched = new ConcurrentHashMap<DocumentID<T>, Long>();
 	}
 
@@ -24,11 +32,26 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 
 	}
 
+	/**
+	 * Adds a copy of the document, so that the caller may go on modifying it
+	 * without changing the snapshot
+	 */
 	@Override
 	public void add(DatabaseDocument<T> doc) {
 		if(doc != null) {
-			lastTouched.put(doc.getID(), System.currentTimeMillis());
-			map.put(doc.getID(), doc);
+			DocumentID<T> id = doc.getID();
+			DatabaseDocument<T> copy = doc.copy();
+			lastTouched.put(id, System.currentTimeMillis());
+			while (true) {
+				Snapshot<T> previous = map.get(id);
+				if (previous == null) {
+					if (map.putIfAbsent(id, new Snapshot<T>(copy, 1)) == null) {
+						return;
+					}
+				} else if (map.replace(id, previous, new Snapshot<T>(copy, previous.version + 1))) {
+					return;
+				}
+			}
 		}
 	}
 
@@ -42,39 +65,47 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 	@Override
 	public DatabaseDocument<T> remove(DocumentID<T> id) {
 		lastTouched.remove(id);
-		return map.remove(id);
+		return document(map.remove(id));
 	}
 
 	@Override
 	public Collection<DatabaseDocument<T>> removeAll() {
 		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
 
-		for (DatabaseDocument<T> d : map.values()) {
-			list.add(d);
+		for (DocumentID<T> id : map.keySet()) {
+			DatabaseDocument<T> d = remove(id);
+			if (d != null) {
+				list.add(d);
+			}
 		}
 
-		map.clear();
-		lastTouched.clear();
-
 		return list;
 	}
 
 	@Override
 	public DatabaseDocument<T> getDocumentById(DocumentID<T> id) {
-		return map.get(id);
+		return document(map.get(id));
+	}
+
+	/**
+	 * @return the number of times the document has been added or updated, or
+	 * 0 if it is not in the cache
+	 */
+	public long getVersion(DocumentID<T> id) {
+		Snapshot<T> snapshot = map.get(id);
+		return snapshot != null ? snapshot.version : 0;
 	}
 
 	@Override
 	public DatabaseDocument<T> getDocument() {
-		return map.values().iterator().next();
+		return map.values().iterator().next().document;
 	}
 
 	@Override
 	public DatabaseDocument<T> getDocument(DatabaseQuery<T> query) {
-		for (Map.Entry<DocumentID<T>, DatabaseDocument<T>> entry : map
-				.entrySet()) {
-			if (entry.getValue().matches(query)) {
-				return entry.getValue();
+		for (Snapshot<T> snapshot : map.values()) {
+			if (snapshot.document.matches(query)) {
+				return snapshot.document;
 			}
 		}
 		return null;
@@ -84,10 +115,9 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 	public ArrayList<DatabaseDocument<T>> getDocument(DatabaseQuery<T> query,
 			int limit) {
 		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
-		for (Map.Entry<DocumentID<T>, DatabaseDocument<T>> entry : map
-				.entrySet()) {
-			if (entry.getValue().matches(query)) {
-				list.add(entry.getValue());
+		for (Snapshot<T> snapshot : map.values()) {
+			if (snapshot.document.matches(query)) {
+				list.add(snapshot.document);
 				if (list.size() >= limit) {
 					break;
 				}
@@ -101,19 +131,13 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 		for(String tag : tags) {
 			query.requireNotFetchedByStage(tag);
 		}
-		DatabaseDocument<T> doc;
-		synchronized (this) {
-			doc = getDocument(query);
-
+		for (DocumentID<T> id : map.keySet()) {
+			DatabaseDocument<T> doc = tag(id, query, tags);
 			if (doc != null) {
-				freshen(doc.getID());
-				for(String tag : tags) {
-					doc.setFetchedBy(tag, new Date());
-				}
+				return doc;
 			}
 		}
-
-		return doc;
+		return null;
 	}
 
 	@Override
@@ -122,44 +146,81 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 		for(String tag : tags) {
 			query.requireNotFetchedByStage(tag);
 		}
-		ArrayList<DatabaseDocument<T>> list;
-		synchronized (this) {
-			list = getDocument(query, n);
+		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		for (DocumentID<T> id : map.keySet()) {
+			if (list.size() >= n) {
+				break;
+			}
+			DatabaseDocument<T> doc = tag(id, query, tags);
+			if (doc != null) {
+				list.add(doc);
+			}
+		}
+		return list;
+	}
 
-			for (DatabaseDocument<T> d : list) {
-				freshen(d.getID());
+	/**
+	 * Tags the document if it matches the query. Since the query requires
+	 * the document not to be tagged, only one thread gets to tag it.
+	 * 
+	 * @return the tagged document, or null if it no longer matches
+	 */
+	private DatabaseDocument<T> tag(DocumentID<T> id, DatabaseQuery<T> query, final String... tags) {
+		return modify(id, query, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
 				for(String tag : tags) {
-					d.setFetchedBy(tag, new Date());
+					doc.setFetchedBy(tag, new Date());
 				}
 			}
-		}
-
-		return list;
+		});
 	}
 
 	@Override
-	public boolean update(DatabaseDocument<T> document) {
-		DatabaseDocument<T> inCache = getDocumentById(document.getID());
-		if (inCache != null) {
-			inCache.putAll(document);
-			freshen(inCache.getID());
-			return true;
-		}
-		return false;
+	public boolean update(final DatabaseDocument<T> document) {
+		return modify(document.getID(), null, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
+				doc.putAll(document);
+			}
+		}) != null;
 	}
 
 	@Override
-	public boolean markTouched(DocumentID<T> id, String tag) {
-		DatabaseDocument<T> inCache;
-		synchronized (this) {
-			inCache = getDocumentById(id);
-			if (inCache != null) {
-				freshen(inCache.getID());
-				inCache.setTouchedBy(tag, new Date());
-				return true;
+	public boolean markTouched(DocumentID<T> id, final String tag) {
+		return modify(id, null, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
+				doc.setTouchedBy(tag, new Date());
+			}
+		}) != null;
+	}
+
+	/**
+	 * Replaces the snapshot of a document with a modified copy, retrying
+	 * until no other thread has replaced it in between, and freshens it.
+	 * 
+	 * @param query the query the document must match to be modified, or null
+	 * @return the new snapshot, or null if the document is not in the cache
+	 * or does not match the query
+	 */
+	private DatabaseDocument<T> modify(DocumentID<T> id, DatabaseQuery<T> query, Modification<T> modification) {
+		while (true) {
+			Snapshot<T> current = map.get(id);
+			if (current == null || (query != null && !current.document.matches(query))) {
+				return null;
+			}
+			DatabaseDocument<T> doc = current.document.copy();
+			modification.apply(doc);
+			if (map.replace(id, current, new Snapshot<T>(doc, current.version + 1))) {
+				freshen(id);
+				return doc;
 			}
 		}
-		return false;
+	}
+
+	private interface Modification<T extends DatabaseType> {
+		void apply(DatabaseDocument<T> doc);
 	}
 
 	@Override
@@ -170,18 +231,17 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 	@Override
 	public Collection<DatabaseDocument<T>> removeStale(int stalerThanMs) {
 		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
-		synchronized (this) {
-			long time = System.currentTimeMillis();
+		long time = System.currentTimeMillis();
 
-			Iterator<Map.Entry<DocumentID<T>, Long>> it = lastTouched.entrySet().iterator();
+		Iterator<Map.Entry<DocumentID<T>, Long>> it = lastTouched.entrySet().iterator();
 
-			while(it.hasNext()) {
-				Entry<DocumentID<T>, Long> entry = it.next();
-				if (time - entry.getValue() > stalerThanMs) {
-					DatabaseDocument<T> d = getDocumentById(entry.getKey());
+		while(it.hasNext()) {
+			Entry<DocumentID<T>, Long> entry = it.next();
+			if (time - entry.getValue() > stalerThanMs) {
+				it.remove();
+				DatabaseDocument<T> d = document(map.remove(entry.getKey()));
+				if (d != null) {
 					list.add(d);
-					map.remove(d.getID());
-					it.remove();
 				}
 			}
 		}
@@ -198,4 +258,21 @@ public class MemoryCache<T extends DatabaseType> implements Cache<T> {
 		return false;
 	}
 
+	private static <T extends DatabaseType> DatabaseDocument<T> document(Snapshot<T> snapshot) {
+		return snapshot != null ? snapshot.document : null;
+	}
+
+	/**
+	 * A version of a document. Compared by identity, so that a snapshot is
+	 * only replaced by the thread that read it.
+	 */
+	private static final class Snapshot<T extends DatabaseType> {
+		private final DatabaseDocument<T> document;
+		private final long version;
+
+		Snapshot(DatabaseDocument<T> document, long version) {
+			this.document = document;
+			this.version = version;
+		}
+	}
 }
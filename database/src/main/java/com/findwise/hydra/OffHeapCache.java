@@ -0,0 +1,609 @@
+package com.findwise.hydra;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.findwise.hydra.DatabaseConnector.ConversionException;
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * A cache keeping documents serialized in slabs of memory outside of the
+ * heap, so that thousands of cached documents do not end up as object graphs
+ * in the old generation for the garbage collector to go through.
+ * <p/>
+ * On the heap, each document only has an index entry, with a stub of the
+ * document for matching queries: its id, action and metadata, and those
+ * content fields that are small. Larger content fields are only read from the
+ * slab if a query compares them. A document is read in full when it is handed
+ * out, so every document returned is a fresh copy.
+ * <p/>
+ * Like {@link MemoryCache}, a document is changed by replacing its entry, so
+ * that concurrent changes are retried rather than lost. Slabs are written to
+ * from their start to their end, and are reused once none of their documents
+ * are left in the cache. When all slabs are full, the documents of the
+ * emptiest slab are moved to its start, provided that at least half of it is
+ * free, so that a few long-lived documents do not keep a slab from being
+ * reused. Documents that still do not fit are kept on the heap.
+ */
+public class OffHeapCache<T extends DatabaseType> implements Cache<T> {
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapCache.class);
+
+	public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Content fields in the stubs used for matching: strings up to this
+	 * length, numbers, booleans and dates
+	 */
+	static final int MAX_STUB_STRING_LENGTH = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final DatabaseConnector<T> connector;
+	private final int slabSize;
+	private final int maxSlabs;
+
+	private final ConcurrentHashMap<DocumentID<T>, Slot<T>> map;
+	private final ConcurrentHashMap<DocumentID<T>, Long> lastTouched;
+
+	/**
+	 * Guards the slabs: written to when allocating, read from while copying
+	 * documents out
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final List<Slab> slabs = new ArrayList<Slab>();
+	private Slab current;
+	private boolean spilling = false;
+	private long spilled = 0;
+
+	/**
+	 * @param connector converts serialized documents back to documents of the
+	 * database
+	 * @param size the most memory, in bytes, to use for slabs
+	 */
+	public OffHeapCache(DatabaseConnector<T> connector, long size) {
+		this(connector, size, DEFAULT_SLAB_SIZE);
+	}
+
+	public OffHeapCache(DatabaseConnector<T> connector, long size, int slabSize) {
+		this.connector = connector;
+		this.slabSize = slabSize;
+		maxSlabs = (int) Math.max(1, size / slabSize);
+		map = new ConcurrentHashMap<DocumentID<T>, Slot<T>>();
+		lastTouched = new ConcurrentHashMap<DocumentID<T>, Long>();
+	}
+
+	@Override
+	public void prepare() {
+
+	}
+
+	@Override
+	public void add(DatabaseDocument<T> doc) {
+		if (doc != null) {
+			lastTouched.put(doc.getID(), System.currentTimeMillis());
+			Slot<T> previous = map.put(doc.getID(), store(doc, 1));
+			if (previous != null) {
+				free(previous);
+			}
+		}
+	}
+
+	@Override
+	public void add(Collection<DatabaseDocument<T>> docs) {
+		for (DatabaseDocument<T> doc : docs) {
+			add(doc);
+		}
+	}
+
+	@Override
+	public DatabaseDocument<T> remove(DocumentID<T> id) {
+		lastTouched.remove(id);
+		Slot<T> slot = map.remove(id);
+		if (slot == null) {
+			return null;
+		}
+		DatabaseDocument<T> doc = read(slot);
+		free(slot);
+		return doc;
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeAll() {
+		List<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+
+		for (DocumentID<T> id : map.keySet()) {
+			DatabaseDocument<T> d = remove(id);
+			if (d != null) {
+				list.add(d);
+			}
+		}
+
+		return list;
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> removeStale(int stalerThanMs) {
+		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		long time = System.currentTimeMillis();
+
+		Iterator<Map.Entry<DocumentID<T>, Long>> it = lastTouched.entrySet().iterator();
+
+		while (it.hasNext()) {
+			Entry<DocumentID<T>, Long> entry = it.next();
+			if (time - entry.getValue() > stalerThanMs) {
+				it.remove();
+				DatabaseDocument<T> d = remove(entry.getKey());
+				if (d != null) {
+					list.add(d);
+				}
+			}
+		}
+
+		return list;
+	}
+
+	@Override
+	public boolean freshen(DocumentID<T> id) {
+		if (lastTouched.containsKey(id)) {
+			lastTouched.put(id, System.currentTimeMillis());
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocumentById(DocumentID<T> id) {
+		Slot<T> slot = map.get(id);
+		return slot != null ? read(slot) : null;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocument() {
+		for (Slot<T> slot : map.values()) {
+			DatabaseDocument<T> doc = read(slot);
+			if (doc != null) {
+				return doc;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public DatabaseDocument<T> getDocument(DatabaseQuery<T> query) {
+		for (Slot<T> slot : map.values()) {
+			if (slot.stub.matches(query)) {
+				DatabaseDocument<T> doc = read(slot);
+				if (doc != null) {
+					return doc;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> getDocument(DatabaseQuery<T> query, int limit) {
+		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		for (Slot<T> slot : map.values()) {
+			if (list.size() >= limit) {
+				break;
+			}
+			if (slot.stub.matches(query)) {
+				DatabaseDocument<T> doc = read(slot);
+				if (doc != null) {
+					list.add(doc);
+				}
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public DatabaseDocument<T> getAndTag(DatabaseQuery<T> query, String... tags) {
+		for (String tag : tags) {
+			query.requireNotFetchedByStage(tag);
+		}
+		for (DocumentID<T> id : map.keySet()) {
+			DatabaseDocument<T> doc = tag(id, query, tags);
+			if (doc != null) {
+				return doc;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<DatabaseDocument<T>> getAndTag(DatabaseQuery<T> query, int n, String... tags) {
+		for (String tag : tags) {
+			query.requireNotFetchedByStage(tag);
+		}
+		ArrayList<DatabaseDocument<T>> list = new ArrayList<DatabaseDocument<T>>();
+		for (DocumentID<T> id : map.keySet()) {
+			if (list.size() >= n) {
+				break;
+			}
+			DatabaseDocument<T> doc = tag(id, query, tags);
+			if (doc != null) {
+				list.add(doc);
+			}
+		}
+		return list;
+	}
+
+	private DatabaseDocument<T> tag(DocumentID<T> id, DatabaseQuery<T> query, final String... tags) {
+		return modify(id, query, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
+				for (String tag : tags) {
+					doc.setFetchedBy(tag, new Date());
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean markTouched(DocumentID<T> id, final String tag) {
+		return modify(id, null, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
+				doc.setTouchedBy(tag, new Date());
+			}
+		}) != null;
+	}
+
+	@Override
+	public boolean update(final DatabaseDocument<T> document) {
+		return modify(document.getID(), null, new Modification<T>() {
+			@Override
+			public void apply(DatabaseDocument<T> doc) {
+				doc.putAll(document);
+			}
+		}) != null;
+	}
+
+	/**
+	 * Replaces the entry of a document with one of a modified copy, retrying
+	 * until no other thread has replaced it in between, and freshens it.
+	 *
+	 * @param query the query the document must match to be modified, or null
+	 * @return the modified document, or null if the document is not in the
+	 * cache or does not match the query
+	 */
+	private DatabaseDocument<T> modify(DocumentID<T> id, DatabaseQuery<T> query, Modification<T> modification) {
+		while (true) {
+			Slot<T> slot = map.get(id);
+			if (slot == null || (query != null && !slot.stub.matches(query))) {
+				return null;
+			}
+			DatabaseDocument<T> doc = read(slot);
+			if (doc == null) {
+				return null;
+			}
+			modification.apply(doc);
+			Slot<T> modified = store(doc, slot.version + 1);
+			if (map.replace(id, slot, modified)) {
+				free(slot);
+				freshen(id);
+				return doc;
+			}
+			free(modified);
+		}
+	}
+
+	private interface Modification<T extends DatabaseType> {
+		void apply(DatabaseDocument<T> doc);
+	}
+
+	@Override
+	public int getSize() {
+		return map.size();
+	}
+
+	/**
+	 * @return the number of times the document has been added or updated, or
+	 * 0 if it is not in the cache
+	 */
+	public long getVersion(DocumentID<T> id) {
+		Slot<T> slot = map.get(id);
+		return slot != null ? slot.version : 0;
+	}
+
+	/**
+	 * @return the number of bytes taken by documents in the slabs
+	 */
+	public long getUsedBytes() {
+		lock.readLock().lock();
+		try {
+			long used = 0;
+			for (Slab slab : slabs) {
+				used += slab.used;
+			}
+			return used;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of times a document has been kept on the heap since
+	 * the cache was created, as it did not fit in the slabs
+	 */
+	public long getSpilledCount() {
+		lock.readLock().lock();
+		try {
+			return spilled;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of documents that did not fit in the slabs, and are
+	 * kept on the heap
+	 */
+	public int getOnHeapSize() {
+		int count = 0;
+		for (Slot<T> slot : map.values()) {
+			if (slot.slab == null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Serializes the document into a slab, or keeps it as it is if it does not
+	 * fit
+	 */
+	private Slot<T> store(DatabaseDocument<T> doc, long version) {
+		byte[] bytes = doc.toJson().getBytes(UTF8);
+		lock.writeLock().lock();
+		try {
+			Slab slab = allocate(bytes.length);
+			if (slab != null) {
+				Slot<T> slot = new Slot<T>(slab, slab.generation, slab.position, bytes.length, version);
+				ByteBuffer buffer = slab.buffer.duplicate();
+				buffer.position(slab.position);
+				buffer.put(bytes);
+				slab.position += bytes.length;
+				slab.used += bytes.length;
+				slab.slots.add(slot);
+				slot.stub = createStub(doc, slot);
+				spilling = false;
+				return slot;
+			}
+			spilled++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		Slot<T> slot = new Slot<T>(null, 0, 0, 0, version);
+		slot.stub = doc.copy();
+		return slot;
+	}
+
+	/**
+	 * Must be called holding the write lock
+	 *
+	 * @return a slab with room for the bytes at its position, or null if
+	 * there is none
+	 */
+	private Slab allocate(int length) {
+		if (length > slabSize) {
+			return null;
+		}
+		if (current != null && slabSize - current.position >= length) {
+			return current;
+		}
+		for (Slab slab : slabs) {
+			if (slab.used == 0) {
+				slab.reset();
+				current = slab;
+				return current;
+			}
+		}
+		if (slabs.size() < maxSlabs) {
+			current = new Slab(ByteBuffer.allocateDirect(slabSize));
+			slabs.add(current);
+			logger.debug("Allocated off-heap slab " + slabs.size() + " of " + maxSlabs);
+			return current;
+		}
+		Slab emptiest = null;
+		for (Slab slab : slabs) {
+			if (slab.used <= slabSize / 2 && slabSize - slab.used >= length
+					&& (emptiest == null || slab.used < emptiest.used)) {
+				emptiest = slab;
+			}
+		}
+		if (emptiest != null) {
+			compact(emptiest);
+			current = emptiest;
+			return current;
+		}
+		if (!spilling) {
+			spilling = true;
+			logger.warn("All " + maxSlabs + " off-heap slabs are full, keeping documents on the heap until there is room");
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the documents left in the slab to its start. Must be called
+	 * holding the write lock.
+	 */
+	private void compact(Slab slab) {
+		List<Slot<?>> live = new ArrayList<Slot<?>>(slab.slots);
+		byte[] bytes = new byte[slab.used];
+		ByteBuffer buffer = slab.buffer.duplicate();
+		int position = 0;
+		for (Slot<?> slot : live) {
+			buffer.position(slot.offset);
+			buffer.get(bytes, position, slot.length);
+			position += slot.length;
+		}
+		slab.reset();
+		buffer.position(0);
+		buffer.put(bytes, 0, position);
+		position = 0;
+		for (Slot<?> slot : live) {
+			slot.generation = slab.generation;
+			slot.offset = position;
+			position += slot.length;
+		}
+		slab.position = position;
+		logger.debug("Compacted an off-heap slab to the " + live.size() + " documents left in it");
+	}
+
+	private void free(Slot<T> slot) {
+		if (slot.slab == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (slot.slab.generation == slot.generation && !slot.freed) {
+				slot.freed = true;
+				slot.slab.used -= slot.length;
+				slot.slab.slots.remove(slot);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the document, or null if it has been removed from
+	 * the cache and its slab reused in the meantime
+	 */
+	private DatabaseDocument<T> read(Slot<T> slot) {
+		if (slot.slab == null) {
+			return slot.stub.copy();
+		}
+		byte[] bytes = new byte[slot.length];
+		lock.readLock().lock();
+		try {
+			if (slot.slab.generation != slot.generation) {
+				return null;
+			}
+			ByteBuffer buffer = slot.slab.buffer.duplicate();
+			buffer.position(slot.offset);
+			buffer.get(bytes);
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			return connector.convert(new LocalDocument(new String(bytes, UTF8)));
+		} catch (JsonException e) {
+			logger.error("Unable to read a cached document", e);
+		} catch (ConversionException e) {
+			logger.error("Unable to read a cached document", e);
+		}
+		return null;
+	}
+
+	private DatabaseDocument<T> createStub(DatabaseDocument<T> doc, Slot<T> slot) {
+		DatabaseDocument<T> stub = doc.copy();
+		for (String field : stub.getContentFields()) {
+			if (!isSmall(stub.getContentField(field))) {
+				stub.putContentField(field, new OffHeapValue(slot, field));
+			}
+		}
+		return stub;
+	}
+
+	private static boolean isSmall(Object o) {
+		return (o instanceof String && ((String) o).length() <= MAX_STUB_STRING_LENGTH)
+				|| o instanceof Number || o instanceof Boolean || o instanceof Date;
+	}
+
+	/**
+	 * Stands in for a content field left out of a stub. Only compared when a
+	 * query requires a field to equal something, which reads the field.
+	 */
+	private final class OffHeapValue {
+		private final Slot<T> slot;
+		private final String field;
+
+		OffHeapValue(Slot<T> slot, String field) {
+			this.slot = slot;
+			this.field = field;
+		}
+
+		private Object read() {
+			DatabaseDocument<T> doc = OffHeapCache.this.read(slot);
+			return doc != null ? doc.getContentField(field) : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Object value = read();
+			return value != null && value.equals(o);
+		}
+
+		@Override
+		public int hashCode() {
+			Object value = read();
+			return value != null ? value.hashCode() : 0;
+		}
+	}
+
+	/**
+	 * Where a version of a document is kept. Compared by identity, so that an
+	 * entry is only replaced by the thread that read it. The generation and
+	 * offset change, holding the write lock, when the slab is compacted.
+	 */
+	private static final class Slot<T extends DatabaseType> {
+		private final Slab slab;
+		private int generation;
+		private int offset;
+		private final int length;
+		private final long version;
+		private DatabaseDocument<T> stub;
+		private boolean freed = false;
+
+		Slot(Slab slab, int generation, int offset, int length, long version) {
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+	}
+
+	private static final class Slab {
+		private final ByteBuffer buffer;
+		private int position = 0;
+		private int used = 0;
+		/**
+		 * The slots of the documents in the slab that have not been freed
+		 */
+		private final Set<Slot<?>> slots = new HashSet<Slot<?>>();
+		/**
+		 * Counts the times the slab has been reused, so that documents that
+		 * were in it before are known to be gone
+		 */
+		private int generation = 0;
+
+		Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		void reset() {
+			position = 0;
+			generation++;
+		}
+	}
+}
@@ -25,5 +25,16 @@ public interface PipelineReader {
 	
 	Pipeline getPipeline();
 	
+	/**
+	 * Returns a value that changes whenever the pipeline, active or debug, or
+	 * any library in the database changes. Meant to be much cheaper to get than
+	 * the pipeline itself, so that the pipeline only has to be read when it has
+	 * changed.
+	 * 
+	 * May return null if the implementation can not tell, in which case the
+	 * pipeline has to be read to find out.
+	 */
+	String getPipelineVersion();
+	
 	Pipeline getDebugPipeline();
 }
\ No newline at end of file
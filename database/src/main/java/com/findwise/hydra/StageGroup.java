@@ -1,8 +1,10 @@
 package com.findwise.hydra;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
@@ -22,6 +24,29 @@ public class StageGroup {
 	public static final String CMDLINE_ARGS_KEY = "cmdline_args";
 	public static final String CLASSPATH_KEY = "classpath";
 	public static final String JAVA_LOCATION_KEY = "java_location";
+	public static final String VIRTUAL_THREADS_KEY = "virtual_threads";
+	public static final String FUSED_CHAIN_KEY = "fused_chain";
+	public static final String EMBEDDED_KEY = "embedded";
+	public static final String TRANSPORT_KEY = "transport";
+	public static final String WIRE_FORMAT_KEY = "wire_format";
+	public static final String COMPRESSION_KEY = "compression";
+	public static final String STAGE_HOST_KEY = "stage_host";
+	public static final String INSTANCES_KEY = "instances";
+	public static final String MAX_INSTANCES_KEY = "max_instances";
+	public static final String BACKLOG_PER_INSTANCE_KEY = "backlog_per_instance";
+	public static final String AGENT_KEY = "agent";
+	public static final String CLASS_DATA_SHARING_KEY = "class_data_sharing";
+	public static final String PARALLEL_INIT_KEY = "parallel_init";
+	
+	public static final int DEFAULT_BACKLOG_PER_INSTANCE = 1000;
+	
+	public static final String HTTP_TRANSPORT = "http";
+	public static final String SHARED_MEMORY_TRANSPORT = "mmap";
+	
+	public static final String JSON_WIRE_FORMAT = "json";
+	public static final String BSON_WIRE_FORMAT = "bson";
+	
+	public static final String NO_COMPRESSION = "none";
 	
 	private final Map<String, Stage> stages;
 	
@@ -34,6 +59,19 @@ public class StageGroup {
 	private Date propertiesModifiedDate;
 	private String name;
 	private String javaLocation;
+	private boolean virtualThreads = false;
+	private List<String> fusedChain = new ArrayList<String>();
+	private boolean embedded = false;
+	private String transport = HTTP_TRANSPORT;
+	private String wireFormat = JSON_WIRE_FORMAT;
+	private String compression = NO_COMPRESSION;
+	private String stageHost;
+	private int instances = 1;
+	private int maxInstances = 1;
+	private int backlogPerInstance = DEFAULT_BACKLOG_PER_INSTANCE;
+	private String agent;
+	private boolean classDataSharing = false;
+	private boolean parallelInit = false;
 	
 	private static final Logger logger = LoggerFactory.getLogger(StageGroup.class);
 	
@@ -107,6 +145,190 @@ public class StageGroup {
 		return javaLocation;
 	}
 	
+	/**
+	 * If true, the stages of this group run their workers on virtual threads.
+	 * Requires that the group is run on a JVM that supports virtual threads,
+	 * otherwise platform threads are used.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+	
+	/**
+	 * An ordered chain of stages in this group that are run on the same
+	 * in-memory document, only talking to core at the start and end of the
+	 * chain. Empty if the stages are not fused.
+	 */
+	public List<String> getFusedChain() {
+		return fusedChain;
+	}
+	
+	public void setFusedChain(List<String> fusedChain) {
+		this.fusedChain = (fusedChain == null) ? new ArrayList<String>() : fusedChain;
+	}
+	
+	/**
+	 * If true, the stages of this group are run inside the core JVM, with the
+	 * libraries of the group loaded in a class loader of their own. The stages
+	 * then read and write documents without going through the REST interface.
+	 */
+	public boolean isEmbedded() {
+		return embedded;
+	}
+	
+	public void setEmbedded(boolean embedded) {
+		this.embedded = embedded;
+	}
+	
+	/**
+	 * How the stages of this group talk to core: {@value #HTTP_TRANSPORT}, or
+	 * {@value #SHARED_MEMORY_TRANSPORT} for a memory mapped file shared with
+	 * core, which requires the group to run on the same host as core.
+	 */
+	public String getTransport() {
+		return transport;
+	}
+	
+	public void setTransport(String transport) {
+		this.transport = (transport == null) ? HTTP_TRANSPORT : transport;
+	}
+	
+	public boolean isSharedMemoryTransport() {
+		return SHARED_MEMORY_TRANSPORT.equals(transport);
+	}
+	
+	/**
+	 * The format documents are sent between the stages of this group and core
+	 * in over HTTP: {@value #JSON_WIRE_FORMAT}, or {@value #BSON_WIRE_FORMAT}
+	 * for a binary encoding that is smaller and faster to read and write.
+	 * Stages fall back to Json against a core that does not support BSON.
+	 */
+	public String getWireFormat() {
+		return wireFormat;
+	}
+	
+	public void setWireFormat(String wireFormat) {
+		this.wireFormat = (wireFormat == null) ? JSON_WIRE_FORMAT : wireFormat;
+	}
+	
+	public boolean isBsonWireFormat() {
+		return BSON_WIRE_FORMAT.equals(wireFormat);
+	}
+	
+	/**
+	 * The compression of HTTP bodies between the stages of this group and
+	 * core: {@value #NO_COMPRESSION}, "gzip", or "fast" for gzip at its
+	 * fastest level. Only bodies that core agrees to read compressed are
+	 * sent compressed.
+	 */
+	public String getCompression() {
+		return compression;
+	}
+	
+	public void setCompression(String compression) {
+		this.compression = (compression == null) ? NO_COMPRESSION : compression;
+	}
+	
+	public boolean isCompressed() {
+		return !NO_COMPRESSION.equals(compression);
+	}
+	
+	/**
+	 * The name of the stage host JVM that this group runs in, shared with the
+	 * other groups naming the same host, or null if the group runs in a JVM of
+	 * its own.
+	 */
+	public String getStageHost() {
+		return stageHost;
+	}
+	
+	public void setStageHost(String stageHost) {
+		this.stageHost = stageHost;
+	}
+	
+	/**
+	 * The number of processes running this group, which share the documents
+	 * between them. At least one.
+	 */
+	public int getInstances() {
+		return instances;
+	}
+	
+	public void setInstances(Integer instances) {
+		this.instances = (instances == null) ? 1 : Math.max(1, instances);
+	}
+	
+	/**
+	 * The number of processes that this group may be scaled up to when its
+	 * backlog grows, see {@link #getBacklogPerInstance()}. Never less than
+	 * {@link #getInstances()}.
+	 */
+	public int getMaxInstances() {
+		return Math.max(instances, maxInstances);
+	}
+	
+	public void setMaxInstances(Integer maxInstances) {
+		this.maxInstances = (maxInstances == null) ? 1 : maxInstances;
+	}
+	
+	/**
+	 * The number of documents waiting for the stages of this group that one
+	 * instance is expected to keep up with. Only used if the group may be
+	 * scaled, that is, if the maximum number of instances is larger than the
+	 * minimum.
+	 */
+	public int getBacklogPerInstance() {
+		return backlogPerInstance;
+	}
+	
+	public void setBacklogPerInstance(Integer backlogPerInstance) {
+		this.backlogPerInstance = (backlogPerInstance == null || backlogPerInstance < 1) ? DEFAULT_BACKLOG_PER_INSTANCE : backlogPerInstance;
+	}
+	
+	/**
+	 * The name of the stage agent that this group should run on, "*" for any
+	 * agent registered with core, or null if the group runs on the same host
+	 * as core.
+	 */
+	public String getAgent() {
+		return agent;
+	}
+	
+	public void setAgent(String agent) {
+		this.agent = agent;
+	}
+	
+	/**
+	 * Whether the JVM of this group should load its classes from a class data
+	 * sharing archive, built by the first run of the group and reused by later
+	 * runs as long as the libraries of the group do not change. Only has an
+	 * effect on JVMs that support dynamic archives. Off by default.
+	 */
+	public boolean isClassDataSharing() {
+		return classDataSharing;
+	}
+	
+	public void setClassDataSharing(boolean classDataSharing) {
+		this.classDataSharing = classDataSharing;
+	}
+	
+	/**
+	 * Whether the stages of this group are initialized concurrently when the
+	 * group starts, rather than one after the other. Stages with init() methods
+	 * that are not safe to run concurrently must not enable this.
+	 */
+	public boolean isParallelInit() {
+		return parallelInit;
+	}
+	
+	public void setParallelInit(boolean parallelInit) {
+		this.parallelInit = parallelInit;
+	}
+	
 	public Map<String, Object> toPropertiesMap() {
 		HashMap<String, Object> map = new HashMap<String, Object>();
 		map.put(JVM_PARAMETERS_KEY, getJvmParameters());
@@ -115,6 +337,19 @@ public class StageGroup {
 		map.put(CMDLINE_ARGS_KEY, getCmdlineArgs());
 		map.put(CLASSPATH_KEY, getClasspath());
 		map.put(JAVA_LOCATION_KEY, getJavaLocation());
+		map.put(VIRTUAL_THREADS_KEY, isVirtualThreads());
+		map.put(FUSED_CHAIN_KEY, getFusedChain());
+		map.put(EMBEDDED_KEY, isEmbedded());
+		map.put(TRANSPORT_KEY, getTransport());
+		map.put(WIRE_FORMAT_KEY, getWireFormat());
+		map.put(COMPRESSION_KEY, getCompression());
+		map.put(STAGE_HOST_KEY, getStageHost());
+		map.put(INSTANCES_KEY, getInstances());
+		map.put(MAX_INSTANCES_KEY, getMaxInstances());
+		map.put(BACKLOG_PER_INSTANCE_KEY, getBacklogPerInstance());
+		map.put(AGENT_KEY, getAgent());
+		map.put(CLASS_DATA_SHARING_KEY, isClassDataSharing());
+		map.put(PARALLEL_INIT_KEY, isParallelInit());
 		return map;
 	}
 
@@ -126,6 +361,7 @@ public class StageGroup {
 		return propertiesModifiedDate;
 	}
 
+	@SuppressWarnings("unchecked")
 	public void setProperties(Map<String, Object> propertiesMap) {
 		setJvmParameters((String)propertiesMap.get(JVM_PARAMETERS_KEY));
 		setRetries((Integer)propertiesMap.get(RETRIES_KEY));
@@ -133,6 +369,19 @@ public class StageGroup {
 		setCmdlineArgs((String)propertiesMap.get(CMDLINE_ARGS_KEY));
 		setClasspath((String)propertiesMap.get(CLASSPATH_KEY));
 		setJavaLocation((String)propertiesMap.get(JAVA_LOCATION_KEY));
+		setVirtualThreads(Boolean.TRUE.equals(propertiesMap.get(VIRTUAL_THREADS_KEY)));
+		setFusedChain((List<String>)propertiesMap.get(FUSED_CHAIN_KEY));
+		setEmbedded(Boolean.TRUE.equals(propertiesMap.get(EMBEDDED_KEY)));
+		setTransport((String)propertiesMap.get(TRANSPORT_KEY));
+		setWireFormat((String)propertiesMap.get(WIRE_FORMAT_KEY));
+		setCompression((String)propertiesMap.get(COMPRESSION_KEY));
+		setStageHost((String)propertiesMap.get(STAGE_HOST_KEY));
+		setInstances((Integer)propertiesMap.get(INSTANCES_KEY));
+		setMaxInstances((Integer)propertiesMap.get(MAX_INSTANCES_KEY));
+		setBacklogPerInstance((Integer)propertiesMap.get(BACKLOG_PER_INSTANCE_KEY));
+		setAgent((String)propertiesMap.get(AGENT_KEY));
+		setClassDataSharing(Boolean.TRUE.equals(propertiesMap.get(CLASS_DATA_SHARING_KEY)));
+		setParallelInit(Boolean.TRUE.equals(propertiesMap.get(PARALLEL_INIT_KEY)));
 	}
 	
 	/**
@@ -256,6 +256,22 @@ public class CachingDocumentNIOTest {
 		verify(writer, never()).update(doc1);
 	}
 
+	@Test
+	public void testOnlyDatabaseWritesAreMeasured() {
+		CachingDocumentNIO.WriteListener listener = mock(CachingDocumentNIO.WriteListener.class);
+		io.setWriteListener(listener);
+		when(cache.update(doc1)).thenReturn(true);
+
+		io.update(doc1);
+		verify(listener, never()).written(Mockito.anyLong());
+
+		io.insert(doc2);
+		io.flush();
+		verify(listener, times(1)).written(Mockito.anyLong());
+		io.markProcessed(doc1, "stage");
+		verify(listener, times(2)).written(Mockito.anyLong());
+	}
+
 	@Test
 	public void testDelete() {
 		io.delete(doc1);
@@ -581,4 +597,27 @@ public class CachingDocumentNIOTest {
 	}
 	
 	
+	@Test
+	public void testCacheFlushDoesNotModifyCachedDocuments() throws Exception {
+		DatabaseDocument<TestType> copy = mock(DatabaseDocument.class);
+		when(doc1.copy()).thenReturn(copy);
+		List list = Arrays.asList(new DatabaseDocument[] { doc1 });
+		when(cache.removeAll()).thenReturn(list);
+
+		io.flush();
+
+		verify(copy).removeFetchedBy(CachingDocumentNIO.CACHE_TAG);
+		verify(writer).update(copy);
+		verify(doc1, never()).removeFetchedBy(anyString());
+	}
+
+	@Test
+	public void testGetDocumentByIdReturnsCopy() {
+		DatabaseDocument<TestType> copy = mock(DatabaseDocument.class);
+		when(doc1.copy()).thenReturn(copy);
+		when(cache.getDocumentById(id1)).thenReturn(doc1);
+
+		assertEquals(copy, io.getDocumentById(id1));
+	}
+	
 }
@@ -1,9 +1,14 @@
 package com.findwise.hydra;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -21,6 +26,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -287,4 +293,87 @@ public class MemoryCacheTest {
 		assertTrue(c.contains(doc1));
 		assertEquals(0, cache.getSize());
 	}
+
+	@Test
+	public void testUpdateReplacesSnapshot() {
+		DatabaseDocument<TestType> stored = mock(DatabaseDocument.class);
+		DatabaseDocument<TestType> updated = mock(DatabaseDocument.class);
+		when(doc1.copy()).thenReturn(stored);
+		when(stored.copy()).thenReturn(updated);
+		cache.add(doc1);
+		assertEquals(1, cache.getVersion(id1));
+
+		DatabaseDocument doc3 = mock(DatabaseDocument.class);
+		when(doc3.getID()).thenReturn(id1);
+		assertTrue(cache.update(doc3));
+
+		verify(updated).putAll(doc3);
+		verify(stored, never()).putAll(any(DatabaseDocument.class));
+		assertEquals(updated, cache.getDocumentById(id1));
+		assertEquals(2, cache.getVersion(id1));
+	}
+
+	@Test
+	public void testGetAndTagHandsOutDocumentOnce() throws Exception {
+		DatabaseDocument<TestType> stored = mock(DatabaseDocument.class);
+		DatabaseDocument<TestType> tagged = mock(DatabaseDocument.class);
+		when(tagged.getID()).thenReturn(id1);
+		when(stored.matches(q1)).thenReturn(true);
+		when(doc1.copy()).thenReturn(stored);
+		when(stored.copy()).thenReturn(tagged);
+		cache.add(doc1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<DatabaseDocument<TestType>>> results = new ArrayList<Future<DatabaseDocument<TestType>>>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Callable<DatabaseDocument<TestType>>() {
+				@Override
+				public DatabaseDocument<TestType> call() {
+					return cache.getAndTag(q1, "tag");
+				}
+			}));
+		}
+		int handedOut = 0;
+		for (Future<DatabaseDocument<TestType>> result : results) {
+			if (result.get() != null) {
+				assertEquals(tagged, result.get());
+				handedOut++;
+			}
+		}
+		executor.shutdown();
+
+		assertEquals(1, handedOut);
+		assertEquals(2, cache.getVersion(id1));
+	}
+
+	@Test
+	public void testAddStoresACopy() {
+		DatabaseDocument<TestType> stored = mock(DatabaseDocument.class);
+		when(doc1.copy()).thenReturn(stored);
+		cache.add(doc1);
+
+		assertEquals(stored, cache.getDocumentById(id1));
+	}
+
+	@Test
+	public void testConcurrentAddsKeepEveryVersion() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						cache.add(doc1);
+					}
+				}
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+
+		assertEquals(800, cache.getVersion(id1));
+	}
 }
@@ -8,6 +8,8 @@ import org.junit.Test;
 import org.mockito.Mock;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class StageGroupTest {
 
@@ -35,4 +37,102 @@ public class StageGroupTest {
 		assertEquals(1, stageGroup.getSize());
 		assertEquals(stageConfig2, stageGroup.getStage("stage1"));
 	}
+
+	@Test
+	public void testVirtualThreads_survives_properties_roundtrip() {
+		stageGroup.setVirtualThreads(true);
+
+		StageGroup copy = new StageGroup("copy", stageGroup.toPropertiesMap());
+
+		assertTrue(copy.isVirtualThreads());
+	}
+
+	@Test
+	public void testVirtualThreads_defaults_to_false_when_missing() {
+		HashMap<String, Object> properties = new HashMap<String, Object>(stageGroup.toPropertiesMap());
+		properties.remove(StageGroup.VIRTUAL_THREADS_KEY);
+
+		StageGroup group = new StageGroup("group", properties);
+
+		assertFalse(group.isVirtualThreads());
+	}
+
+	@Test
+	public void testTransport_survives_properties_roundtrip() {
+		stageGroup.setTransport(StageGroup.SHARED_MEMORY_TRANSPORT);
+
+		StageGroup copy = new StageGroup("copy", stageGroup.toPropertiesMap());
+
+		assertTrue(copy.isSharedMemoryTransport());
+	}
+
+	@Test
+	public void testTransport_defaults_to_http_when_missing() {
+		HashMap<String, Object> properties = new HashMap<String, Object>(stageGroup.toPropertiesMap());
+		properties.remove(StageGroup.TRANSPORT_KEY);
+
+		StageGroup group = new StageGroup("group", properties);
+
+		assertEquals(StageGroup.HTTP_TRANSPORT, group.getTransport());
+		assertFalse(group.isSharedMemoryTransport());
+	}
+
+	@Test
+	public void testWireFormat_survives_properties_roundtrip() {
+		stageGroup.setWireFormat(StageGroup.BSON_WIRE_FORMAT);
+
+		StageGroup copy = new StageGroup("copy", stageGroup.toPropertiesMap());
+
+		assertTrue(copy.isBsonWireFormat());
+	}
+
+	@Test
+	public void testWireFormat_defaults_to_json_when_missing() {
+		HashMap<String, Object> properties = new HashMap<String, Object>(stageGroup.toPropertiesMap());
+		properties.remove(StageGroup.WIRE_FORMAT_KEY);
+
+		StageGroup group = new StageGroup("group", properties);
+
+		assertEquals(StageGroup.JSON_WIRE_FORMAT, group.getWireFormat());
+	}
+
+	@Test
+	public void testCompression_survives_properties_roundtrip() {
+		stageGroup.setCompression("fast");
+
+		StageGroup copy = new StageGroup("copy", stageGroup.toPropertiesMap());
+
+		assertEquals("fast", copy.getCompression());
+		assertTrue(copy.isCompressed());
+	}
+
+	@Test
+	public void testCompression_defaults_to_none_when_missing() {
+		HashMap<String, Object> properties = new HashMap<String, Object>(stageGroup.toPropertiesMap());
+		properties.remove(StageGroup.COMPRESSION_KEY);
+
+		StageGroup group = new StageGroup("group", properties);
+
+		assertEquals(StageGroup.NO_COMPRESSION, group.getCompression());
+		assertFalse(group.isCompressed());
+	}
+
+	@Test
+	public void testClassDataSharing_defaults_to_false_when_missing() {
+		HashMap<String, Object> properties = new HashMap<String, Object>(stageGroup.toPropertiesMap());
+		properties.remove(StageGroup.CLASS_DATA_SHARING_KEY);
+
+		StageGroup group = new StageGroup("group", properties);
+
+		assertFalse(group.isClassDataSharing());
+	}
+
+	@Test
+	public void testClassDataSharing_can_be_enabled() {
+		stageGroup.setClassDataSharing(true);
+
+		StageGroup copy = new StageGroup("copy", stageGroup.toPropertiesMap());
+
+		assertTrue(copy.isClassDataSharing());
+	}
 }
@@ -1,10 +1,17 @@
 package com.findwise.hydra.output.elasticsearch;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.elasticsearch.ElasticSearchException;
-import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
@@ -12,25 +19,39 @@ import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.Document.Action;
 import com.findwise.hydra.local.LocalDocument;
-import com.findwise.hydra.stage.AbstractOutputStage;
+import com.findwise.hydra.stage.AbstractAsyncOutputStage;
 import com.findwise.hydra.stage.InitFailedException;
 import com.findwise.hydra.stage.Parameter;
 import com.findwise.hydra.stage.RequiredArgumentMissingException;
 import com.findwise.hydra.stage.Stage;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Writes to elasticsearch via the Transport protocol.
+ * <p/>
+ * Requests are sent without waiting for their answers, and a document is
+ * marked as processed once elasticsearch has answered. In bulk mode, documents
+ * are sent in bulk requests, and those elasticsearch fails are marked as
+ * failed while the rest of the bulk is marked as processed. To fill bulks, keep
+ * maxInFlight at no less than bulkActions times one more than concurrentBulks,
+ * as the defaults are.
+ * <p/>
+ * Stages with the same cluster and nodes in a JVM share a transport client.
  * 
  * @author olof.nilsson
  *
  */
 @Stage(description = "A stage that writes documents to elasticsearch")
-public class ElasticsearchOutputStage extends AbstractOutputStage {
+public class ElasticsearchOutputStage extends AbstractAsyncOutputStage {
     private static Logger logger = LoggerFactory.getLogger(ElasticsearchOutputStage.class);
 
 	@Parameter(required = true, description = "List of elasticsearch node URLs to connect to")
@@ -51,67 +72,223 @@ public class ElasticsearchOutputStage extends AbstractOutputStage {
 	@Parameter(description = "ID field in the document")
 	private String documentIdField = "docId";
 
-	@Parameter(description = "Timeout for requests in millis")
+	@Parameter(description = "Timeout for requests in millis, used as the processing timeout unless one is set")
 	private int requestTimeout = 10000;
 
+	@Parameter(description = "If set, documents are sent in bulk requests. Default: false")
+	private boolean bulk = false;
+
+	@Parameter(description = "The number of documents at which a bulk request is sent. Default: 50")
+	private int bulkActions = 50;
+
+	@Parameter(description = "The size, in bytes, at which a bulk request is sent. Default: 5242880")
+	private long bulkSize = 5 * 1024 * 1024;
+
+	@Parameter(description = "The longest time, in milliseconds, a document waits for its bulk request to fill up. Default: 1000")
+	private long flushInterval = 1000;
+
+	@Parameter(description = "The number of bulk requests that may be sent while another is filled up. Default: 1")
+	private int concurrentBulks = 1;
+
+	private static final Map<String, Client> clients = new HashMap<String, Client>();
+
 	private Client client;
+	private BulkProcessor bulkProcessor;
 
 	@Override
 	public void init() throws RequiredArgumentMissingException, InitFailedException {
+		// Built again on first use, with the parameters as they are now
+		closeBulkProcessor();
 		try {
-			client = constructClient();
+			client = getSharedClient();
 		} catch (Exception e) {
 			throw new InitFailedException("Could not construct client", e);
 		}
+		if (getProcessingTimeout() <= 0) {
+			setProcessingTimeout(requestTimeout);
+		}
+		if (bulk && getMaxInFlight() < bulkActions) {
+			logger.warn("maxInFlight (" + getMaxInFlight() + ") is smaller than bulkActions (" + bulkActions + "), bulk requests will only be sent every flushInterval");
+		} else if (bulk && getMaxInFlight() < bulkActions * (concurrentBulks + 1)) {
+			logger.warn("maxInFlight (" + getMaxInFlight() + ") is smaller than bulkActions times one more than concurrentBulks (" + bulkActions * (concurrentBulks + 1) + "), bulk requests will not fill up while others are sent");
+		}
+	}
+
+	/**
+	 * Sends the documents the bulk processor holds, rather than leaving them
+	 * waiting for a flush that never comes
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		closeBulkProcessor();
 	}
 
 	@Override
-	public void output(LocalDocument document) {
+	public ListenableFuture<?> outputAsync(LocalDocument document) {
 		final Action action = document.getAction();
 		
-		logger.debug(action.toString());
+		logger.debug(String.valueOf(action));
+		if (action == null) {
+			return Futures.immediateFailedFuture(new IllegalArgumentException("Action must be ADD, DELETE or UPDATE."));
+		}
 		switch (action) {
 		case ADD:
-			add(document);
-			break;
+			return add(document);
 		case DELETE:
-			delete(document);
-			break;
+			return delete(document);
 		case UPDATE:
-			update(document);
-			break;
+			return update(document);
 		default:
-			throw new IllegalArgumentException("Action must be ADD, DELETE or UPDATE.");
+			return Futures.immediateFailedFuture(new IllegalArgumentException("Action must be ADD, DELETE or UPDATE."));
 		}
 	}
 
-	private void update(LocalDocument document) throws ElasticSearchException {
-		add(document);
+	private ListenableFuture<?> update(LocalDocument document) {
+		return add(document);
 	}
 
-	private void add(LocalDocument document) throws ElasticSearchException {
+	private ListenableFuture<?> add(LocalDocument document) {
 		String docId = getDocumentId(document);
 		String json = document.contentFieldsToJson(document.getContentFields());
-		logger.debug("Indexing document " + getDocumentId(document) + " to index " + documentIndex + " with type " + documentType);
-		ListenableActionFuture<IndexResponse> actionFuture = client.prepareIndex(documentIndex, documentType, docId)
+		logger.debug("Indexing document " + docId + " to index " + documentIndex + " with type " + documentType);
+		if (bulk) {
+			return addToBulk(client.prepareIndex(documentIndex, documentType, docId).setSource(json).request());
+		}
+		final SettableFuture<Object> future = SettableFuture.create();
+		client.prepareIndex(documentIndex, documentType, docId)
 			.setSource(json)
-			.execute();
-		IndexResponse response = actionFuture.actionGet(requestTimeout);
-		logger.debug("Got response for docId " + response.getId());
+			.execute(new ActionListener<IndexResponse>() {
+				@Override
+				public void onResponse(IndexResponse response) {
+					logger.debug("Got response for docId " + response.getId());
+					future.set(response);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					future.setException(e);
+				}
+			});
+		return future;
 	}
 
-	private void delete(LocalDocument document) {
+	private ListenableFuture<?> delete(LocalDocument document) {
 		
 		String docId = getDocumentId(document);
 		
-		ListenableActionFuture<DeleteResponse> actionFuture = client.prepareDelete(documentIndex, documentType, docId)
-				.execute();
-		DeleteResponse response = actionFuture.actionGet(requestTimeout);
-		if (response.isNotFound()) {
-			logger.debug("Delete failed, document not found");
+		if (bulk) {
+			return addToBulk(client.prepareDelete(documentIndex, documentType, docId).request());
+		}
+		final SettableFuture<Object> future = SettableFuture.create();
+		client.prepareDelete(documentIndex, documentType, docId)
+			.execute(new ActionListener<DeleteResponse>() {
+				@Override
+				public void onResponse(DeleteResponse response) {
+					if (response.isNotFound()) {
+						logger.debug("Delete failed, document not found");
+					}
+					else {
+						logger.debug("Deleted document with id " + response.getId());
+					}
+					future.set(response);
+				}
+
+				@Override
+				public void onFailure(Throwable e) {
+					future.setException(e);
+				}
+			});
+		return future;
+	}
+
+	/**
+	 * @return a future completing once the bulk request the request ends up
+	 * in has been answered
+	 */
+	@SuppressWarnings("rawtypes")
+	private ListenableFuture<?> addToBulk(ActionRequest request) {
+		SettableFuture<Object> future = SettableFuture.create();
+		getBulkProcessor().add(request, future);
+		return future;
+	}
+
+	private synchronized void closeBulkProcessor() {
+		if (bulkProcessor != null) {
+			bulkProcessor.close();
+			bulkProcessor = null;
+		}
+	}
+
+	private synchronized BulkProcessor getBulkProcessor() {
+		if (bulkProcessor == null) {
+			bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+				@Override
+				public void beforeBulk(long executionId, BulkRequest request) {
+					logger.debug("Sending bulk request " + executionId + " of " + request.numberOfActions() + " documents");
+				}
+
+				@Override
+				public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+					complete(request, response);
+				}
+
+				@Override
+				public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+					logger.error("Bulk request " + executionId + " of " + request.numberOfActions() + " documents failed", failure);
+					fail(request, failure);
+				}
+			})
+				.setName(getClass().getSimpleName())
+				.setBulkActions(bulkActions)
+				.setBulkSize(new ByteSizeValue(bulkSize))
+				.setFlushInterval(flushInterval > 0 ? TimeValue.timeValueMillis(flushInterval) : null)
+				.setConcurrentRequests(concurrentBulks)
+				.build();
 		}
-		else {
-			logger.debug("Deleted document with id " + response.getId());
+		return bulkProcessor;
+	}
+
+	/**
+	 * Completes the future of each document in the bulk request with the
+	 * answer for it
+	 */
+	@SuppressWarnings("unchecked")
+	static void complete(BulkRequest request, BulkResponse response) {
+		List<Object> payloads = request.payloads();
+		for (BulkItemResponse item : response) {
+			SettableFuture<Object> future = (SettableFuture<Object>) payloads.get(item.itemId());
+			if (item.isFailed()) {
+				logger.debug("Document " + item.getId() + " failed: " + item.getFailureMessage());
+				future.setException(new ElasticSearchException(item.getFailureMessage()));
+			} else {
+				future.set(item.response());
+			}
+		}
+		// Any document elasticsearch did not answer for is not known to be written
+		fail(request, new ElasticSearchException("No response for document in bulk request"));
+	}
+
+	@SuppressWarnings("unchecked")
+	static void fail(BulkRequest request, Throwable failure) {
+		for (Object payload : request.payloads()) {
+			((SettableFuture<Object>) payload).setException(failure);
+		}
+	}
+
+	/**
+	 * @return a client for the cluster and nodes of the stage, shared with
+	 * other stages of this JVM that use the same ones
+	 */
+	private Client getSharedClient() {
+		String key = clusterName + esNodes + ":" + transportPort;
+		synchronized (clients) {
+			Client shared = clients.get(key);
+			if (shared == null) {
+				shared = constructClient();
+				clients.put(key, shared);
+			}
+			return shared;
 		}
 	}
 
@@ -162,4 +339,20 @@ public class ElasticsearchOutputStage extends AbstractOutputStage {
 	public String getIdField() {
 		return this.documentIdField;
 	}
+
+	public boolean isBulk() {
+		return bulk;
+	}
+
+	public void setBulk(boolean bulk) {
+		this.bulk = bulk;
+	}
+
+	public void setBulkActions(int bulkActions) {
+		this.bulkActions = bulkActions;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
 }
@@ -1,5 +1,10 @@
 package com.findwise.hydra.output.elasticsearch;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Assert;
 
 import org.elasticsearch.action.ListenableActionFuture;
@@ -15,6 +20,7 @@ import org.junit.rules.TemporaryFolder;
 
 import com.findwise.hydra.Document.Action;
 import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class ElasticsearchOutputStageIT {
 	
@@ -56,8 +62,8 @@ public class ElasticsearchOutputStageIT {
 	}
 	
 	@Test
-	public void testCanAddAndDelete() {
-		stage.output(addDocument);
+	public void testCanAddAndDelete() throws Exception {
+		stage.process(addDocument);
 		
 		ListenableActionFuture<GetResponse> addActionFuture = client.prepareGet()
 				.setIndex(stage.getIndex())
@@ -69,7 +75,7 @@ public class ElasticsearchOutputStageIT {
 		Assert.assertEquals("Document should be added to correct index", stage.getIndex(), addResponse.getIndex());
 		Assert.assertEquals("Document should have correct type", stage.getType(), addResponse.getType());
 
-		stage.output(deleteDocument);
+		stage.process(deleteDocument);
 		
 		ListenableActionFuture<GetResponse> deleteActionFuture = client.prepareGet()
 				.setIndex(stage.getIndex())
@@ -80,6 +86,37 @@ public class ElasticsearchOutputStageIT {
 		Assert.assertFalse("The document should not be in the index", deleteResponse.exists());
 	}
 	
+	@Test
+	public void testBulkFailsOnlyRejectedDocuments() throws Exception {
+		stage.setBulk(true);
+		stage.setBulkActions(3);
+		stage.setFlushInterval(0);
+
+		LocalDocument first = new LocalDocument();
+		first.setAction(Action.ADD);
+		first.putContentField(stage.getIdField(), "first");
+		first.putContentField("number", 1);
+		stage.process(first);
+
+		List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+		for (String number : new String[] { "2", "not a number", "3" }) {
+			LocalDocument doc = new LocalDocument();
+			doc.setAction(Action.ADD);
+			doc.putContentField(stage.getIdField(), "doc " + number);
+			doc.putContentField("number", number);
+			futures.add(stage.outputAsync(doc));
+		}
+
+		futures.get(0).get(10, TimeUnit.SECONDS);
+		futures.get(2).get(10, TimeUnit.SECONDS);
+		try {
+			futures.get(1).get(10, TimeUnit.SECONDS);
+			Assert.fail("Document that does not match the mapping should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getMessage().contains("MapperParsingException"));
+		}
+	}
+	
 	@After
 	public void tearDown() {
 		client.close();
@@ -0,0 +1,84 @@
+package com.findwise.hydra.output.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+public class ElasticsearchOutputStageTest {
+
+	private static void assertFailed(SettableFuture<Object> future, String message) throws InterruptedException {
+		try {
+			future.get();
+			fail("Document was not failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ElasticSearchException);
+			assertTrue(e.getCause().getMessage().contains(message));
+		}
+	}
+
+	@Test
+	public void testItemFailuresAreMappedToDocuments() throws Exception {
+		SettableFuture<Object> indexed = SettableFuture.create();
+		SettableFuture<Object> rejected = SettableFuture.create();
+		SettableFuture<Object> deleted = SettableFuture.create();
+		BulkRequest request = new BulkRequest();
+		request.add(new IndexRequest("main", "default", "1").source("{}"), indexed);
+		request.add(new IndexRequest("main", "default", "2").source("{}"), rejected);
+		request.add(new DeleteRequest("main", "default", "3"), deleted);
+
+		IndexResponse indexResponse = new IndexResponse("main", "default", "1", 1);
+		BulkResponse response = new BulkResponse(new BulkItemResponse[] {
+				new BulkItemResponse(0, "index", indexResponse),
+				new BulkItemResponse(1, "index", new BulkItemResponse.Failure("main", "default", "2", "MapperParsingException")),
+				new BulkItemResponse(2, "delete", new IndexResponse("main", "default", "3", 1)) }, 10);
+
+		ElasticsearchOutputStage.complete(request, response);
+
+		assertEquals(indexResponse, indexed.get());
+		assertTrue(deleted.isDone());
+		deleted.get();
+		assertFailed(rejected, "MapperParsingException");
+	}
+
+	@Test
+	public void testDocumentsWithoutAnswerAreFailed() throws Exception {
+		SettableFuture<Object> answered = SettableFuture.create();
+		SettableFuture<Object> unanswered = SettableFuture.create();
+		BulkRequest request = new BulkRequest();
+		request.add(new IndexRequest("main", "default", "1").source("{}"), answered);
+		request.add(new IndexRequest("main", "default", "2").source("{}"), unanswered);
+
+		ElasticsearchOutputStage.complete(request, new BulkResponse(new BulkItemResponse[] {
+				new BulkItemResponse(0, "index", new IndexResponse("main", "default", "1", 1)) }, 10));
+
+		answered.get();
+		assertFailed(unanswered, "No response");
+	}
+
+	@Test
+	public void testFailedBulkFailsAllDocuments() throws Exception {
+		SettableFuture<Object> first = SettableFuture.create();
+		SettableFuture<Object> second = SettableFuture.create();
+		BulkRequest request = new BulkRequest();
+		request.add(new IndexRequest("main", "default", "1").source("{}"), first);
+		request.add(new DeleteRequest("main", "default", "2"), second);
+
+		ElasticsearchOutputStage.fail(request, new ElasticSearchException("No node available"));
+
+		assertFailed(first, "No node available");
+		assertFailed(second, "No node available");
+	}
+}
@@ -2,27 +2,43 @@ package com.findwise.hydra.output.solr;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.findwise.hydra.Document.Action;
 import com.findwise.hydra.local.LocalDocument;
-import com.findwise.hydra.stage.AbstractOutputStage;
+import com.findwise.hydra.stage.AbstractAsyncOutputStage;
 import com.findwise.hydra.stage.InitFailedException;
+import com.findwise.hydra.stage.OutputBatcher;
 import com.findwise.hydra.stage.Parameter;
 import com.findwise.hydra.stage.RequiredArgumentMissingException;
 import com.findwise.hydra.stage.Stage;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
+/**
+ * Documents are sent to Solr in batches, and are only marked as processed
+ * once Solr has acknowledged the batch they were in. A batch Solr rejects is
+ * split until the documents it rejects are found, and only those are failed.
+ * To fill batches, keep maxInFlight at no less than batchSize times one more
+ * than maxBatchesInFlight, so that a batch fills up while the others are
+ * sent. The default maxInFlight of this stage is set that way.
+ */
 @Stage(description="Writes documents to Solr")
-public class SolrOutputStage extends AbstractOutputStage {
+public class SolrOutputStage extends AbstractAsyncOutputStage {
     private static Logger logger = LoggerFactory.getLogger(SolrOutputStage.class);
 
 	@Parameter(required = true, description = "The URL of the Solr to which this stage will post data")
@@ -35,49 +51,217 @@ public class SolrOutputStage extends AbstractOutputStage {
 	private String idField = "id";
 	@Parameter
 	private int commitWithin = 0;
+	@Parameter(description = "The number of documents sent to Solr in a single request. Default: 100")
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	@Parameter(description = "The estimated size, in bytes, of the documents at which a batch is sent even if it is not full. Default: 5242880")
+	private long batchBytes = 5 * 1024 * 1024;
+	@Parameter(description = "The longest time, in milliseconds, a document waits for its batch to fill up. Default: 1000")
+	private long flushInterval = 1000;
+	@Parameter(description = "The number of batches that may be sent to Solr at the same time. Default: 2")
+	private int maxBatchesInFlight = DEFAULT_BATCHES_IN_FLIGHT;
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int DEFAULT_BATCHES_IN_FLIGHT = 2;
+
+	/**
+	 * The longest time to wait for batches being sent when the stage is
+	 * reconfigured or stopped
+	 */
+	private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
 
 	private SolrServer solr;
+	private OutputBatcher<Update> batcher;
+
+	public SolrOutputStage() {
+		setMaxInFlight(DEFAULT_BATCH_SIZE * (DEFAULT_BATCHES_IN_FLIGHT + 1));
+	}
 
 	@Override
-	public void output(LocalDocument doc) throws IOException, SolrServerException, RequiredArgumentMissingException {
+	public ListenableFuture<?> outputAsync(LocalDocument doc) {
 		final Action action = doc.getAction();
 
 		if (action == Action.ADD || action == Action.UPDATE) {
-			add(doc);
+			return add(doc);
 		} else if (action == Action.DELETE) {
-			delete(doc);
-		} else{
-			throw new IllegalArgumentException("action not set in document. This document would never be sent to solr");
+			return delete(doc);
+		} else {
+			return Futures.immediateFailedFuture(new IllegalArgumentException("action not set in document. This document would never be sent to solr"));
 		}
 	}
 
+	/**
+	 * Also called when the stage is reconfigured, in which case what has been
+	 * batched is sent before the connection to Solr is replaced, and later
+	 * documents are batched with the new parameters
+	 */
 	@Override
 	public void init() throws RequiredArgumentMissingException, InitFailedException {
+		closeBatcher();
+		shutdownSolrServer();
 		try {
 			solr = getSolrServer();
 		} catch (MalformedURLException e) {
 			throw new InitFailedException("Solr URL malformed", e);
 		}
+		if (getMaxInFlight() < batchSize) {
+			logger.warn("maxInFlight (" + getMaxInFlight() + ") is smaller than batchSize (" + batchSize + "), batches will only be sent every flushInterval");
+		} else if (getMaxInFlight() < batchSize * (maxBatchesInFlight + 1)) {
+			logger.warn("maxInFlight (" + getMaxInFlight() + ") is smaller than batchSize times one more than maxBatchesInFlight (" + batchSize * (maxBatchesInFlight + 1) + "), batches will not fill up while others are sent");
+		}
 	}
 	
-	private void add(LocalDocument doc) throws SolrServerException, IOException {
+	private ListenableFuture<?> add(LocalDocument doc) {
 		SolrInputDocument solrdoc = createSolrInputDocumentWithFieldConfig(doc);
-		if (getCommitWithin() != 0) {
-			solr.add(solrdoc, getCommitWithin());
-		}
-		else {
-			solr.add(solrdoc);
-		}
+		return batch(new Update(solrdoc, null), estimateSize(solrdoc));
 	}
 	
-	private void delete(LocalDocument doc) throws SolrServerException, IOException, RequiredArgumentMissingException {
+	private ListenableFuture<?> delete(LocalDocument doc) {
 		if(!doc.hasContentField(idField)) {
-			throw new RequiredArgumentMissingException("Document has no ID field");
+			return Futures.immediateFailedFuture(new RequiredArgumentMissingException("Document has no ID field"));
 		}
+		String id = doc.getContentField(idField).toString();
+		return batch(new Update(null, id), id.length());
+	}
+
+	/**
+	 * Sends the adds and deletes of a batch, keeping their order, since a
+	 * single Solr request does its adds before its deletes
+	 */
+	private void send(List<Update> updates) throws SolrServerException, IOException {
+		List<SolrInputDocument> adds = new ArrayList<SolrInputDocument>();
+		List<String> deletes = new ArrayList<String>();
+		for (Update update : updates) {
+			if (update.document != null) {
+				if (!deletes.isEmpty()) {
+					deleteById(deletes);
+					deletes = new ArrayList<String>();
+				}
+				adds.add(update.document);
+			} else {
+				if (!adds.isEmpty()) {
+					add(adds);
+					adds = new ArrayList<SolrInputDocument>();
+				}
+				deletes.add(update.deleteId);
+			}
+		}
+		if (!adds.isEmpty()) {
+			add(adds);
+		}
+		if (!deletes.isEmpty()) {
+			deleteById(deletes);
+		}
+	}
+
+	private void add(Collection<SolrInputDocument> docs) throws SolrServerException, IOException {
+		if (getCommitWithin() != 0) {
+			solr.add(docs, getCommitWithin());
+		} else {
+			solr.add(docs);
+		}
+	}
+
+	private void deleteById(List<String> ids) throws SolrServerException, IOException {
 		if (getCommitWithin() != 0) {
-			solr.deleteById(doc.getContentField(idField).toString(), getCommitWithin());
+			solr.deleteById(ids, getCommitWithin());
 		} else {
-			solr.deleteById(doc.getContentField(idField).toString());
+			solr.deleteById(ids);
+		}
+	}
+
+	/**
+	 * Closes the spool, if any, before the batcher it sends to
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		closeBatcher();
+		shutdownSolrServer();
+	}
+
+	private void shutdownSolrServer() {
+		if (solr != null) {
+			if (solr instanceof HttpSolrServer) {
+				((HttpSolrServer) solr).shutdown();
+			}
+			solr = null;
+		}
+	}
+
+	/**
+	 * Sends what has been batched, and drops the batcher so that the next
+	 * document gets one with the current parameters
+	 */
+	private synchronized void closeBatcher() {
+		if (batcher != null) {
+			try {
+				batcher.close(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			batcher = null;
+		}
+	}
+
+	private synchronized ListenableFuture<?> batch(Update update, long bytes) {
+		if (batcher == null) {
+			batcher = new OutputBatcher<Update>(batchSize, batchBytes, flushInterval, maxBatchesInFlight) {
+				@Override
+				protected void send(List<Update> updates) throws Exception {
+					SolrOutputStage.this.send(updates);
+				}
+
+				/**
+				 * Solr answering that a request is bad may be caused by a
+				 * single document, while other failures are not
+				 */
+				@Override
+				protected boolean shouldBisect(Exception e) {
+					return isBadRequest(e);
+				}
+			};
+		}
+		return batcher.add(update, bytes);
+	}
+
+	/**
+	 * A document Solr answered was bad is dropped from the spool, since it
+	 * would only fail again
+	 */
+	@Override
+	protected boolean shouldRetry(Throwable failure) {
+		return !isBadRequest(failure);
+	}
+
+	private static boolean isBadRequest(Throwable e) {
+		if (e instanceof SolrException) {
+			int code = ((SolrException) e).code();
+			return code >= 400 && code < 500;
+		}
+		return false;
+	}
+
+	private static long estimateSize(SolrInputDocument doc) {
+		long size = 0;
+		for (SolrInputField field : doc) {
+			size += field.getName().length();
+			for (Object value : field) {
+				size += String.valueOf(value).length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * A document to add, or the id of one to delete
+	 */
+	private static final class Update {
+		private final SolrInputDocument document;
+		private final String deleteId;
+
+		Update(SolrInputDocument document, String deleteId) {
+			this.document = document;
+			this.deleteId = deleteId;
 		}
 	}
 	
@@ -149,4 +333,20 @@ public class SolrOutputStage extends AbstractOutputStage {
 	public void setCommitWithin(int commitWithin) {
 		this.commitWithin = commitWithin;
 	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
 }
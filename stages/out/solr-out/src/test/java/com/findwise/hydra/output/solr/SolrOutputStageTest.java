@@ -2,22 +2,34 @@ package com.findwise.hydra.output.solr;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.findwise.hydra.Document.Action;
 import com.findwise.hydra.local.LocalDocument;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class SolrOutputStageTest {
 
@@ -29,6 +41,7 @@ public class SolrOutputStageTest {
 		solrOutput = new SolrOutputStage();
 		mockServer = Mockito.mock(SolrServer.class);
 		solrOutput.setSolrServer(mockServer);
+		solrOutput.setBatchSize(1);
 	}
 
 	@After
@@ -42,9 +55,15 @@ public class SolrOutputStageTest {
 		LocalDocument doc = new LocalDocument();
 		doc.setAction(Action.ADD);
 		doc.putContentField("name", "jonas");
-		solrOutput.output(doc);
+		solrOutput.process(doc);
 		Mockito.verify(mockServer).add(
-				Mockito.any(SolrInputDocument.class));
+				Mockito.anyCollectionOf(SolrInputDocument.class));
+	}
+
+	@Test
+	public void testDefaultMaxInFlightFillsBatchesWhileOthersAreSent() {
+		// The default batch size of 100, times one more than the 2 batches in flight
+		assertEquals(300, new SolrOutputStage().getMaxInFlight());
 	}
 
 	@Test
@@ -53,13 +72,13 @@ public class SolrOutputStageTest {
 		doc.setAction(Action.DELETE);
 		doc.putContentField("name", "jonas");
 		try {
-			solrOutput.output(doc);
+			solrOutput.process(doc);
 		} catch(Exception e) {}
-		Mockito.verify(mockServer, Mockito.never()).deleteById(Mockito.any(String.class));
+		Mockito.verify(mockServer, Mockito.never()).deleteById(Mockito.anyListOf(String.class));
 		
 		doc.putContentField("id", "someid");
-		solrOutput.output(doc);
-		Mockito.verify(mockServer).deleteById(Mockito.any(String.class));
+		solrOutput.process(doc);
+		Mockito.verify(mockServer).deleteById(Arrays.asList("someid"));
 	}
 	
 	@Test
@@ -69,9 +88,118 @@ public class SolrOutputStageTest {
 		LocalDocument doc = new LocalDocument();
 		doc.setAction(Action.ADD);
 		doc.putContentField("name", "one");
-		solrOutput.output(doc);
+		solrOutput.process(doc);
 		Mockito.verify(mockServer, Mockito.times(1)).add(
-				Mockito.any(SolrInputDocument.class), Mockito.eq(1337));
+				Mockito.anyCollectionOf(SolrInputDocument.class), Mockito.eq(1337));
+	}
+
+	private LocalDocument createDocument(Action action, String id) {
+		LocalDocument doc = new LocalDocument();
+		doc.setAction(action);
+		doc.putContentField("id", id);
+		return doc;
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testDocumentsAreSentInBatches() throws Exception {
+		solrOutput.setSendAll(true);
+		solrOutput.setBatchSize(3);
+		solrOutput.setFlushInterval(0);
+
+		ListenableFuture<?> first = solrOutput.outputAsync(createDocument(Action.ADD, "1"));
+		solrOutput.outputAsync(createDocument(Action.ADD, "2"));
+		Mockito.verify(mockServer, Mockito.never()).add(Mockito.anyCollectionOf(SolrInputDocument.class));
+
+		solrOutput.outputAsync(createDocument(Action.ADD, "3")).get(1, TimeUnit.SECONDS);
+		assertTrue(first.isDone());
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		Mockito.verify(mockServer).add(captor.capture());
+		assertEquals(3, captor.getValue().size());
+	}
+
+	@Test
+	public void testStopSendsWhatIsBatched() throws Exception {
+		solrOutput.setSendAll(true);
+		solrOutput.setBatchSize(3);
+		solrOutput.setFlushInterval(60000);
+
+		ListenableFuture<?> batched = solrOutput.outputAsync(createDocument(Action.ADD, "1"));
+		solrOutput.stop();
+
+		assertTrue(batched.isDone());
+		Mockito.verify(mockServer).add(Mockito.anyCollectionOf(SolrInputDocument.class));
+		Mockito.verify(mockServer).shutdown();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testReconfiguredBatchSizeIsUsed() throws Exception {
+		solrOutput.setSendAll(true);
+		solrOutput.setBatchSize(3);
+		solrOutput.setFlushInterval(60000);
+		ListenableFuture<?> batched = solrOutput.outputAsync(createDocument(Action.ADD, "1"));
+
+		solrOutput.setBatchSize(1);
+		solrOutput.setSolrDeployPath("http://localhost:8983/solr");
+		solrOutput.init();
+		assertTrue(batched.isDone());
+		Mockito.verify(mockServer).shutdown();
+
+		SolrServer newServer = Mockito.mock(SolrServer.class);
+		solrOutput.setSolrServer(newServer);
+		solrOutput.outputAsync(createDocument(Action.ADD, "2")).get(1, TimeUnit.SECONDS);
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		Mockito.verify(newServer).add(captor.capture());
+		assertEquals(1, captor.getValue().size());
+	}
+
+	@Test
+	public void testAddsAndDeletesKeepTheirOrder() throws Exception {
+		solrOutput.setSendAll(true);
+		solrOutput.setBatchSize(3);
+
+		solrOutput.outputAsync(createDocument(Action.ADD, "1"));
+		solrOutput.outputAsync(createDocument(Action.DELETE, "1"));
+		solrOutput.outputAsync(createDocument(Action.ADD, "1")).get(1, TimeUnit.SECONDS);
+
+		InOrder inOrder = Mockito.inOrder(mockServer);
+		inOrder.verify(mockServer).add(Mockito.anyCollectionOf(SolrInputDocument.class));
+		inOrder.verify(mockServer).deleteById(Arrays.asList("1"));
+		inOrder.verify(mockServer).add(Mockito.anyCollectionOf(SolrInputDocument.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testOnlyRejectedDocumentsFail() throws Exception {
+		solrOutput.setSendAll(true);
+		solrOutput.setBatchSize(4);
+		Mockito.when(mockServer.add(Mockito.anyCollectionOf(SolrInputDocument.class))).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				for (SolrInputDocument doc : (Collection<SolrInputDocument>) invocation.getArguments()[0]) {
+					if ("bad".equals(doc.getFieldValue("id"))) {
+						throw new SolrException(ErrorCode.BAD_REQUEST, "bad document");
+					}
+				}
+				return null;
+			}
+		});
+
+		List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>();
+		for (String id : new String[] { "1", "2", "bad", "3" }) {
+			futures.add(solrOutput.outputAsync(createDocument(Action.ADD, id)));
+		}
+
+		futures.get(0).get(1, TimeUnit.SECONDS);
+		futures.get(1).get(1, TimeUnit.SECONDS);
+		futures.get(3).get(1, TimeUnit.SECONDS);
+		try {
+			futures.get(2).get(1, TimeUnit.SECONDS);
+			fail("Rejected document was not failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SolrException);
+		}
 	}
 
 	@Test
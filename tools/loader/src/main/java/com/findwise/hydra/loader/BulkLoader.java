@@ -0,0 +1,326 @@
+package com.findwise.hydra.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.findwise.hydra.local.LocalDocument;
+import com.findwise.hydra.local.RemotePipeline;
+import com.findwise.tools.HttpConnection;
+
+/**
+ * Loads the documents of NDJSON and CSV files, optionally gzipped, into a
+ * pipeline. Records are read by a single thread, while batches of them are
+ * parsed and inserted by a pool of threads, with at most a given number of
+ * batches in flight at a time.
+ * <p/>
+ * How far each file has been loaded is kept in a checkpoint file, and a load
+ * that is interrupted continues from there when run again. Documents loaded
+ * after the last checkpoint are loaded again, so the load is at least once.
+ */
+public class BulkLoader {
+	public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+	private static final int DEFAULT_PORT = 12001;
+	private static final String DEFAULT_STAGE = "bulk-loader";
+	private static final int DEFAULT_REPORT_INTERVAL = 10;
+	private static final int SHUTDOWN_TIMEOUT = 60;
+
+	public enum Format {
+		NDJSON, CSV
+	}
+
+	private final RemotePipeline pipeline;
+	private final int threads;
+	private final int window;
+	private final int batchSize;
+
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile boolean stopped = false;
+	private volatile Exception failure;
+
+	/**
+	 * @param window the number of batches that may be in flight at a time
+	 */
+	public BulkLoader(RemotePipeline pipeline, int threads, int window, int batchSize) {
+		this.pipeline = pipeline;
+		this.threads = threads;
+		this.window = window;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Loads a file, starting from the offset of its checkpoint.
+	 *
+	 * @return false if the load was stopped, or failed, before the end of the
+	 * file
+	 */
+	public boolean load(File file, DocumentParser parser, Checkpoint checkpoint) throws IOException, InterruptedException {
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Semaphore inFlight = new Semaphore(window);
+		LineReader reader = LineReader.open(file);
+		try {
+			if (parser instanceof CsvParser) {
+				String header = readRecord(reader, parser);
+				if (header == null) {
+					return true;
+				}
+				((CsvParser) parser).setHeader(header);
+			}
+			reader.seek(Math.max(reader.getOffset(), checkpoint.getOffset()));
+
+			long sequence = 0;
+			List<String> records;
+			while (!stopped && failure == null && !(records = readBatch(reader, parser)).isEmpty()) {
+				inFlight.acquire();
+				workers.execute(new Batch(sequence++, records, reader.getOffset(), parser, checkpoint, inFlight));
+			}
+			// All batches are done once every permit is back
+			inFlight.acquire(window);
+			inFlight.release(window);
+		} finally {
+			workers.shutdown();
+			reader.close();
+		}
+		if (failure != null) {
+			throw new IOException("Unable to load " + file.getName() + ", stopped at offset " + checkpoint.getOffset(), failure);
+		}
+		return !stopped;
+	}
+
+	private List<String> readBatch(LineReader reader, DocumentParser parser) throws IOException {
+		List<String> records = new ArrayList<String>(batchSize);
+		String record;
+		while (records.size() < batchSize && (record = readRecord(reader, parser)) != null) {
+			if (!record.trim().isEmpty()) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	private static String readRecord(LineReader reader, DocumentParser parser) throws IOException {
+		String record = reader.readLine();
+		if (record == null) {
+			return null;
+		}
+		while (!parser.isComplete(record)) {
+			String line = reader.readLine();
+			if (line == null) {
+				// Left for the parser to reject
+				break;
+			}
+			record += "\n" + line;
+		}
+		return record;
+	}
+
+	/**
+	 * Stops reading, letting the batches in flight finish
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	public long getInserted() {
+		return inserted.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	private class Batch implements Runnable {
+		private final long sequence;
+		private final List<String> records;
+		private final long end;
+		private final DocumentParser parser;
+		private final Checkpoint checkpoint;
+		private final Semaphore inFlight;
+
+		public Batch(long sequence, List<String> records, long end, DocumentParser parser, Checkpoint checkpoint, Semaphore inFlight) {
+			this.sequence = sequence;
+			this.records = records;
+			this.end = end;
+			this.parser = parser;
+			this.checkpoint = checkpoint;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<LocalDocument> documents = new ArrayList<LocalDocument>(records.size());
+				for (String record : records) {
+					try {
+						documents.add(parser.parse(record));
+					} catch (IllegalArgumentException e) {
+						failed.incrementAndGet();
+						System.err.println("Skipping record that could not be parsed: " + e.getMessage());
+					}
+				}
+				if (!documents.isEmpty()) {
+					for (boolean result : pipeline.insert(documents)) {
+						(result ? inserted : failed).incrementAndGet();
+					}
+				}
+				checkpoint.complete(sequence, end);
+			} catch (Exception e) {
+				// The checkpoint never moves past this batch, so it is loaded again when resuming
+				failure = e;
+			} finally {
+				inFlight.release();
+			}
+		}
+	}
+
+	private static Options getOptions() {
+		Options options = new Options();
+		options.addOption("h", "help", false, "Print this help message");
+		options.addOption("H", "host", true, "The host of Hydra core, defaults to 127.0.0.1");
+		options.addOption("p", "port", true, "The REST port of Hydra core, defaults to " + DEFAULT_PORT);
+		options.addOption("s", "stage", true, "The stage name to insert documents as, defaults to " + DEFAULT_STAGE);
+		options.addOption("f", "format", true, "ndjson or csv. Defaults to csv for files named *.csv or *.csv.gz, and ndjson otherwise");
+		options.addOption("d", "delimiter", true, "The delimiter of CSV files, defaults to ,");
+		options.addOption("t", "threads", true, "The number of threads parsing and inserting documents, defaults to the number of processors");
+		options.addOption("w", "window", true, "The number of batches in flight at a time, defaults to twice the number of threads");
+		options.addOption("b", "batch", true, "The number of documents in each batch, defaults to " + RemotePipeline.INSERT_BATCH_SIZE);
+		options.addOption("c", "checkpoints", true, "The directory to keep checkpoint files in, defaults to the directory of each file");
+		options.addOption("r", "restart", false, "Ignore existing checkpoints, loading each file from its start");
+		options.addOption("i", "interval", true, "Seconds between progress reports, defaults to " + DEFAULT_REPORT_INTERVAL);
+		return options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = getOptions();
+		CommandLine cmd;
+		try {
+			cmd = new GnuParser().parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			printHelp(options);
+			System.exit(-1);
+			return;
+		}
+		if (cmd.hasOption("h") || cmd.getArgs().length == 0) {
+			printHelp(options);
+			return;
+		}
+
+		int threads = getInt(cmd, "t", Runtime.getRuntime().availableProcessors());
+		int window = getInt(cmd, "w", threads * 2);
+		int batchSize = getInt(cmd, "b", RemotePipeline.INSERT_BATCH_SIZE);
+		HttpConnection connection = new HttpConnection(cmd.getOptionValue("H", "127.0.0.1"), getInt(cmd, "p", DEFAULT_PORT), window);
+		RemotePipeline pipeline = new RemotePipeline(connection, cmd.getOptionValue("s", DEFAULT_STAGE), false);
+		final BulkLoader loader = new BulkLoader(pipeline, threads, window, batchSize);
+
+		// Lets the batches in flight finish and be checkpointed when interrupted
+		final CountDownLatch done = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				loader.stop();
+				try {
+					done.await(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		final long start = System.currentTimeMillis();
+		int interval = getInt(cmd, "i", DEFAULT_REPORT_INTERVAL);
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private long lastInserted = 0;
+			private long lastTime = start;
+
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				long inserted = loader.getInserted();
+				System.out.println(String.format("Inserted %d documents (%.0f docs/s, %.0f docs/s overall), %d failed",
+						inserted, rate(inserted - lastInserted, now - lastTime), rate(inserted, now - start), loader.getFailed()));
+				lastInserted = inserted;
+				lastTime = now;
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+
+		boolean complete = true;
+		try {
+			for (String name : cmd.getArgs()) {
+				File file = new File(name);
+				Checkpoint checkpoint = getCheckpoint(file, cmd.getOptionValue("c"), cmd.hasOption("r"));
+				System.out.println("Loading " + file.getName() + (checkpoint.getOffset() > 0 ? " from offset " + checkpoint.getOffset() : ""));
+				if (!loader.load(file, getParser(file, cmd), checkpoint)) {
+					System.out.println("Stopped loading " + file.getName() + " at offset " + checkpoint.getOffset());
+					complete = false;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ": " + e.getCause());
+			complete = false;
+		} finally {
+			reporter.shutdownNow();
+			done.countDown();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println(String.format("Inserted %d documents in %.1f s (%.0f docs/s), %d failed",
+				loader.getInserted(), elapsed / 1000.0, rate(loader.getInserted(), elapsed), loader.getFailed()));
+		if (!complete) {
+			System.exit(1);
+		}
+	}
+
+	private static double rate(long documents, long millis) {
+		return millis > 0 ? documents * 1000.0 / millis : 0;
+	}
+
+	private static Checkpoint getCheckpoint(File file, String directory, boolean restart) throws IOException {
+		File dir = directory != null ? new File(directory) : file.getAbsoluteFile().getParentFile();
+		File checkpointFile = new File(dir, file.getName() + CHECKPOINT_SUFFIX);
+		if (restart && checkpointFile.exists() && !checkpointFile.delete()) {
+			throw new IOException("Unable to remove checkpoint file " + checkpointFile.getAbsolutePath());
+		}
+		return new Checkpoint(checkpointFile);
+	}
+
+	private static DocumentParser getParser(File file, CommandLine cmd) {
+		Format format;
+		if (cmd.hasOption("f")) {
+			format = Format.valueOf(cmd.getOptionValue("f").toUpperCase());
+		} else {
+			String name = file.getName().toLowerCase();
+			format = name.endsWith(".csv") || name.endsWith(".csv.gz") ? Format.CSV : Format.NDJSON;
+		}
+		if (format == Format.CSV) {
+			String delimiter = cmd.getOptionValue("d", ",");
+			return new CsvParser("\\t".equals(delimiter) ? '\t' : delimiter.charAt(0));
+		}
+		return new JsonLinesParser();
+	}
+
+	private static int getInt(CommandLine cmd, String option, int defaultValue) {
+		return cmd.hasOption(option) ? Integer.parseInt(cmd.getOptionValue(option)) : defaultValue;
+	}
+
+	private static void printHelp(Options options) {
+		new HelpFormatter().printHelp("hydra-loader [options] file...", options);
+	}
+}
@@ -0,0 +1,90 @@
+package com.findwise.hydra.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The offset up to which a file has been loaded. Batches of a file complete in
+ * any order, but the checkpoint only moves past a batch once all batches
+ * before it have completed, so that a load resumed from it skips no
+ * documents. Documents of batches that completed after the last checkpoint
+ * are loaded again when resuming.
+ * <p/>
+ * The offset is written to the checkpoint file every time it moves.
+ */
+public class Checkpoint {
+	private final File file;
+	private long offset;
+	private long next = 0;
+	private final Map<Long, Long> completed = new HashMap<Long, Long>();
+
+	/**
+	 * Reads the checkpoint from the file, if it exists
+	 */
+	public Checkpoint(File file) throws IOException {
+		this.file = file;
+		offset = file.isFile() ? read(file) : 0;
+	}
+
+	private static long read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			int read = 0;
+			while (read < bytes.length) {
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n == -1) {
+					break;
+				}
+				read += n;
+			}
+			return Long.parseLong(new String(bytes, 0, read, "UTF-8").trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Checkpoint file " + file.getAbsolutePath() + " does not hold an offset");
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Records that the batch with the given sequence number, counted from 0
+	 * for the first batch read after the checkpoint, has been loaded.
+	 *
+	 * @param end the offset just after the last record of the batch
+	 */
+	public synchronized void complete(long sequence, long end) throws IOException {
+		completed.put(sequence, end);
+		if (!completed.containsKey(next)) {
+			return;
+		}
+		while (completed.containsKey(next)) {
+			offset = completed.remove(next);
+			next++;
+		}
+		write();
+	}
+
+	private void write() throws IOException {
+		// Written to a file of its own first, so that an interrupted write never loses the checkpoint
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(Long.toString(offset).getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Unable to write checkpoint file " + file.getAbsolutePath());
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.findwise.hydra.loader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * Parses CSV records, the fields of which are named by the header record. As
+ * in RFC 4180, values may be quoted, a quote in a quoted value is written as
+ * two quotes, and quoted values may span several lines. Empty values are left
+ * out of the document.
+ */
+public class CsvParser implements DocumentParser {
+	private static final char QUOTE = '"';
+
+	private final char delimiter;
+	private String[] header;
+
+	public CsvParser(char delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	public void setHeader(String record) {
+		List<String> names = split(record);
+		header = names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public boolean isComplete(String record) {
+		int quotes = 0;
+		for (int i = 0; i < record.length(); i++) {
+			if (record.charAt(i) == QUOTE) {
+				quotes++;
+			}
+		}
+		return quotes % 2 == 0;
+	}
+
+	@Override
+	public LocalDocument parse(String record) {
+		if (header == null) {
+			throw new IllegalStateException("No header has been set");
+		}
+		List<String> values = split(record);
+		if (values.size() > header.length) {
+			throw new IllegalArgumentException("Record has " + values.size() + " values, but the header only names " + header.length);
+		}
+		LocalDocument d = new LocalDocument();
+		for (int i = 0; i < values.size(); i++) {
+			if (!values.get(i).isEmpty()) {
+				d.putContentField(header[i], values.get(i));
+			}
+		}
+		return d;
+	}
+
+	List<String> split(String record) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < record.length(); i++) {
+			char c = record.charAt(i);
+			if (quoted) {
+				if (c != QUOTE) {
+					value.append(c);
+				} else if (i + 1 < record.length() && record.charAt(i + 1) == QUOTE) {
+					value.append(QUOTE);
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == QUOTE) {
+				quoted = true;
+			} else if (c == delimiter) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Record ends inside a quoted value");
+		}
+		values.add(value.toString());
+		return values;
+	}
+}
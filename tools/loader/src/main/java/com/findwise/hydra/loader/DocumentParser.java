@@ -0,0 +1,18 @@
+package com.findwise.hydra.loader;
+
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * Turns a record of a source file into a document.
+ */
+public interface DocumentParser {
+	/**
+	 * @return whether the record is complete, or continues on the next line
+	 */
+	boolean isComplete(String record);
+
+	/**
+	 * @throws IllegalArgumentException if the record is not a valid record
+	 */
+	LocalDocument parse(String record);
+}
@@ -0,0 +1,39 @@
+package com.findwise.hydra.loader;
+
+import java.util.Map;
+
+import com.findwise.hydra.JsonException;
+import com.findwise.hydra.SerializationUtils;
+import com.findwise.hydra.local.LocalDocument;
+
+/**
+ * Parses newline delimited JSON, where each line is an object whose fields
+ * become the content fields of a document.
+ */
+public class JsonLinesParser implements DocumentParser {
+	@Override
+	public boolean isComplete(String record) {
+		return true;
+	}
+
+	@Override
+	public LocalDocument parse(String record) {
+		// Anything but an object would be wrapped in one by fromJson
+		if (!record.trim().startsWith("{")) {
+			throw new IllegalArgumentException("Not a JSON object");
+		}
+		Map<String, Object> fields;
+		try {
+			fields = SerializationUtils.fromJson(record);
+		} catch (JsonException e) {
+			throw new IllegalArgumentException("Not a JSON object: " + e.getMessage(), e);
+		}
+		LocalDocument d = new LocalDocument();
+		for (Map.Entry<String, Object> e : fields.entrySet()) {
+			if (e.getValue() != null) {
+				d.putContentField(e.getKey(), e.getValue());
+			}
+		}
+		return d;
+	}
+}
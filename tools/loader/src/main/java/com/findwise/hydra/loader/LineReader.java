@@ -0,0 +1,101 @@
+package com.findwise.hydra.loader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the lines of a UTF-8 file, keeping track of how many bytes of it have
+ * been read, so that reading can later continue from the same offset.
+ * Gzipped files are read as a stream, offsets then being into the
+ * uncompressed contents, and other files are memory-mapped.
+ */
+public abstract class LineReader implements Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private byte[] line = new byte[8192];
+	private int length;
+
+	/**
+	 * @return the next line, without its line terminator, or null if the end
+	 * of the file has been reached
+	 */
+	public abstract String readLine() throws IOException;
+
+	/**
+	 * @return the offset of the first byte that has not been read yet
+	 */
+	public abstract long getOffset();
+
+	/**
+	 * Continues reading from the given offset, which should be the start of a
+	 * line. Gzipped files can only be read forwards.
+	 */
+	public abstract void seek(long offset) throws IOException;
+
+	public static LineReader open(File file) throws IOException {
+		if (isGzipped(file)) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+			try {
+				return new StreamLineReader(new GZIPInputStream(in, STREAM_BUFFER_SIZE));
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return new MappedLineReader(file);
+	}
+
+	static boolean isGzipped(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int first = in.read();
+			int second = in.read();
+			return second != -1 && ((second << 8) | first) == GZIP_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	protected void startLine() {
+		length = 0;
+	}
+
+	protected void append(byte[] bytes, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, line, length, count);
+		length += count;
+	}
+
+	protected void append(ByteBuffer buffer, int offset, int count) {
+		ensureCapacity(count);
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(line, length, count);
+		length += count;
+	}
+
+	private void ensureCapacity(int count) {
+		if (length + count > line.length) {
+			byte[] grown = new byte[Math.max(line.length * 2, length + count)];
+			System.arraycopy(line, 0, grown, 0, length);
+			line = grown;
+		}
+	}
+
+	protected String endLine() {
+		int end = length;
+		if (end > 0 && line[end - 1] == '\r') {
+			end--;
+		}
+		return new String(line, 0, end, UTF8);
+	}
+}
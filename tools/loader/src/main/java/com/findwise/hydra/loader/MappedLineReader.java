@@ -0,0 +1,87 @@
+package com.findwise.hydra.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads a file through a window mapped into memory, which is moved along the
+ * file as it is read, so that files larger than the address space can be read.
+ */
+public class MappedLineReader extends LineReader {
+	public static final long DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private final long window;
+
+	private MappedByteBuffer buffer;
+	private long bufferStart;
+	private long offset = 0;
+
+	public MappedLineReader(File file) throws IOException {
+		this(file, DEFAULT_WINDOW);
+	}
+
+	public MappedLineReader(File file, long window) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = channel.size();
+		this.window = window;
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (offset >= size) {
+			return null;
+		}
+		startLine();
+		while (offset < size) {
+			int start = position();
+			int end = buffer.limit();
+			int i = start;
+			while (i < end && buffer.get(i) != '\n') {
+				i++;
+			}
+			append(buffer, start, i - start);
+			offset += i - start;
+			if (i < end) {
+				offset++;
+				break;
+			}
+		}
+		return endLine();
+	}
+
+	/**
+	 * @return the position of the offset in the buffer, mapping the window
+	 * starting at the offset if it is outside of the current one
+	 */
+	private int position() throws IOException {
+		if (buffer == null || offset < bufferStart || offset >= bufferStart + buffer.limit()) {
+			bufferStart = offset;
+			buffer = channel.map(MapMode.READ_ONLY, offset, Math.min(window, size - offset));
+		}
+		return (int) (offset - bufferStart);
+	}
+
+	@Override
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public void seek(long offset) {
+		this.offset = Math.min(offset, size);
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		file.close();
+	}
+}
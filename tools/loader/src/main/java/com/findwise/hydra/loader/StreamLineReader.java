@@ -0,0 +1,79 @@
+package com.findwise.hydra.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads lines from a stream, such as the uncompressed contents of a gzipped
+ * file.
+ */
+public class StreamLineReader extends LineReader {
+	private final InputStream in;
+	private final byte[] buffer = new byte[64 * 1024];
+	private int position = 0;
+	private int limit = 0;
+	private long offset = 0;
+
+	public StreamLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (!fill()) {
+			return null;
+		}
+		startLine();
+		while (fill()) {
+			int start = position;
+			while (position < limit && buffer[position] != '\n') {
+				position++;
+			}
+			append(buffer, start, position - start);
+			offset += position - start;
+			if (position < limit) {
+				position++;
+				offset++;
+				break;
+			}
+		}
+		return endLine();
+	}
+
+	/**
+	 * @return false if there is nothing left to read
+	 */
+	private boolean fill() throws IOException {
+		while (position >= limit) {
+			limit = in.read(buffer);
+			position = 0;
+			if (limit == -1) {
+				limit = 0;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public void seek(long target) throws IOException {
+		if (target < offset) {
+			throw new IOException("Unable to seek backwards in a stream, from " + offset + " to " + target);
+		}
+		while (offset < target && fill()) {
+			int skipped = (int) Math.min(limit - position, target - offset);
+			position += skipped;
+			offset += skipped;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
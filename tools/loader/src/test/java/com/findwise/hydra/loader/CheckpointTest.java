@@ -0,0 +1,30 @@
+package com.findwise.hydra.loader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CheckpointTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testOnlyMovesPastCompletedBatches() throws Exception {
+		File file = new File(folder.getRoot(), "data.csv" + BulkLoader.CHECKPOINT_SUFFIX);
+		Checkpoint checkpoint = new Checkpoint(file);
+		assertEquals(0, checkpoint.getOffset());
+
+		checkpoint.complete(1, 200);
+		assertEquals(0, checkpoint.getOffset());
+		checkpoint.complete(0, 100);
+		assertEquals(200, checkpoint.getOffset());
+		checkpoint.complete(3, 400);
+		assertEquals(200, checkpoint.getOffset());
+
+		assertEquals(200, new Checkpoint(file).getOffset());
+	}
+}
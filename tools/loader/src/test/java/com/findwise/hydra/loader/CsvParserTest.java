@@ -0,0 +1,45 @@
+package com.findwise.hydra.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.findwise.hydra.local.LocalDocument;
+
+public class CsvParserTest {
+	@Test
+	public void testQuotedValues() {
+		CsvParser parser = new CsvParser(',');
+		assertEquals(Arrays.asList("a", "b, c", "say \"hi\"", ""), parser.split("a,\"b, c\",\"say \"\"hi\"\"\","));
+	}
+
+	@Test
+	public void testRecordSpanningLines() {
+		CsvParser parser = new CsvParser(';');
+		parser.setHeader("id;text");
+		assertFalse(parser.isComplete("1;\"first"));
+		assertTrue(parser.isComplete("1;\"first\nsecond\""));
+
+		LocalDocument d = parser.parse("1;\"first\nsecond\"");
+		assertEquals("1", d.getContentField("id"));
+		assertEquals("first\nsecond", d.getContentField("text"));
+	}
+
+	@Test
+	public void testEmptyValuesAreLeftOut() {
+		CsvParser parser = new CsvParser(',');
+		parser.setHeader("id,text");
+		assertFalse(parser.parse("1,").hasContentField("text"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyValues() {
+		CsvParser parser = new CsvParser(',');
+		parser.setHeader("id");
+		parser.parse("1,2");
+	}
+}
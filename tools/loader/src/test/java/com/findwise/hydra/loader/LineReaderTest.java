@@ -0,0 +1,82 @@
+package com.findwise.hydra.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LineReaderTest {
+	private static final String CONTENTS = "first\r\nsecond line\n\nåäö\nlast";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMappedLinesAcrossWindows() throws Exception {
+		LineReader reader = new MappedLineReader(write(false), 4);
+		assertLines(reader);
+	}
+
+	@Test
+	public void testGzippedLines() throws Exception {
+		File file = write(true);
+		assertTrue(LineReader.isGzipped(file));
+		assertLines(LineReader.open(file));
+	}
+
+	@Test
+	public void testSeekToOffset() throws Exception {
+		for (boolean gzip : new boolean[] { false, true }) {
+			LineReader reader = LineReader.open(write(gzip));
+			try {
+				reader.readLine();
+				long offset = reader.getOffset();
+				reader.readLine();
+
+				LineReader resumed = LineReader.open(write(gzip));
+				resumed.seek(offset);
+				assertEquals("second line", resumed.readLine());
+				resumed.close();
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	private void assertLines(LineReader reader) throws Exception {
+		try {
+			assertEquals("first", reader.readLine());
+			assertEquals(7, reader.getOffset());
+			assertEquals("second line", reader.readLine());
+			assertEquals("", reader.readLine());
+			assertEquals("åäö", reader.readLine());
+			assertEquals("last", reader.readLine());
+			assertEquals(CONTENTS.getBytes("UTF-8").length, reader.getOffset());
+			assertNull(reader.readLine());
+		} finally {
+			reader.close();
+		}
+	}
+
+	private File write(boolean gzip) throws Exception {
+		File file = File.createTempFile("lines", gzip ? ".gz" : ".txt", folder.getRoot());
+		OutputStream out = new FileOutputStream(file);
+		if (gzip) {
+			out = new GZIPOutputStream(out);
+		}
+		try {
+			out.write(CONTENTS.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}